@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.matsim.api.core.v01.Coord;
+import org.opengis.feature.simple.SimpleFeature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the beeline distance matrix calculated on primitive coordinate arrays against the
+ * previous calculation adding the distance of each pair of {@link Coord}s to the matrix.
+ * Both run single-threaded, so the difference is not hidden by the parallelization.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class BeelineDistanceMatrixBenchmark {
+
+    @Param({"100", "500", "1000", "2000"})
+    public int zoneCount;
+
+    @Param({"5", "10"})
+    public int pointsPerZone;
+
+    private Map<String, SimpleFeature> zones;
+    private Map<String, Coord[]> coordsPerZone;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.zones = new LinkedHashMap<>();
+        this.coordsPerZone = BeelineDistanceMatrixTest.createRandomCoords(this.zones, this.zoneCount, this.pointsPerZone, 20190601);
+    }
+
+    @Benchmark
+    public FloatMatrix<String> perCoord() {
+        return BeelineDistanceMatrixTest.calculatePerCoord(this.zones, this.coordsPerZone);
+    }
+
+    @Benchmark
+    public FloatMatrix<String> arrays() {
+        return BeelineDistanceMatrix.calculateBeelineDistanceMatrix(this.zones, this.coordsPerZone, 1);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BeelineDistanceMatrixBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.synthetic.SyntheticScenarioGenerator;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.config.Config;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+
+import java.util.Random;
+
+/**
+ * The synthetic scenarios for the benchmarks: a square area with a grid of straight lines, half of them
+ * running west-east, the other half south-north, generated by {@link SyntheticScenarioGenerator}.
+ * Each line is served in both directions from 05:00 to 24:00, with stops in a regular distance.
+ * Where two lines cross, both have a stop at the same coordinate, so passengers can transfer between the lines.
+ *
+ * @author agent
+ */
+public final class BenchmarkScenario {
+
+    public enum Size {
+        /** 15 x 15 km, 2 x 8 lines, a stop every 400 m, every 7.5 minutes */
+        CITY(15_000, 8, 400, 450),
+        /** 60 x 60 km, 2 x 16 lines, a stop every km, every 15 minutes */
+        REGION(60_000, 16, 1000, 900),
+        /** 250 x 250 km, 2 x 32 lines, a stop every 2 km, every 30 minutes */
+        NATION(250_000, 32, 2000, 1800);
+
+        final double extent;
+        final int linesPerDirection;
+        final double stopDistance;
+        final double headway;
+
+        Size(double extent, int linesPerDirection, double stopDistance, double headway) {
+            this.extent = extent;
+            this.linesPerDirection = linesPerDirection;
+            this.stopDistance = stopDistance;
+            this.headway = headway;
+        }
+    }
+
+    final Size size;
+    private final SyntheticScenarioGenerator generator;
+    final Config config;
+    final Scenario scenario;
+    final TransitSchedule schedule;
+    final Network network;
+
+    BenchmarkScenario(Size size, long seed) {
+        this.size = size;
+        this.generator = new SyntheticScenarioGenerator(seed);
+        this.generator.setExtent(size.extent);
+        this.generator.setLineCount(size.linesPerDirection);
+        this.generator.setStopDistance(size.stopDistance);
+        this.generator.setHeadway(size.headway);
+        this.scenario = this.generator.createScenario();
+        this.config = this.scenario.getConfig();
+        this.schedule = this.scenario.getTransitSchedule();
+        this.network = this.scenario.getNetwork();
+    }
+
+    SwissRailRaptorData createRaptorData(RaptorStaticConfig.RaptorOptimization optimization) {
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(this.config);
+        raptorConfig.setOptimization(optimization);
+        return SwissRailRaptorData.create(this.schedule, raptorConfig, this.network);
+    }
+
+    /**
+     * @return a random coordinate within the area served by the schedule.
+     */
+    Coord getRandomCoord(Random random) {
+        return this.generator.getRandomCoord(random);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RangeQuerySettingsParameterSet;
+import org.matsim.api.core.v01.Coord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares filtering the routes found by a range query using the sort-based skyline algorithm
+ * against the previous pairwise comparison of all routes, and measures range queries with
+ * increasingly wide {@link RangeQuerySettingsParameterSet} windows.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1)
+public class FilterRoutesBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Routes {
+
+        @Param({"10", "50", "100", "500", "1000", "5000"})
+        public int count;
+
+        List<RaptorRoute> routes;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.routes = SwissRailRaptorCoreTest.createRandomRoutes(new Random(20190312), this.count);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RangeQuery {
+
+        @Param({"10", "30", "60", "120", "240"})
+        public int windowMinutes;
+
+        SwissRailRaptor raptor;
+        FakeFacility fromFacility;
+        FakeFacility toFacility;
+        double departureTime = 8.0 * 3600;
+        double earliestDepartureTime;
+        double latestDepartureTime;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Fixture f = new Fixture();
+            f.init();
+            SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+            this.raptor = new SwissRailRaptor(data, new DefaultRaptorParametersForPerson(f.config), new LeastCostRaptorRouteSelector(),
+                    new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null));
+            this.fromFacility = new FakeFacility(new Coord(3800, 5100));
+            this.toFacility = new FakeFacility(new Coord(28100, 4950));
+            RangeQuerySettingsParameterSet settings = new RangeQuerySettingsParameterSet();
+            settings.setMaxEarlierDeparture(this.windowMinutes * 60);
+            settings.setMaxLaterDeparture(this.windowMinutes * 60);
+            this.earliestDepartureTime = this.departureTime - settings.getMaxEarlierDeparture();
+            this.latestDepartureTime = this.departureTime + settings.getMaxLaterDeparture();
+        }
+    }
+
+    @Benchmark
+    public List<RaptorRoute> filterPairwise(Routes state) {
+        return SwissRailRaptorCoreTest.filterRoutesPairwise(new ArrayList<>(state.routes));
+    }
+
+    @Benchmark
+    public List<RaptorRoute> filterSkyline(Routes state) {
+        return SwissRailRaptorCore.filterRoutes(new ArrayList<>(state.routes));
+    }
+
+    @Benchmark
+    public List<RaptorRoute> calcRoutes(RangeQuery state) {
+        return state.raptor.calcRoutes(state.fromFacility, state.toFacility, state.earliestDepartureTime, state.departureTime, state.latestDepartureTime, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FilterRoutesBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
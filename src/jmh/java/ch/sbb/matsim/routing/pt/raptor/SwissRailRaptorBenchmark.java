@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.router.RoutingModule;
+import org.matsim.core.router.TeleportationRoutingModule;
+import org.matsim.facilities.Facility;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the route calculations of {@link SwissRailRaptor} on synthetic schedules of different sizes.
+ *
+ * Each invocation uses the next one of a fixed, randomly chosen set of origins and destinations, so the
+ * results are not dominated by a single, possibly untypical relation. Run with the GC profiler
+ * (<code>-prof gc</code>, which is the default of the <code>benchmarks</code> Maven profile) to also get the
+ * allocation rates.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SwissRailRaptorBenchmark {
+
+    private static final int RELATION_COUNT = 1024; // must be a power of 2, see next()
+    private static final double DEPARTURE_TIME = 7.5 * 3600;
+    private static final double RANGE = 3600;
+
+    @Param({"CITY", "REGION", "NATION"})
+    public BenchmarkScenario.Size size;
+
+    private SwissRailRaptor oneToOneRaptor;
+    private SwissRailRaptor oneToAllRaptor;
+    private RaptorParameters parameters;
+    private DefaultRaptorStopFinder intermodalStopFinder;
+    private RaptorParameters intermodalParameters;
+    private SwissRailRaptorData oneToOneData;
+    private Person person;
+
+    private Facility[] fromFacilities;
+    private Facility[] toFacilities;
+    private TransitStopFacility[] fromStops;
+    private double[] departureTimes;
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkScenario scenario = new BenchmarkScenario(this.size, 20190715);
+        this.oneToOneData = scenario.createRaptorData(RaptorStaticConfig.RaptorOptimization.OneToOneRouting);
+        SwissRailRaptorData oneToAllData = scenario.createRaptorData(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
+        DefaultRaptorParametersForPerson parametersForPerson = new DefaultRaptorParametersForPerson(scenario.config);
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null);
+        this.oneToOneRaptor = new SwissRailRaptor(this.oneToOneData, parametersForPerson, new LeastCostRaptorRouteSelector(), stopFinder);
+        this.oneToAllRaptor = new SwissRailRaptor(oneToAllData, parametersForPerson, new LeastCostRaptorRouteSelector(), stopFinder);
+        this.parameters = RaptorUtils.createParameters(scenario.config);
+
+        Config intermodalConfig = createIntermodalConfig();
+        PopulationFactory pf = scenario.scenario.getPopulation().getFactory();
+        Map<String, RoutingModule> routingModules = new HashMap<>();
+        routingModules.put(TransportMode.walk, new TeleportationRoutingModule(TransportMode.walk, pf, 1.1, 1.3));
+        routingModules.put(TransportMode.bike, new TeleportationRoutingModule(TransportMode.bike, pf, 3, 1.4));
+        this.intermodalStopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), routingModules);
+        this.intermodalParameters = RaptorUtils.createParameters(intermodalConfig);
+        this.person = pf.createPerson(Id.create("benchmark", Person.class));
+
+        Random random = new Random(4711);
+        List<TransitStopFacility> stops = new ArrayList<>(scenario.schedule.getFacilities().values());
+        List<Id<Link>> linkIds = new ArrayList<>(scenario.network.getLinks().keySet());
+        this.fromFacilities = new Facility[RELATION_COUNT];
+        this.toFacilities = new Facility[RELATION_COUNT];
+        this.fromStops = new TransitStopFacility[RELATION_COUNT];
+        this.departureTimes = new double[RELATION_COUNT];
+        for (int i = 0; i < RELATION_COUNT; i++) {
+            this.fromFacilities[i] = new FakeFacility(scenario.getRandomCoord(random), linkIds.get(random.nextInt(linkIds.size())));
+            this.toFacilities[i] = new FakeFacility(scenario.getRandomCoord(random), linkIds.get(random.nextInt(linkIds.size())));
+            this.fromStops[i] = stops.get(random.nextInt(stops.size()));
+            this.departureTimes[i] = DEPARTURE_TIME + random.nextInt(3600);
+        }
+    }
+
+    private static Config createIntermodalConfig() {
+        SwissRailRaptorConfigGroup srrConfig = new SwissRailRaptorConfigGroup();
+        Config config = ConfigUtils.createConfig(srrConfig);
+        for (String mode : new String[] { TransportMode.access_walk, TransportMode.transit_walk, TransportMode.egress_walk }) {
+            PlanCalcScoreConfigGroup.ModeParams modeParams = new PlanCalcScoreConfigGroup.ModeParams(mode);
+            modeParams.setMarginalUtilityOfTraveling(0.0);
+            config.planCalcScore().addModeParams(modeParams);
+        }
+        srrConfig.setUseIntermodalAccessEgress(true);
+        IntermodalAccessEgressParameterSet walkAccess = new IntermodalAccessEgressParameterSet();
+        walkAccess.setMode(TransportMode.walk);
+        walkAccess.setRadius(1000);
+        srrConfig.addIntermodalAccessEgress(walkAccess);
+        IntermodalAccessEgressParameterSet bikeAccess = new IntermodalAccessEgressParameterSet();
+        bikeAccess.setMode(TransportMode.bike);
+        bikeAccess.setRadius(3000);
+        srrConfig.addIntermodalAccessEgress(bikeAccess);
+        return config;
+    }
+
+    private int next() {
+        this.index = (this.index + 1) & (RELATION_COUNT - 1);
+        return this.index;
+    }
+
+    @Benchmark
+    public List<Leg> calcRoute() {
+        int i = next();
+        return this.oneToOneRaptor.calcRoute(this.fromFacilities[i], this.toFacilities[i], this.departureTimes[i], null);
+    }
+
+    @Benchmark
+    public List<RaptorRoute> calcRoutes() {
+        int i = next();
+        double time = this.departureTimes[i];
+        return this.oneToOneRaptor.calcRoutes(this.fromFacilities[i], this.toFacilities[i], time - RANGE / 2, time, time + RANGE / 2, null);
+    }
+
+    @Benchmark
+    public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTree() {
+        int i = next();
+        return this.oneToAllRaptor.calcTree(this.fromStops[i], this.departureTimes[i], this.parameters);
+    }
+
+    @Benchmark
+    public List<InitialStop> findIntermodalAccessStops() {
+        int i = next();
+        return this.intermodalStopFinder.findStops(this.fromFacilities[i], this.person, this.departureTimes[i], this.intermodalParameters, this.oneToOneData, RaptorStopFinder.Direction.ACCESS);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SwissRailRaptorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
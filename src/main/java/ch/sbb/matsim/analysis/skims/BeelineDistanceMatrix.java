@@ -5,13 +5,13 @@
 package ch.sbb.matsim.analysis.skims;
 
 import org.matsim.api.core.v01.Coord;
-import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.misc.Counter;
 import org.opengis.feature.simple.SimpleFeature;
 
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntPredicate;
 
 /**
  * Calculates a zone-to-zone beeline distance matrix.
@@ -22,6 +22,10 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * - this results in n x n distances per zone-to-zone combination.
  * - average the n x n distances and store this value as the zone-to-zone distance.
  *
+ * All coordinates are stored in primitive arrays grouped by zone, and the distances from one point to all
+ * other points are calculated in one loop the JIT compiler can vectorize. The distances are summed up
+ * per zone pair and written to the matrix once per zone pair.
+ *
  * @author mrieser / SBB
  */
 public final class BeelineDistanceMatrix {
@@ -30,18 +34,52 @@ public final class BeelineDistanceMatrix {
     }
 
     public static <T> FloatMatrix<T> calculateBeelineDistanceMatrix(Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, int numberOfThreads) {
+        return calculateBeelineDistanceMatrix(zones, coordsPerZone, numberOfThreads, fromZoneIndex -> true);
+    }
+
+    /**
+     * Calculates only the rows of the origin zones accepted by <code>originFilter</code>, all other rows remain 0.
+     *
+     * @param originFilter decides, based on the zone index, which origin zones to calculate
+     */
+    public static <T> FloatMatrix<T> calculateBeelineDistanceMatrix(Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, int numberOfThreads, IntPredicate originFilter) {
         // prepare calculation
         FloatMatrix<T> matrix = new FloatMatrix<>(zones.keySet(), 0.0f);
 
         int numberOfPointsPerZone = coordsPerZone.values().iterator().next().length;
 
+        // flatten all coordinates into primitive arrays, grouped by zone index, for a tight inner loop
+        int zoneCount = matrix.getZoneCount();
+        int[] firstCoordIndex = new int[zoneCount + 1];
+        boolean[] hasCoords = new boolean[zoneCount];
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            Coord[] coords = coordsPerZone.get(matrix.getZoneId(zoneIndex));
+            hasCoords[zoneIndex] = coords != null;
+            firstCoordIndex[zoneIndex + 1] = firstCoordIndex[zoneIndex] + (coords == null ? 0 : coords.length);
+        }
+        double[] xs = new double[firstCoordIndex[zoneCount]];
+        double[] ys = new double[firstCoordIndex[zoneCount]];
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            Coord[] coords = coordsPerZone.get(matrix.getZoneId(zoneIndex));
+            for (int i = 0; coords != null && i < coords.length; i++) {
+                xs[firstCoordIndex[zoneIndex] + i] = coords[i].getX();
+                ys[firstCoordIndex[zoneIndex] + i] = coords[i].getY();
+            }
+        }
+        Coordinates coordinates = new Coordinates(xs, ys, firstCoordIndex, hasCoords, 1.0 / numberOfPointsPerZone / numberOfPointsPerZone);
+
         // do calculation
-        ConcurrentLinkedQueue<T> originZones = new ConcurrentLinkedQueue<>(zones.keySet());
+        ConcurrentLinkedQueue<Integer> originZones = new ConcurrentLinkedQueue<>();
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            if (originFilter.test(zoneIndex)) {
+                originZones.add(zoneIndex);
+            }
+        }
 
-        Counter counter = new Counter("BeelineDistanceMatrix zone ", " / " + zones.size());
+        Counter counter = new Counter("BeelineDistanceMatrix zone ", " / " + originZones.size());
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            BeelineDistanceMatrix.RowWorker<T> worker = new BeelineDistanceMatrix.RowWorker<>(originZones, zones.keySet(), coordsPerZone, matrix, counter);
+            BeelineDistanceMatrix.RowWorker<T> worker = new BeelineDistanceMatrix.RowWorker<>(originZones, coordinates, matrix, counter);
             threads[i] = new Thread(worker, "BeelineDistanceMatrix-" + i);
             threads[i].start();
         }
@@ -55,54 +93,90 @@ public final class BeelineDistanceMatrix {
             }
         }
 
-        matrix.multiply((float) (1.0 / numberOfPointsPerZone / numberOfPointsPerZone));
         return matrix;
     }
 
+    /**
+     * The coordinates of all zones, stored in primitive arrays. The coordinates of the zone with index <code>i</code>
+     * are at the positions <code>firstCoordIndex[i]</code> (inclusive) to <code>firstCoordIndex[i + 1]</code> (exclusive).
+     */
+    private static final class Coordinates {
+        final double[] xs;
+        final double[] ys;
+        final int[] firstCoordIndex;
+        final boolean[] hasCoords;
+        final double factor;
+
+        Coordinates(double[] xs, double[] ys, int[] firstCoordIndex, boolean[] hasCoords, double factor) {
+            this.xs = xs;
+            this.ys = ys;
+            this.firstCoordIndex = firstCoordIndex;
+            this.hasCoords = hasCoords;
+            this.factor = factor;
+        }
+    }
+
     private static class RowWorker<T> implements Runnable {
-        private final ConcurrentLinkedQueue<T> originZones;
-        private final Set<T> destinationZones;
-        private final Map<T, Coord[]> coordsPerZone;
+        private final ConcurrentLinkedQueue<Integer> originZones;
+        private final Coordinates coordinates;
         private final FloatMatrix<T> matrix;
         private final Counter counter;
+        private final double[] distances;
+        private final double[] sums;
 
-        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Map<T, Coord[]> coordsPerZone, FloatMatrix<T> matrix, Counter counter) {
+        RowWorker(ConcurrentLinkedQueue<Integer> originZones, Coordinates coordinates, FloatMatrix<T> matrix, Counter counter) {
             this.originZones = originZones;
-            this.destinationZones = destinationZones;
-            this.coordsPerZone = coordsPerZone;
+            this.coordinates = coordinates;
             this.matrix = matrix;
             this.counter = counter;
+            this.distances = new double[coordinates.xs.length];
+            this.sums = new double[coordinates.hasCoords.length];
         }
 
         public void run() {
+            double[] xs = this.coordinates.xs;
+            double[] ys = this.coordinates.ys;
+            int[] firstCoordIndex = this.coordinates.firstCoordIndex;
+            int zoneCount = this.sums.length;
+            int coordCount = xs.length;
             while (true) {
-                T fromZoneId = this.originZones.poll();
-                if (fromZoneId == null) {
+                Integer fromZoneIndex = this.originZones.poll();
+                if (fromZoneIndex == null) {
                     return;
                 }
 
                 this.counter.incCounter();
-                Coord[] fromCoords = this.coordsPerZone.get(fromZoneId);
-                if (fromCoords != null) {
-                    for (Coord fromCoord : fromCoords) {
-
-                        for (T toZoneId : this.destinationZones) {
-                            Coord[] toCoords = this.coordsPerZone.get(toZoneId);
-                            if (toCoords != null) {
-                                for (Coord toCoord : toCoords) {
-                                    double dist = CoordUtils.calcEuclideanDistance(fromCoord, toCoord);
-                                    this.matrix.add(fromZoneId, toZoneId, (float) dist);
-                                }
-                            } else {
-                                // this might happen if a zone has no geometry, for whatever reason...
-                                this.matrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                            }
+                FloatMatrix.Row row = this.matrix.getRow(fromZoneIndex);
+                if (!this.coordinates.hasCoords[fromZoneIndex]) {
+                    // this might happen if a zone has no geometry, for whatever reason...
+                    row.fill(Float.POSITIVE_INFINITY);
+                    continue;
+                }
+
+                Arrays.fill(this.sums, 0.0);
+                for (int from = firstCoordIndex[fromZoneIndex]; from < firstCoordIndex[fromZoneIndex + 1]; from++) {
+                    double fromX = xs[from];
+                    double fromY = ys[from];
+                    // without dependencies between the iterations, the JIT can vectorize this loop
+                    for (int to = 0; to < coordCount; to++) {
+                        double dx = xs[to] - fromX;
+                        double dy = ys[to] - fromY;
+                        this.distances[to] = Math.sqrt(dx * dx + dy * dy);
+                    }
+                    for (int toZoneIndex = 0; toZoneIndex < zoneCount; toZoneIndex++) {
+                        double sum = 0.0;
+                        for (int to = firstCoordIndex[toZoneIndex]; to < firstCoordIndex[toZoneIndex + 1]; to++) {
+                            sum += this.distances[to];
                         }
+                        this.sums[toZoneIndex] += sum;
                     }
-                } else {
-                    // this might happen if a zone has no geometry, for whatever reason...
-                    for (T toZoneId : this.destinationZones) {
-                        this.matrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
+                }
+                for (int toZoneIndex = 0; toZoneIndex < zoneCount; toZoneIndex++) {
+                    if (this.coordinates.hasCoords[toZoneIndex]) {
+                        row.set(toZoneIndex, (float) (this.sums[toZoneIndex] * this.coordinates.factor));
+                    } else {
+                        // this might happen if a zone has no geometry, for whatever reason...
+                        row.set(toZoneIndex, Float.POSITIVE_INFINITY);
                     }
                 }
             }
@@ -5,13 +5,11 @@
 package ch.sbb.matsim.analysis.skims;
 
 import ch.sbb.matsim.analysis.skims.NetworkSkimMatrices.NetworkIndicators;
+import ch.sbb.matsim.analysis.skims.SkimPhaseScheduler.PhaseContext;
 import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
 import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
 import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
-import org.locationtech.jts.geom.*;
-import org.locationtech.jts.index.SpatialIndex;
-import org.locationtech.jts.index.quadtree.Quadtree;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Scenario;
@@ -20,11 +18,8 @@ import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.NetworkFactory;
 import org.matsim.api.core.v01.network.Node;
-import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
-import org.matsim.core.events.EventsUtils;
-import org.matsim.core.events.MatsimEventsReader;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.network.io.MatsimNetworkReader;
@@ -33,7 +28,6 @@ import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
-import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
 import org.matsim.core.utils.collections.CollectionUtils;
 import org.matsim.core.utils.gis.ShapeFileReader;
 import org.matsim.core.utils.io.IOUtils;
@@ -51,10 +45,18 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiPredicate;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
 
 /**
  * Main class to calculate skim matrices.
@@ -82,16 +84,27 @@ public class CalculateSkimMatrices {
     public static final String PT_TRANSFERCOUNTS_FILENAME = "pt_transfercounts.csv.gz";
     public static final String BEELINE_DISTANCE_FILENAME = "beeline_distances.csv.gz";
     public static final String ZONE_LOCATIONS_FILENAME = "zone_coordinates.csv";
+    public static final String ZONE_ASSIGNMENT_CACHE_FILENAME = "zone_assignment.bin";
 
-    private final static GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+    private static final String CSV_SUFFIX = ".csv.gz";
+    private static final String BINARY_SUFFIX = ".bin";
 
     private final Collection<SimpleFeature> zones;
     private final Map<String, SimpleFeature> zonesById;
-    private final String zonesIdAttributeName;
-    private final SpatialIndex zonesQt;
+    private final ZoneFinder zoneFinder;
     private final String outputDirectory;
     private final int numberOfThreads;
     private Map<String, Coord[]> coordsPerZone = null;
+    private boolean writeBinaryMatrices = false;
+    private boolean streamPtMatrices = false;
+    private String ptCheckpointDirectory = null;
+    private boolean keepPtCheckpoint = false;
+    private String ptBaselineScheduleFilename = null;
+    private String ptBaselineCheckpointDirectory = null;
+    private String carHierarchyDirectory = null;
+    private String zoneAssignmentCacheDirectory = null;
+    private int partIndex = 0;
+    private int partCount = 1;
 
     public CalculateSkimMatrices(String zonesShapeFilename, String zonesIdAttributeName, String outputDirectory, int numberOfThreads) {
         this.outputDirectory = outputDirectory;
@@ -112,14 +125,162 @@ public class CalculateSkimMatrices {
 
         log.info("loading zones from " + zonesShapeFilename);
         this.zones = new ShapeFileReader().readFileAndInitialize(zonesShapeFilename);
-        this.zonesIdAttributeName = zonesIdAttributeName;
         this.zonesById = new HashMap<>();
-        this.zonesQt = new Quadtree();
         for (SimpleFeature zone : this.zones) {
             String zoneId = zone.getAttribute(zonesIdAttributeName).toString();
             this.zonesById.put(zoneId, zone);
-            Envelope envelope = ((Geometry) (zone.getDefaultGeometry())).getEnvelopeInternal();
-            this.zonesQt.insert(envelope, zone);
+        }
+        this.zoneFinder = new ZoneFinder(this.zones, zonesIdAttributeName);
+    }
+
+    /**
+     * If set to <code>true</code>, the matrices are written in the binary format of {@link FloatMatrixIO}
+     * instead of CSV. The binary files use the same names as the CSV files, but with the suffix
+     * <code>.bin</code> instead of <code>.csv.gz</code>, see {@link #getBinaryFilename(String)}.
+     */
+    public void setWriteBinaryMatrices(boolean writeBinaryMatrices) {
+        this.writeBinaryMatrices = writeBinaryMatrices;
+    }
+
+    /**
+     * If set to <code>true</code>, the PT matrices are not kept in memory, but each row is written
+     * to the files as soon as it is calculated. This reduces the memory requirements for large zone
+     * systems considerably. The resulting files are identical.
+     */
+    public void setStreamPtMatrices(boolean streamPtMatrices) {
+        this.streamPtMatrices = streamPtMatrices;
+    }
+
+    /**
+     * If set, the PT calculation stores all completed origin zones in a checkpoint file in the given directory.
+     * If the calculation is interrupted, it is resumed from the checkpoint the next time
+     * {@link #calculatePTMatrices(String, double, double, Config, BiPredicate)} is called with the same
+     * zones, sampling points, time window, transit schedule, routing parameters and train detector. A checkpoint
+     * created for a different calculation is discarded. The checkpoint is deleted after the matrices were written.
+     */
+    public void setPtCheckpointDirectory(String ptCheckpointDirectory) {
+        this.ptCheckpointDirectory = ptCheckpointDirectory;
+    }
+
+    /**
+     * If set to <code>true</code>, the PT checkpoint is kept after the matrices were written, so it can be used
+     * as baseline for the calculation with a modified schedule, see {@link #setPtBaseline(String, String)}.
+     */
+    public void setKeepPtCheckpoint(boolean keepPtCheckpoint) {
+        this.keepPtCheckpoint = keepPtCheckpoint;
+    }
+
+    /**
+     * If set, the PT matrices are calculated incrementally, based on the results of an earlier calculation with the
+     * given baseline schedule: only the origin zones affected by the differences between the two schedules are calculated
+     * again, see {@link PTSkimMatrices#calculateSkimMatricesIncrementally}. The baseline checkpoints are searched in
+     * the given directory, and must have been kept by the baseline run (see {@link #setKeepPtCheckpoint(boolean)}) with
+     * the same zones, sampling points, time windows, routing parameters and train detector. These are checked when the
+     * baseline checkpoints are opened, a mismatch results in an exception. Incremental calculations keep the
+     * PT matrices in memory, even if {@link #setStreamPtMatrices(boolean)} is set.
+     */
+    public void setPtBaseline(String baselineScheduleFilename, String baselineCheckpointDirectory) {
+        this.ptBaselineScheduleFilename = baselineScheduleFilename;
+        this.ptBaselineCheckpointDirectory = baselineCheckpointDirectory;
+    }
+
+    /**
+     * If set, the CAR matrices are calculated with a contraction hierarchy of the car network instead of
+     * a full Dijkstra search per sampling point, see
+     * {@link NetworkSkimMatrices#calculateSkimMatricesWithContractionHierarchy(Network, Network, Map, Map, double, TravelTime, TravelDisutility, int, IntPredicate, File)}.
+     * The hierarchy of each time slice is stored in the given directory and re-used by later runs with the same
+     * network and travel times.
+     */
+    public void setCarContractionHierarchyDirectory(String carHierarchyDirectory) {
+        this.carHierarchyDirectory = carHierarchyDirectory;
+    }
+
+    /**
+     * If set, the assignment of the locations to the zones when selecting the sampling points is stored in the
+     * given directory, and re-used by later runs with the same zones and locations, see {@link ZoneFinder}.
+     */
+    public void setZoneAssignmentCacheDirectory(String zoneAssignmentCacheDirectory) {
+        this.zoneAssignmentCacheDirectory = zoneAssignmentCacheDirectory;
+    }
+
+    /**
+     * Only calculates the rows of every <code>partCount</code>-th origin zone, starting with the zone at position <code>partIndex</code>.
+     * This allows to distribute the calculation on several independent processes or machines. Instead of the regular
+     * output files, each part writes partial files (see {@link #getPartialFilename(String, int, int)}) in the CSV format,
+     * containing only the rows of its origin zones. Once all parts are calculated, the partial files can be combined with
+     * {@link MergeSkimMatrices}. All parts must use the same zones and sampling points. The sampling points
+     * ({@link #ZONE_LOCATIONS_FILENAME}) are only written by the part with index 0, so the partition must be set
+     * before the sampling points are calculated.
+     */
+    public void setOriginPartition(int partIndex, int partCount) {
+        if (partCount < 1 || partIndex < 0 || partIndex >= partCount) {
+            throw new IllegalArgumentException("Invalid partition " + partIndex + " of " + partCount);
+        }
+        this.partIndex = partIndex;
+        this.partCount = partCount;
+    }
+
+    private boolean isPartitioned() {
+        return this.partCount > 1;
+    }
+
+    private boolean isInPartition(int zoneIndex) {
+        return isInPartition(zoneIndex, this.partIndex, this.partCount);
+    }
+
+    static boolean isInPartition(int zoneIndex, int partIndex, int partCount) {
+        // distribute the zones round-robin, so neighbouring zones (often similarly expensive to calculate) end up in different parts
+        return zoneIndex % partCount == partIndex;
+    }
+
+    private int[] getPartitionZoneIndices() {
+        return IntStream.range(0, this.zonesById.size()).filter(this::isInPartition).toArray();
+    }
+
+    /**
+     * @return the name of the file containing the rows of the given part, e.g. <code>pt_traveltimes.part-1-of-4.csv.gz</code>
+     */
+    public static String getPartialFilename(String csvFilename, int partIndex, int partCount) {
+        String partSuffix = ".part-" + partIndex + "-of-" + partCount;
+        if (csvFilename.endsWith(CSV_SUFFIX)) {
+            return csvFilename.substring(0, csvFilename.length() - CSV_SUFFIX.length()) + partSuffix + CSV_SUFFIX;
+        }
+        return csvFilename + partSuffix;
+    }
+
+    public static String getBinaryFilename(String csvFilename) {
+        if (csvFilename.endsWith(CSV_SUFFIX)) {
+            return csvFilename.substring(0, csvFilename.length() - CSV_SUFFIX.length()) + BINARY_SUFFIX;
+        }
+        return csvFilename + BINARY_SUFFIX;
+    }
+
+    private FloatMatrixIO.RowWriter createRowWriter(List<String> zoneIds, String filename) throws IOException {
+        if (isPartitioned()) {
+            return FloatMatrixIO.createCSVRowWriter(this.outputDirectory + "/" + getPartialFilename(filename, this.partIndex, this.partCount), zoneIds, getPartitionZoneIndices());
+        }
+        if (this.writeBinaryMatrices) {
+            return FloatMatrixIO.createBinaryRowWriter(this.outputDirectory + "/" + getBinaryFilename(filename), zoneIds);
+        }
+        return FloatMatrixIO.createCSVRowWriter(this.outputDirectory + "/" + filename, zoneIds);
+    }
+
+    private void writeMatrix(FloatMatrix<String> matrix, String filename) throws IOException {
+        if (isPartitioned()) {
+            int[] fromZoneIndices = getPartitionZoneIndices();
+            List<String> zoneIds = new ArrayList<>(matrix.getZoneCount());
+            for (int zoneIndex = 0; zoneIndex < matrix.getZoneCount(); zoneIndex++) {
+                zoneIds.add(matrix.getZoneId(zoneIndex));
+            }
+            try (FloatMatrixIO.RowWriter writer = FloatMatrixIO.createCSVRowWriter(this.outputDirectory + "/" + getPartialFilename(filename, this.partIndex, this.partCount), zoneIds, fromZoneIndices)) {
+                for (int fromZoneIndex : fromZoneIndices) {
+                    writer.writeRow(matrix.getRow(fromZoneIndex));
+                }
+            }
+        } else if (this.writeBinaryMatrices) {
+            FloatMatrixIO.writeAsBinary(matrix, this.outputDirectory + "/" + getBinaryFilename(filename));
+        } else {
+            FloatMatrixIO.writeAsCSV(matrix, this.outputDirectory + "/" + filename);
         }
     }
 
@@ -156,47 +317,71 @@ public class CalculateSkimMatrices {
 
     public final void selectSamplingPoints(List<WeightedCoord> locations, int numberOfPointsPerZone, Random r) throws IOException {
         log.info("assign locations to zones...");
-        Map<String, List<WeightedCoord>> allCoordsPerZone = new HashMap<>();
-        Counter counter = new Counter("# ");
+        List<Coord> locationCoords = new ArrayList<>(locations.size());
         for (WeightedCoord loc : locations) {
-            counter.incCounter();
-            String zoneId = findZone(loc.coord);
-            if (zoneId != null) {
-                allCoordsPerZone.computeIfAbsent(zoneId, k -> new ArrayList<>()).add(loc);
+            locationCoords.add(loc.coord);
+        }
+        File cacheFile = this.zoneAssignmentCacheDirectory == null ? null : new File(this.zoneAssignmentCacheDirectory, ZONE_ASSIGNMENT_CACHE_FILENAME);
+        int[] zoneIndices = this.zoneFinder.findZones(locationCoords, this.numberOfThreads, cacheFile);
+        Map<String, List<WeightedCoord>> allCoordsPerZone = new HashMap<>();
+        for (int i = 0; i < zoneIndices.length; i++) {
+            int zoneIndex = zoneIndices[i];
+            if (zoneIndex >= 0) {
+                allCoordsPerZone.computeIfAbsent(this.zoneFinder.getZoneId(zoneIndex), k -> new ArrayList<>()).add(locations.get(i));
             }
         }
-        counter.printCounter();
+        log.info("assigned " + locations.size() + " locations to " + allCoordsPerZone.size() + " zones.");
 
         // define points per zone
         log.info("choose locations (sampling points) per zone...");
 
-        this.coordsPerZone = new HashMap<>();
-
-        for (Map.Entry<String, List<WeightedCoord>> e : allCoordsPerZone.entrySet()) {
-            String zoneId = e.getKey();
-            List<WeightedCoord> zoneFacilities = e.getValue();
-            double sumWeight = 0.0;
-            for (WeightedCoord loc : zoneFacilities) {
-                sumWeight += loc.weight;
-            }
-            Coord[] coords = new Coord[numberOfPointsPerZone];
-            for (int i = 0; i < numberOfPointsPerZone; i++) {
-                double weight = r.nextDouble() * sumWeight;
-                double sum = 0.0;
-                WeightedCoord chosenLoc = null;
-                for (WeightedCoord loc : zoneFacilities) {
-                    sum += loc.weight;
-                    if (weight <= sum) {
-                        chosenLoc = loc;
-                        break;
+        // every zone gets its own random numbers, so the result does not depend on the order of the threads
+        long baseSeed = r.nextLong();
+        ConcurrentLinkedQueue<String> zoneIds = new ConcurrentLinkedQueue<>(allCoordsPerZone.keySet());
+        Map<String, Coord[]> chosenCoordsPerZone = new ConcurrentHashMap<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[this.numberOfThreads];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    String zoneId;
+                    while (failure.get() == null && (zoneId = zoneIds.poll()) != null) {
+                        List<WeightedCoord> zoneFacilities = allCoordsPerZone.get(zoneId);
+                        double[] weights = new double[zoneFacilities.size()];
+                        for (int i = 0; i < weights.length; i++) {
+                            weights[i] = zoneFacilities.get(i).weight;
+                        }
+                        WeightedSampler sampler = new WeightedSampler(weights);
+                        Random zoneRandom = new Random(WeightedSampler.getZoneSeed(baseSeed, zoneId));
+                        Coord[] coords = new Coord[numberOfPointsPerZone];
+                        for (int i = 0; i < numberOfPointsPerZone; i++) {
+                            coords[i] = zoneFacilities.get(sampler.sample(zoneRandom)).coord;
+                        }
+                        chosenCoordsPerZone.put(zoneId, coords);
                     }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
                 }
-                coords[i] = chosenLoc.coord;
+            }, "SamplingPoints-" + t);
+            threads[t].start();
+        }
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
-            this.coordsPerZone.put(zoneId, coords);
         }
-        File coordFile = new File(this.outputDirectory, ZONE_LOCATIONS_FILENAME);
-        writeSamplingPointsToFile(coordFile);
+        if (failure.get() != null) {
+            throw new IOException("Choosing the sampling points failed.", failure.get());
+        }
+        this.coordsPerZone = new HashMap<>(chosenCoordsPerZone);
+        if (this.partIndex == 0) {
+            // all parts choose the same sampling points and share the output directory, so only the first part writes them
+            File coordFile = new File(this.outputDirectory, ZONE_LOCATIONS_FILENAME);
+            writeSamplingPointsToFile(coordFile);
+        }
     }
 
     private void writeSamplingPointsToFile(File file) throws IOException {
@@ -250,33 +435,48 @@ public class CalculateSkimMatrices {
     }
 
     public final void calculateBeelineMatrix() throws IOException {
+        calculateBeelineMatrix(PhaseContext.fixed(this.numberOfThreads));
+    }
+
+    private void calculateBeelineMatrix(PhaseContext context) throws IOException {
+        int threads = context.acquireWorkers();
         log.info("calc beeline distance matrix");
-        FloatMatrix<String> beelineMatrix = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(zonesById, coordsPerZone, numberOfThreads);
+        FloatMatrix<String> beelineMatrix = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(zonesById, coordsPerZone, threads, this::isInPartition);
+        context.releaseWorkers();
 
         log.info("write beeline distance matrix to " + outputDirectory);
-        FloatMatrixIO.writeAsCSV(beelineMatrix, outputDirectory + "/" + BEELINE_DISTANCE_FILENAME);
+        writeMatrix(beelineMatrix, BEELINE_DISTANCE_FILENAME);
     }
 
     public final void calculateNetworkMatrices(String networkFilename, String eventsFilename, double[] times, Config config, Predicate<Link> xy2linksPredicate) throws IOException {
+        calculateNetworkMatrices(networkFilename, eventsFilename, times, config, xy2linksPredicate, PhaseContext.fixed(this.numberOfThreads));
+    }
+
+    private void calculateNetworkMatrices(String networkFilename, String eventsFilename, double[] times, Config config, Predicate<Link> xy2linksPredicate, PhaseContext context) throws IOException {
         Scenario scenario = ScenarioUtils.createScenario(config);
         log.info("loading network from " + networkFilename);
         new MatsimNetworkReader(scenario.getNetwork()).readFile(networkFilename);
 
-        TravelTime tt;
+        // reading the events is already computationally expensive
+        int threads = context.acquireWorkers();
+
+        // read the events in the background, while the networks are prepared
+        CompletableFuture<TravelTime> ttFuture;
         if (eventsFilename != null) {
             log.info("extracting actual travel times from " + eventsFilename);
-            TravelTimeCalculator ttc = TravelTimeCalculator.create(scenario.getNetwork(),config.travelTimeCalculator());
-            EventsManager events = EventsUtils.createEventsManager();
-            events.addHandler(ttc);
-            new MatsimEventsReader(events).readFile(eventsFilename);
-            tt = ttc.getLinkTravelTimes();
+            // use a dedicated thread instead of the common pool, so the reader threads belong to the same thread group
+            ttFuture = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return PipelinedTravelTimeReader.readTravelTimes(eventsFilename, scenario.getNetwork(), config.travelTimeCalculator(), threads);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, runnable -> new Thread(runnable, "TravelTimeReader").start());
         } else {
-            tt = new FreeSpeedTravelTime();
+            ttFuture = CompletableFuture.completedFuture(new FreeSpeedTravelTime());
             log.info("No events specified. Travel Times will be calculated with free speed travel times.");
         }
 
-        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
-
         log.info("extracting car-only network");
         final Network carNetwork = NetworkUtils.createNetwork();
         new TransportModeNetworkFilter(scenario.getNetwork()).filter(carNetwork, Collections.singleton(TransportMode.car));
@@ -284,29 +484,59 @@ public class CalculateSkimMatrices {
         log.info("filter car-only network for assigning links to locations");
         final Network xy2linksNetwork = extractXy2LinksNetwork(carNetwork, xy2linksPredicate);
 
-        log.info("calc CAR matrix for " + Time.writeTime(times[0]));
-        NetworkIndicators<String> netIndicators = NetworkSkimMatrices.calculateSkimMatrices(
-                xy2linksNetwork, carNetwork, zonesById, coordsPerZone, times[0], tt, td, this.numberOfThreads);
+        TravelTime tt;
+        try {
+            tt = ttFuture.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
 
-        if (tt instanceof FreeSpeedTravelTime) {
+        double[] carTimes = times;
+        if (tt instanceof FreeSpeedTravelTime && times.length > 1) {
             log.info("Do not calculate CAR matrices for other times as only freespeed is being used");
+            carTimes = new double[] { times[0] };
+        }
+
+        NetworkIndicators<String> netIndicators;
+        if (this.carHierarchyDirectory == null) {
+            log.info("calc CAR matrices for " + carTimes.length + " departure time(s) starting at " + Time.writeTime(carTimes[0]));
+            netIndicators = NetworkSkimMatrices.calculateSkimMatrices(
+                    xy2linksNetwork, carNetwork, zonesById, coordsPerZone, carTimes, tt, td, threads, this::isInPartition);
         } else {
-            for (int i = 1; i < times.length; i++) {
-                log.info("calc CAR matrices for " + Time.writeTime(times[i]));
-                NetworkIndicators<String> indicators2 = NetworkSkimMatrices.calculateSkimMatrices(
-                        xy2linksNetwork, carNetwork, zonesById, coordsPerZone, times[i], tt, td, this.numberOfThreads);
-                log.info("merge CAR matrices for " + Time.writeTime(times[i]));
+            // every departure time requires its own hierarchy, as the link travel times differ
+            log.info("calc CAR matrix for " + Time.writeTime(carTimes[0]));
+            netIndicators = calculateCarIndicatorsWithHierarchy(xy2linksNetwork, carNetwork, carTimes[0], tt, td, threads);
+            for (int i = 1; i < carTimes.length; i++) {
+                log.info("calc CAR matrices for " + Time.writeTime(carTimes[i]));
+                NetworkIndicators<String> indicators2 = calculateCarIndicatorsWithHierarchy(xy2linksNetwork, carNetwork, carTimes[i], tt, td, threads);
+                log.info("merge CAR matrices for " + Time.writeTime(carTimes[i]));
                 combineMatrices(netIndicators.travelTimeMatrix, indicators2.travelTimeMatrix);
                 combineMatrices(netIndicators.distanceMatrix, indicators2.distanceMatrix);
             }
-            log.info("re-scale CAR matrices after all data is merged.");
-            netIndicators.travelTimeMatrix.multiply((float) (1.0 / times.length));
-            netIndicators.distanceMatrix.multiply((float) (1.0 / times.length));
+            if (carTimes.length > 1) {
+                log.info("re-scale CAR matrices after all data is merged.");
+                netIndicators.travelTimeMatrix.multiply((float) (1.0 / carTimes.length));
+                netIndicators.distanceMatrix.multiply((float) (1.0 / carTimes.length));
+            }
         }
 
+        context.releaseWorkers();
+
         log.info("write CAR matrices to " + outputDirectory);
-        FloatMatrixIO.writeAsCSV(netIndicators.travelTimeMatrix, outputDirectory + "/" + CAR_TRAVELTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(netIndicators.distanceMatrix, outputDirectory + "/" + CAR_DISTANCES_FILENAME);
+        writeMatrix(netIndicators.travelTimeMatrix, CAR_TRAVELTIMES_FILENAME);
+        writeMatrix(netIndicators.distanceMatrix, CAR_DISTANCES_FILENAME);
+    }
+
+    private NetworkIndicators<String> calculateCarIndicatorsWithHierarchy(Network xy2linksNetwork, Network carNetwork, double time, TravelTime tt, TravelDisutility td, int threads) throws IOException {
+        File directory = new File(this.carHierarchyDirectory);
+        directory.mkdirs();
+        File hierarchyFile = new File(directory, "car_ch_" + (int) time + ".bin");
+        return NetworkSkimMatrices.calculateSkimMatricesWithContractionHierarchy(
+                xy2linksNetwork, carNetwork, zonesById, coordsPerZone, time, tt, td, threads, this::isInPartition, hierarchyFile);
     }
 
     private Network extractXy2LinksNetwork(Network network, Predicate<Link> xy2linksPredicate) {
@@ -340,6 +570,10 @@ public class CalculateSkimMatrices {
     }
 
     public final void calculatePTMatrices(String transitScheduleFilename, double startTime, double endTime, Config config, BiPredicate<TransitLine, TransitRoute> trainDetector) throws IOException {
+        calculatePTMatrices(transitScheduleFilename, startTime, endTime, config, trainDetector, PhaseContext.fixed(this.numberOfThreads));
+    }
+
+    private void calculatePTMatrices(String transitScheduleFilename, double startTime, double endTime, Config config, BiPredicate<TransitLine, TransitRoute> trainDetector, PhaseContext context) throws IOException {
         Scenario scenario = ScenarioUtils.createScenario(config);
         log.info("loading schedule from " + transitScheduleFilename);
         new TransitScheduleReader(scenario).readFile(transitScheduleFilename);
@@ -350,41 +584,150 @@ public class CalculateSkimMatrices {
         SwissRailRaptorData raptorData = SwissRailRaptorData.create(scenario.getTransitSchedule(), raptorConfig, scenario.getNetwork());
         RaptorParameters raptorParameters = RaptorUtils.createParameters(config);
 
-        log.info("calc PT matrices for " + Time.writeTime(startTime) + " - " + Time.writeTime(endTime));
-        PTSkimMatrices.PtIndicators<String> matrices = PTSkimMatrices.calculateSkimMatrices(
-                raptorData, this.zonesById, this.coordsPerZone, startTime, endTime, 120, raptorParameters, this.numberOfThreads, trainDetector);
+        if (this.ptBaselineScheduleFilename != null) {
+            calculatePTMatricesIncrementally(scenario, raptorData, startTime, endTime, config, raptorParameters, trainDetector, context);
+            return;
+        }
+
+        PTSkimCheckpoint checkpoint = openPtCheckpoint(startTime, endTime,
+                PTSkimCheckpoint.calcParametersFingerprint(scenario.getTransitSchedule(), raptorConfig, raptorParameters, trainDetector),
+                PTSkimCheckpoint.calcScheduleFingerprint(scenario.getTransitSchedule()));
+        int threads = context.acquireWorkers();
+        try {
+            if (this.streamPtMatrices) {
+                calculateAndStreamPTMatrices(raptorData, startTime, endTime, raptorParameters, trainDetector, checkpoint, threads);
+            } else {
+                log.info("calc PT matrices for " + Time.writeTime(startTime) + " - " + Time.writeTime(endTime));
+                PTSkimMatrices.PtIndicators<String> matrices = PTSkimMatrices.calculateSkimMatrices(
+                        raptorData, this.zonesById, this.coordsPerZone, startTime, endTime, 120, raptorParameters, threads, trainDetector, this::isInPartition, checkpoint);
+                context.releaseWorkers();
+                writePTMatrices(matrices);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (checkpoint != null) {
+                // keep the checkpoint, so the calculation can be resumed
+                checkpoint.close();
+            }
+            throw e;
+        }
+        if (checkpoint != null) {
+            if (this.keepPtCheckpoint) {
+                checkpoint.close();
+            } else {
+                checkpoint.delete();
+            }
+        }
+    }
+
+    private void calculatePTMatricesIncrementally(Scenario scenario, SwissRailRaptorData raptorData, double startTime, double endTime, Config config, RaptorParameters raptorParameters, BiPredicate<TransitLine, TransitRoute> trainDetector, PhaseContext context) throws IOException {
+        Scenario baselineScenario = ScenarioUtils.createScenario(config);
+        log.info("loading baseline schedule from " + this.ptBaselineScheduleFilename);
+        new TransitScheduleReader(baselineScenario).readFile(this.ptBaselineScheduleFilename);
+
+        PTSkimMatrices.PtIndicators<String> matrices;
+        File baselineFile = new File(this.ptBaselineCheckpointDirectory, getPtCheckpointFilename(startTime, endTime));
+        log.info("using PT baseline checkpoint " + baselineFile.getAbsolutePath());
+        List<String> zoneIds = new ArrayList<>(this.zonesById.keySet());
+        // the baseline must have been calculated with the same routing parameters, evaluated on the baseline schedule
+        long parametersFingerprint = PTSkimCheckpoint.calcParametersFingerprint(baselineScenario.getTransitSchedule(), raptorData.getConfig(), raptorParameters, trainDetector);
+        try (PTSkimCheckpoint baseline = PTSkimCheckpoint.openForReading(baselineFile, zoneIds, this.coordsPerZone, startTime, endTime, 120, parametersFingerprint)) {
+            int threads = context.acquireWorkers();
+            log.info("calc PT matrices incrementally for " + Time.writeTime(startTime) + " - " + Time.writeTime(endTime));
+            matrices = PTSkimMatrices.calculateSkimMatricesIncrementally(raptorData, baselineScenario.getTransitSchedule(), scenario.getTransitSchedule(), baseline,
+                    this.zonesById, this.coordsPerZone, startTime, endTime, 120, raptorParameters, threads, trainDetector, this::isInPartition);
+            context.releaseWorkers();
+        }
+        writePTMatrices(matrices);
+    }
 
+    private void writePTMatrices(PTSkimMatrices.PtIndicators<String> matrices) throws IOException {
         log.info("write PT matrices to " + outputDirectory);
-        FloatMatrixIO.writeAsCSV(matrices.adaptionTimeMatrix, outputDirectory + "/" + PT_ADAPTIONTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.frequencyMatrix, outputDirectory + "/" + PT_FREQUENCIES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.travelTimeMatrix, outputDirectory + "/" + PT_TRAVELTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.accessTimeMatrix, outputDirectory + "/" + PT_ACCESSTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.egressTimeMatrix, outputDirectory + "/" + PT_EGRESSTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.transferCountMatrix, outputDirectory + "/" + PT_TRANSFERCOUNTS_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.trainTravelTimeShareMatrix, outputDirectory + "/" + PT_TRAINSHARE_BYTIME_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.trainDistanceShareMatrix, outputDirectory + "/" + PT_TRAINSHARE_BYDISTANCE_FILENAME);
+        writeMatrix(matrices.adaptionTimeMatrix, PT_ADAPTIONTIMES_FILENAME);
+        writeMatrix(matrices.frequencyMatrix, PT_FREQUENCIES_FILENAME);
+        writeMatrix(matrices.travelTimeMatrix, PT_TRAVELTIMES_FILENAME);
+        writeMatrix(matrices.accessTimeMatrix, PT_ACCESSTIMES_FILENAME);
+        writeMatrix(matrices.egressTimeMatrix, PT_EGRESSTIMES_FILENAME);
+        writeMatrix(matrices.transferCountMatrix, PT_TRANSFERCOUNTS_FILENAME);
+        writeMatrix(matrices.trainTravelTimeShareMatrix, PT_TRAINSHARE_BYTIME_FILENAME);
+        writeMatrix(matrices.trainDistanceShareMatrix, PT_TRAINSHARE_BYDISTANCE_FILENAME);
     }
 
-    private static <T> void combineMatrices(FloatMatrix<T> matrix1, FloatMatrix<T> matrix2) {
-        Set<T> ids = matrix2.id2index.keySet();
-        for (T fromId : ids) {
-            for (T toId : ids) {
-                float value2 = matrix2.get(fromId, toId);
-                matrix1.add(fromId, toId, value2);
+    private PTSkimCheckpoint openPtCheckpoint(double startTime, double endTime, long parametersFingerprint, long scheduleFingerprint) throws IOException {
+        if (this.ptCheckpointDirectory == null) {
+            return null;
+        }
+        File directory = new File(this.ptCheckpointDirectory);
+        if (!directory.exists()) {
+            log.info("create checkpoint directory " + this.ptCheckpointDirectory);
+            directory.mkdirs();
+        }
+        File file = new File(directory, getPtCheckpointFilename(startTime, endTime));
+        log.info("using PT checkpoint " + file.getAbsolutePath());
+        List<String> zoneIds = new ArrayList<>(this.zonesById.keySet());
+        return PTSkimCheckpoint.open(file, zoneIds, this.coordsPerZone, startTime, endTime, 120, parametersFingerprint, scheduleFingerprint);
+    }
+
+    private String getPtCheckpointFilename(double startTime, double endTime) {
+        String partSuffix = isPartitioned() ? ("_part-" + this.partIndex + "-of-" + this.partCount) : "";
+        return "pt_checkpoint_" + (int) startTime + "_" + (int) endTime + partSuffix + ".bin";
+    }
+
+    private void calculateAndStreamPTMatrices(SwissRailRaptorData raptorData, double startTime, double endTime, RaptorParameters raptorParameters, BiPredicate<TransitLine, TransitRoute> trainDetector, PTSkimCheckpoint checkpoint, int threads) throws IOException {
+        log.info("calc PT matrices for " + Time.writeTime(startTime) + " - " + Time.writeTime(endTime) + ", writing them to " + outputDirectory);
+        List<String> zoneIds = new ArrayList<>(this.zonesById.keySet());
+        List<FloatMatrixIO.RowWriter> writers = new ArrayList<>();
+        try {
+            FloatMatrixIO.RowWriter adaptionTimeWriter = addWriter(writers, createRowWriter(zoneIds, PT_ADAPTIONTIMES_FILENAME));
+            FloatMatrixIO.RowWriter frequencyWriter = addWriter(writers, createRowWriter(zoneIds, PT_FREQUENCIES_FILENAME));
+            FloatMatrixIO.RowWriter travelTimeWriter = addWriter(writers, createRowWriter(zoneIds, PT_TRAVELTIMES_FILENAME));
+            FloatMatrixIO.RowWriter accessTimeWriter = addWriter(writers, createRowWriter(zoneIds, PT_ACCESSTIMES_FILENAME));
+            FloatMatrixIO.RowWriter egressTimeWriter = addWriter(writers, createRowWriter(zoneIds, PT_EGRESSTIMES_FILENAME));
+            FloatMatrixIO.RowWriter transferCountWriter = addWriter(writers, createRowWriter(zoneIds, PT_TRANSFERCOUNTS_FILENAME));
+            FloatMatrixIO.RowWriter trainShareByTimeWriter = addWriter(writers, createRowWriter(zoneIds, PT_TRAINSHARE_BYTIME_FILENAME));
+            FloatMatrixIO.RowWriter trainShareByDistanceWriter = addWriter(writers, createRowWriter(zoneIds, PT_TRAINSHARE_BYDISTANCE_FILENAME));
+
+            // the rows are passed in the order of zonesById.keySet(), the same order as in zoneIds
+            PTSkimMatrices.calculateSkimMatrices(raptorData, this.zonesById, this.coordsPerZone, startTime, endTime, 120, raptorParameters, threads, trainDetector, this::isInPartition,
+                    (fromZoneIndex, rows) -> {
+                        adaptionTimeWriter.writeRow(rows.adaptionTime);
+                        frequencyWriter.writeRow(rows.frequency);
+                        travelTimeWriter.writeRow(rows.travelTime);
+                        accessTimeWriter.writeRow(rows.accessTime);
+                        egressTimeWriter.writeRow(rows.egressTime);
+                        transferCountWriter.writeRow(rows.transferCount);
+                        trainShareByTimeWriter.writeRow(rows.trainTravelTimeShare);
+                        trainShareByDistanceWriter.writeRow(rows.trainDistanceShare);
+                    }, checkpoint);
+        } finally {
+            IOException exception = null;
+            for (FloatMatrixIO.RowWriter writer : writers) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
             }
         }
     }
 
-    private String findZone(Coord coord) {
-        Point pt = GEOMETRY_FACTORY.createPoint(new Coordinate(coord.getX(), coord.getY()));
-        List elements = this.zonesQt.query(pt.getEnvelopeInternal());
-        for (Object o : elements) {
-            SimpleFeature z = (SimpleFeature) o;
-            if (((Geometry) z.getDefaultGeometry()).intersects(pt)) {
-                return z.getAttribute(this.zonesIdAttributeName).toString();
+    private static FloatMatrixIO.RowWriter addWriter(List<FloatMatrixIO.RowWriter> writers, FloatMatrixIO.RowWriter writer) {
+        writers.add(writer);
+        return writer;
+    }
+
+    private static <T> void combineMatrices(FloatMatrix<T> matrix1, FloatMatrix<T> matrix2) {
+        // both matrices are created from the same set of zones, so the zone indices are the same
+        int zoneCount = matrix2.getZoneCount();
+        for (int fromIndex = 0; fromIndex < zoneCount; fromIndex++) {
+            FloatMatrix.Row row1 = matrix1.getRow(fromIndex);
+            FloatMatrix.Row row2 = matrix2.getRow(fromIndex);
+            for (int toIndex = 0; toIndex < zoneCount; toIndex++) {
+                row1.add(toIndex, row2.get(toIndex));
             }
         }
-        return null;
     }
 
     private static class WeightedCoord {
@@ -423,19 +766,34 @@ public class CalculateSkimMatrices {
         Random r = new Random(4711);
 
         CalculateSkimMatrices skims = new CalculateSkimMatrices(zonesShapeFilename, zonesIdAttributeName, outputDirectory, numberOfThreads);
+        skims.setPtCheckpointDirectory(outputDirectory + "/checkpoints");
+        if (args.length > 12) {
+            // optional: only calculate a part of the origin zones, e.g. "2/4" for the third of four parts
+            String[] partition = args[12].split("/");
+            skims.setOriginPartition(Integer.parseInt(partition[0]), Integer.parseInt(partition[1]));
+        }
         skims.calculateSamplingPointsPerZoneFromFacilities(facilitiesFilename, numberOfPointsPerZone, r, f -> 1);
         // alternative if you don't have facilities, use the network:
         // skims.calculateSamplingPointsPerZoneFromNetwork(networkFilename, numberOfPointsPerZone, r);
 
+        // the phases run concurrently: while one phase loads its data, the others can already use the threads.
+        // car and beeline split the pool, so both compute at the same time while pt is still loading the schedule.
+        // pt uses the full pool once it is free, as it usually is the most expensive phase.
+        int beelineThreads = modes.contains(TransportMode.car) ? Math.max(1, numberOfThreads / 4) : numberOfThreads;
+        int carThreads = Math.max(1, numberOfThreads - beelineThreads);
+        SkimPhaseScheduler scheduler = new SkimPhaseScheduler(numberOfThreads);
         if (modes.contains(TransportMode.car)) {
-            skims.calculateNetworkMatrices(networkFilename, eventsFilename, timesCar, config, l -> true);
+            scheduler.addPhase(TransportMode.car, carThreads,
+                    context -> skims.calculateNetworkMatrices(networkFilename, eventsFilename, timesCar, config, l -> true, context));
         }
 
         if (modes.contains(TransportMode.pt)) {
-            skims.calculatePTMatrices(transitScheduleFilename, timesPt[0], timesPt[1], config, (line, route) -> route.getTransportMode().equals("train"));
+            scheduler.addPhase(TransportMode.pt, numberOfThreads,
+                    context -> skims.calculatePTMatrices(transitScheduleFilename, timesPt[0], timesPt[1], config, (line, route) -> route.getTransportMode().equals("train"), context));
         }
 
-        skims.calculateBeelineMatrix();
+        scheduler.addPhase("beeline", beelineThreads, skims::calculateBeelineMatrix);
+        scheduler.run();
     }
 
 }
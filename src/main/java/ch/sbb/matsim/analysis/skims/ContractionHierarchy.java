@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A contraction hierarchy of an {@link IndexedNetwork}, used to calculate the least-cost paths between
+ * many origins and destinations quickly (see {@link ContractionHierarchyQuery}).
+ *
+ * The hierarchy is built for static link costs and travel times, evaluated once for a given time of day.
+ * The nodes are contracted one after the other in the order of their edge difference (the number of
+ * shortcuts required minus the number of edges removed), lazily updated. When a node is contracted,
+ * a shortcut is added between each pair of its remaining neighbours, unless a local witness search finds
+ * a path that is not more expensive. Each edge keeps track of the cost, travel time and distance of the
+ * path it represents.
+ *
+ * The resulting edges are stored in two compressed sparse row arrays: the upward edges (leading to a node
+ * contracted later) by their from-node, and the downward edges by their to-node, pointing back to their
+ * from-node, so both can be searched upwards.
+ *
+ * The hierarchy can be written to a binary file (all numbers little-endian): a magic number,
+ * the format version, a fingerprint of the network and the link costs and travel times, the number of nodes,
+ * followed by the upward and downward edge arrays. When the hierarchy is loaded again with
+ * {@link #loadOrCreate(File, IndexedNetwork, TravelTime, TravelDisutility, double)}, the file is only used
+ * if the fingerprint matches.
+ *
+ * @author agent
+ */
+public final class ContractionHierarchy {
+
+    private static final Logger log = Logger.getLogger(ContractionHierarchy.class);
+
+    private final static Vehicle VEHICLE = VehicleUtils.getFactory().createVehicle(Id.create("theVehicle", Vehicle.class), VehicleUtils.getDefaultVehicleType());
+    private final static Person PERSON = PopulationUtils.getFactory().createPerson(Id.create("thePerson", Person.class));
+
+    private final static int MAGIC = 0x48434e43; // "CNCH" when read as little-endian bytes
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+    private final static int MAX_WITNESS_SETTLED_NODES = 500;
+    private final static int IO_BUFFER_SIZE = 1 << 16;
+
+    final int nodeCount;
+    final long fingerprint;
+
+    // upward edges, indexed by their from-node
+    final int[] upStart;
+    final int[] upTo;
+    final double[] upCost;
+    final double[] upTime;
+    final double[] upDistance;
+
+    // downward edges, indexed by their to-node, pointing to their from-node
+    final int[] downStart;
+    final int[] downFrom;
+    final double[] downCost;
+    final double[] downTime;
+    final double[] downDistance;
+
+    private ContractionHierarchy(int nodeCount, long fingerprint,
+                                 int[] upStart, int[] upTo, double[] upCost, double[] upTime, double[] upDistance,
+                                 int[] downStart, int[] downFrom, double[] downCost, double[] downTime, double[] downDistance) {
+        this.nodeCount = nodeCount;
+        this.fingerprint = fingerprint;
+        this.upStart = upStart;
+        this.upTo = upTo;
+        this.upCost = upCost;
+        this.upTime = upTime;
+        this.upDistance = upDistance;
+        this.downStart = downStart;
+        this.downFrom = downFrom;
+        this.downCost = downCost;
+        this.downTime = downTime;
+        this.downDistance = downDistance;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return this.upTo.length + this.downFrom.length;
+    }
+
+    /**
+     * Builds the hierarchy for the link costs and travel times at the given time of day.
+     */
+    public static ContractionHierarchy create(IndexedNetwork network, TravelTime travelTime, TravelDisutility travelDisutility, double time) {
+        LinkWeights weights = new LinkWeights(network, travelTime, travelDisutility, time);
+        return create(network, weights);
+    }
+
+    /**
+     * Loads the hierarchy from the given file if it was built for the same network and link weights,
+     * otherwise builds it and stores it in the file for the next time.
+     */
+    public static ContractionHierarchy loadOrCreate(File file, IndexedNetwork network, TravelTime travelTime, TravelDisutility travelDisutility, double time) throws IOException {
+        LinkWeights weights = new LinkWeights(network, travelTime, travelDisutility, time);
+        if (file.exists()) {
+            try {
+                ContractionHierarchy hierarchy = read(file, weights.fingerprint);
+                if (hierarchy != null) {
+                    log.info("loaded contraction hierarchy from " + file);
+                    return hierarchy;
+                }
+                log.info("contraction hierarchy in " + file + " does not match the network or the travel times, re-creating it.");
+            } catch (IOException e) {
+                log.warn("could not read contraction hierarchy from " + file + ", re-creating it.", e);
+            }
+        }
+        ContractionHierarchy hierarchy = create(network, weights);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        hierarchy.write(tmpFile);
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("stored contraction hierarchy in " + file);
+        return hierarchy;
+    }
+
+    private static ContractionHierarchy create(IndexedNetwork network, LinkWeights weights) {
+        int nodeCount = network.getNodeCount();
+        log.info("building contraction hierarchy for " + nodeCount + " nodes and " + network.getLinkCount() + " links");
+        Contractor contractor = new Contractor(nodeCount, network.getLinkCount());
+        for (int nodeIndex = 0; nodeIndex < nodeCount; nodeIndex++) {
+            int endLink = network.getFirstOutLink(nodeIndex + 1);
+            for (int linkIndex = network.getFirstOutLink(nodeIndex); linkIndex < endLink; linkIndex++) {
+                contractor.addEdge(nodeIndex, network.getLinkToNode(linkIndex), weights.costs[linkIndex], weights.times[linkIndex], network.getLinkLength(linkIndex));
+            }
+        }
+        int[] ranks = contractor.contractAll();
+        ContractionHierarchy hierarchy = contractor.buildHierarchy(ranks, weights.fingerprint);
+        log.info("contraction hierarchy contains " + hierarchy.getEdgeCount() + " edges, including shortcuts");
+        return hierarchy;
+    }
+
+    /**
+     * Reads a hierarchy from a file.
+     *
+     * @return the hierarchy, or <code>null</code> if the file was built for another network or other link weights.
+     */
+    static ContractionHierarchy read(File file, long expectedFingerprint) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(HEADER_SIZE);
+            readFully(channel, buffer);
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != expectedFingerprint) {
+                return null;
+            }
+            int nodeCount = buffer.getInt();
+            int upCount = buffer.getInt();
+            int downCount = buffer.getInt();
+            buffer.clear().flip();
+
+            int[] upStart = readInts(channel, buffer, nodeCount + 1);
+            int[] upTo = readInts(channel, buffer, upCount);
+            double[] upCost = readDoubles(channel, buffer, upCount);
+            double[] upTime = readDoubles(channel, buffer, upCount);
+            double[] upDistance = readDoubles(channel, buffer, upCount);
+            int[] downStart = readInts(channel, buffer, nodeCount + 1);
+            int[] downFrom = readInts(channel, buffer, downCount);
+            double[] downCost = readDoubles(channel, buffer, downCount);
+            double[] downTime = readDoubles(channel, buffer, downCount);
+            double[] downDistance = readDoubles(channel, buffer, downCount);
+            return new ContractionHierarchy(nodeCount, expectedFingerprint, upStart, upTo, upCost, upTime, upDistance, downStart, downFrom, downCost, downTime, downDistance);
+        }
+    }
+
+    void write(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(this.fingerprint);
+            buffer.putInt(this.nodeCount);
+            buffer.putInt(this.upTo.length);
+            buffer.putInt(this.downFrom.length);
+            writeInts(channel, buffer, this.upStart);
+            writeInts(channel, buffer, this.upTo);
+            writeDoubles(channel, buffer, this.upCost);
+            writeDoubles(channel, buffer, this.upTime);
+            writeDoubles(channel, buffer, this.upDistance);
+            writeInts(channel, buffer, this.downStart);
+            writeInts(channel, buffer, this.downFrom);
+            writeDoubles(channel, buffer, this.downCost);
+            writeDoubles(channel, buffer, this.downTime);
+            writeDoubles(channel, buffer, this.downDistance);
+            buffer.flip();
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static int[] readInts(FileChannel channel, ByteBuffer buffer, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 4) {
+                refill(channel, buffer, 4);
+            }
+            values[i] = buffer.getInt();
+        }
+        return values;
+    }
+
+    private static double[] readDoubles(FileChannel channel, ByteBuffer buffer, int count) throws IOException {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 8) {
+                refill(channel, buffer, 8);
+            }
+            values[i] = buffer.getDouble();
+        }
+        return values;
+    }
+
+    private static void refill(FileChannel channel, ByteBuffer buffer, int minRemaining) throws IOException {
+        buffer.compact();
+        while (buffer.position() < minRemaining) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        for (int value : values) {
+            if (buffer.remaining() < 4) {
+                flush(channel, buffer);
+            }
+            buffer.putInt(value);
+        }
+    }
+
+    private static void writeDoubles(FileChannel channel, ByteBuffer buffer, double[] values) throws IOException {
+        for (double value : values) {
+            if (buffer.remaining() < 8) {
+                flush(channel, buffer);
+            }
+            buffer.putDouble(value);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * The static costs and travel times of all links, and a fingerprint over them and the network.
+     */
+    private static final class LinkWeights {
+        final double[] costs;
+        final double[] times;
+        final long fingerprint;
+
+        LinkWeights(IndexedNetwork network, TravelTime travelTime, TravelDisutility travelDisutility, double time) {
+            int linkCount = network.getLinkCount();
+            this.costs = new double[linkCount];
+            this.times = new double[linkCount];
+            for (int linkIndex = 0; linkIndex < linkCount; linkIndex++) {
+                Link link = network.getLink(linkIndex);
+                this.costs[linkIndex] = travelDisutility.getLinkTravelDisutility(link, time, PERSON, VEHICLE);
+                this.times[linkIndex] = travelTime.getLinkTravelTime(link, time, PERSON, VEHICLE);
+            }
+            this.fingerprint = calcFingerprint(network, this.costs, this.times);
+        }
+
+        /**
+         * Calculates a 64-bit FNV-1a hash over the nodes, the links and their weights,
+         * to detect if a stored hierarchy was built for a different network or different travel times.
+         */
+        private static long calcFingerprint(IndexedNetwork network, double[] costs, double[] times) {
+            long hash = 0xcbf29ce484222325L;
+            int nodeCount = network.getNodeCount();
+            hash = (hash ^ nodeCount) * 0x100000001b3L;
+            for (int nodeIndex = 0; nodeIndex < nodeCount; nodeIndex++) {
+                hash = hashString(hash, network.getNode(nodeIndex).getId().toString());
+                int endLink = network.getFirstOutLink(nodeIndex + 1);
+                for (int linkIndex = network.getFirstOutLink(nodeIndex); linkIndex < endLink; linkIndex++) {
+                    hash = hashString(hash, network.getLink(linkIndex).getId().toString());
+                    hash = (hash ^ network.getLinkToNode(linkIndex)) * 0x100000001b3L;
+                    hash = (hash ^ Double.doubleToLongBits(network.getLinkLength(linkIndex))) * 0x100000001b3L;
+                    hash = (hash ^ Double.doubleToLongBits(costs[linkIndex])) * 0x100000001b3L;
+                    hash = (hash ^ Double.doubleToLongBits(times[linkIndex])) * 0x100000001b3L;
+                }
+            }
+            return hash;
+        }
+
+        private static long hashString(long hash, String s) {
+            for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+                hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+            }
+            return (hash ^ 0xff) * 0x100000001b3L;
+        }
+    }
+
+    /**
+     * Contracts the nodes of a graph, keeping track of the remaining edges and the added shortcuts.
+     */
+    private static final class Contractor {
+        private final int nodeCount;
+        private int edgeCount = 0;
+        private int[] edgeFrom;
+        private int[] edgeTo;
+        private double[] edgeCost;
+        private double[] edgeTime;
+        private double[] edgeDistance;
+        private final int[][] outEdges;
+        private final int[] outEdgeCounts;
+        private final int[][] inEdges;
+        private final int[] inEdgeCounts;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbours;
+
+        // state of the witness search
+        private final double[] witnessCosts;
+        private final int[] witnessStamps;
+        private int witnessStamp = 0;
+        private final IndexedMinHeap witnessHeap;
+
+        Contractor(int nodeCount, int expectedEdgeCount) {
+            this.nodeCount = nodeCount;
+            int capacity = Math.max(16, expectedEdgeCount * 2);
+            this.edgeFrom = new int[capacity];
+            this.edgeTo = new int[capacity];
+            this.edgeCost = new double[capacity];
+            this.edgeTime = new double[capacity];
+            this.edgeDistance = new double[capacity];
+            this.outEdges = new int[nodeCount][];
+            this.outEdgeCounts = new int[nodeCount];
+            this.inEdges = new int[nodeCount][];
+            this.inEdgeCounts = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                this.outEdges[i] = new int[4];
+                this.inEdges[i] = new int[4];
+            }
+            this.contracted = new boolean[nodeCount];
+            this.contractedNeighbours = new int[nodeCount];
+            this.witnessCosts = new double[nodeCount];
+            this.witnessStamps = new int[nodeCount];
+            this.witnessHeap = new IndexedMinHeap(nodeCount);
+        }
+
+        /**
+         * Adds an edge, or updates the existing edge between the two nodes if the new one is cheaper.
+         */
+        void addEdge(int from, int to, double cost, double time, double distance) {
+            if (from == to) {
+                return;
+            }
+            int[] fromOutEdges = this.outEdges[from];
+            for (int i = 0, n = this.outEdgeCounts[from]; i < n; i++) {
+                int edge = fromOutEdges[i];
+                if (this.edgeTo[edge] == to) {
+                    if (cost < this.edgeCost[edge]) {
+                        this.edgeCost[edge] = cost;
+                        this.edgeTime[edge] = time;
+                        this.edgeDistance[edge] = distance;
+                    }
+                    return;
+                }
+            }
+            if (this.edgeCount == this.edgeFrom.length) {
+                int newLength = this.edgeCount * 2;
+                this.edgeFrom = Arrays.copyOf(this.edgeFrom, newLength);
+                this.edgeTo = Arrays.copyOf(this.edgeTo, newLength);
+                this.edgeCost = Arrays.copyOf(this.edgeCost, newLength);
+                this.edgeTime = Arrays.copyOf(this.edgeTime, newLength);
+                this.edgeDistance = Arrays.copyOf(this.edgeDistance, newLength);
+            }
+            int edge = this.edgeCount++;
+            this.edgeFrom[edge] = from;
+            this.edgeTo[edge] = to;
+            this.edgeCost[edge] = cost;
+            this.edgeTime[edge] = time;
+            this.edgeDistance[edge] = distance;
+            this.outEdges[from] = append(this.outEdges[from], this.outEdgeCounts[from]++, edge);
+            this.inEdges[to] = append(this.inEdges[to], this.inEdgeCounts[to]++, edge);
+        }
+
+        private static int[] append(int[] array, int position, int value) {
+            if (position == array.length) {
+                array = Arrays.copyOf(array, array.length * 2);
+            }
+            array[position] = value;
+            return array;
+        }
+
+        /**
+         * Contracts all nodes.
+         *
+         * @return the rank of each node, i.e. the position in which it was contracted.
+         */
+        int[] contractAll() {
+            IndexedMinHeap queue = new IndexedMinHeap(this.nodeCount);
+            for (int node = 0; node < this.nodeCount; node++) {
+                queue.insertOrDecrease(node, calcPriority(node));
+            }
+            int[] ranks = new int[this.nodeCount];
+            int rank = 0;
+            int nextLog = 1;
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                double priority = calcPriority(node);
+                if (!queue.isEmpty() && priority > queue.peekKey()) {
+                    // the priority got worse since it was last calculated, try again later
+                    queue.insertOrDecrease(node, priority);
+                    continue;
+                }
+                contract(node, false);
+                this.contracted[node] = true;
+                ranks[node] = rank++;
+                for (int i = 0, n = this.inEdgeCounts[node]; i < n; i++) {
+                    this.contractedNeighbours[this.edgeFrom[this.inEdges[node][i]]]++;
+                }
+                for (int i = 0, n = this.outEdgeCounts[node]; i < n; i++) {
+                    this.contractedNeighbours[this.edgeTo[this.outEdges[node][i]]]++;
+                }
+                if (rank == nextLog) {
+                    log.info("contracted " + rank + " / " + this.nodeCount + " nodes, " + this.edgeCount + " edges");
+                    nextLog *= 2;
+                }
+            }
+            return ranks;
+        }
+
+        private double calcPriority(int node) {
+            int shortcuts = contract(node, true);
+            int removedEdges = 0;
+            for (int i = 0, n = this.inEdgeCounts[node]; i < n; i++) {
+                if (!this.contracted[this.edgeFrom[this.inEdges[node][i]]]) {
+                    removedEdges++;
+                }
+            }
+            for (int i = 0, n = this.outEdgeCounts[node]; i < n; i++) {
+                if (!this.contracted[this.edgeTo[this.outEdges[node][i]]]) {
+                    removedEdges++;
+                }
+            }
+            return shortcuts - removedEdges + this.contractedNeighbours[node];
+        }
+
+        /**
+         * Adds the shortcuts required to contract the node, or only counts them if <code>simulate</code> is <code>true</code>.
+         *
+         * @return the number of shortcuts.
+         */
+        private int contract(int node, boolean simulate) {
+            int shortcuts = 0;
+            int[] nodeInEdges = this.inEdges[node];
+            int[] nodeOutEdges = this.outEdges[node];
+            int inCount = this.inEdgeCounts[node];
+            int outCount = this.outEdgeCounts[node];
+            for (int i = 0; i < inCount; i++) {
+                int inEdge = nodeInEdges[i];
+                int from = this.edgeFrom[inEdge];
+                if (this.contracted[from]) {
+                    continue;
+                }
+                double maxCost = -1;
+                for (int j = 0; j < outCount; j++) {
+                    int outEdge = nodeOutEdges[j];
+                    int to = this.edgeTo[outEdge];
+                    if (!this.contracted[to] && to != from) {
+                        maxCost = Math.max(maxCost, this.edgeCost[inEdge] + this.edgeCost[outEdge]);
+                    }
+                }
+                if (maxCost < 0) {
+                    continue;
+                }
+                findWitnesses(from, node, maxCost);
+                for (int j = 0; j < outCount; j++) {
+                    int outEdge = nodeOutEdges[j];
+                    int to = this.edgeTo[outEdge];
+                    if (this.contracted[to] || to == from) {
+                        continue;
+                    }
+                    double cost = this.edgeCost[inEdge] + this.edgeCost[outEdge];
+                    if (getWitnessCost(to) <= cost) {
+                        continue;
+                    }
+                    shortcuts++;
+                    if (!simulate) {
+                        addEdge(from, to, cost, this.edgeTime[inEdge] + this.edgeTime[outEdge], this.edgeDistance[inEdge] + this.edgeDistance[outEdge]);
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /**
+         * Runs a limited Dijkstra search from <code>start</code>, ignoring the node being contracted and all nodes contracted before.
+         */
+        private void findWitnesses(int start, int ignoredNode, double maxCost) {
+            this.witnessStamp++;
+            IndexedMinHeap heap = this.witnessHeap;
+            heap.clear();
+            this.witnessStamps[start] = this.witnessStamp;
+            this.witnessCosts[start] = 0;
+            heap.insertOrDecrease(start, 0);
+            int settledCount = 0;
+            while (!heap.isEmpty() && heap.peekKey() <= maxCost && settledCount < MAX_WITNESS_SETTLED_NODES) {
+                int node = heap.poll();
+                settledCount++;
+                double cost = this.witnessCosts[node];
+                int[] nodeOutEdges = this.outEdges[node];
+                for (int i = 0, n = this.outEdgeCounts[node]; i < n; i++) {
+                    int edge = nodeOutEdges[i];
+                    int to = this.edgeTo[edge];
+                    if (to == ignoredNode || this.contracted[to]) {
+                        continue;
+                    }
+                    double toCost = cost + this.edgeCost[edge];
+                    if (toCost < getWitnessCost(to)) {
+                        this.witnessStamps[to] = this.witnessStamp;
+                        this.witnessCosts[to] = toCost;
+                        heap.insertOrDecrease(to, toCost);
+                    }
+                }
+            }
+        }
+
+        private double getWitnessCost(int node) {
+            return this.witnessStamps[node] == this.witnessStamp ? this.witnessCosts[node] : Double.POSITIVE_INFINITY;
+        }
+
+        ContractionHierarchy buildHierarchy(int[] ranks, long fingerprint) {
+            int[] upStart = new int[this.nodeCount + 1];
+            int[] downStart = new int[this.nodeCount + 1];
+            for (int edge = 0; edge < this.edgeCount; edge++) {
+                int from = this.edgeFrom[edge];
+                int to = this.edgeTo[edge];
+                if (ranks[from] < ranks[to]) {
+                    upStart[from + 1]++;
+                } else {
+                    downStart[to + 1]++;
+                }
+            }
+            for (int node = 0; node < this.nodeCount; node++) {
+                upStart[node + 1] += upStart[node];
+                downStart[node + 1] += downStart[node];
+            }
+            int upCount = upStart[this.nodeCount];
+            int downCount = downStart[this.nodeCount];
+            int[] upTo = new int[upCount];
+            double[] upCost = new double[upCount];
+            double[] upTime = new double[upCount];
+            double[] upDistance = new double[upCount];
+            int[] downFrom = new int[downCount];
+            double[] downCost = new double[downCount];
+            double[] downTime = new double[downCount];
+            double[] downDistance = new double[downCount];
+            int[] upPositions = Arrays.copyOf(upStart, this.nodeCount);
+            int[] downPositions = Arrays.copyOf(downStart, this.nodeCount);
+            for (int edge = 0; edge < this.edgeCount; edge++) {
+                int from = this.edgeFrom[edge];
+                int to = this.edgeTo[edge];
+                if (ranks[from] < ranks[to]) {
+                    int pos = upPositions[from]++;
+                    upTo[pos] = to;
+                    upCost[pos] = this.edgeCost[edge];
+                    upTime[pos] = this.edgeTime[edge];
+                    upDistance[pos] = this.edgeDistance[edge];
+                } else {
+                    int pos = downPositions[to]++;
+                    downFrom[pos] = from;
+                    downCost[pos] = this.edgeCost[edge];
+                    downTime[pos] = this.edgeTime[edge];
+                    downDistance[pos] = this.edgeDistance[edge];
+                }
+            }
+            return new ContractionHierarchy(this.nodeCount, fingerprint, upStart, upTo, upCost, upTime, upDistance, downStart, downFrom, downCost, downTime, downDistance);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Calculates the least-cost paths from any number of origins to a fixed set of target nodes
+ * in a {@link ContractionHierarchy}, using the bucket-based many-to-many algorithm.
+ *
+ * When the query is created, an upward search is done backwards from each target, storing the
+ * cost, travel time and distance to the target in a bucket at each node reached by that search.
+ * The buckets are stored in a compressed sparse row layout, ordered by target index, so the results
+ * do not depend on the number of threads. Afterwards, each origin only requires a single upward
+ * search, scanning the buckets of all reached nodes for the best connection to each target.
+ *
+ * Once created, the query can be shared by multiple threads, each using its own {@link Searcher}.
+ *
+ * @author agent
+ */
+final class ContractionHierarchyQuery {
+
+    private final ContractionHierarchy hierarchy;
+    private final int targetCount;
+    private final int[] bucketStart;
+    private final int[] bucketTargets;
+    private final double[] bucketCosts;
+    private final double[] bucketTimes;
+    private final double[] bucketDistances;
+
+    /**
+     * @param targetNodes the node indices of the targets; the results are reported by the position in this array.
+     */
+    ContractionHierarchyQuery(ContractionHierarchy hierarchy, int[] targetNodes, int numberOfThreads) {
+        this.hierarchy = hierarchy;
+        this.targetCount = targetNodes.length;
+
+        // do the backward searches in parallel, each thread storing the reached nodes per target
+        SearchResult[] results = new SearchResult[this.targetCount];
+        AtomicInteger nextTarget = new AtomicInteger(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    UpwardSearch search = new UpwardSearch(hierarchy.nodeCount);
+                    int target;
+                    while (failure.get() == null && (target = nextTarget.getAndIncrement()) < this.targetCount) {
+                        search.run(targetNodes[target], hierarchy.downStart, hierarchy.downFrom, hierarchy.downCost, hierarchy.downTime, hierarchy.downDistance);
+                        results[target] = search.copyResult();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, "CAR-CH-Buckets-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException("Searching the buckets of the targets failed.", failure.get());
+        }
+
+        // collect the results into buckets
+        this.bucketStart = new int[hierarchy.nodeCount + 1];
+        for (SearchResult result : results) {
+            for (int node : result.nodes) {
+                this.bucketStart[node + 1]++;
+            }
+        }
+        for (int node = 0; node < hierarchy.nodeCount; node++) {
+            this.bucketStart[node + 1] += this.bucketStart[node];
+        }
+        int entryCount = this.bucketStart[hierarchy.nodeCount];
+        this.bucketTargets = new int[entryCount];
+        this.bucketCosts = new double[entryCount];
+        this.bucketTimes = new double[entryCount];
+        this.bucketDistances = new double[entryCount];
+        int[] positions = Arrays.copyOf(this.bucketStart, hierarchy.nodeCount);
+        for (int target = 0; target < this.targetCount; target++) {
+            SearchResult result = results[target];
+            results[target] = null;
+            for (int i = 0; i < result.nodes.length; i++) {
+                int pos = positions[result.nodes[i]]++;
+                this.bucketTargets[pos] = target;
+                this.bucketCosts[pos] = result.costs[i];
+                this.bucketTimes[pos] = result.times[i];
+                this.bucketDistances[pos] = result.distances[i];
+            }
+        }
+    }
+
+    int getTargetCount() {
+        return this.targetCount;
+    }
+
+    long getBucketEntryCount() {
+        return this.bucketTargets.length;
+    }
+
+    Searcher createSearcher() {
+        return new Searcher();
+    }
+
+    /**
+     * Calculates the results from one origin to all targets. Not thread-safe, each thread requires its own instance.
+     */
+    final class Searcher {
+        private final UpwardSearch search;
+        private final double[] costs;
+        private final double[] times;
+        private final double[] distances;
+
+        private Searcher() {
+            this.search = new UpwardSearch(ContractionHierarchyQuery.this.hierarchy.nodeCount);
+            this.costs = new double[ContractionHierarchyQuery.this.targetCount];
+            this.times = new double[ContractionHierarchyQuery.this.targetCount];
+            this.distances = new double[ContractionHierarchyQuery.this.targetCount];
+        }
+
+        void calculate(int originNode) {
+            ContractionHierarchyQuery query = ContractionHierarchyQuery.this;
+            ContractionHierarchy ch = query.hierarchy;
+            Arrays.fill(this.costs, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.times, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.distances, Double.POSITIVE_INFINITY);
+            UpwardSearch search = this.search;
+            search.run(originNode, ch.upStart, ch.upTo, ch.upCost, ch.upTime, ch.upDistance);
+            for (int i = 0; i < search.settledCount; i++) {
+                int node = search.settledNodes[i];
+                double cost = search.costs[node];
+                double time = search.times[node];
+                double distance = search.distances[node];
+                for (int pos = query.bucketStart[node], end = query.bucketStart[node + 1]; pos < end; pos++) {
+                    int target = query.bucketTargets[pos];
+                    double totalCost = cost + query.bucketCosts[pos];
+                    if (totalCost < this.costs[target]) {
+                        this.costs[target] = totalCost;
+                        this.times[target] = time + query.bucketTimes[pos];
+                        this.distances[target] = distance + query.bucketDistances[pos];
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the cost to the target, or <code>Infinity</code> if it cannot be reached.
+         */
+        double getCost(int target) {
+            return this.costs[target];
+        }
+
+        /**
+         * @return the travel time to the target, or <code>Infinity</code> if it cannot be reached.
+         */
+        double getTime(int target) {
+            return this.times[target];
+        }
+
+        /**
+         * @return the distance to the target, or <code>Infinity</code> if it cannot be reached.
+         */
+        double getDistance(int target) {
+            return this.distances[target];
+        }
+    }
+
+    private static final class SearchResult {
+        final int[] nodes;
+        final double[] costs;
+        final double[] times;
+        final double[] distances;
+
+        SearchResult(int[] nodes, double[] costs, double[] times, double[] distances) {
+            this.nodes = nodes;
+            this.costs = costs;
+            this.times = times;
+            this.distances = distances;
+        }
+    }
+
+    /**
+     * A Dijkstra search only following the edges of one direction of the hierarchy, with reusable state.
+     */
+    private static final class UpwardSearch {
+        final double[] costs;
+        final double[] times;
+        final double[] distances;
+        final int[] settledNodes;
+        int settledCount = 0;
+        private final int[] stamps;
+        private int stamp = 0;
+        private final IndexedMinHeap heap;
+
+        UpwardSearch(int nodeCount) {
+            this.costs = new double[nodeCount];
+            this.times = new double[nodeCount];
+            this.distances = new double[nodeCount];
+            this.settledNodes = new int[nodeCount];
+            this.stamps = new int[nodeCount];
+            this.heap = new IndexedMinHeap(nodeCount);
+        }
+
+        void run(int startNode, int[] edgeStart, int[] edgeNodes, double[] edgeCosts, double[] edgeTimes, double[] edgeDistances) {
+            this.stamp++;
+            this.settledCount = 0;
+            this.stamps[startNode] = this.stamp;
+            this.costs[startNode] = 0;
+            this.times[startNode] = 0;
+            this.distances[startNode] = 0;
+            this.heap.insertOrDecrease(startNode, 0);
+            while (!this.heap.isEmpty()) {
+                int node = this.heap.poll();
+                this.settledNodes[this.settledCount++] = node;
+                double cost = this.costs[node];
+                for (int edge = edgeStart[node], end = edgeStart[node + 1]; edge < end; edge++) {
+                    int toNode = edgeNodes[edge];
+                    double toCost = cost + edgeCosts[edge];
+                    if (this.stamps[toNode] != this.stamp || toCost < this.costs[toNode]) {
+                        this.stamps[toNode] = this.stamp;
+                        this.costs[toNode] = toCost;
+                        this.times[toNode] = this.times[node] + edgeTimes[edge];
+                        this.distances[toNode] = this.distances[node] + edgeDistances[edge];
+                        this.heap.insertOrDecrease(toNode, toCost);
+                    }
+                }
+            }
+        }
+
+        SearchResult copyResult() {
+            int[] nodes = Arrays.copyOf(this.settledNodes, this.settledCount);
+            double[] costs = new double[this.settledCount];
+            double[] times = new double[this.settledCount];
+            double[] distances = new double[this.settledCount];
+            for (int i = 0; i < this.settledCount; i++) {
+                int node = nodes[i];
+                costs[i] = this.costs[node];
+                times[i] = this.times[node];
+                distances[i] = this.distances[node];
+            }
+            return new SearchResult(nodes, costs, times, distances);
+        }
+    }
+}
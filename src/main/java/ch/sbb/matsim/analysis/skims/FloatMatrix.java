@@ -4,6 +4,9 @@
 
 package ch.sbb.matsim.analysis.skims;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -36,43 +39,92 @@ import java.util.Set;
  *
  * For larger matrices the absolute volumes become even more impressive. For an 8000x8000 matrix,
  * the float array will use 250MB, while the alternatives will use 4.5 or 6.5 GB respectively.
+ *
+ * Java arrays are limited to 2^31 entries, so one array can hold at most a matrix of about
+ * 46000x46000 cells. Larger matrices are split into chunks, each chunk containing a number of
+ * complete rows. The chunks can optionally be allocated off-heap (using direct buffers), e.g. to
+ * keep very large matrices out of the garbage collector's way. Note that off-heap memory is limited
+ * by the JVM option <code>-XX:MaxDirectMemorySize</code>.
+ *
+ * Each zone is assigned an index (0 to m-1) in the order the zones are given when creating the matrix.
+ * For hot loops, the matrix can be accessed directly by these indices (e.g. {@link #getByIndex(int, int)})
+ * or row-wise (see {@link #getRow(int)}), avoiding the lookup of the zone indices for each access.
  */
 public class FloatMatrix<T> {
 
+    private static final int MAX_CHUNK_SIZE = 1 << 28; // 256M cells, 1 GB
+
     final Map<T, Integer> id2index;
+    private final Object[] zoneIds;
     private final int size;
-    private final float[] data;
+    private final int rowsPerChunk;
+    private final float[] data; // only set if the matrix fits into a single on-heap chunk, for faster access
+    private final float[][] heapChunks;
+    private final FloatBuffer[] offHeapChunks;
 
     public FloatMatrix(Set<T> zones, float defaultValue) {
+        this(zones, defaultValue, false);
+    }
+
+    /**
+     * @param zones the zones identifying rows and columns of the matrix
+     * @param defaultValue the initial value of every cell
+     * @param offHeap if <code>true</code>, the values are stored outside of the Java heap
+     */
+    public FloatMatrix(Set<T> zones, float defaultValue, boolean offHeap) {
+        this(zones, defaultValue, offHeap, MAX_CHUNK_SIZE);
+    }
+
+    FloatMatrix(Set<T> zones, float defaultValue, boolean offHeap, int maxChunkSize) {
         this.size = zones.size();
         this.id2index = new HashMap<>((int) (this.size * 1.5));
-        this.data = new float[this.size * this.size];
-        Arrays.fill(this.data, defaultValue);
+        this.zoneIds = new Object[this.size];
         int index = 0;
         for (T t : zones) {
             this.id2index.put(t, index);
+            this.zoneIds[index] = t;
             index++;
         }
+
+        this.rowsPerChunk = Math.max(1, Math.min(this.size, maxChunkSize / Math.max(1, this.size)));
+        int chunkCount = (this.size + this.rowsPerChunk - 1) / this.rowsPerChunk;
+        if (offHeap) {
+            this.heapChunks = null;
+            this.data = null;
+            this.offHeapChunks = new FloatBuffer[chunkCount];
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                int cellCount = getRowCountOfChunk(chunk) * this.size;
+                FloatBuffer buffer = ByteBuffer.allocateDirect(cellCount * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                for (int i = 0; i < cellCount; i++) {
+                    buffer.put(i, defaultValue);
+                }
+                this.offHeapChunks[chunk] = buffer;
+            }
+        } else {
+            this.offHeapChunks = null;
+            this.heapChunks = new float[chunkCount][];
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                this.heapChunks[chunk] = new float[getRowCountOfChunk(chunk) * this.size];
+                Arrays.fill(this.heapChunks[chunk], defaultValue);
+            }
+            this.data = chunkCount == 1 ? this.heapChunks[0] : (chunkCount == 0 ? new float[0] : null);
+        }
+    }
+
+    private int getRowCountOfChunk(int chunk) {
+        return Math.min(this.rowsPerChunk, this.size - chunk * this.rowsPerChunk);
     }
 
     public float set(T from, T to, float value) {
-        int index = getIndex(from, to);
-        float oldValue = this.data[index];
-        this.data[index] = value;
-        return oldValue;
+        return setByIndex(getZoneIndex(from), getZoneIndex(to), value);
     }
 
     public float get(T from, T to) {
-        int index = getIndex(from, to);
-        return this.data[index];
+        return getByIndex(getZoneIndex(from), getZoneIndex(to));
     }
 
     public float add(T from, T to, float value) {
-        int index = getIndex(from, to);
-        float oldValue = this.data[index];
-        float newValue = oldValue + value;
-        this.data[index] = newValue;
-        return newValue;
+        return addByIndex(getZoneIndex(from), getZoneIndex(to), value);
     }
 
     /**
@@ -82,11 +134,7 @@ public class FloatMatrix<T> {
      * @return the new value
      */
     public float multiply(T from, T to, float factor) {
-        int index = getIndex(from, to);
-        float oldValue = this.data[index];
-        float newValue = oldValue * factor;
-        this.data[index] = newValue;
-        return newValue;
+        return multiplyByIndex(getZoneIndex(from), getZoneIndex(to), factor);
     }
 
     /**
@@ -95,14 +143,231 @@ public class FloatMatrix<T> {
      * @param factor the multiplication factor
      */
     public void multiply(float factor) {
-        for (int i = 0; i < this.data.length; i++) {
-            this.data[i] *= factor;
+        if (this.heapChunks != null) {
+            for (float[] chunk : this.heapChunks) {
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] *= factor;
+                }
+            }
+        } else {
+            for (FloatBuffer chunk : this.offHeapChunks) {
+                for (int i = 0, n = chunk.capacity(); i < n; i++) {
+                    chunk.put(i, chunk.get(i) * factor);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the old value
+     */
+    public float setByIndex(int fromIndex, int toIndex, float value) {
+        if (this.data != null) {
+            int index = fromIndex * this.size + toIndex;
+            float oldValue = this.data[index];
+            this.data[index] = value;
+            return oldValue;
+        }
+        return getRow(fromIndex).set(toIndex, value);
+    }
+
+    public float getByIndex(int fromIndex, int toIndex) {
+        if (this.data != null) {
+            return this.data[fromIndex * this.size + toIndex];
+        }
+        return getRow(fromIndex).get(toIndex);
+    }
+
+    /**
+     * @return the new value
+     */
+    public float addByIndex(int fromIndex, int toIndex, float value) {
+        if (this.data != null) {
+            int index = fromIndex * this.size + toIndex;
+            float newValue = this.data[index] + value;
+            this.data[index] = newValue;
+            return newValue;
+        }
+        return getRow(fromIndex).add(toIndex, value);
+    }
+
+    /**
+     * @return the new value
+     */
+    public float multiplyByIndex(int fromIndex, int toIndex, float factor) {
+        if (this.data != null) {
+            int index = fromIndex * this.size + toIndex;
+            float newValue = this.data[index] * factor;
+            this.data[index] = newValue;
+            return newValue;
+        }
+        return getRow(fromIndex).multiply(toIndex, factor);
+    }
+
+    /**
+     * Returns a view on the row of the given origin zone. Changes to the row are directly
+     * reflected in the matrix. The row view can be used to efficiently access many cells of
+     * the same row.
+     */
+    public Row getRow(int fromIndex) {
+        if (fromIndex < 0 || fromIndex >= this.size) {
+            throw new IndexOutOfBoundsException("row " + fromIndex + ", size " + this.size);
         }
+        int chunk = fromIndex / this.rowsPerChunk;
+        int offset = (fromIndex - chunk * this.rowsPerChunk) * this.size;
+        if (this.heapChunks != null) {
+            return new Row(this.heapChunks[chunk], offset, null, this.size);
+        }
+        return new Row(null, offset, this.offHeapChunks[chunk], this.size);
+    }
+
+    /**
+     * @return the index of the zone, used for accessing rows and columns with the index-based methods.
+     */
+    public int getZoneIndex(T zoneId) {
+        Integer index = this.id2index.get(zoneId);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown zone " + zoneId);
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getZoneId(int index) {
+        return (T) this.zoneIds[index];
     }
 
-    private int getIndex(T from, T to) {
-        int fromIndex = this.id2index.get(from);
-        int toIndex = this.id2index.get(to);
-        return fromIndex * this.size + toIndex;
+    /**
+     * @return the number of zones, i.e. the number of rows and columns of this matrix.
+     */
+    public int getZoneCount() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of cells in this matrix.
+     */
+    public long getCellCount() {
+        return (long) this.size * this.size;
+    }
+
+    /**
+     * A view on a single row of a {@link FloatMatrix}, accessed by the index of the destination zone.
+     * Rows can also be created independently of a matrix (see {@link #create(int, float)}), e.g. when
+     * a matrix is calculated row by row and the rows are directly written to a file.
+     */
+    public static final class Row {
+        private final float[] array;
+        private final int offset;
+        private final FloatBuffer buffer;
+        private final int size;
+
+        private Row(float[] array, int offset, FloatBuffer buffer, int size) {
+            this.array = array;
+            this.offset = offset;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        /**
+         * Creates a new row which is not part of any matrix.
+         */
+        public static Row create(int size, float defaultValue) {
+            float[] array = new float[size];
+            Arrays.fill(array, defaultValue);
+            return new Row(array, 0, null, size);
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public float get(int toIndex) {
+            if (this.array != null) {
+                return this.array[this.offset + toIndex];
+            }
+            return this.buffer.get(this.offset + toIndex);
+        }
+
+        /**
+         * @return the old value
+         */
+        public float set(int toIndex, float value) {
+            if (this.array != null) {
+                float oldValue = this.array[this.offset + toIndex];
+                this.array[this.offset + toIndex] = value;
+                return oldValue;
+            }
+            float oldValue = this.buffer.get(this.offset + toIndex);
+            this.buffer.put(this.offset + toIndex, value);
+            return oldValue;
+        }
+
+        /**
+         * @return the new value
+         */
+        public float add(int toIndex, float value) {
+            if (this.array != null) {
+                return this.array[this.offset + toIndex] += value;
+            }
+            float newValue = this.buffer.get(this.offset + toIndex) + value;
+            this.buffer.put(this.offset + toIndex, newValue);
+            return newValue;
+        }
+
+        /**
+         * @return the new value
+         */
+        public float multiply(int toIndex, float factor) {
+            if (this.array != null) {
+                return this.array[this.offset + toIndex] *= factor;
+            }
+            float newValue = this.buffer.get(this.offset + toIndex) * factor;
+            this.buffer.put(this.offset + toIndex, newValue);
+            return newValue;
+        }
+
+        /**
+         * Sets all values in this row to the given value.
+         */
+        public void fill(float value) {
+            if (this.array != null) {
+                Arrays.fill(this.array, this.offset, this.offset + this.size, value);
+            } else {
+                for (int i = 0; i < this.size; i++) {
+                    this.buffer.put(this.offset + i, value);
+                }
+            }
+        }
+
+        /**
+         * Copies the values of this row into the given buffer, starting at the buffer's position.
+         */
+        void copyTo(FloatBuffer target) {
+            if (this.array != null) {
+                target.put(this.array, this.offset, this.size);
+            } else {
+                FloatBuffer source = this.buffer.duplicate();
+                source.position(this.offset);
+                source.limit(this.offset + this.size);
+                target.put(source);
+            }
+        }
+
+        /**
+         * Copies values from the given buffer into this row, starting at the buffer's position.
+         */
+        void copyFrom(FloatBuffer source) {
+            if (this.array != null) {
+                source.get(this.array, this.offset, this.size);
+            } else {
+                FloatBuffer target = this.buffer.duplicate();
+                target.position(this.offset);
+                FloatBuffer slice = source.duplicate();
+                slice.limit(slice.position() + this.size);
+                target.put(slice);
+                source.position(source.position() + this.size);
+            }
+        }
     }
 }
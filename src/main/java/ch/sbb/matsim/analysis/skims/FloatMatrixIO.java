@@ -7,10 +7,38 @@ package ch.sbb.matsim.analysis.skims;
 import org.matsim.core.utils.io.IOUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
- * Helper methods to write and read matrices as CSV files (well, actually semi-colon separated files).
+ * Helper methods to write and read matrices as CSV files (well, actually semi-colon separated files)
+ * or in a compact binary format.
+ *
+ * The binary format is meant for large matrices, where writing and parsing the CSV files takes a lot of time.
+ * All numbers are stored little-endian. The file starts with a header:
+ * <ul>
+ *     <li>the magic number {@link #BINARY_MAGIC} (int32)</li>
+ *     <li>the format version (int32)</li>
+ *     <li>the number of zones <code>m</code> (int32)</li>
+ *     <li>for each zone: the length of the UTF-8 encoded zone id in bytes (int32), followed by the zone id bytes</li>
+ *     <li>0 to 3 bytes of padding, so the matrix values start at an offset divisible by 4</li>
+ * </ul>
+ * The header is followed by the <code>m * m</code> matrix values (float32), row by row in the order of
+ * the zones in the header. The binary format is not compressed, so the files can be memory-mapped when reading.
  *
  * @author mrieser / SBB
  */
@@ -20,32 +48,67 @@ public final class FloatMatrixIO {
     private final static String HEADER = "FROM" + SEP + "TO" + SEP + "VALUE";
     private final static String NL = "\n";
 
+    public final static int BINARY_MAGIC = 0x584d5346; // "FSMX" when read as little-endian bytes
+    private final static int BINARY_VERSION = 1;
+    private final static int WRITE_BUFFER_SIZE = 1 << 20;
+
     public static <T> void writeAsCSV(FloatMatrix<T> matrix, String filename) throws IOException {
-        try (BufferedWriter writer = IOUtils.getBufferedWriter(filename)) {
-            writeCSV(matrix, writer);
+        try (RowWriter writer = new CSVRowWriter(IOUtils.getBufferedWriter(filename), getSortedIds(matrix), null, true)) {
+            writeRows(matrix, writer);
         }
     }
 
     public static <T> void writeAsCSV(FloatMatrix<T> matrix, OutputStream stream) throws IOException {
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream));
-        writeCSV(matrix, writer);
+        try (RowWriter rowWriter = new CSVRowWriter(writer, getSortedIds(matrix), null, false)) {
+            writeRows(matrix, rowWriter);
+        }
     }
 
-    private static <T> void writeCSV(FloatMatrix<T> matrix, BufferedWriter writer) throws IOException {
-        writer.write(HEADER);
-        writer.write(NL);
-        T[] zoneIds = getSortedIds(matrix);
-        for (T fromZoneId : zoneIds) {
-            for (T toZoneId : zoneIds) {
-                writer.write(fromZoneId.toString());
-                writer.append(SEP);
-                writer.write(toZoneId.toString());
-                writer.append(SEP);
-                writer.write(Float.toString(matrix.get(fromZoneId, toZoneId)));
-                writer.append(NL);
-            }
+    private static <T> void writeRows(FloatMatrix<T> matrix, RowWriter writer) throws IOException {
+        for (int fromIndex = 0; fromIndex < matrix.getZoneCount(); fromIndex++) {
+            writer.writeRow(matrix.getRow(fromIndex));
+        }
+    }
+
+    /**
+     * Creates a writer for a CSV file, to which the rows of a matrix can be written one after the other
+     * without having the full matrix in memory. The resulting file is identical to a file written with
+     * {@link #writeAsCSV(FloatMatrix, String)}.
+     *
+     * @param zoneIds the zone ids, in the order of the zone indices of the rows to be written.
+     */
+    public static <T> RowWriter createCSVRowWriter(String filename, List<T> zoneIds) throws IOException {
+        return new CSVRowWriter(IOUtils.getBufferedWriter(filename), zoneIds.toArray(), null, true);
+    }
+
+    /**
+     * Creates a writer for a CSV file containing only some rows of a matrix, e.g. when only a part
+     * of the origin zones is calculated. The file has the same format as the ones written by
+     * {@link #writeAsCSV(FloatMatrix, String)}, just with lines missing for the other origin zones.
+     *
+     * @param zoneIds the zone ids, in the order of the zone indices.
+     * @param fromZoneIndices the indices of the origin zones of the rows to be written, in the order they will be written.
+     */
+    public static <T> RowWriter createCSVRowWriter(String filename, List<T> zoneIds, int[] fromZoneIndices) throws IOException {
+        return new CSVRowWriter(IOUtils.getBufferedWriter(filename), zoneIds.toArray(), fromZoneIndices, true);
+    }
+
+    /**
+     * Creates a writer for a binary file, to which the rows of a matrix can be written one after the other
+     * without having the full matrix in memory. The resulting file is identical to a file written with
+     * {@link #writeAsBinary(FloatMatrix, String)}.
+     *
+     * @param zoneIds the zone ids, in the order of the zone indices of the rows to be written.
+     */
+    public static <T> RowWriter createBinaryRowWriter(String filename, List<T> zoneIds) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            return new BinaryRowWriter(channel, zoneIds.toArray());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
-        writer.flush();
     }
 
     public static <T> void readAsCSV(FloatMatrix<T> matrix, String filename, IdConverter<T> idConverter) throws IOException {
@@ -74,16 +137,491 @@ public final class FloatMatrixIO {
         }
     }
 
+    public static <T> void writeAsBinary(FloatMatrix<T> matrix, String filename) throws IOException {
+        try (RowWriter writer = createBinaryRowWriter(filename, Arrays.asList(getSortedIds(matrix)))) {
+            writeRows(matrix, writer);
+        }
+    }
+
+    /**
+     * Reads a binary matrix file into the given matrix. The matrix must contain all zones stored in the file.
+     * If the zones of the file are in the same order as in the matrix, the values are copied in bulk
+     * from the memory-mapped file.
+     */
+    public static <T> void readAsBinary(FloatMatrix<T> matrix, String filename, IdConverter<T> idConverter) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            BinaryHeader<T> header = readBinaryHeader(channel, idConverter);
+            readBinaryData(matrix, channel, header);
+        }
+    }
+
+    /**
+     * Opens a matrix file to read it row by row, without having the full matrix in memory.
+     * The file can be either in the CSV or the binary format, the format is detected from the file's content.
+     * For CSV files, the zone ids of the first row define the order of the values in all rows, and
+     * values missing in the file are set to {@link Float#NaN}.
+     */
+    public static <T> RowReader<T> openRowReader(String filename, IdConverter<T> idConverter) throws IOException {
+        if (isBinaryMatrix(filename)) {
+            FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            try {
+                return new BinaryRowReader<>(channel, readBinaryHeader(channel, idConverter));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        BufferedReader reader = IOUtils.getBufferedReader(filename);
+        try {
+            return new CSVRowReader<>(reader, idConverter);
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    private static boolean isBinaryMatrix(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // continue reading until the buffer is full or the file ends
+            }
+            return !buffer.hasRemaining() && buffer.getInt(0) == BINARY_MAGIC;
+        }
+    }
+
+    /**
+     * Reads a binary matrix file into a new matrix having the zones in the same order as in the file.
+     */
+    public static <T> FloatMatrix<T> readAsBinary(String filename, IdConverter<T> idConverter) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            BinaryHeader<T> header = readBinaryHeader(channel, idConverter);
+            Set<T> zoneIds = new LinkedHashSet<>();
+            for (T zoneId : header.zoneIds) {
+                if (!zoneIds.add(zoneId)) {
+                    throw new IOException("Duplicate zone id " + zoneId + " in " + filename);
+                }
+            }
+            FloatMatrix<T> matrix = new FloatMatrix<>(zoneIds, 0.0f);
+            readBinaryData(matrix, channel, header);
+            return matrix;
+        }
+    }
+
+    private static <T> BinaryHeader<T> readBinaryHeader(FileChannel channel, IdConverter<T> idConverter) throws IOException {
+        // read the header through a small heap buffer, only the data is memory-mapped (in chunks)
+        BinaryHeaderReader reader = new BinaryHeaderReader(channel);
+        if (!reader.require(12)) {
+            throw new IOException("File is too short to be a binary matrix.");
+        }
+        int magic = reader.getInt();
+        if (magic != BINARY_MAGIC) {
+            throw new IOException("Not a binary matrix file, unexpected magic number " + Integer.toHexString(magic));
+        }
+        int version = reader.getInt();
+        if (version != BINARY_VERSION) {
+            throw new IOException("Unsupported binary matrix version " + version);
+        }
+        int zoneCount = reader.getInt();
+        @SuppressWarnings("unchecked")
+        T[] zoneIds = (T[]) (new Object[zoneCount]);
+        for (int i = 0; i < zoneCount; i++) {
+            if (!reader.require(4)) {
+                throw new IOException("File is too short, the zone ids are incomplete.");
+            }
+            int idLength = reader.getInt();
+            if (idLength < 0 || !reader.require(idLength)) {
+                throw new IOException("File is too short, the zone ids are incomplete.");
+            }
+            byte[] encodedId = new byte[idLength];
+            reader.get(encodedId);
+            zoneIds[i] = idConverter.parse(new String(encodedId, StandardCharsets.UTF_8));
+        }
+        long dataOffset = (reader.position() + 3) & ~3;
+        long expectedSize = dataOffset + 4L * zoneCount * zoneCount;
+        if (channel.size() != expectedSize) {
+            throw new IOException("Unexpected file size: expected " + expectedSize + " bytes, got " + channel.size());
+        }
+        return new BinaryHeader<>(zoneIds, dataOffset);
+    }
+
+    private static <T> void readBinaryData(FloatMatrix<T> matrix, FileChannel channel, BinaryHeader<T> header) throws IOException {
+        int zoneCount = header.zoneIds.length;
+        int[] indices = new int[zoneCount];
+        boolean sameOrder = zoneCount == matrix.getZoneCount();
+        for (int i = 0; i < zoneCount; i++) {
+            Integer index = matrix.id2index.get(header.zoneIds[i]);
+            if (index == null) {
+                throw new IOException("Zone " + header.zoneIds[i] + " is not part of the matrix.");
+            }
+            indices[i] = index;
+            sameOrder = sameOrder && index == i;
+        }
+
+        long rowBytes = 4L * zoneCount;
+        int rowsPerChunk = zoneCount == 0 ? 1 : (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+        float[] values = sameOrder ? null : new float[zoneCount];
+        for (int firstRow = 0; firstRow < zoneCount; firstRow += rowsPerChunk) {
+            int rowCount = Math.min(rowsPerChunk, zoneCount - firstRow);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, header.dataOffset + firstRow * rowBytes, rowCount * rowBytes);
+            FloatBuffer floats = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            for (int r = 0; r < rowCount; r++) {
+                FloatMatrix.Row row = matrix.getRow(indices[firstRow + r]);
+                if (sameOrder) {
+                    row.copyFrom(floats);
+                } else {
+                    floats.get(values);
+                    for (int c = 0; c < zoneCount; c++) {
+                        row.set(indices[c], values[c]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class BinaryHeader<T> {
+        final T[] zoneIds;
+        final long dataOffset;
+
+        BinaryHeader(T[] zoneIds, long dataOffset) {
+            this.zoneIds = zoneIds;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    /**
+     * Reads the header of a binary matrix sequentially through a small heap buffer,
+     * growing the buffer only if a single zone id does not fit into it.
+     */
+    private static class BinaryHeaderReader {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+        private long bufferStart = 0; // file position of the first byte in the buffer
+
+        BinaryHeaderReader(FileChannel channel) {
+            this.channel = channel;
+            this.buffer.limit(0);
+        }
+
+        /**
+         * @return <code>false</code> if the file ends before <code>count</code> more bytes are available.
+         */
+        boolean require(int count) throws IOException {
+            if (this.buffer.remaining() >= count) {
+                return true;
+            }
+            this.bufferStart += this.buffer.position();
+            this.buffer.compact();
+            if (count > this.buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN);
+                this.buffer.flip();
+                larger.put(this.buffer);
+                this.buffer = larger;
+            }
+            while (this.buffer.position() < count) {
+                if (this.channel.read(this.buffer, this.bufferStart + this.buffer.position()) < 0) {
+                    this.buffer.flip();
+                    return false;
+                }
+            }
+            this.buffer.flip();
+            return true;
+        }
+
+        int getInt() {
+            return this.buffer.getInt();
+        }
+
+        void get(byte[] dst) {
+            this.buffer.get(dst);
+        }
+
+        long position() {
+            return this.bufferStart + this.buffer.position();
+        }
+    }
+
     private static <T> T[] getSortedIds(FloatMatrix<T> matrix) {
         // the array-creation is only safe as long as the generated array is only within this class!
         @SuppressWarnings("unchecked")
-        T[] ids = (T[]) (new Object[matrix.id2index.size()]);
-        for (Map.Entry<T, Integer> e : matrix.id2index.entrySet()) {
-            ids[e.getValue()] = e.getKey();
+        T[] ids = (T[]) (new Object[matrix.getZoneCount()]);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = matrix.getZoneId(i);
         }
         return ids;
     }
 
+    /**
+     * Writes the rows of a matrix one after the other. The rows must be written in the order of the zone ids
+     * given when creating the writer, and all rows must be written before closing the writer.
+     */
+    public interface RowWriter extends Closeable {
+        void writeRow(FloatMatrix.Row row) throws IOException;
+    }
+
+    /**
+     * Reads the rows of a matrix one after the other.
+     */
+    public interface RowReader<T> extends Closeable {
+
+        /**
+         * @return the zone ids, in the order of the values of each row.
+         */
+        List<T> getZoneIds();
+
+        /**
+         * Reads the next row.
+         *
+         * @param values filled with the values of the row, in the order of {@link #getZoneIds()}.
+         * @return the id of the origin zone of the row, or <code>null</code> if there are no more rows.
+         */
+        T readRow(float[] values) throws IOException;
+    }
+
+    private static class CSVRowReader<T> implements RowReader<T> {
+        private final BufferedReader reader;
+        private final IdConverter<T> idConverter;
+        private final String[] zoneIds;
+        private final List<T> parsedZoneIds;
+        private final Map<String, Integer> zoneIndices = new HashMap<>();
+        private String firstRowFromZoneId; // set until the first row was returned
+        private float[] firstRowValues;
+        private String[] nextParts; // the next line not yet returned as part of a row
+
+        CSVRowReader(BufferedReader reader, IdConverter<T> idConverter) throws IOException {
+            this.reader = reader;
+            this.idConverter = idConverter;
+            String header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                throw new IOException("Expected header '" + HEADER + "' but found '" + header + "'.");
+            }
+
+            // the destinations of the first row define the zones and the order of the values
+            List<String> toZoneIds = new ArrayList<>();
+            float[] values = new float[16];
+            this.nextParts = readParts();
+            this.firstRowFromZoneId = this.nextParts == null ? null : this.nextParts[0];
+            while (this.nextParts != null && this.nextParts[0].equals(this.firstRowFromZoneId)) {
+                if (toZoneIds.size() == values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+                values[toZoneIds.size()] = Float.parseFloat(this.nextParts[2]);
+                toZoneIds.add(this.nextParts[1]);
+                this.nextParts = readParts();
+            }
+            this.zoneIds = toZoneIds.toArray(new String[0]);
+            this.firstRowValues = Arrays.copyOf(values, this.zoneIds.length);
+            this.parsedZoneIds = new ArrayList<>(this.zoneIds.length);
+            for (int i = 0; i < this.zoneIds.length; i++) {
+                this.zoneIndices.put(this.zoneIds[i], i);
+                this.parsedZoneIds.add(idConverter.parse(this.zoneIds[i]));
+            }
+        }
+
+        @Override
+        public List<T> getZoneIds() {
+            return Collections.unmodifiableList(this.parsedZoneIds);
+        }
+
+        @Override
+        public T readRow(float[] values) throws IOException {
+            if (this.firstRowFromZoneId != null) {
+                String fromZoneId = this.firstRowFromZoneId;
+                System.arraycopy(this.firstRowValues, 0, values, 0, this.zoneIds.length);
+                this.firstRowFromZoneId = null;
+                this.firstRowValues = null;
+                return this.idConverter.parse(fromZoneId);
+            }
+            if (this.nextParts == null) {
+                return null;
+            }
+            String fromZoneId = this.nextParts[0];
+            Arrays.fill(values, 0, this.zoneIds.length, Float.NaN);
+            int expectedIndex = 0;
+            while (this.nextParts != null && this.nextParts[0].equals(fromZoneId)) {
+                String toZoneId = this.nextParts[1];
+                int toIndex;
+                // usually, the destinations are in the same order in every row, so the lookup can be avoided
+                if (expectedIndex < this.zoneIds.length && this.zoneIds[expectedIndex].equals(toZoneId)) {
+                    toIndex = expectedIndex;
+                } else {
+                    Integer index = this.zoneIndices.get(toZoneId);
+                    if (index == null) {
+                        throw new IOException("Zone " + toZoneId + " is not part of the first row.");
+                    }
+                    toIndex = index;
+                }
+                values[toIndex] = Float.parseFloat(this.nextParts[2]);
+                expectedIndex = toIndex + 1;
+                this.nextParts = readParts();
+            }
+            return this.idConverter.parse(fromZoneId);
+        }
+
+        private String[] readParts() throws IOException {
+            String line = this.reader.readLine();
+            return line == null ? null : line.split(SEP);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.reader.close();
+        }
+    }
+
+    private static class BinaryRowReader<T> implements RowReader<T> {
+        private final FileChannel channel;
+        private final List<T> zoneIds;
+        private final int rowBytes;
+        private final ByteBuffer buffer;
+        private int rowIndex = 0;
+
+        BinaryRowReader(FileChannel channel, BinaryHeader<T> header) throws IOException {
+            this.channel = channel;
+            this.zoneIds = Arrays.asList(header.zoneIds);
+            this.rowBytes = 4 * header.zoneIds.length;
+            this.buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_SIZE, this.rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+            this.buffer.flip(); // start empty
+            channel.position(header.dataOffset);
+        }
+
+        @Override
+        public List<T> getZoneIds() {
+            return Collections.unmodifiableList(this.zoneIds);
+        }
+
+        @Override
+        public T readRow(float[] values) throws IOException {
+            if (this.rowIndex == this.zoneIds.size()) {
+                return null;
+            }
+            if (this.buffer.remaining() < this.rowBytes) {
+                this.buffer.compact();
+                while (this.buffer.position() < this.rowBytes) {
+                    if (this.channel.read(this.buffer) < 0) {
+                        throw new IOException("Unexpected end of file.");
+                    }
+                }
+                this.buffer.flip();
+            }
+            this.buffer.asFloatBuffer().get(values, 0, this.zoneIds.size());
+            this.buffer.position(this.buffer.position() + this.rowBytes);
+            return this.zoneIds.get(this.rowIndex++);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    private static class CSVRowWriter implements RowWriter {
+        private final BufferedWriter writer;
+        private final String[] zoneIds;
+        private final int[] fromZoneIndices; // null if all rows are written
+        private final boolean closeWriter;
+        private int rowIndex = 0;
+
+        CSVRowWriter(BufferedWriter writer, Object[] zoneIds, int[] fromZoneIndices, boolean closeWriter) throws IOException {
+            this.writer = writer;
+            this.zoneIds = new String[zoneIds.length];
+            for (int i = 0; i < zoneIds.length; i++) {
+                this.zoneIds[i] = zoneIds[i].toString();
+            }
+            this.fromZoneIndices = fromZoneIndices;
+            this.closeWriter = closeWriter;
+            writer.write(HEADER);
+            writer.write(NL);
+        }
+
+        @Override
+        public void writeRow(FloatMatrix.Row row) throws IOException {
+            String fromZoneId = this.zoneIds[this.fromZoneIndices == null ? this.rowIndex : this.fromZoneIndices[this.rowIndex]];
+            for (int toIndex = 0; toIndex < this.zoneIds.length; toIndex++) {
+                this.writer.write(fromZoneId);
+                this.writer.append(SEP);
+                this.writer.write(this.zoneIds[toIndex]);
+                this.writer.append(SEP);
+                this.writer.write(Float.toString(row.get(toIndex)));
+                this.writer.append(NL);
+            }
+            this.rowIndex++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.writer.flush();
+            if (this.closeWriter) {
+                this.writer.close();
+            }
+        }
+    }
+
+    private static class BinaryRowWriter implements RowWriter {
+        private final FileChannel channel;
+        private final int size;
+        private final ByteBuffer buffer;
+        private final FloatBuffer floatBuffer;
+
+        BinaryRowWriter(FileChannel channel, Object[] zoneIds) throws IOException {
+            this.channel = channel;
+            this.size = zoneIds.length;
+
+            byte[][] encodedIds = new byte[zoneIds.length][];
+            int headerSize = 3 * 4;
+            for (int i = 0; i < zoneIds.length; i++) {
+                encodedIds[i] = zoneIds[i].toString().getBytes(StandardCharsets.UTF_8);
+                headerSize += 4 + encodedIds[i].length;
+            }
+            headerSize = (headerSize + 3) & ~3; // padding
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(BINARY_MAGIC);
+            header.putInt(BINARY_VERSION);
+            header.putInt(zoneIds.length);
+            for (byte[] encodedId : encodedIds) {
+                header.putInt(encodedId.length);
+                header.put(encodedId);
+            }
+            header.position(headerSize);
+            header.flip();
+            writeFully(channel, header);
+
+            this.buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_SIZE, 4 * this.size)).order(ByteOrder.LITTLE_ENDIAN);
+            this.floatBuffer = this.buffer.asFloatBuffer();
+        }
+
+        @Override
+        public void writeRow(FloatMatrix.Row row) throws IOException {
+            if (this.floatBuffer.remaining() < this.size) {
+                flush();
+            }
+            row.copyTo(this.floatBuffer);
+        }
+
+        private void flush() throws IOException {
+            this.buffer.clear();
+            this.buffer.limit(this.floatBuffer.position() * 4);
+            writeFully(this.channel, this.buffer);
+            this.floatBuffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                this.channel.close();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
     @FunctionalInterface
     public interface IdConverter<T> {
         T parse(String id);
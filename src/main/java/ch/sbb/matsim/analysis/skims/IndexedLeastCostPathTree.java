@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.Arrays;
+
+/**
+ * Calculates a least-cost-path tree using Dijkstra's algorithm, like {@link LeastCostPathTree},
+ * but working on an {@link IndexedNetwork}.
+ *
+ * All state is stored in arrays indexed by the node index, which are allocated once and re-used for
+ * each calculation. The pending nodes are kept in an {@link IndexedMinHeap}.
+ * Nodes with the same cost are ordered by their id, so the results (time, cost and distance) are the
+ * same as the ones of {@link LeastCostPathTree}.
+ *
+ * An instance is not thread-safe, each thread requires its own instance. The {@link IndexedNetwork}
+ * can be shared by all of them.
+ *
+ * @author agent
+ */
+public final class IndexedLeastCostPathTree {
+
+    private final static Vehicle VEHICLE = VehicleUtils.getFactory().createVehicle(Id.create("theVehicle", Vehicle.class), VehicleUtils.getDefaultVehicleType());
+    private final static Person PERSON = PopulationUtils.getFactory().createPerson(Id.create("thePerson", Person.class));
+
+    private final IndexedNetwork network;
+    private final TravelTime travelTime;
+    private final TravelDisutility travelDisutility;
+
+    private final double[] costs;
+    private final double[] times;
+    private final double[] distances;
+    private final int[] comingFrom; // the index of the link used to reach a node, -1 for the origin or unreached nodes
+    private final IndexedMinHeap heap;
+    private int originNodeIndex = -1;
+
+    public IndexedLeastCostPathTree(IndexedNetwork network, TravelTime travelTime, TravelDisutility travelDisutility) {
+        this.network = network;
+        this.travelTime = travelTime;
+        this.travelDisutility = travelDisutility;
+        int nodeCount = network.getNodeCount();
+        this.costs = new double[nodeCount];
+        this.times = new double[nodeCount];
+        this.distances = new double[nodeCount];
+        this.comingFrom = new int[nodeCount];
+        this.heap = new IndexedMinHeap(network.getNodeRanks());
+    }
+
+    public void calculate(int originNodeIndex, double departureTime) {
+        this.originNodeIndex = originNodeIndex;
+        Arrays.fill(this.costs, Double.POSITIVE_INFINITY);
+        Arrays.fill(this.times, Double.POSITIVE_INFINITY);
+        Arrays.fill(this.distances, Double.POSITIVE_INFINITY);
+        Arrays.fill(this.comingFrom, -1);
+        this.heap.clear();
+
+        this.costs[originNodeIndex] = 0;
+        this.times[originNodeIndex] = departureTime;
+        this.distances[originNodeIndex] = 0;
+
+        int nodeIndex = originNodeIndex;
+        while (nodeIndex >= 0) {
+            relaxNode(nodeIndex);
+            nodeIndex = this.heap.poll();
+        }
+    }
+
+    private void relaxNode(int nodeIndex) {
+        IndexedNetwork network = this.network;
+        double currTime = this.times[nodeIndex];
+        double currCost = this.costs[nodeIndex];
+        double currDistance = this.distances[nodeIndex];
+        int endLink = network.getFirstOutLink(nodeIndex + 1);
+        for (int linkIndex = network.getFirstOutLink(nodeIndex); linkIndex < endLink; linkIndex++) {
+            Link link = network.getLink(linkIndex);
+            int toNodeIndex = network.getLinkToNode(linkIndex);
+            double visitCost = currCost + this.travelDisutility.getLinkTravelDisutility(link, currTime, PERSON, VEHICLE);
+            if (visitCost < this.costs[toNodeIndex]) {
+                this.costs[toNodeIndex] = visitCost;
+                this.times[toNodeIndex] = currTime + this.travelTime.getLinkTravelTime(link, currTime, PERSON, VEHICLE);
+                this.distances[toNodeIndex] = currDistance + network.getLinkLength(linkIndex);
+                this.comingFrom[toNodeIndex] = linkIndex;
+                this.heap.insertOrDecrease(toNodeIndex, visitCost);
+            }
+        }
+    }
+
+    public int getOriginNodeIndex() {
+        return this.originNodeIndex;
+    }
+
+    /**
+     * @return the arrival time at the node, or <code>Infinity</code> if the node cannot be reached.
+     */
+    public double getTime(int nodeIndex) {
+        return this.times[nodeIndex];
+    }
+
+    public double getCost(int nodeIndex) {
+        return this.costs[nodeIndex];
+    }
+
+    public double getDistance(int nodeIndex) {
+        return this.distances[nodeIndex];
+    }
+
+    /**
+     * @return the index of the link over which the node was reached, or -1 for the origin and nodes that cannot be reached.
+     */
+    public int getComingFromLink(int nodeIndex) {
+        return this.comingFrom[nodeIndex];
+    }
+}
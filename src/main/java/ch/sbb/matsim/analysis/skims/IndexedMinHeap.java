@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int indices in the range <code>[0, capacity)</code>, each with a double key.
+ * Supports decrease-key; entries with the same key are ordered by their index, or by their rank if
+ * ranks are given, which makes the order of polled entries deterministic.
+ *
+ * @author agent
+ */
+final class IndexedMinHeap {
+
+    private final double[] keys;
+    private final int[] heap;
+    private final int[] positions; // the position of each index in the heap, -1 if it is not in the heap
+    private final int[] ranks; // breaks ties between entries with the same key, null to use the index
+    private int size = 0;
+
+    IndexedMinHeap(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param ranks the rank of each index, used to order entries with the same key. Lower ranks are polled first.
+     */
+    IndexedMinHeap(int[] ranks) {
+        this(ranks.length, ranks);
+    }
+
+    private IndexedMinHeap(int capacity, int[] ranks) {
+        this.keys = new double[capacity];
+        this.heap = new int[capacity];
+        this.positions = new int[capacity];
+        this.ranks = ranks;
+        Arrays.fill(this.positions, -1);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    boolean contains(int index) {
+        return this.positions[index] >= 0;
+    }
+
+    /**
+     * Inserts the index with the given key, or lowers its key if it is already contained with a higher key.
+     *
+     * @return <code>true</code> if the heap was modified.
+     */
+    boolean insertOrDecrease(int index, double key) {
+        int position = this.positions[index];
+        if (position < 0) {
+            position = this.size;
+            this.size++;
+            this.heap[position] = index;
+            this.positions[index] = position;
+        } else if (key >= this.keys[index]) {
+            return false;
+        }
+        this.keys[index] = key;
+        siftUp(position);
+        return true;
+    }
+
+    double peekKey() {
+        return this.keys[this.heap[0]];
+    }
+
+    /**
+     * @return the index with the lowest key, or -1 if the heap is empty.
+     */
+    int poll() {
+        if (this.size == 0) {
+            return -1;
+        }
+        int first = this.heap[0];
+        this.positions[first] = -1;
+        this.size--;
+        if (this.size > 0) {
+            int last = this.heap[this.size];
+            this.heap[0] = last;
+            this.positions[last] = 0;
+            siftDown(0);
+        }
+        return first;
+    }
+
+    void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.positions[this.heap[i]] = -1;
+        }
+        this.size = 0;
+    }
+
+    private boolean isBefore(int index1, int index2) {
+        double k1 = this.keys[index1];
+        double k2 = this.keys[index2];
+        if (k1 != k2) {
+            return k1 < k2;
+        }
+        return this.ranks == null ? index1 < index2 : this.ranks[index1] < this.ranks[index2];
+    }
+
+    private void siftUp(int position) {
+        int index = this.heap[position];
+        while (position > 0) {
+            int parentPosition = (position - 1) >> 1;
+            int parent = this.heap[parentPosition];
+            if (!isBefore(index, parent)) {
+                break;
+            }
+            this.heap[position] = parent;
+            this.positions[parent] = position;
+            position = parentPosition;
+        }
+        this.heap[position] = index;
+        this.positions[index] = position;
+    }
+
+    private void siftDown(int position) {
+        int index = this.heap[position];
+        int half = this.size >> 1;
+        while (position < half) {
+            int childPosition = 2 * position + 1;
+            int child = this.heap[childPosition];
+            int rightPosition = childPosition + 1;
+            if (rightPosition < this.size && isBefore(this.heap[rightPosition], child)) {
+                childPosition = rightPosition;
+                child = this.heap[childPosition];
+            }
+            if (!isBefore(child, index)) {
+                break;
+            }
+            this.heap[position] = child;
+            this.positions[child] = position;
+            position = childPosition;
+        }
+        this.heap[position] = index;
+        this.positions[index] = position;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-only, index-based representation of a network's topology, used by {@link IndexedLeastCostPathTree}.
+ *
+ * Nodes are identified by an index from <code>0</code> to <code>getNodeCount() - 1</code>. The out-links
+ * of all nodes are stored in a compressed sparse row layout: the out-links of node <code>n</code> have the
+ * link indices <code>getFirstOutLink(n)</code> (inclusive) to <code>getFirstOutLink(n + 1)</code> (exclusive).
+ * Once created, an instance can be shared by multiple threads.
+ *
+ * @author agent
+ */
+public final class IndexedNetwork {
+
+    private final Node[] nodes;
+    private final Map<Id<Node>, Integer> nodeIndices;
+    private final int[] nodeRanks;
+    private final int[] firstOutLink;
+    private final Link[] links;
+    private final int[] linkToNodes;
+    private final double[] linkLengths;
+
+    public IndexedNetwork(Network network) {
+        int nodeCount = network.getNodes().size();
+        this.nodes = network.getNodes().values().toArray(new Node[0]);
+        this.nodeIndices = new HashMap<>((int) (nodeCount / 0.75) + 1);
+        for (int i = 0; i < nodeCount; i++) {
+            this.nodeIndices.put(this.nodes[i].getId(), i);
+        }
+
+        // the rank of the node ids is used to break ties between nodes with the same cost, the same way LeastCostPathTree does
+        Integer[] sortedNodes = new Integer[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            sortedNodes[i] = i;
+        }
+        Arrays.sort(sortedNodes, Comparator.comparing(i -> this.nodes[i].getId()));
+        this.nodeRanks = new int[nodeCount];
+        for (int rank = 0; rank < nodeCount; rank++) {
+            this.nodeRanks[sortedNodes[rank]] = rank;
+        }
+
+        int linkCount = 0;
+        for (Node node : this.nodes) {
+            linkCount += node.getOutLinks().size();
+        }
+        this.firstOutLink = new int[nodeCount + 1];
+        this.links = new Link[linkCount];
+        this.linkToNodes = new int[linkCount];
+        this.linkLengths = new double[linkCount];
+        int linkIndex = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            this.firstOutLink[i] = linkIndex;
+            for (Link link : this.nodes[i].getOutLinks().values()) {
+                this.links[linkIndex] = link;
+                this.linkToNodes[linkIndex] = this.nodeIndices.get(link.getToNode().getId());
+                this.linkLengths[linkIndex] = link.getLength();
+                linkIndex++;
+            }
+        }
+        this.firstOutLink[nodeCount] = linkIndex;
+    }
+
+    public int getNodeCount() {
+        return this.nodes.length;
+    }
+
+    public int getLinkCount() {
+        return this.links.length;
+    }
+
+    /**
+     * @return the index of the node, or -1 if the node is not part of this network.
+     */
+    public int getNodeIndex(Id<Node> nodeId) {
+        Integer index = this.nodeIndices.get(nodeId);
+        return index == null ? -1 : index;
+    }
+
+    public Node getNode(int nodeIndex) {
+        return this.nodes[nodeIndex];
+    }
+
+    /**
+     * @return the rank of each node when sorted by id, indexed by the node index. The array is shared and must not be modified.
+     */
+    int[] getNodeRanks() {
+        return this.nodeRanks;
+    }
+
+    int getFirstOutLink(int nodeIndex) {
+        return this.firstOutLink[nodeIndex];
+    }
+
+    public Link getLink(int linkIndex) {
+        return this.links[linkIndex];
+    }
+
+    int getLinkToNode(int linkIndex) {
+        return this.linkToNodes[linkIndex];
+    }
+
+    double getLinkLength(int linkIndex) {
+        return this.linkLengths[linkIndex];
+    }
+}
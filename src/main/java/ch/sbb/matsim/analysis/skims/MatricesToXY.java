@@ -14,8 +14,10 @@ import org.opengis.feature.simple.SimpleFeature;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -24,8 +26,9 @@ import java.util.Map;
  * Given the from-/to-coordinates for each relation, the data can be easily
  * visualized with Via's OD-Aggregator.
  *
- * Please note that this process might require substantial memory, as all the
- * data first needs to be loaded into memory before it is written out again.
+ * The matrices can be in the CSV or the binary format. All matrices are read on
+ * a single thread, with their readers advancing row by row in lockstep, so only
+ * one row per matrix needs to be kept in memory.
  *
  * @author mrieser
  */
@@ -33,6 +36,24 @@ public class MatricesToXY {
 
     private final static Logger log = Logger.getLogger(MatricesToXY.class);
 
+    private final static String[] MATRIX_FILENAMES = {
+            CalculateSkimMatrices.CAR_TRAVELTIMES_FILENAME,
+            CalculateSkimMatrices.CAR_DISTANCES_FILENAME,
+            CalculateSkimMatrices.PT_ADAPTIONTIMES_FILENAME,
+            CalculateSkimMatrices.PT_FREQUENCIES_FILENAME,
+            CalculateSkimMatrices.PT_TRAVELTIMES_FILENAME,
+            CalculateSkimMatrices.PT_ACCESSTIMES_FILENAME,
+            CalculateSkimMatrices.PT_EGRESSTIMES_FILENAME,
+            CalculateSkimMatrices.PT_TRANSFERCOUNTS_FILENAME,
+            CalculateSkimMatrices.PT_TRAINSHARE_BYDISTANCE_FILENAME,
+            CalculateSkimMatrices.PT_TRAINSHARE_BYTIME_FILENAME,
+            CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME
+    };
+    private final static String[] COLUMN_NAMES = {
+            "CAR_TRAVELTIME", "CAR_DISTANCE", "PT_ADAPTIONTIME", "PT_FREQUENCY", "PT_TRAVELTIME", "PT_ACCESSTIME",
+            "PT_EGRESSTIME", "PT_TRANSFERCOUNT", "PT_TRAINSHARE_DIST", "PT_TRAINSHARE_TIME", "BEELINE_DISTANCE"
+    };
+
     public static void main(String[] args) throws IOException {
         String zonesShapeFilename = args[0]; // path to a shape-file, e.g. /path/to/my-zones.shp
         String zonesIdAttributeName = args[1]; // name of the zone attribute to be used as identifier, e.g. "ZONE_ID"
@@ -66,94 +87,120 @@ public class MatricesToXY {
             }
         }
 
-        log.info("loading car travel times");
-        FloatMatrix<String> carTravelTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(carTravelTimes, new File(matricesDirectory, CalculateSkimMatrices.CAR_TRAVELTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading car distances");
-        FloatMatrix<String> carDistances = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(carDistances, new File(matricesDirectory, CalculateSkimMatrices.CAR_DISTANCES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt adaption times");
-        FloatMatrix<String> ptAdaptionTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptAdaptionTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_ADAPTIONTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt frequencies");
-        FloatMatrix<String> ptFrequencies = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptFrequencies, new File(matricesDirectory, CalculateSkimMatrices.PT_FREQUENCIES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt travel times");
-        FloatMatrix<String> ptTravelTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptTravelTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_TRAVELTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt access times");
-        FloatMatrix<String> ptAccessTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptAccessTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_ACCESSTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt egress times");
-        FloatMatrix<String> ptEgressTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptEgressTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_EGRESSTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt transfer counts");
-        FloatMatrix<String> ptTransferCounts = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptTransferCounts, new File(matricesDirectory, CalculateSkimMatrices.PT_TRANSFERCOUNTS_FILENAME).getAbsolutePath(), id -> id);
+        String[] matrixFilenames = new String[MATRIX_FILENAMES.length];
+        for (int i = 0; i < MATRIX_FILENAMES.length; i++) {
+            File csvFile = new File(matricesDirectory, MATRIX_FILENAMES[i]);
+            File binaryFile = new File(matricesDirectory, CalculateSkimMatrices.getBinaryFilename(MATRIX_FILENAMES[i]));
+            matrixFilenames[i] = (csvFile.exists() || !binaryFile.exists()) ? csvFile.getAbsolutePath() : binaryFile.getAbsolutePath();
+        }
 
-        log.info("loading rail shares by distance");
-        FloatMatrix<String> ptRailShareDistances = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptRailShareDistances, new File(matricesDirectory, CalculateSkimMatrices.PT_TRAINSHARE_BYDISTANCE_FILENAME).getAbsolutePath(), id -> id);
+        log.info("Start writing xy csv to " + xyCsvOutputFilename);
+        writeXY(matrixFilenames, COLUMN_NAMES, coords, xyCsvOutputFilename);
+        log.info("done.");
+    }
 
-        log.info("loading rail shares by time");
-        FloatMatrix<String> ptRailShareTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptRailShareTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_TRAINSHARE_BYTIME_FILENAME).getAbsolutePath(), id -> id);
+    /**
+     * Reads all matrices in lockstep, row by row, and writes the combined records. All matrices must contain
+     * the rows in the same order, which is the case for all matrices written by {@link CalculateSkimMatrices}.
+     * The destinations may be in a different order in each matrix. Relations from or to zones without a
+     * coordinate are skipped.
+     */
+    static void writeXY(String[] matrixFilenames, String[] columnNames, Map<String, Point> coords, String xyCsvOutputFilename) throws IOException {
+        int matrixCount = matrixFilenames.length;
+        List<FloatMatrixIO.RowReader<String>> readers = new ArrayList<>();
+        try (BufferedWriter writer = IOUtils.getBufferedWriter(xyCsvOutputFilename)) {
+            for (String filename : matrixFilenames) {
+                readers.add(FloatMatrixIO.openRowReader(filename, id -> id));
+            }
 
-        log.info("loading beeline distances");
-        FloatMatrix<String> beelineDistances = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(beelineDistances, new File(matricesDirectory, CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME).getAbsolutePath(), id -> id);
+            // map the destinations of each matrix to the destinations of the first matrix
+            List<String> zoneIds = readers.get(0).getZoneIds();
+            int zoneCount = zoneIds.size();
+            int[][] columnIndices = new int[matrixCount][];
+            for (int m = 0; m < matrixCount; m++) {
+                List<String> matrixZoneIds = readers.get(m).getZoneIds();
+                if (!matrixZoneIds.equals(zoneIds)) {
+                    Map<String, Integer> zoneIndices = new HashMap<>();
+                    for (int i = 0; i < matrixZoneIds.size(); i++) {
+                        zoneIndices.put(matrixZoneIds.get(i), i);
+                    }
+                    if (matrixZoneIds.size() != zoneCount || !zoneIndices.keySet().containsAll(zoneIds)) {
+                        throw new IOException("The matrix " + matrixFilenames[m] + " has other zones than " + matrixFilenames[0]);
+                    }
+                    columnIndices[m] = new int[zoneCount];
+                    for (int i = 0; i < zoneCount; i++) {
+                        columnIndices[m][i] = zoneIndices.get(zoneIds.get(i));
+                    }
+                }
+            }
 
-        log.info("Start writing xy csv to " + xyCsvOutputFilename);
-        try (BufferedWriter writer = IOUtils.getBufferedWriter(xyCsvOutputFilename)) {
-            writer.write("FROM,FROM_X,FROM_Y,TO,TO_X,TO_Y,CAR_TRAVELTIME,CAR_DISTANCE,PT_ADAPTIONTIME,PT_FREQUENCY,PT_TRAVELTIME,PT_ACCESSTIME,PT_EGRESSTIME,PT_TRANSFERCOUNT,PT_TRAINSHARE_DIST,PT_TRAINSHARE_TIME,BEELINE_DISTANCE\n");
-
-            for (Map.Entry<String, Point> fromE : coords.entrySet()) {
-                String fromId = fromE.getKey();
-                Point fromPoint = fromE.getValue();
-                for (Map.Entry<String, Point> toE : coords.entrySet()) {
-                    String toId = toE.getKey();
-                    Point toPoint = toE.getValue();
-
-                    float carTravelTime = carTravelTimes.get(fromId, toId);
-                    float carDistance = carDistances.get(fromId, toId);
-                    float ptAdaptionTime = ptAdaptionTimes.get(fromId, toId);
-                    float ptFrequency = ptFrequencies.get(fromId, toId);
-                    float ptTravelTime = ptTravelTimes.get(fromId, toId);
-                    float ptAccessTime = ptAccessTimes.get(fromId, toId);
-                    float ptEgressTime = ptEgressTimes.get(fromId, toId);
-                    float ptTransferCount = ptTransferCounts.get(fromId, toId);
-                    float ptRailShareDist = ptRailShareDistances.get(fromId, toId);
-                    float ptRailShareTime = ptRailShareTimes.get(fromId, toId);
-                    float beelineDistance = beelineDistances.get(fromId, toId);
+            writer.write("FROM,FROM_X,FROM_Y,TO,TO_X,TO_Y");
+            for (String columnName : columnNames) {
+                writer.append(',');
+                writer.write(columnName);
+            }
+            writer.append('\n');
+
+            String[] toX = new String[zoneCount];
+            String[] toY = new String[zoneCount];
+            for (int i = 0; i < zoneCount; i++) {
+                Point pt = coords.get(zoneIds.get(i));
+                if (pt != null) {
+                    toX[i] = Integer.toString((int) pt.getX());
+                    toY[i] = Integer.toString((int) pt.getY());
+                }
+            }
 
+            float[][] rows = new float[matrixCount][zoneCount];
+            String fromId;
+            while ((fromId = readers.get(0).readRow(rows[0])) != null) {
+                for (int m = 1; m < matrixCount; m++) {
+                    String matrixFromId = readers.get(m).readRow(rows[m]);
+                    if (!fromId.equals(matrixFromId)) {
+                        throw new IOException("The matrix " + matrixFilenames[m] + " contains row " + matrixFromId + " instead of " + fromId);
+                    }
+                }
+                Point fromPoint = coords.get(fromId);
+                if (fromPoint == null) {
+                    continue;
+                }
+                String fromX = Integer.toString((int) fromPoint.getX());
+                String fromY = Integer.toString((int) fromPoint.getY());
+                for (int toIndex = 0; toIndex < zoneCount; toIndex++) {
+                    if (toX[toIndex] == null) {
+                        continue;
+                    }
                     writer.write(fromId); writer.append(',');
-                    writer.write(Integer.toString((int) fromPoint.getX())); writer.append(',');
-                    writer.write(Integer.toString((int) fromPoint.getY())); writer.append(',');
-                    writer.write(toId); writer.append(',');
-                    writer.write(Integer.toString((int) toPoint.getX())); writer.append(',');
-                    writer.write(Integer.toString((int) toPoint.getY())); writer.append(',');
-                    writer.write(Float.toString(carTravelTime)); writer.append(',');
-                    writer.write(Float.toString(carDistance)); writer.append(',');
-                    writer.write(Float.toString(ptAdaptionTime)); writer.append(',');
-                    writer.write(Float.toString(ptFrequency)); writer.append(',');
-                    writer.write(Float.toString(ptTravelTime)); writer.append(',');
-                    writer.write(Float.toString(ptAccessTime)); writer.append(',');
-                    writer.write(Float.toString(ptEgressTime)); writer.append(',');
-                    writer.write(Float.toString(ptTransferCount)); writer.append(',');
-                    writer.write(Float.toString(ptRailShareDist)); writer.append(',');
-                    writer.write(Float.toString(ptRailShareTime)); writer.append(',');
-                    writer.write(Float.toString(beelineDistance)); writer.append('\n');
+                    writer.write(fromX); writer.append(',');
+                    writer.write(fromY); writer.append(',');
+                    writer.write(zoneIds.get(toIndex)); writer.append(',');
+                    writer.write(toX[toIndex]); writer.append(',');
+                    writer.write(toY[toIndex]);
+                    for (int m = 0; m < matrixCount; m++) {
+                        int column = columnIndices[m] == null ? toIndex : columnIndices[m][toIndex];
+                        writer.append(',');
+                        writer.write(Float.toString(rows[m][column]));
+                    }
+                    writer.append('\n');
                 }
             }
+            for (int m = 1; m < matrixCount; m++) {
+                if (readers.get(m).readRow(rows[m]) != null) {
+                    throw new IOException("The matrix " + matrixFilenames[m] + " contains more rows than " + matrixFilenames[0]);
+                }
+            }
+        } finally {
+            IOException exception = null;
+            for (FloatMatrixIO.RowReader<String> reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
         }
-        log.info("done.");
     }
-
 }
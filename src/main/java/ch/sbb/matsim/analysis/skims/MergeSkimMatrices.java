@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Combines the partial matrices written by several parts of a partitioned skim calculation
+ * (see {@link CalculateSkimMatrices#setOriginPartition(int, int)}) into the final matrices.
+ *
+ * All post-processing (averaging over the sampling points and departure times, calculating the
+ * frequencies from the adaption times) only depends on the values of a single origin zone, so it
+ * is already done by each part for its rows. Merging thus only needs to collect the rows, but
+ * checks that each origin zone is contained exactly once in the partial files.
+ *
+ * Usage: <code>MergeSkimMatrices matricesDirectory numberOfParts [binary]</code>
+ *
+ * @author agent
+ */
+public final class MergeSkimMatrices {
+
+    private static final Logger log = Logger.getLogger(MergeSkimMatrices.class);
+
+    private final static String[] MATRIX_FILENAMES = {
+            CalculateSkimMatrices.CAR_TRAVELTIMES_FILENAME,
+            CalculateSkimMatrices.CAR_DISTANCES_FILENAME,
+            CalculateSkimMatrices.PT_ADAPTIONTIMES_FILENAME,
+            CalculateSkimMatrices.PT_FREQUENCIES_FILENAME,
+            CalculateSkimMatrices.PT_TRAVELTIMES_FILENAME,
+            CalculateSkimMatrices.PT_ACCESSTIMES_FILENAME,
+            CalculateSkimMatrices.PT_EGRESSTIMES_FILENAME,
+            CalculateSkimMatrices.PT_TRANSFERCOUNTS_FILENAME,
+            CalculateSkimMatrices.PT_TRAINSHARE_BYTIME_FILENAME,
+            CalculateSkimMatrices.PT_TRAINSHARE_BYDISTANCE_FILENAME,
+            CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME
+    };
+
+    private MergeSkimMatrices() {
+    }
+
+    /**
+     * Merges the partial files of all matrices found in the given directory.
+     * Matrices for which no partial files exist are skipped.
+     */
+    public static void mergeAll(String matricesDirectory, int partCount, boolean writeBinary) throws IOException {
+        for (String filename : MATRIX_FILENAMES) {
+            List<String> partFilenames = new ArrayList<>(partCount);
+            int existingCount = 0;
+            for (int part = 0; part < partCount; part++) {
+                String partFilename = matricesDirectory + "/" + CalculateSkimMatrices.getPartialFilename(filename, part, partCount);
+                partFilenames.add(partFilename);
+                if (new File(partFilename).exists()) {
+                    existingCount++;
+                }
+            }
+            if (existingCount == 0) {
+                continue;
+            }
+            if (existingCount < partCount) {
+                throw new IOException("Only " + existingCount + " of " + partCount + " parts found for " + filename);
+            }
+            log.info("merge " + partCount + " parts of " + filename);
+            FloatMatrix<String> matrix = mergePartialMatrices(partFilenames);
+            if (writeBinary) {
+                FloatMatrixIO.writeAsBinary(matrix, matricesDirectory + "/" + CalculateSkimMatrices.getBinaryFilename(filename));
+            } else {
+                FloatMatrixIO.writeAsCSV(matrix, matricesDirectory + "/" + filename);
+            }
+        }
+    }
+
+    /**
+     * Reads the given partial files into one matrix. The zones of the matrix are in the same order
+     * as in the partial files (and as in the matrices written by an unpartitioned calculation).
+     *
+     * @throws IOException if an origin zone is missing or contained in more than one partial file.
+     */
+    public static FloatMatrix<String> mergePartialMatrices(List<String> partFilenames) throws IOException {
+        Set<String> zoneIds = null;
+        for (String filename : partFilenames) {
+            zoneIds = readDestinationZones(filename);
+            if (zoneIds != null) {
+                break;
+            }
+        }
+        if (zoneIds == null) {
+            throw new IOException("The partial files do not contain any data.");
+        }
+
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, Float.NaN);
+        BitSet foundOrigins = new BitSet(matrix.getZoneCount());
+        for (String filename : partFilenames) {
+            readPartialMatrix(matrix, filename, foundOrigins);
+        }
+        if (foundOrigins.cardinality() != matrix.getZoneCount()) {
+            int missingZoneIndex = foundOrigins.nextClearBit(0);
+            throw new IOException((matrix.getZoneCount() - foundOrigins.cardinality()) + " origin zones are missing in the partial files, e.g. " + matrix.getZoneId(missingZoneIndex));
+        }
+        return matrix;
+    }
+
+    /**
+     * @return the destination zones of the first row in the file, or <code>null</code> if the file contains no rows.
+     */
+    private static Set<String> readDestinationZones(String filename) throws IOException {
+        try (BufferedReader reader = IOUtils.getBufferedReader(filename)) {
+            reader.readLine(); // header
+            Set<String> zoneIds = new LinkedHashSet<>();
+            String firstFromZoneId = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";");
+                if (firstFromZoneId == null) {
+                    firstFromZoneId = parts[0];
+                } else if (!firstFromZoneId.equals(parts[0])) {
+                    break;
+                }
+                zoneIds.add(parts[1]);
+            }
+            return zoneIds.isEmpty() ? null : zoneIds;
+        }
+    }
+
+    private static void readPartialMatrix(FloatMatrix<String> matrix, String filename, BitSet foundOrigins) throws IOException {
+        try (BufferedReader reader = IOUtils.getBufferedReader(filename)) {
+            reader.readLine(); // header
+            String currentFromZoneId = null;
+            FloatMatrix.Row row = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";");
+                if (!parts[0].equals(currentFromZoneId)) {
+                    currentFromZoneId = parts[0];
+                    int fromZoneIndex = getZoneIndex(matrix, currentFromZoneId, filename);
+                    if (foundOrigins.get(fromZoneIndex)) {
+                        throw new IOException("Origin zone " + currentFromZoneId + " is contained more than once, found again in " + filename);
+                    }
+                    foundOrigins.set(fromZoneIndex);
+                    row = matrix.getRow(fromZoneIndex);
+                }
+                row.set(getZoneIndex(matrix, parts[1], filename), Float.parseFloat(parts[2]));
+            }
+        }
+    }
+
+    private static int getZoneIndex(FloatMatrix<String> matrix, String zoneId, String filename) throws IOException {
+        Integer zoneIndex = matrix.id2index.get(zoneId);
+        if (zoneIndex == null) {
+            throw new IOException("Unknown zone " + zoneId + " in " + filename);
+        }
+        return zoneIndex;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String matricesDirectory = args[0];
+        int partCount = Integer.parseInt(args[1]);
+        boolean writeBinary = args.length > 2 && Boolean.parseBoolean(args[2]);
+        mergeAll(matricesDirectory, partCount, writeBinary);
+    }
+}
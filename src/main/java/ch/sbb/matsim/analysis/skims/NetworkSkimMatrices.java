@@ -14,10 +14,13 @@ import org.matsim.core.utils.misc.Counter;
 import org.matsim.core.utils.misc.Time;
 import org.opengis.feature.simple.SimpleFeature;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntPredicate;
 
 /**
  * Calculates zone-to-zone matrices containing a number of performance indicators related to modes routed on a network.
@@ -40,36 +43,147 @@ public final class NetworkSkimMatrices {
     }
 
     public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads) {
-        Map<T, Node[]> nodesPerZone = new HashMap<>();
-        for (Map.Entry<T, Coord[]> e : coordsPerZone.entrySet()) {
-            T zoneId = e.getKey();
-            Coord[] coords = e.getValue();
-            Node[] nodes = new Node[coords.length];
-            nodesPerZone.put(zoneId, nodes);
-            for (int i = 0; i < coords.length; i++) {
-                Coord coord = coords[i];
-                Node node = NetworkUtils.getNearestLink(xy2lNetwork, coord).getToNode();
-                nodes[i] = node;
-            }
-        }
+        return calculateSkimMatrices(xy2lNetwork, routingNetwork, zones, coordsPerZone, departureTime, travelTime, travelDisutility, numberOfThreads, fromZoneIndex -> true);
+    }
+
+    /**
+     * Calculates only the rows of the origin zones accepted by <code>originFilter</code>, all other rows remain 0.
+     *
+     * @param originFilter decides, based on the zone index, which origin zones to calculate
+     */
+    public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads, IntPredicate originFilter) {
+        return calculateSkimMatrices(xy2lNetwork, routingNetwork, zones, coordsPerZone, new double[] { departureTime }, travelTime, travelDisutility, numberOfThreads, originFilter);
+    }
 
+    /**
+     * Calculates the average indicators over multiple departure times in one pass: the sampling points are assigned to
+     * nodes only once, and each worker calculates the trees for all departure times per origin node, adding the results
+     * directly to the same matrices. The result is the same as averaging the matrices calculated for each departure time.
+     *
+     * @param originFilter decides, based on the zone index, which origin zones to calculate
+     */
+    public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double[] departureTimes, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads, IntPredicate originFilter) {
         // prepare calculation
         NetworkIndicators<T> networkIndicators = new NetworkIndicators<>(zones.keySet());
 
-        int numberOfPointsPerZone = coordsPerZone.values().iterator().next().length;
-        float avgFactor = (float) (1.0 / numberOfPointsPerZone / numberOfPointsPerZone);
+        IndexedNetwork indexedNetwork = new IndexedNetwork(routingNetwork);
+        int[][] nodesPerZone = findNodesPerZone(xy2lNetwork, indexedNetwork, coordsPerZone, networkIndicators.travelTimeMatrix);
 
         // do calculation
-        ConcurrentLinkedQueue<T> originZones = new ConcurrentLinkedQueue<>(zones.keySet());
+        String timesLabel = Time.writeTime(departureTimes[0]) + (departureTimes.length > 1 ? "+" + (departureTimes.length - 1) : "");
+        ConcurrentLinkedQueue<Integer> originZones = getOriginZones(nodesPerZone.length, originFilter);
+        Counter counter = new Counter("CAR-TravelTimeMatrix-" + timesLabel + " zone ", " / " + originZones.size());
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            RowWorker<T> worker = new RowWorker<>(originZones, indexedNetwork, nodesPerZone, networkIndicators, departureTimes, travelTime, travelDisutility, counter);
+            threads[i] = new Thread(worker, "CAR-TravelTimeMatrix-" + timesLabel + "-" + i);
+            threads[i].start();
+        }
+        joinAll(threads);
+
+        scaleByNumberOfPoints(networkIndicators, coordsPerZone);
+        if (departureTimes.length > 1) {
+            networkIndicators.travelTimeMatrix.multiply((float) (1.0 / departureTimes.length));
+            networkIndicators.distanceMatrix.multiply((float) (1.0 / departureTimes.length));
+        }
+        return networkIndicators;
+    }
+
+    /**
+     * Calculates the same indicators as {@link #calculateSkimMatrices(Network, Network, Map, Map, double, TravelTime, TravelDisutility, int, IntPredicate)},
+     * but using a {@link ContractionHierarchy} of the routing network and a many-to-many query between all sampling points.
+     *
+     * The link travel times and costs are evaluated once at <code>departureTime</code> and then assumed to be static, i.e. they
+     * do not change while driving along a route. With free speed travel times, this results in the same travel times and distances
+     * as the regular calculation, except for routes with exactly the same cost where another one of these routes might be chosen.
+     * With time-dependent travel times, the results are an approximation, good enough for short time slices.
+     *
+     * @param hierarchyFile if not <code>null</code>, the hierarchy is loaded from this file if it was built for the same network and
+     *                      link travel times and costs; otherwise it is built and stored in this file.
+     */
+    public static <T> NetworkIndicators<T> calculateSkimMatricesWithContractionHierarchy(Network xy2lNetwork, Network routingNetwork, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads, IntPredicate originFilter, File hierarchyFile) throws IOException {
+        // prepare calculation
+        NetworkIndicators<T> networkIndicators = new NetworkIndicators<>(zones.keySet());
+
+        IndexedNetwork indexedNetwork = new IndexedNetwork(routingNetwork);
+        int[][] nodesPerZone = findNodesPerZone(xy2lNetwork, indexedNetwork, coordsPerZone, networkIndicators.travelTimeMatrix);
 
-        Counter counter = new Counter("CAR-TravelTimeMatrix-" + Time.writeTime(departureTime) + " zone ", " / " + zones.size());
+        ContractionHierarchy hierarchy = hierarchyFile == null
+                ? ContractionHierarchy.create(indexedNetwork, travelTime, travelDisutility, departureTime)
+                : ContractionHierarchy.loadOrCreate(hierarchyFile, indexedNetwork, travelTime, travelDisutility, departureTime);
+
+        // every node is only a target once, even if it is used by multiple sampling points
+        int[] targetOfNode = new int[indexedNetwork.getNodeCount()];
+        Arrays.fill(targetOfNode, -1);
+        int[] targetNodes = new int[indexedNetwork.getNodeCount()];
+        int targetCount = 0;
+        int[][] targetsPerZone = new int[nodesPerZone.length][];
+        for (int zoneIndex = 0; zoneIndex < nodesPerZone.length; zoneIndex++) {
+            int[] nodes = nodesPerZone[zoneIndex];
+            if (nodes != null) {
+                int[] targets = new int[nodes.length];
+                for (int i = 0; i < nodes.length; i++) {
+                    int node = nodes[i];
+                    if (targetOfNode[node] < 0) {
+                        targetOfNode[node] = targetCount;
+                        targetNodes[targetCount] = node;
+                        targetCount++;
+                    }
+                    targets[i] = targetOfNode[node];
+                }
+                targetsPerZone[zoneIndex] = targets;
+            }
+        }
+        ContractionHierarchyQuery query = new ContractionHierarchyQuery(hierarchy, Arrays.copyOf(targetNodes, targetCount), numberOfThreads);
+
+        // do calculation
+        ConcurrentLinkedQueue<Integer> originZones = getOriginZones(nodesPerZone.length, originFilter);
+        Counter counter = new Counter("CAR-TravelTimeMatrix-" + Time.writeTime(departureTime) + " zone ", " / " + originZones.size());
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            RowWorker<T> worker = new RowWorker<>(originZones, zones.keySet(), routingNetwork, nodesPerZone, networkIndicators, departureTime, travelTime, travelDisutility, counter);
+            HierarchyRowWorker<T> worker = new HierarchyRowWorker<>(originZones, query, nodesPerZone, targetsPerZone, networkIndicators, counter);
             threads[i] = new Thread(worker, "CAR-TravelTimeMatrix-" + Time.writeTime(departureTime) + "-" + i);
             threads[i].start();
         }
+        joinAll(threads);
+
+        scaleByNumberOfPoints(networkIndicators, coordsPerZone);
+        return networkIndicators;
+    }
+
+    private static <T> int[][] findNodesPerZone(Network xy2lNetwork, IndexedNetwork indexedNetwork, Map<T, Coord[]> coordsPerZone, FloatMatrix<T> matrix) {
+        int zoneCount = matrix.getZoneCount();
+        int[][] nodesPerZone = new int[zoneCount][];
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            Coord[] coords = coordsPerZone.get(matrix.getZoneId(zoneIndex));
+            if (coords != null) {
+                int[] nodes = new int[coords.length];
+                nodesPerZone[zoneIndex] = nodes;
+                for (int i = 0; i < coords.length; i++) {
+                    Coord coord = coords[i];
+                    Node node = NetworkUtils.getNearestLink(xy2lNetwork, coord).getToNode();
+                    int nodeIndex = indexedNetwork.getNodeIndex(node.getId());
+                    if (nodeIndex < 0) {
+                        throw new IllegalArgumentException("Node " + node.getId() + " is not part of the routing network.");
+                    }
+                    nodes[i] = nodeIndex;
+                }
+            }
+        }
+        return nodesPerZone;
+    }
+
+    private static ConcurrentLinkedQueue<Integer> getOriginZones(int zoneCount, IntPredicate originFilter) {
+        ConcurrentLinkedQueue<Integer> originZones = new ConcurrentLinkedQueue<>();
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            if (originFilter.test(zoneIndex)) {
+                originZones.add(zoneIndex);
+            }
+        }
+        return originZones;
+    }
 
+    private static void joinAll(Thread[] threads) {
         // wait until all threads have finished
         for (Thread thread : threads) {
             try {
@@ -78,73 +192,130 @@ public final class NetworkSkimMatrices {
                 e.printStackTrace();
             }
         }
+    }
 
+    private static <T> void scaleByNumberOfPoints(NetworkIndicators<T> networkIndicators, Map<T, Coord[]> coordsPerZone) {
+        int numberOfPointsPerZone = coordsPerZone.values().iterator().next().length;
+        float avgFactor = (float) (1.0 / numberOfPointsPerZone / numberOfPointsPerZone);
         networkIndicators.travelTimeMatrix.multiply(avgFactor);
         networkIndicators.distanceMatrix.multiply(avgFactor);
-
-        return networkIndicators;
     }
 
     private static class RowWorker<T> implements Runnable {
-        private final ConcurrentLinkedQueue<T> originZones;
-        private final Set<T> destinationZones;
-        private final Network network;
-        private final Map<T, Node[]> nodesPerZone;
+        private final ConcurrentLinkedQueue<Integer> originZones;
+        private final IndexedNetwork network;
+        private final int[][] nodesPerZone;
         private final NetworkIndicators<T> networkIndicators;
         private final TravelTime travelTime;
         private final TravelDisutility travelDisutility;
-        private final double departureTime;
+        private final double[] departureTimes;
         private final Counter counter;
 
-        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Network network, Map<T, Node[]> nodesPerZone, NetworkIndicators<T> networkIndicators, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, Counter counter) {
+        RowWorker(ConcurrentLinkedQueue<Integer> originZones, IndexedNetwork network, int[][] nodesPerZone, NetworkIndicators<T> networkIndicators, double[] departureTimes, TravelTime travelTime, TravelDisutility travelDisutility, Counter counter) {
             this.originZones = originZones;
-            this.destinationZones = destinationZones;
             this.network = network;
             this.nodesPerZone = nodesPerZone;
             this.networkIndicators = networkIndicators;
-            this.departureTime = departureTime;
+            this.departureTimes = departureTimes;
             this.travelTime = travelTime;
             this.travelDisutility = travelDisutility;
             this.counter = counter;
         }
 
         public void run() {
-            LeastCostPathTree lcpTree = new LeastCostPathTree(this.travelTime, this.travelDisutility);
+            IndexedLeastCostPathTree lcpTree = new IndexedLeastCostPathTree(this.network, this.travelTime, this.travelDisutility);
             while (true) {
-                T fromZoneId = this.originZones.poll();
-                if (fromZoneId == null) {
+                Integer fromZoneIndex = this.originZones.poll();
+                if (fromZoneIndex == null) {
                     return;
                 }
 
                 this.counter.incCounter();
-                Node[] fromNodes = this.nodesPerZone.get(fromZoneId);
+                FloatMatrix.Row travelTimeRow = this.networkIndicators.travelTimeMatrix.getRow(fromZoneIndex);
+                FloatMatrix.Row distanceRow = this.networkIndicators.distanceMatrix.getRow(fromZoneIndex);
+                int[] fromNodes = this.nodesPerZone[fromZoneIndex];
                 if (fromNodes != null) {
-                    for (Node fromNode : fromNodes) {
-                        lcpTree.calculate(this.network, fromNode, this.departureTime);
-
-                        for (T toZoneId : this.destinationZones) {
-                            Node[] toNodes = this.nodesPerZone.get(toZoneId);
-                            if (toNodes != null) {
-                                for (Node toNode : toNodes) {
-                                    LeastCostPathTree.NodeData data = lcpTree.getTree().get(toNode.getId());
-                                    double tt = data.getTime() - this.departureTime;
-                                    double dist = data.getDistance();
-                                    this.networkIndicators.travelTimeMatrix.add(fromZoneId, toZoneId, (float) tt);
-                                    this.networkIndicators.distanceMatrix.add(fromZoneId, toZoneId, (float) dist);
+                    for (int fromNode : fromNodes) {
+                        for (double departureTime : this.departureTimes) {
+                            lcpTree.calculate(fromNode, departureTime);
+
+                            for (int toZoneIndex = 0; toZoneIndex < this.nodesPerZone.length; toZoneIndex++) {
+                                int[] toNodes = this.nodesPerZone[toZoneIndex];
+                                if (toNodes != null) {
+                                    for (int toNode : toNodes) {
+                                        double tt = lcpTree.getTime(toNode) - departureTime;
+                                        double dist = lcpTree.getDistance(toNode);
+                                        travelTimeRow.add(toZoneIndex, (float) tt);
+                                        distanceRow.add(toZoneIndex, (float) dist);
+                                    }
+                                } else {
+                                    // this might happen if a zone has no geometry, for whatever reason...
+                                    travelTimeRow.set(toZoneIndex, Float.POSITIVE_INFINITY);
+                                    distanceRow.set(toZoneIndex, Float.POSITIVE_INFINITY);
+                                }
+                            }
+                        }
+                    }
+                } else {
+                    // this might happen if a zone has no geometry, for whatever reason...
+                    travelTimeRow.fill(Float.POSITIVE_INFINITY);
+                    distanceRow.fill(Float.POSITIVE_INFINITY);
+                }
+            }
+        }
+    }
+
+    private static class HierarchyRowWorker<T> implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> originZones;
+        private final ContractionHierarchyQuery query;
+        private final int[][] nodesPerZone;
+        private final int[][] targetsPerZone;
+        private final NetworkIndicators<T> networkIndicators;
+        private final Counter counter;
+
+        HierarchyRowWorker(ConcurrentLinkedQueue<Integer> originZones, ContractionHierarchyQuery query, int[][] nodesPerZone, int[][] targetsPerZone, NetworkIndicators<T> networkIndicators, Counter counter) {
+            this.originZones = originZones;
+            this.query = query;
+            this.nodesPerZone = nodesPerZone;
+            this.targetsPerZone = targetsPerZone;
+            this.networkIndicators = networkIndicators;
+            this.counter = counter;
+        }
+
+        public void run() {
+            ContractionHierarchyQuery.Searcher searcher = this.query.createSearcher();
+            while (true) {
+                Integer fromZoneIndex = this.originZones.poll();
+                if (fromZoneIndex == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                FloatMatrix.Row travelTimeRow = this.networkIndicators.travelTimeMatrix.getRow(fromZoneIndex);
+                FloatMatrix.Row distanceRow = this.networkIndicators.distanceMatrix.getRow(fromZoneIndex);
+                int[] fromNodes = this.nodesPerZone[fromZoneIndex];
+                if (fromNodes != null) {
+                    for (int fromNode : fromNodes) {
+                        searcher.calculate(fromNode);
+
+                        for (int toZoneIndex = 0; toZoneIndex < this.targetsPerZone.length; toZoneIndex++) {
+                            int[] toTargets = this.targetsPerZone[toZoneIndex];
+                            if (toTargets != null) {
+                                for (int toTarget : toTargets) {
+                                    travelTimeRow.add(toZoneIndex, (float) searcher.getTime(toTarget));
+                                    distanceRow.add(toZoneIndex, (float) searcher.getDistance(toTarget));
                                 }
                             } else {
                                 // this might happen if a zone has no geometry, for whatever reason...
-                                this.networkIndicators.travelTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                                this.networkIndicators.distanceMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
+                                travelTimeRow.set(toZoneIndex, Float.POSITIVE_INFINITY);
+                                distanceRow.set(toZoneIndex, Float.POSITIVE_INFINITY);
                             }
                         }
                     }
                 } else {
                     // this might happen if a zone has no geometry, for whatever reason...
-                    for (T toZoneId : this.destinationZones) {
-                        this.networkIndicators.travelTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                        this.networkIndicators.distanceMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    }
+                    travelTimeRow.fill(Float.POSITIVE_INFINITY);
+                    distanceRow.fill(Float.POSITIVE_INFINITY);
                 }
             }
         }
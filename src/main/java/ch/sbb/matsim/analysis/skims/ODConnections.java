@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
+
+import java.util.Arrays;
+
+/**
+ * The connections between one origin and one destination sampling point, stored in primitive arrays.
+ *
+ * An instance is meant to be re-used for all OD pairs calculated by one thread, avoiding the creation
+ * of many small objects. The connections can be sorted by their departure time (at the origin, i.e.
+ * the departure time at the first stop minus the access time) and filtered, so that only connections
+ * remain that are not dominated by an earlier or later connection.
+ *
+ * @author agent
+ */
+final class ODConnections {
+
+    private int size = 0;
+    private double[] departureTimes = new double[16];
+    private double[] accessTimes = new double[16];
+    private double[] travelTimes = new double[16];
+    private double[] egressTimes = new double[16];
+    private double[] transferCounts = new double[16];
+    private TravelInfo[] travelInfos = new TravelInfo[16];
+
+    private int[] order = new int[16]; // the connection indices, sorted by departure time
+    private int filteredSize = 0;
+    private int[] filtered = new int[16]; // the indices of the remaining connections after filtering, in ascending departure time order
+    private double[] filteredDepartureTimes = new double[16];
+
+    void clear() {
+        this.size = 0;
+        this.filteredSize = 0;
+        Arrays.fill(this.travelInfos, null);
+    }
+
+    void add(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, TravelInfo info) {
+        if (this.size == this.departureTimes.length) {
+            int newLength = this.size * 2;
+            this.departureTimes = Arrays.copyOf(this.departureTimes, newLength);
+            this.accessTimes = Arrays.copyOf(this.accessTimes, newLength);
+            this.travelTimes = Arrays.copyOf(this.travelTimes, newLength);
+            this.egressTimes = Arrays.copyOf(this.egressTimes, newLength);
+            this.transferCounts = Arrays.copyOf(this.transferCounts, newLength);
+            this.travelInfos = Arrays.copyOf(this.travelInfos, newLength);
+            this.order = new int[newLength];
+            this.filtered = new int[newLength];
+            this.filteredDepartureTimes = new double[newLength];
+        }
+        int i = this.size;
+        this.departureTimes[i] = departureTime;
+        this.accessTimes[i] = accessTime;
+        this.travelTimes[i] = travelTime;
+        this.egressTimes[i] = egressTime;
+        this.transferCounts[i] = transferCount;
+        this.travelInfos[i] = info;
+        this.size++;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    private double getOriginDepartureTime(int i) {
+        return this.departureTimes[i] - this.accessTimes[i];
+    }
+
+    private double getTotalTravelTime(int i) {
+        return this.accessTimes[i] + this.travelTimes[i] + this.egressTimes[i];
+    }
+
+    /**
+     * Sorts the connections by their departure time and removes all connections for which an earlier or
+     * later connection exists that results in an earlier arrival even when waiting for it, i.e. that arrives
+     * earlier than this connection when departing at the same time.
+     */
+    void sortAndFilter() {
+        // The connections are collected tree by tree, i.e. they are already roughly sorted. A stable insertion sort
+        // is fast for such input and keeps connections with the same departure time in their original order.
+        int[] order = this.order;
+        for (int i = 0; i < this.size; i++) {
+            double key = getOriginDepartureTime(i);
+            int j = i - 1;
+            while (j >= 0 && getOriginDepartureTime(order[j]) > key) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = i;
+        }
+
+        // step forward through all connections and figure out which can be ignored because the earlier one is better
+        int forwardCount = 0;
+        int earlier = -1;
+        for (int k = 0; k < this.size; k++) {
+            int connection = order[k];
+            if (earlier < 0) {
+                order[forwardCount++] = connection;
+                earlier = connection;
+            } else {
+                double timeDiff = getOriginDepartureTime(connection) - getOriginDepartureTime(earlier);
+                if (getTotalTravelTime(earlier) + timeDiff > getTotalTravelTime(connection)) {
+                    // connection is better than the earlier one, use it
+                    order[forwardCount++] = connection;
+                    earlier = connection;
+                }
+            }
+        }
+
+        // now step backwards through the remaining connections and figure out which can be ignored because the later one is better
+        int backwardCount = 0;
+        int later = -1;
+        for (int k = forwardCount - 1; k >= 0; k--) {
+            int connection = order[k];
+            if (later < 0) {
+                this.filtered[backwardCount++] = connection;
+                later = connection;
+            } else {
+                double timeDiff = getOriginDepartureTime(later) - getOriginDepartureTime(connection);
+                if (getTotalTravelTime(later) + timeDiff > getTotalTravelTime(connection)) {
+                    // connection is better than the later one, use it
+                    this.filtered[backwardCount++] = connection;
+                    later = connection;
+                }
+            }
+        }
+
+        // reverse, so the filtered connections are in ascending departure time order
+        for (int lo = 0, hi = backwardCount - 1; lo < hi; lo++, hi--) {
+            int tmp = this.filtered[lo];
+            this.filtered[lo] = this.filtered[hi];
+            this.filtered[hi] = tmp;
+        }
+        this.filteredSize = backwardCount;
+        for (int k = 0; k < backwardCount; k++) {
+            this.filteredDepartureTimes[k] = getOriginDepartureTime(this.filtered[k]);
+        }
+    }
+
+    int getFilteredSize() {
+        return this.filteredSize;
+    }
+
+    /**
+     * @return the index of the <code>k</code>-th remaining connection after {@link #sortAndFilter()}.
+     */
+    int getFiltered(int k) {
+        return this.filtered[k];
+    }
+
+    /**
+     * @return the remaining connection with the shortest travel time (without access and egress); the earliest one if there are several.
+     */
+    int findFastestFiltered() {
+        int fastest = -1;
+        for (int k = 0; k < this.filteredSize; k++) {
+            int connection = this.filtered[k];
+            if (fastest < 0 || this.travelTimes[connection] < this.travelTimes[fastest]) {
+                fastest = connection;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * @return the average adaption time of the remaining connections after {@link #sortAndFilter()},
+     * see {@link #calcAverageAdaptionTime(double[], int, double, double)}.
+     */
+    double calcAverageAdaptionTime(double minDepartureTime, double maxDepartureTime) {
+        return calcAverageAdaptionTime(this.filteredDepartureTimes, this.filteredSize, minDepartureTime, maxDepartureTime);
+    }
+
+    double getEgressTime(int i) {
+        return this.egressTimes[i];
+    }
+
+    double getTransferCount(int i) {
+        return this.transferCounts[i];
+    }
+
+    double getTotalTravelTimeOf(int i) {
+        return getTotalTravelTime(i);
+    }
+
+    TravelInfo getTravelInfo(int i) {
+        return this.travelInfos[i];
+    }
+
+    /**
+     * Calculates the exact average adaption time over the time window <code>[minDepartureTime, maxDepartureTime)</code>.
+     *
+     * The adaption time at time <code>t</code> is the time to the nearest departure, earlier or later. Between two consecutive
+     * departures, this is a piecewise linear function rising from 0 to half the headway and falling back to 0; before the first
+     * and after the last departure, it grows linearly. The function is integrated segment by segment over the window,
+     * so the effort only depends on the number of departures, but not on the length of the time window.
+     *
+     * @param departureTimes the departure times in ascending order
+     * @param count the number of departure times to use
+     */
+    static double calcAverageAdaptionTime(double[] departureTimes, int count, double minDepartureTime, double maxDepartureTime) {
+        double a = minDepartureTime;
+        double b = maxDepartureTime;
+        if (count == 0 || b <= a) {
+            return Double.NaN;
+        }
+        // before the first departure, the adaption time is the time until the first departure
+        double first = departureTimes[0];
+        double integral = integrateFalling(first, Double.NEGATIVE_INFINITY, first, a, b);
+        for (int i = 0; i + 1 < count; i++) {
+            double prev = departureTimes[i];
+            double next = departureTimes[i + 1];
+            if (next <= a) {
+                continue;
+            }
+            if (prev >= b) {
+                break;
+            }
+            double mid = (prev + next) / 2.0;
+            integral += integrateRising(prev, prev, mid, a, b);
+            integral += integrateFalling(next, mid, next, a, b);
+        }
+        // after the last departure, the adaption time is the time since the last departure
+        double last = departureTimes[count - 1];
+        integral += integrateRising(last, last, Double.POSITIVE_INFINITY, a, b);
+        return integral / (b - a);
+    }
+
+    /** integrates <code>t - origin</code> over <code>[from, to]</code>, clipped to <code>[a, b]</code>. */
+    private static double integrateRising(double origin, double from, double to, double a, double b) {
+        double x0 = Math.max(from, a);
+        double x1 = Math.min(to, b);
+        if (x1 <= x0) {
+            return 0.0;
+        }
+        return ((x1 - origin) * (x1 - origin) - (x0 - origin) * (x0 - origin)) / 2.0;
+    }
+
+    /** integrates <code>target - t</code> over <code>[from, to]</code>, clipped to <code>[a, b]</code>. */
+    private static double integrateFalling(double target, double from, double to, double a, double b) {
+        double x0 = Math.max(from, a);
+        double x1 = Math.min(to, b);
+        if (x1 <= x0) {
+            return 0.0;
+        }
+        return ((target - x0) * (target - x0) - (target - x1) * (target - x1)) / 2.0;
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.MinimalTransferTimes;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiPredicate;
+
+/**
+ * Stores the rows of completed origin zones of a PT skim calculation, so an interrupted
+ * calculation can be resumed without re-calculating these zones.
+ *
+ * The checkpoint is a single binary file. After a header describing the calculation (zones,
+ * sampling points, departure time window and fingerprints of the routing parameters and of the
+ * transit schedule, see {@link #calcParametersFingerprint} and {@link #calcScheduleFingerprint}),
+ * each completed origin zone is appended as one
+ * record, consisting of the zone index (int32) followed by the final (averaged) rows of all
+ * indicators (float32, little endian). The file is forced to disk periodically; a partially
+ * written record at the end of the file (e.g. because the process was killed while writing)
+ * is discarded when the checkpoint is opened again.
+ *
+ * If the header of an existing file does not match the current calculation, the file
+ * is discarded and the calculation starts from scratch.
+ *
+ * A completed checkpoint can also be opened read-only with {@link #openForReading}, e.g. to re-use
+ * its rows as baseline for the calculation with a modified schedule. As the baseline was calculated
+ * with a different schedule by definition, a read-only checkpoint is checked for the same zones,
+ * sampling points, departure time window and routing parameters, but not for the same schedule.
+ *
+ * @author agent
+ */
+public class PTSkimCheckpoint implements Closeable {
+
+    private static final Logger log = Logger.getLogger(PTSkimCheckpoint.class);
+
+    private final static int MAGIC = 0x4b435350; // "PSCK" when read as little-endian bytes
+    private final static int VERSION = 3;
+    private final static int SCHEDULE_FINGERPRINT_SIZE = 8;
+    private final static int HEADER_SIZE = 4 + 4 + 4 + 3 * 8 + 8 + 8 + SCHEDULE_FINGERPRINT_SIZE;
+    private final static int INDICATOR_COUNT = 9;
+    private final static long FORCE_INTERVAL_MILLIS = 60_000;
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private final FileChannel channel;
+    private final int zoneCount;
+    private final long recordSize;
+    private final long[] recordPositions;
+    private final BitSet completedZones;
+    private final boolean readOnly;
+    private final ByteBuffer buffer;
+    private long writePosition;
+    private long lastForce;
+
+    private PTSkimCheckpoint(File file, FileChannel channel, int zoneCount, long[] recordPositions, BitSet completedZones, long writePosition, boolean readOnly) {
+        this.file = file;
+        this.channel = channel;
+        this.zoneCount = zoneCount;
+        this.recordSize = getRecordSize(zoneCount);
+        this.recordPositions = recordPositions;
+        this.completedZones = completedZones;
+        this.readOnly = readOnly;
+        this.buffer = ByteBuffer.allocateDirect((int) this.recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.writePosition = writePosition;
+        this.lastForce = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens an existing checkpoint file, or creates a new one if the file does not exist yet or
+     * was created for a different calculation.
+     *
+     * @param zoneIds the zones in the order used for the calculation, i.e. the order of the zone indices.
+     * @param parametersFingerprint the fingerprint of the routing parameters, see {@link #calcParametersFingerprint}
+     * @param scheduleFingerprint the fingerprint of the schedule, see {@link #calcScheduleFingerprint}
+     */
+    public static <T> PTSkimCheckpoint open(File file, List<T> zoneIds, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds,
+                                            long parametersFingerprint, long scheduleFingerprint) throws IOException {
+        return open(file, zoneIds, coordsPerZone, minDepartureTime, maxDepartureTime, stepSize_seconds, parametersFingerprint, scheduleFingerprint, false);
+    }
+
+    /**
+     * Opens an existing checkpoint file without modifying it. Rows cannot be written to such a checkpoint.
+     *
+     * The zones, their sampling points, the departure time window and the routing parameters are checked, but not
+     * the schedule. The checkpoint may have been created with a different schedule, it is the caller's
+     * responsibility to only use the rows that are not affected by the differences.
+     *
+     * @param parametersFingerprint the fingerprint of the routing parameters, calculated with the schedule the
+     *                              checkpoint was created with, see {@link #calcParametersFingerprint}
+     * @throws IOException if the file does not exist or was created for different zones, sampling points, time window or routing parameters.
+     */
+    public static <T> PTSkimCheckpoint openForReading(File file, List<T> zoneIds, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds,
+                                                      long parametersFingerprint) throws IOException {
+        return open(file, zoneIds, coordsPerZone, minDepartureTime, maxDepartureTime, stepSize_seconds, parametersFingerprint, 0, true);
+    }
+
+    private static <T> PTSkimCheckpoint open(File file, List<T> zoneIds, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds,
+                                             long parametersFingerprint, long scheduleFingerprint, boolean readOnly) throws IOException {
+        int zoneCount = zoneIds.size();
+        long recordSize = getRecordSize(zoneCount);
+        if (recordSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many zones for a checkpoint: " + zoneCount);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(zoneCount);
+        header.putDouble(minDepartureTime);
+        header.putDouble(maxDepartureTime);
+        header.putDouble(stepSize_seconds);
+        header.putLong(calcFingerprint(zoneIds, coordsPerZone));
+        header.putLong(parametersFingerprint);
+        header.putLong(scheduleFingerprint);
+        header.flip();
+
+        FileChannel channel = readOnly
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long[] recordPositions = new long[zoneCount];
+            Arrays.fill(recordPositions, -1);
+            BitSet completedZones = new BitSet(zoneCount);
+
+            ByteBuffer existingHeader = ByteBuffer.allocate(HEADER_SIZE);
+            long fileSize = channel.size();
+            if (fileSize >= HEADER_SIZE) {
+                readFully(channel, existingHeader, 0);
+                existingHeader.flip();
+            }
+            if (readOnly) {
+                // the schedule fingerprint is stored at the end of the header and not checked for read-only checkpoints
+                existingHeader.limit(existingHeader.limit() - SCHEDULE_FINGERPRINT_SIZE);
+                header.limit(HEADER_SIZE - SCHEDULE_FINGERPRINT_SIZE);
+            }
+            if (fileSize < HEADER_SIZE || !existingHeader.equals(header)) {
+                if (readOnly) {
+                    throw new IOException("Checkpoint " + file.getAbsolutePath() + " was created for a different calculation.");
+                }
+                if (fileSize > 0) {
+                    log.warn("Checkpoint " + file.getAbsolutePath() + " was created for a different calculation, it will be overwritten.");
+                }
+                channel.truncate(0);
+                writeFully(channel, header, 0);
+                return new PTSkimCheckpoint(file, channel, zoneCount, recordPositions, completedZones, HEADER_SIZE, false);
+            }
+
+            ByteBuffer zoneIndexBuffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            long position = HEADER_SIZE;
+            while (position + recordSize <= fileSize) {
+                zoneIndexBuffer.clear();
+                readFully(channel, zoneIndexBuffer, position);
+                int zoneIndex = zoneIndexBuffer.getInt(0);
+                if (zoneIndex < 0 || zoneIndex >= zoneCount) {
+                    break;
+                }
+                recordPositions[zoneIndex] = position;
+                completedZones.set(zoneIndex);
+                position += recordSize;
+            }
+            if (position < fileSize && !readOnly) {
+                log.warn("Discarding incomplete data at the end of checkpoint " + file.getAbsolutePath());
+                channel.truncate(position);
+            }
+            log.info("Checkpoint " + file.getAbsolutePath() + " contains " + completedZones.cardinality() + " of " + zoneCount + " origin zones.");
+            return new PTSkimCheckpoint(file, channel, zoneCount, recordPositions, completedZones, position, readOnly);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long getRecordSize(int zoneCount) {
+        return 4 + (long) INDICATOR_COUNT * 4 * zoneCount;
+    }
+
+    /**
+     * Calculates a 64-bit FNV-1a hash over the zone ids and their sampling points,
+     * to detect if a checkpoint was created with different zones.
+     */
+    private static <T> long calcFingerprint(List<T> zoneIds, Map<T, Coord[]> coordsPerZone) {
+        long hash = FNV_OFFSET_BASIS;
+        for (T zoneId : zoneIds) {
+            hash = hash(hash, zoneId.toString());
+            Coord[] coords = coordsPerZone.get(zoneId);
+            int count = coords == null ? -1 : coords.length;
+            hash = hash(hash, count);
+            if (coords != null) {
+                for (Coord coord : coords) {
+                    hash = hash(hash, coord.getX());
+                    hash = hash(hash, coord.getY());
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Calculates a 64-bit FNV-1a hash over the transit routes with their stops and departures and the
+     * minimal transfer times. A checkpoint created with a different fingerprint is discarded by {@link #open},
+     * so a resumed calculation always produces the same result as an uninterrupted one.
+     */
+    public static long calcScheduleFingerprint(TransitSchedule schedule) {
+        long hash = FNV_OFFSET_BASIS;
+        for (TransitLine line : schedule.getTransitLines().values()) {
+            hash = hash(hash, line.getId().toString());
+            for (TransitRoute route : line.getRoutes().values()) {
+                hash = hash(hash, route.getId().toString());
+                hash = hash(hash, route.getTransportMode());
+                for (TransitRouteStop routeStop : route.getStops()) {
+                    TransitStopFacility stop = routeStop.getStopFacility();
+                    hash = hash(hash, stop.getId().toString());
+                    hash = hash(hash, stop.getCoord().getX());
+                    hash = hash(hash, stop.getCoord().getY());
+                    hash = hash(hash, routeStop.getArrivalOffset());
+                    hash = hash(hash, routeStop.getDepartureOffset());
+                    hash = hash(hash, routeStop.isAwaitDepartureTime() ? 1 : 0);
+                }
+                for (Departure departure : route.getDepartures().values()) {
+                    hash = hash(hash, departure.getDepartureTime());
+                }
+            }
+        }
+        // the iteration order of the minimal transfer times is not defined, so combine their hashes independent of the order
+        long transferTimesHash = 0;
+        MinimalTransferTimes.MinimalTransferTimesIterator iter = schedule.getMinimalTransferTimes().iterator();
+        while (iter.hasNext()) {
+            iter.next();
+            transferTimesHash += hash(hash(hash(FNV_OFFSET_BASIS, iter.getFromStopId().toString()), iter.getToStopId().toString()), iter.getSeconds());
+        }
+        return hash(hash, transferTimesHash);
+    }
+
+    /**
+     * Calculates a 64-bit FNV-1a hash over the static and per-query routing parameters and the routes
+     * considered as trains. The train detector and the mode mapping are evaluated for the routes of the
+     * given schedule, which must be the schedule the checkpoint is (or was) created with, but the stops
+     * and departures of the schedule do not influence the fingerprint. Unlike the schedule fingerprint,
+     * this fingerprint is also checked by {@link #openForReading}.
+     */
+    public static long calcParametersFingerprint(TransitSchedule schedule, RaptorStaticConfig staticConfig, RaptorParameters parameters, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+        long hash = FNV_OFFSET_BASIS;
+        for (TransitLine line : schedule.getTransitLines().values()) {
+            for (TransitRoute route : line.getRoutes().values()) {
+                hash = hash(hash, line.getId().toString());
+                hash = hash(hash, route.getId().toString());
+                if (staticConfig.isUseModeMappingForPassengers()) {
+                    hash = hash(hash, String.valueOf(staticConfig.getPassengerMode(route.getTransportMode())));
+                }
+                hash = hash(hash, trainDetector.test(line, route) ? 1 : 0);
+            }
+        }
+
+        hash = hash(hash, staticConfig.getBeelineWalkConnectionDistance());
+        hash = hash(hash, staticConfig.getBeelineWalkSpeed());
+        hash = hash(hash, staticConfig.getBeelineWalkDistanceFactor());
+        hash = hash(hash, staticConfig.getMinimalTransferTime());
+
+        hash = hash(hash, parameters.getSearchRadius());
+        hash = hash(hash, parameters.getExtensionRadius());
+        hash = hash(hash, parameters.getBeelineWalkSpeed());
+        for (Map.Entry<String, Double> e : new TreeMap<>(parameters.getMarginalUtilitiesOfTravelTime_utl_s()).entrySet()) {
+            hash = hash(hash, e.getKey());
+            hash = hash(hash, e.getValue());
+        }
+        hash = hash(hash, parameters.getMarginalUtilityOfWaitingPt_utl_s());
+        hash = hash(hash, parameters.getTransferPenaltyFixCostPerTransfer());
+        hash = hash(hash, parameters.getTransferPenaltyPerTravelTimeHour());
+        hash = hash(hash, parameters.getTransferPenaltyMinimum());
+        hash = hash(hash, parameters.getTransferPenaltyMaximum());
+        return hash;
+    }
+
+    private static long hash(long hash, long value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, double value) {
+        return hash(hash, Double.doubleToLongBits(value));
+    }
+
+    private static long hash(long hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash = hash(hash, b & 0xff);
+        }
+        return hash;
+    }
+
+    public int getZoneCount() {
+        return this.zoneCount;
+    }
+
+    public synchronized int getCompletedCount() {
+        return this.completedZones.cardinality();
+    }
+
+    /**
+     * @return a copy of the set of zone indices that are already stored in the checkpoint.
+     */
+    public synchronized BitSet getCompletedZones() {
+        return (BitSet) this.completedZones.clone();
+    }
+
+    public synchronized boolean isCompleted(int zoneIndex) {
+        return this.completedZones.get(zoneIndex);
+    }
+
+    /**
+     * Reads the stored rows of the given origin zone into <code>rows</code>.
+     */
+    public synchronized void readRows(int zoneIndex, PTSkimMatrices.IndicatorRows rows) throws IOException {
+        long position = this.recordPositions[zoneIndex];
+        if (position < 0) {
+            throw new IllegalArgumentException("Zone index " + zoneIndex + " is not stored in checkpoint " + this.file.getAbsolutePath());
+        }
+        this.buffer.clear();
+        readFully(this.channel, this.buffer, position);
+        this.buffer.flip();
+        this.buffer.position(4);
+        FloatBuffer floats = this.buffer.asFloatBuffer();
+        rows.adaptionTime.copyFrom(floats);
+        rows.frequency.copyFrom(floats);
+        rows.travelTime.copyFrom(floats);
+        rows.accessTime.copyFrom(floats);
+        rows.egressTime.copyFrom(floats);
+        rows.transferCount.copyFrom(floats);
+        rows.trainTravelTimeShare.copyFrom(floats);
+        rows.trainDistanceShare.copyFrom(floats);
+        rows.dataCount.copyFrom(floats);
+    }
+
+    /**
+     * Appends the final rows of the given origin zone to the checkpoint.
+     */
+    public synchronized void writeRows(int zoneIndex, PTSkimMatrices.IndicatorRows rows) throws IOException {
+        if (this.readOnly) {
+            throw new IllegalStateException("Checkpoint " + this.file.getAbsolutePath() + " was opened read-only.");
+        }
+        this.buffer.clear();
+        this.buffer.putInt(zoneIndex);
+        FloatBuffer floats = this.buffer.asFloatBuffer();
+        rows.adaptionTime.copyTo(floats);
+        rows.frequency.copyTo(floats);
+        rows.travelTime.copyTo(floats);
+        rows.accessTime.copyTo(floats);
+        rows.egressTime.copyTo(floats);
+        rows.transferCount.copyTo(floats);
+        rows.trainTravelTimeShare.copyTo(floats);
+        rows.trainDistanceShare.copyTo(floats);
+        rows.dataCount.copyTo(floats);
+        this.buffer.position(0);
+        this.buffer.limit((int) this.recordSize);
+        writeFully(this.channel, this.buffer, this.writePosition);
+        this.recordPositions[zoneIndex] = this.writePosition;
+        this.completedZones.set(zoneIndex);
+        this.writePosition += this.recordSize;
+
+        long now = System.currentTimeMillis();
+        if (now - this.lastForce >= FORCE_INTERVAL_MILLIS) {
+            this.channel.force(false);
+            this.lastForce = now;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.channel.isOpen()) {
+            if (!this.readOnly) {
+                this.channel.force(false);
+            }
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Closes and deletes the checkpoint, typically after the results of the calculation were written successfully.
+     */
+    public synchronized void delete() throws IOException {
+        this.channel.close();
+        Files.deleteIfExists(this.file.toPath());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            position += count;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -5,19 +5,26 @@ import ch.sbb.matsim.routing.pt.raptor.RaptorRoute;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptor;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
-import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.misc.Counter;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import org.opengis.feature.simple.SimpleFeature;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiPredicate;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 /**
  * Calculates zone-to-zone matrices containing a number of performance indicators related to public transport.
@@ -59,21 +66,274 @@ import java.util.function.BiPredicate;
  */
 public class PTSkimMatrices {
 
+    private static final Logger log = Logger.getLogger(PTSkimMatrices.class);
+
+    /** A rough estimate of the memory required by one entry in a RAPTOR tree, including its path elements. */
+    private static final long ESTIMATED_BYTES_PER_TREE_ENTRY = 256;
+    /** The share of the maximum heap size that may be used for caching RAPTOR trees. */
+    private static final double TREE_CACHE_MEMORY_SHARE = 0.25;
+
     private PTSkimMatrices() {
     }
 
     public static <T> PTSkimMatrices.PtIndicators<T> calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+        try {
+            return calculateSkimMatrices(raptorData, zones, coordsPerZone, minDepartureTime, maxDepartureTime, stepSize_seconds, parameters, numberOfThreads, trainDetector, (PTSkimCheckpoint) null);
+        } catch (IOException e) {
+            // without checkpoint, this only happens if the calculation of a row failed
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Calculates the indicator matrices, skipping all origin zones already stored in the checkpoint (if any).
+     * Each newly calculated origin zone is added to the checkpoint, so the calculation can be resumed
+     * if it gets interrupted. The result is the same as if the calculation was done in one go.
+     *
+     * @param checkpoint the checkpoint to use, may be <code>null</code>. It must have been opened with the zones in the order of <code>zones.keySet()</code>.
+     */
+    public static <T> PTSkimMatrices.PtIndicators<T> calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector, PTSkimCheckpoint checkpoint) throws IOException {
+        return calculateSkimMatrices(raptorData, zones, coordsPerZone, minDepartureTime, maxDepartureTime, stepSize_seconds, parameters, numberOfThreads, trainDetector, fromZoneIndex -> true, checkpoint);
+    }
+
+    /**
+     * Calculates only the rows of the origin zones accepted by <code>originFilter</code>, all other rows remain 0.
+     * This allows to split the calculation into several parts, e.g. to run them on different machines.
+     *
+     * @param originFilter decides, based on the zone index (the position in <code>zones.keySet()</code>), which origin zones to calculate
+     * @param checkpoint the checkpoint to use, may be <code>null</code>.
+     */
+    public static <T> PTSkimMatrices.PtIndicators<T> calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector, IntPredicate originFilter, PTSkimCheckpoint checkpoint) throws IOException {
         // prepare calculation
         PtIndicators<T> pti = new PtIndicators<>(zones.keySet());
+        List<T> zoneIds = new ArrayList<>(pti.adaptionTimeMatrix.getZoneCount());
+        for (int zoneIndex = 0; zoneIndex < pti.adaptionTimeMatrix.getZoneCount(); zoneIndex++) {
+            zoneIds.add(pti.adaptionTimeMatrix.getZoneId(zoneIndex));
+        }
+
+        BitSet completedOrigins = new BitSet();
+        if (checkpoint != null) {
+            checkCheckpoint(checkpoint, zoneIds.size());
+            completedOrigins = checkpoint.getCompletedZones();
+            for (int zoneIndex = completedOrigins.nextSetBit(0); zoneIndex >= 0; zoneIndex = completedOrigins.nextSetBit(zoneIndex + 1)) {
+                checkpoint.readRows(zoneIndex, new IndicatorRows(pti, zoneIndex));
+            }
+        }
+        BitSet skippedOrigins = completedOrigins;
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        calculate(raptorData, zoneIds, coordsPerZone, zoneIndex -> originFilter.test(zoneIndex) && !skippedOrigins.get(zoneIndex), minDepartureTime, maxDepartureTime, stepSize_seconds, parameters, numberOfThreads, trainDetector,
+                fromZoneIndex -> new IndicatorRows(pti, fromZoneIndex), new RowSink() {
+                    @Override
+                    public void rowFinished(int fromZoneIndex, IndicatorRows rows) {
+                        // the rows are part of the indicator matrices, just store them in the checkpoint
+                        writeCheckpoint(checkpoint, fromZoneIndex, rows);
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                });
+
+        if (failure.get() != null) {
+            throw new IOException("Calculating PT skim matrices failed.", failure.get());
+        }
+        return pti;
+    }
+
+    /**
+     * Calculates the indicator matrices for a modified transit schedule, re-using the results of a previous calculation
+     * with the baseline schedule. Only the origin zones that can reach a transit route which differs between the two schedules
+     * within the time window are calculated again (see {@link ScheduleChanges}), the rows of all other origin zones are read from
+     * the baseline checkpoint. If the served stops differ between the schedules, all origin zones are calculated again.
+     *
+     * @param raptorData the data of the modified schedule <code>schedule</code>
+     * @param baseline a checkpoint containing the rows calculated with <code>baselineSchedule</code> and the same zones, sampling points
+     *                 and time window. Origin zones not stored in it are calculated.
+     * @param originFilter decides, based on the zone index (the position in <code>zones.keySet()</code>), which origin zones to calculate,
+     *                     all other rows remain 0.
+     */
+    public static <T> PTSkimMatrices.PtIndicators<T> calculateSkimMatricesIncrementally(SwissRailRaptorData raptorData, TransitSchedule baselineSchedule, TransitSchedule schedule, PTSkimCheckpoint baseline, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector, IntPredicate originFilter) throws IOException {
+        PtIndicators<T> pti = new PtIndicators<>(zones.keySet());
+        List<T> zoneIds = new ArrayList<>(pti.adaptionTimeMatrix.getZoneCount());
+        for (int zoneIndex = 0; zoneIndex < pti.adaptionTimeMatrix.getZoneCount(); zoneIndex++) {
+            zoneIds.add(pti.adaptionTimeMatrix.getZoneId(zoneIndex));
+        }
+        int zoneCount = zoneIds.size();
+        if (baseline.getZoneCount() != zoneCount) {
+            throw new IllegalArgumentException("The baseline checkpoint was created for " + baseline.getZoneCount() + " zones, but there are " + zoneCount + " zones.");
+        }
+
+        Coord[][] coordsPerZoneIndex = getCoordsPerZoneIndex(zoneIds, coordsPerZone);
+        SamplingPointStops samplingPointStops = SamplingPointStops.create(raptorData, coordsPerZoneIndex, parameters);
+        ScheduleChanges changes = ScheduleChanges.compare(baselineSchedule, schedule);
+        if (changes.hasStopChanges()) {
+            log.warn("The served stops differ from the baseline schedule, all origin zones need to be calculated again.");
+        }
+        BitSet recalculatedOrigins = changes.findAffectedOrigins(raptorData, samplingPointStops, coordsPerZoneIndex, minDepartureTime);
+        BitSet baselineOrigins = baseline.getCompletedZones();
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            if (!originFilter.test(zoneIndex)) {
+                recalculatedOrigins.clear(zoneIndex);
+            } else if (!baselineOrigins.get(zoneIndex)) {
+                recalculatedOrigins.set(zoneIndex);
+            } else if (!recalculatedOrigins.get(zoneIndex)) {
+                baseline.readRows(zoneIndex, new IndicatorRows(pti, zoneIndex));
+            }
+        }
+        log.info("Re-using " + (IntStream.range(0, zoneCount).filter(originFilter).count() - recalculatedOrigins.cardinality()) + " origin zones from the baseline, calculating " + recalculatedOrigins.cardinality() + " origin zones.");
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        calculate(raptorData, coordsPerZoneIndex, samplingPointStops, recalculatedOrigins::get, minDepartureTime, maxDepartureTime, stepSize_seconds, parameters, numberOfThreads, trainDetector,
+                fromZoneIndex -> new IndicatorRows(pti, fromZoneIndex), new RowSink() {
+                    @Override
+                    public void rowFinished(int fromZoneIndex, IndicatorRows rows) {
+                        // the rows are part of the indicator matrices, nothing else to do
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                });
+
+        if (failure.get() != null) {
+            throw new IOException("Calculating PT skim matrices failed.", failure.get());
+        }
+        return pti;
+    }
+
+    /**
+     * Calculates the same indicators as {@link #calculateSkimMatrices(SwissRailRaptorData, Map, Map, double, double, double, RaptorParameters, int, BiPredicate)},
+     * but does not keep the full matrices in memory. Instead, each finished row (i.e. the values from one origin zone to all
+     * destination zones) is passed to the given consumer. The rows are passed to the consumer one at a time and in the order of the
+     * zones in <code>zones.keySet()</code>, so they can directly be appended to files (see {@link FloatMatrixIO.RowWriter}).
+     */
+    public static <T> void calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector, IndicatorRowsConsumer rowsConsumer) throws IOException {
+        calculateSkimMatrices(raptorData, zones, coordsPerZone, minDepartureTime, maxDepartureTime, stepSize_seconds, parameters, numberOfThreads, trainDetector, fromZoneIndex -> true, rowsConsumer, null);
+    }
+
+    /**
+     * Same as {@link #calculateSkimMatrices(SwissRailRaptorData, Map, Map, double, double, double, RaptorParameters, int, BiPredicate, IndicatorRowsConsumer)},
+     * but only calculates the origin zones accepted by <code>originFilter</code>, and only passes their rows to the consumer (still in zone order).
+     * All origin zones already stored in the checkpoint (if any) are skipped, and each newly calculated origin zone is added to the checkpoint.
+     * The rows of the skipped zones are read from the checkpoint and passed to the consumer at their regular position.
+     */
+    public static <T> void calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector, IntPredicate originFilter, IndicatorRowsConsumer rowsConsumer, PTSkimCheckpoint checkpoint) throws IOException {
+        List<T> zoneIds = new ArrayList<>(zones.keySet());
+        int zoneCount = zoneIds.size();
+
+        // the buffer works with consecutive sequence numbers, so map the selected origin zones to such numbers
+        int[] originSequence = IntStream.range(0, zoneCount).filter(originFilter).toArray();
+        int[] sequenceNumbers = new int[zoneCount];
+        Arrays.fill(sequenceNumbers, -1);
+        for (int i = 0; i < originSequence.length; i++) {
+            sequenceNumbers[originSequence[i]] = i;
+        }
+        RowReorderingBuffer<IndicatorRows> buffer = new RowReorderingBuffer<>(4 * numberOfThreads, (sequenceNumber, rows) -> rowsConsumer.accept(originSequence[sequenceNumber], rows));
+
+        BitSet completedOrigins = new BitSet();
+        Thread restoreThread = null;
+        if (checkpoint != null) {
+            checkCheckpoint(checkpoint, zoneCount);
+            completedOrigins = checkpoint.getCompletedZones();
+            BitSet restoredOrigins = completedOrigins;
+            // the restored rows must be interleaved with the calculated ones, so pass them to the buffer from a separate thread
+            restoreThread = new Thread(() -> {
+                try {
+                    for (int zoneIndex = restoredOrigins.nextSetBit(0); zoneIndex >= 0; zoneIndex = restoredOrigins.nextSetBit(zoneIndex + 1)) {
+                        if (sequenceNumbers[zoneIndex] >= 0) {
+                            IndicatorRows rows = new IndicatorRows(zoneCount);
+                            checkpoint.readRows(zoneIndex, rows);
+                            buffer.add(sequenceNumbers[zoneIndex], rows);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    buffer.fail(e);
+                }
+            }, "PT-FrequencyMatrix-Checkpoint");
+            restoreThread.start();
+        }
+        BitSet skippedOrigins = completedOrigins;
+
+        calculate(raptorData, zoneIds, coordsPerZone, zoneIndex -> sequenceNumbers[zoneIndex] >= 0 && !skippedOrigins.get(zoneIndex), minDepartureTime, maxDepartureTime, stepSize_seconds, parameters, numberOfThreads, trainDetector,
+                fromZoneIndex -> new IndicatorRows(zoneCount), new RowSink() {
+                    @Override
+                    public void rowFinished(int fromZoneIndex, IndicatorRows rows) {
+                        writeCheckpoint(checkpoint, fromZoneIndex, rows);
+                        buffer.add(sequenceNumbers[fromZoneIndex], rows);
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        buffer.fail(t);
+                    }
+                });
+
+        if (restoreThread != null) {
+            try {
+                restoreThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        buffer.checkCompleted(originSequence.length);
+    }
+
+    private static void checkCheckpoint(PTSkimCheckpoint checkpoint, int zoneCount) {
+        if (checkpoint.getZoneCount() != zoneCount) {
+            throw new IllegalArgumentException("The checkpoint was created for " + checkpoint.getZoneCount() + " zones, but there are " + zoneCount + " zones.");
+        }
+        if (checkpoint.getCompletedCount() > 0) {
+            log.info("Resuming PT skim calculation, " + checkpoint.getCompletedCount() + " of " + zoneCount + " origin zones are already calculated.");
+        }
+    }
+
+    private static void writeCheckpoint(PTSkimCheckpoint checkpoint, int fromZoneIndex, IndicatorRows rows) {
+        if (checkpoint != null) {
+            try {
+                checkpoint.writeRows(fromZoneIndex, rows);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write origin zone " + fromZoneIndex + " to the checkpoint.", e);
+            }
+        }
+    }
+
+    private static <T> Coord[][] getCoordsPerZoneIndex(List<T> zoneIds, Map<T, Coord[]> coordsPerZone) {
+        Coord[][] coordsPerZoneIndex = new Coord[zoneIds.size()][];
+        for (int zoneIndex = 0; zoneIndex < zoneIds.size(); zoneIndex++) {
+            coordsPerZoneIndex[zoneIndex] = coordsPerZone.get(zoneIds.get(zoneIndex));
+        }
+        return coordsPerZoneIndex;
+    }
+
+    private static <T> void calculate(SwissRailRaptorData raptorData, List<T> zoneIds, Map<T, Coord[]> coordsPerZone, IntPredicate originFilter, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector, IntFunction<IndicatorRows> rowsProvider, RowSink rowSink) {
+        Coord[][] coordsPerZoneIndex = getCoordsPerZoneIndex(zoneIds, coordsPerZone);
+
+        // the stops around each sampling point are needed for access as well as for egress, so find them only once
+        SamplingPointStops samplingPointStops = SamplingPointStops.create(raptorData, coordsPerZoneIndex, parameters);
+
+        calculate(raptorData, coordsPerZoneIndex, samplingPointStops, originFilter, minDepartureTime, maxDepartureTime, stepSize_seconds, parameters, numberOfThreads, trainDetector, rowsProvider, rowSink);
+    }
+
+    private static void calculate(SwissRailRaptorData raptorData, Coord[][] coordsPerZoneIndex, SamplingPointStops samplingPointStops, IntPredicate originFilter, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector, IntFunction<IndicatorRows> rowsProvider, RowSink rowSink) {
+        int zoneCount = coordsPerZoneIndex.length;
 
         // do calculation
-        ConcurrentLinkedQueue<T> originZones = new ConcurrentLinkedQueue<>(zones.keySet());
+        ConcurrentLinkedQueue<Integer> originZones = new ConcurrentLinkedQueue<>();
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            if (originFilter.test(zoneIndex)) {
+                originZones.add(zoneIndex);
+            }
+        }
 
-        Counter counter = new Counter("PT-FrequencyMatrix-" + Time.writeTime(minDepartureTime) + "-" + Time.writeTime(maxDepartureTime) + " zone ", " / " + zones.size());
+        Counter counter = new Counter("PT-FrequencyMatrix-" + Time.writeTime(minDepartureTime) + "-" + Time.writeTime(maxDepartureTime) + " zone ", " / " + originZones.size());
+        RaptorTreeCache treeCache = new RaptorTreeCache((long) (Runtime.getRuntime().maxMemory() * TREE_CACHE_MEMORY_SHARE / ESTIMATED_BYTES_PER_TREE_ENTRY));
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
             SwissRailRaptor raptor = new SwissRailRaptor(raptorData, null, null, null);
-            RowWorker<T> worker = new RowWorker<>(originZones, zones.keySet(), coordsPerZone, pti, raptor, parameters, minDepartureTime, maxDepartureTime, stepSize_seconds, counter, trainDetector);
+            RowWorker worker = new RowWorker(originZones, coordsPerZoneIndex, samplingPointStops, rowsProvider, rowSink, raptor, treeCache, parameters, minDepartureTime, maxDepartureTime, stepSize_seconds, counter, trainDetector);
             threads[i] = new Thread(worker, "PT-FrequencyMatrix-" + Time.writeTime(minDepartureTime) + "-" + Time.writeTime(maxDepartureTime) + "-" + i);
             threads[i].start();
         }
@@ -86,45 +346,47 @@ public class PTSkimMatrices {
                 e.printStackTrace();
             }
         }
+        log.info("RAPTOR tree cache: " + treeCache.getHits() + " hits, " + treeCache.getMisses() + " misses.");
+    }
 
-        for (T fromZoneId : zones.keySet()) {
-            for (T toZoneId : zones.keySet()) {
-                float count = pti.dataCountMatrix.get(fromZoneId, toZoneId);
-                float avgFactor = 1.0f / count;
-                float adaptionTime = pti.adaptionTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                pti.travelTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                pti.accessTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                pti.egressTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                pti.trainDistanceShareMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                pti.trainTravelTimeShareMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                pti.transferCountMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                float frequency = (float) ((maxDepartureTime - minDepartureTime) / adaptionTime / 4.0);
-                pti.frequencyMatrix.set(fromZoneId, toZoneId, frequency);
-            }
-        }
+    /**
+     * Receives the rows of all indicators for one origin zone.
+     */
+    @FunctionalInterface
+    public interface IndicatorRowsConsumer {
+        void accept(int fromZoneIndex, IndicatorRows rows) throws IOException;
+    }
 
-        return pti;
+    interface RowSink {
+        void rowFinished(int fromZoneIndex, IndicatorRows rows);
+
+        void failed(Throwable t);
     }
 
-    static class RowWorker<T> implements Runnable {
-        private final ConcurrentLinkedQueue<T> originZones;
-        private final Set<T> destinationZones;
-        private final Map<T, Coord[]> coordsPerZone;
-        private final PtIndicators<T> pti;
+    static class RowWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> originZones;
+        private final Coord[][] coordsPerZone;
+        private final SamplingPointStops samplingPointStops;
+        private final IntFunction<IndicatorRows> rowsProvider;
+        private final RowSink rowSink;
         private final SwissRailRaptor raptor;
+        private final RaptorTreeCache treeCache;
         private final RaptorParameters parameters;
         private final double minDepartureTime;
         private final double maxDepartureTime;
         private final double stepSize;
         private final Counter counter;
         private final BiPredicate<TransitLine, TransitRoute> trainDetector;
+        private final ODConnections connections = new ODConnections();
 
-        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Map<T, Coord[]> coordsPerZone, PtIndicators<T> pti, SwissRailRaptor raptor, RaptorParameters parameters, double minDepartureTime, double maxDepartureTime, double stepSize, Counter counter, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+        RowWorker(ConcurrentLinkedQueue<Integer> originZones, Coord[][] coordsPerZone, SamplingPointStops samplingPointStops, IntFunction<IndicatorRows> rowsProvider, RowSink rowSink, SwissRailRaptor raptor, RaptorTreeCache treeCache, RaptorParameters parameters, double minDepartureTime, double maxDepartureTime, double stepSize, Counter counter, BiPredicate<TransitLine, TransitRoute> trainDetector) {
             this.originZones = originZones;
-            this.destinationZones = destinationZones;
             this.coordsPerZone = coordsPerZone;
-            this.pti = pti;
+            this.samplingPointStops = samplingPointStops;
+            this.rowsProvider = rowsProvider;
+            this.rowSink = rowSink;
             this.raptor = raptor;
+            this.treeCache = treeCache;
             this.parameters = parameters;
             this.minDepartureTime = minDepartureTime;
             this.maxDepartureTime = maxDepartureTime;
@@ -134,95 +396,89 @@ public class PTSkimMatrices {
         }
 
         public void run() {
-            while (true) {
-                T fromZoneId = this.originZones.poll();
-                if (fromZoneId == null) {
-                    return;
-                }
-
-                this.counter.incCounter();
-                Coord[] fromCoords = this.coordsPerZone.get(fromZoneId);
-                if (fromCoords != null) {
-                    for (Coord fromCoord : fromCoords) {
-                        calcForRow(fromZoneId, fromCoord);
+            try {
+                while (true) {
+                    Integer fromZoneIndex = this.originZones.poll();
+                    if (fromZoneIndex == null) {
+                        return;
                     }
-                } else {
-                    // this might happen if a zone has no geometry, for whatever reason...
-                    for (T toZoneId : this.destinationZones) {
-                        invalidateEntries(fromZoneId, toZoneId);
+
+                    this.counter.incCounter();
+                    IndicatorRows rows = this.rowsProvider.apply(fromZoneIndex);
+                    Coord[] fromCoords = this.coordsPerZone[fromZoneIndex];
+                    if (fromCoords != null) {
+                        for (int fromPoint = 0; fromPoint < fromCoords.length; fromPoint++) {
+                            calcForRow(rows, this.samplingPointStops.getPointIndex(fromZoneIndex, fromPoint));
+                        }
+                    } else {
+                        // this might happen if a zone has no geometry, for whatever reason...
+                        for (int toZoneIndex = 0; toZoneIndex < this.coordsPerZone.length; toZoneIndex++) {
+                            invalidateEntries(rows, toZoneIndex);
+                        }
                     }
+                    rows.calcAverages(this.minDepartureTime, this.maxDepartureTime);
+                    this.rowSink.rowFinished(fromZoneIndex, rows);
                 }
-
+            } catch (RuntimeException | Error e) {
+                this.rowSink.failed(e);
+                throw e;
             }
         }
 
-        private void calcForRow(T fromZoneId, Coord fromCoord) {
-            double walkSpeed = this.parameters.getBeelineWalkSpeed();
+        private void calcForRow(IndicatorRows rows, int fromPointIndex) {
+            // coordinates close to each other often use the same stops, resulting in the same trees
+            List<Map<Id<TransitStopFacility>, TravelInfo>> trees = this.treeCache.getTrees(this.samplingPointStops.getStops(fromPointIndex), this::calcTrees);
 
-            Collection<TransitStopFacility> fromStops = findStopCandidates(fromCoord, this.raptor, this.parameters);
-            Map<Id<TransitStopFacility>, Double> accessTimes = new HashMap<>();
-            for (TransitStopFacility stop : fromStops) {
-                double distance = CoordUtils.calcEuclideanDistance(fromCoord, stop.getCoord());
-                double accessTime = distance / walkSpeed;
-                accessTimes.put(stop.getId(), accessTime);
-            }
-
-            List<Map<Id<TransitStopFacility>, TravelInfo>> trees = new ArrayList<>();
-
-            for (double time = this.minDepartureTime; time < this.maxDepartureTime; time += this.stepSize) {
-                Map<Id<TransitStopFacility>, TravelInfo> tree = this.raptor.calcTree(fromStops, time, this.parameters);
-                trees.add(tree);
-            }
-
-            for (T toZoneId : this.destinationZones) {
-                Coord[] toCoords = this.coordsPerZone.get(toZoneId);
+            for (int toZoneIndex = 0; toZoneIndex < this.coordsPerZone.length; toZoneIndex++) {
+                Coord[] toCoords = this.coordsPerZone[toZoneIndex];
                 if (toCoords != null) {
-                    for (Coord toCoord : toCoords) {
-                        calcForOD(fromZoneId, fromCoord, toZoneId, toCoord, accessTimes, trees);
+                    for (int toPoint = 0; toPoint < toCoords.length; toPoint++) {
+                        calcForOD(rows, fromPointIndex, toZoneIndex, this.samplingPointStops.getPointIndex(toZoneIndex, toPoint), trees);
                     }
                 } else {
                     // this might happen if a zone has no geometry, for whatever reason...
-                    invalidateEntries(fromZoneId, toZoneId);
+                    invalidateEntries(rows, toZoneIndex);
                 }
             }
         }
 
-        private void calcForOD(T fromZoneId, Coord fromCoord, T toZoneId, Coord toCoord, Map<Id<TransitStopFacility>, Double> accessTimes, List<Map<Id<TransitStopFacility>, TravelInfo>> trees) {
-            double walkSpeed = this.parameters.getBeelineWalkSpeed();
-
-            Collection<TransitStopFacility> toStops = findStopCandidates(toCoord, this.raptor, this.parameters);
-            Map<Id<TransitStopFacility>, Double> egressTimes = new HashMap<>();
-            for (TransitStopFacility stop : toStops) {
-                double distance = CoordUtils.calcEuclideanDistance(stop.getCoord(), toCoord);
-                double egressTime = distance / walkSpeed;
-                egressTimes.put(stop.getId(), egressTime);
+        private List<Map<Id<TransitStopFacility>, TravelInfo>> calcTrees(List<TransitStopFacility> fromStops) {
+            List<Map<Id<TransitStopFacility>, TravelInfo>> trees = new ArrayList<>();
+            for (double time = this.minDepartureTime; time < this.maxDepartureTime; time += this.stepSize) {
+                Map<Id<TransitStopFacility>, TravelInfo> tree = this.raptor.calcTree(fromStops, time, this.parameters);
+                trees.add(tree);
             }
+            return trees;
+        }
 
-            List<ODConnection> connections = buildODConnections(trees, egressTimes);
+        private void calcForOD(IndicatorRows rows, int fromPointIndex, int toZoneIndex, int toPointIndex, List<Map<Id<TransitStopFacility>, TravelInfo>> trees) {
+            ODConnections connections = this.connections;
+            buildODConnections(connections, trees, toPointIndex);
             if (connections.isEmpty()) {
-                invalidateEntries(fromZoneId, toZoneId);
+                invalidateEntries(rows, toZoneIndex);
                 return;
             }
 
-            connections = sortAndFilterConnections(connections);
+            connections.sortAndFilter();
 
-            double avgAdaptionTime = calcAverageAdaptionTime(connections, minDepartureTime, maxDepartureTime);
+            double avgAdaptionTime = connections.calcAverageAdaptionTime(this.minDepartureTime, this.maxDepartureTime);
 
-            this.pti.adaptionTimeMatrix.add(fromZoneId, toZoneId, (float) avgAdaptionTime);
+            rows.adaptionTime.add(toZoneIndex, (float) avgAdaptionTime);
 
-            ODConnection fastestConnection = findFastestConnection(connections);
+            int fastestConnection = connections.findFastestFiltered();
+            TravelInfo fastestTravelInfo = connections.getTravelInfo(fastestConnection);
 
-            float accessTime = accessTimes.get(fastestConnection.travelInfo.departureStop).floatValue();
-            float egressTime = (float) fastestConnection.egressTime;
-            float transferCount = (float) fastestConnection.transferCount;
-            float travelTime = (float) fastestConnection.totalTravelTime();
+            float accessTime = (float) getAccessTime(fromPointIndex, fastestTravelInfo.departureStop);
+            float egressTime = (float) connections.getEgressTime(fastestConnection);
+            float transferCount = (float) connections.getTransferCount(fastestConnection);
+            float travelTime = (float) connections.getTotalTravelTimeOf(fastestConnection);
 
             double totalDistance = 0;
             double trainDistance = 0;
             double totalInVehTime = 0;
             double trainInVehTime = 0;
 
-            RaptorRoute route = fastestConnection.travelInfo.getRaptorRoute();
+            RaptorRoute route = fastestTravelInfo.getRaptorRoute();
             for (RaptorRoute.RoutePart part : route.getParts()) {
                 if (part.line != null) {
                     // it's a non-transfer part, an actual pt stage
@@ -243,169 +499,110 @@ public class PTSkimMatrices {
             float trainShareByTravelTime = (float) (trainInVehTime / totalInVehTime);
             float trainShareByDistance = (float) (trainDistance / totalDistance);
 
-            this.pti.accessTimeMatrix.add(fromZoneId, toZoneId, accessTime);
-            this.pti.egressTimeMatrix.add(fromZoneId, toZoneId, egressTime);
-            this.pti.transferCountMatrix.add(fromZoneId, toZoneId, transferCount);
-            this.pti.travelTimeMatrix.add(fromZoneId, toZoneId, travelTime);
-            this.pti.trainDistanceShareMatrix.add(fromZoneId, toZoneId, trainShareByDistance);
-            this.pti.trainTravelTimeShareMatrix.add(fromZoneId, toZoneId, trainShareByTravelTime);
+            rows.accessTime.add(toZoneIndex, accessTime);
+            rows.egressTime.add(toZoneIndex, egressTime);
+            rows.transferCount.add(toZoneIndex, transferCount);
+            rows.travelTime.add(toZoneIndex, travelTime);
+            rows.trainDistanceShare.add(toZoneIndex, trainShareByDistance);
+            rows.trainTravelTimeShare.add(toZoneIndex, trainShareByTravelTime);
 
-            this.pti.dataCountMatrix.add(fromZoneId, toZoneId, 1);
+            rows.dataCount.add(toZoneIndex, 1);
         }
 
-        private List<ODConnection> buildODConnections(List<Map<Id<TransitStopFacility>, TravelInfo>> trees,  Map<Id<TransitStopFacility>, Double> egressTimes) {
-            List<ODConnection> connections = new ArrayList<>();
+        private void buildODConnections(ODConnections connections, List<Map<Id<TransitStopFacility>, TravelInfo>> trees, int toPointIndex) {
+            connections.clear();
+            SamplingPointStops stops = this.samplingPointStops;
+            int firstCandidate = stops.getFirstCandidate(toPointIndex);
+            int endCandidate = stops.getEndCandidate(toPointIndex);
 
             for (Map<Id<TransitStopFacility>, TravelInfo> tree : trees) {
-                for (Map.Entry<Id<TransitStopFacility>, Double> egressEntry : egressTimes.entrySet()) {
-                    Id<TransitStopFacility> egressStopId = egressEntry.getKey();
-                    Double egressTime = egressEntry.getValue();
-                    TravelInfo info = tree.get(egressStopId);
+                for (int candidate = firstCandidate; candidate < endCandidate; candidate++) {
+                    TravelInfo info = tree.get(stops.getStopId(stops.getStopIndex(candidate)));
                     if (info != null) {
-                        ODConnection connection = new ODConnection(info.ptDepartureTime, info.ptTravelTime, info.accessTime, egressTime, info.transferCount, info);
-                        connections.add(connection);
+                        connections.add(info.ptDepartureTime, info.ptTravelTime, info.accessTime, stops.getWalkTime(candidate), info.transferCount, info);
                     }
                 }
             }
-
-            return connections;
         }
 
-        static List<ODConnection> sortAndFilterConnections(List<ODConnection> connections) {
-            connections.sort((c1, c2) -> Double.compare((c1.departureTime - c1.accessTime), (c2.departureTime - c2.accessTime)));
-
-            // step forward through all connections and figure out which can be ignore because the earlier one is better
-            List<ODConnection> filteredConnections1 = new ArrayList<>();
-            ODConnection earlierConnection = null;
-            for (ODConnection connection : connections) {
-                if (earlierConnection == null) {
-                    filteredConnections1.add(connection);
-                    earlierConnection = connection;
-                } else {
-                    double timeDiff = (connection.departureTime - connection.accessTime) - (earlierConnection.departureTime - earlierConnection.accessTime);
-                    if (earlierConnection.totalTravelTime() + timeDiff > connection.totalTravelTime()) {
-                        // connection is better to earlierConnection, use it
-                        filteredConnections1.add(connection);
-                        earlierConnection = connection;
-                    }
+        private double getAccessTime(int fromPointIndex, Id<TransitStopFacility> stopId) {
+            SamplingPointStops stops = this.samplingPointStops;
+            for (int candidate = stops.getFirstCandidate(fromPointIndex); candidate < stops.getEndCandidate(fromPointIndex); candidate++) {
+                if (stops.getStopId(stops.getStopIndex(candidate)).equals(stopId)) {
+                    return stops.getWalkTime(candidate);
                 }
             }
-
-            // now step backwards through the remaining connections and figure out which can be ignored because the later one is better
-            List<ODConnection> filteredConnections = new ArrayList<>();
-            ODConnection laterConnection = null;
-
-            for (int i = filteredConnections1.size() - 1; i >= 0; i--) {
-                ODConnection connection = filteredConnections1.get(i);
-                if (laterConnection == null) {
-                    filteredConnections.add(connection);
-                    laterConnection = connection;
-                } else {
-                    double timeDiff = (laterConnection.departureTime - laterConnection.accessTime) - (connection.departureTime - connection.accessTime);
-                    if (laterConnection.totalTravelTime() + timeDiff > connection.totalTravelTime()) {
-                        // connection is better to laterConnection, use it
-                        filteredConnections.add(connection);
-                        laterConnection = connection;
-                    }
-                }
-            }
-
-            Collections.reverse(filteredConnections);
-            // now the filtered connections are in ascending departure time order
-            return filteredConnections;
+            throw new IllegalStateException("Stop " + stopId + " is not an access stop of sampling point " + fromPointIndex);
         }
 
-        private ODConnection findFastestConnection(List<ODConnection> connections) {
-            ODConnection fastest = null;
-            for (ODConnection c : connections) {
-                if (fastest == null || c.travelTime < fastest.travelTime) {
-                    fastest = c;
-                }
-            }
-            return fastest;
+        private void invalidateEntries(IndicatorRows rows, int toZoneIndex) {
+            rows.adaptionTime.set(toZoneIndex, Float.POSITIVE_INFINITY);
+            rows.frequency.set(toZoneIndex, Float.POSITIVE_INFINITY);
+            rows.travelTime.set(toZoneIndex, Float.POSITIVE_INFINITY);
+            rows.accessTime.set(toZoneIndex, Float.POSITIVE_INFINITY);
+            rows.egressTime.set(toZoneIndex, Float.POSITIVE_INFINITY);
+            rows.transferCount.set(toZoneIndex, Float.POSITIVE_INFINITY);
+            rows.trainDistanceShare.set(toZoneIndex, Float.POSITIVE_INFINITY);
+            rows.trainTravelTimeShare.set(toZoneIndex, Float.POSITIVE_INFINITY);
         }
 
-        static double calcAverageAdaptionTime(List<ODConnection> connections, double minDepartureTime, double maxDepartureTime) {
-            double prevDepartureTime = Double.NaN;
-            double nextDepartureTime = Double.NaN;
-
-            Iterator<ODConnection> connectionIterator = connections.iterator();
-            if (connectionIterator.hasNext()) {
-                ODConnection connection = connectionIterator.next();
-                nextDepartureTime = connection.departureTime - connection.accessTime;
-            }
-
-            double sum = 0.0;
-            int count = 0;
-            for (double time = minDepartureTime; time < maxDepartureTime; time += 60.0) {
-                double adaptionTime;
-
-                if (time >= nextDepartureTime) {
-                    prevDepartureTime = nextDepartureTime;
-                    if (connectionIterator.hasNext()) {
-                        ODConnection connection = connectionIterator.next();
-                        nextDepartureTime = connection.departureTime - connection.accessTime;
-                    } else {
-                        nextDepartureTime = Double.NaN;
-                    }
-                }
-
-                if (Double.isNaN(prevDepartureTime)) {
-                    adaptionTime = nextDepartureTime - time;
-                } else if (Double.isNaN(nextDepartureTime)) {
-                    adaptionTime = time - prevDepartureTime;
-                } else {
-                    adaptionTime = Math.min(time - prevDepartureTime, nextDepartureTime - time);
-                }
-
-                sum += adaptionTime;
-                count++;
-            }
-            return sum / count;
-        }
-
-        private static Collection<TransitStopFacility> findStopCandidates(Coord coord, SwissRailRaptor raptor, RaptorParameters parameters) {
-            Collection<TransitStopFacility> stops = raptor.getUnderlyingData().findNearbyStops(coord.getX(), coord.getY(), parameters.getSearchRadius());
-            if (stops.isEmpty()) {
-                TransitStopFacility nearest = raptor.getUnderlyingData().findNearestStop(coord.getX(), coord.getY());
-                double nearestStopDistance = CoordUtils.calcEuclideanDistance(coord, nearest.getCoord());
-                stops = raptor.getUnderlyingData().findNearbyStops(coord.getX(), coord.getY(), nearestStopDistance + parameters.getExtensionRadius());
-            }
-            return stops;
-        }
+    }
 
-        private void invalidateEntries(T fromZone, T toZone) {
-            this.pti.adaptionTimeMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
-            this.pti.frequencyMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
-            this.pti.travelTimeMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
-            this.pti.accessTimeMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
-            this.pti.egressTimeMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
-            this.pti.transferCountMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
-            this.pti.trainDistanceShareMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
-            this.pti.trainTravelTimeShareMatrix.set(fromZone, toZone, Float.POSITIVE_INFINITY);
+    /**
+     * The rows of all indicator matrices for one origin zone.
+     */
+    public static class IndicatorRows {
+        public final FloatMatrix.Row adaptionTime;
+        public final FloatMatrix.Row frequency;
+        public final FloatMatrix.Row travelTime;
+        public final FloatMatrix.Row accessTime;
+        public final FloatMatrix.Row egressTime;
+        public final FloatMatrix.Row transferCount;
+        public final FloatMatrix.Row trainTravelTimeShare;
+        public final FloatMatrix.Row trainDistanceShare;
+        public final FloatMatrix.Row dataCount;
+
+        IndicatorRows(int zoneCount) {
+            this.adaptionTime = FloatMatrix.Row.create(zoneCount, 0);
+            this.frequency = FloatMatrix.Row.create(zoneCount, 0);
+            this.travelTime = FloatMatrix.Row.create(zoneCount, 0);
+            this.accessTime = FloatMatrix.Row.create(zoneCount, 0);
+            this.egressTime = FloatMatrix.Row.create(zoneCount, 0);
+            this.transferCount = FloatMatrix.Row.create(zoneCount, 0);
+            this.trainTravelTimeShare = FloatMatrix.Row.create(zoneCount, 0);
+            this.trainDistanceShare = FloatMatrix.Row.create(zoneCount, 0);
+            this.dataCount = FloatMatrix.Row.create(zoneCount, 0);
         }
 
-    }
-
-    static class ODConnection {
-        final double departureTime;
-        final double travelTime;
-        final double accessTime;
-        final double egressTime;
-        final double transferCount;
-        final TravelInfo travelInfo;
-
-        ODConnection(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, TravelInfo info) {
-            this.departureTime = departureTime;
-            this.travelTime = travelTime;
-            this.accessTime = accessTime;
-            this.egressTime = egressTime;
-            this.transferCount = transferCount;
-            this.travelInfo = info;
+        IndicatorRows(PtIndicators<?> pti, int fromZoneIndex) {
+            this.adaptionTime = pti.adaptionTimeMatrix.getRow(fromZoneIndex);
+            this.frequency = pti.frequencyMatrix.getRow(fromZoneIndex);
+            this.travelTime = pti.travelTimeMatrix.getRow(fromZoneIndex);
+            this.accessTime = pti.accessTimeMatrix.getRow(fromZoneIndex);
+            this.egressTime = pti.egressTimeMatrix.getRow(fromZoneIndex);
+            this.transferCount = pti.transferCountMatrix.getRow(fromZoneIndex);
+            this.trainTravelTimeShare = pti.trainTravelTimeShareMatrix.getRow(fromZoneIndex);
+            this.trainDistanceShare = pti.trainDistanceShareMatrix.getRow(fromZoneIndex);
+            this.dataCount = pti.dataCountMatrix.getRow(fromZoneIndex);
         }
 
-        double totalTravelTime() {
-            return this.accessTime + this.travelTime + this.egressTime;
+        /**
+         * Converts the summed up values to averages, and calculates the frequencies from the average adaption times.
+         */
+        void calcAverages(double minDepartureTime, double maxDepartureTime) {
+            for (int toZoneIndex = 0; toZoneIndex < this.dataCount.size(); toZoneIndex++) {
+                float count = this.dataCount.get(toZoneIndex);
+                float avgFactor = 1.0f / count;
+                float adaptionTime = this.adaptionTime.multiply(toZoneIndex, avgFactor);
+                this.travelTime.multiply(toZoneIndex, avgFactor);
+                this.accessTime.multiply(toZoneIndex, avgFactor);
+                this.egressTime.multiply(toZoneIndex, avgFactor);
+                this.trainDistanceShare.multiply(toZoneIndex, avgFactor);
+                this.trainTravelTimeShare.multiply(toZoneIndex, avgFactor);
+                this.transferCount.multiply(toZoneIndex, avgFactor);
+                float frequency = (float) ((maxDepartureTime - minDepartureTime) / adaptionTime / 4.0);
+                this.frequency.set(toZoneIndex, frequency);
+            }
         }
     }
 
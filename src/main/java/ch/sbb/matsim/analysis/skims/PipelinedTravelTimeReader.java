@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleAbortsEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the link travel times from an events file, using a pipeline of threads:
+ * <ol>
+ *     <li>one thread reads and decompresses the file into blocks of bytes,</li>
+ *     <li>one thread parses the XML, only creating the events relevant for travel times
+ *     (link enter and leave events, and vehicles entering, leaving or aborting traffic),</li>
+ *     <li>several threads aggregate the events into travel times, each into its own
+ *     {@link TravelTimeCalculator} responsible for a partition of the links.</li>
+ * </ol>
+ * As all events of a link end up in the same partition in their original order, each calculator gets the
+ * same data for its links as a single calculator reading all events. The events about vehicles entering,
+ * leaving or aborting traffic are passed to all partitions, as the calculators use them to keep track of
+ * the vehicles' modes and positions. The returned {@link TravelTime} looks up the travel times of a link
+ * in the calculator of its partition.
+ *
+ * @author agent
+ */
+public final class PipelinedTravelTimeReader {
+
+    private static final Logger log = Logger.getLogger(PipelinedTravelTimeReader.class);
+
+    private final static int BLOCK_SIZE = 1 << 20;
+    private final static int QUEUE_CAPACITY = 16;
+    private final static int BATCH_SIZE = 10_000;
+    private final static byte[] END_OF_BLOCKS = new byte[0];
+    private final static List<Event> END_OF_EVENTS = new ArrayList<>(0);
+
+    private PipelinedTravelTimeReader() {
+    }
+
+    /**
+     * @param numberOfThreads the total number of threads to use; at least one thread is used to aggregate the events
+     *                        in addition to the reading and parsing threads.
+     */
+    public static TravelTime readTravelTimes(String eventsFilename, Network network, TravelTimeCalculatorConfigGroup config, int numberOfThreads) throws IOException {
+        int partitionCount = Math.max(1, numberOfThreads - 2);
+        TravelTimeCalculator[] calculators = new TravelTimeCalculator[partitionCount];
+        List<BlockingQueue<List<Event>>> eventQueues = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            calculators[i] = TravelTimeCalculator.create(network, config);
+            eventQueues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        }
+        BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Pipeline pipeline = new Pipeline();
+
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> runTask(() -> readBlocks(eventsFilename, blocks, pipeline), pipeline), "EventsReader"));
+        threads.add(new Thread(() -> runTask(() -> parseEvents(blocks, eventQueues, pipeline), pipeline), "EventsParser"));
+        for (int i = 0; i < partitionCount; i++) {
+            EventsManager events = EventsUtils.createEventsManager();
+            events.addHandler(calculators[i]);
+            BlockingQueue<List<Event>> queue = eventQueues.get(i);
+            threads.add(new Thread(() -> runTask(() -> aggregateEvents(queue, events, pipeline), pipeline), "TravelTimeAggregator-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (pipeline.failure != null) {
+            throw new IOException("Could not read travel times from " + eventsFilename, pipeline.failure);
+        }
+
+        TravelTime[] travelTimes = new TravelTime[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            travelTimes[i] = calculators[i].getLinkTravelTimes();
+        }
+        log.info("read travel times from " + pipeline.eventCount + " events in " + partitionCount + " partitions.");
+        return new PartitionedTravelTime(travelTimes);
+    }
+
+    private static void runTask(Task task, Pipeline pipeline) {
+        try {
+            task.run();
+        } catch (InterruptedException e) {
+            pipeline.fail(e);
+        }
+    }
+
+    static int getPartition(Id<Link> linkId, int partitionCount) {
+        return Math.floorMod(linkId.hashCode(), partitionCount);
+    }
+
+    private static void readBlocks(String eventsFilename, BlockingQueue<byte[]> blocks, Pipeline pipeline) throws InterruptedException {
+        try (InputStream in = IOUtils.getInputStream(eventsFilename)) {
+            while (!pipeline.isFailed()) {
+                byte[] block = new byte[BLOCK_SIZE];
+                int length = 0;
+                int count;
+                while (length < BLOCK_SIZE && (count = in.read(block, length, BLOCK_SIZE - length)) >= 0) {
+                    length += count;
+                }
+                if (length > 0) {
+                    blocks.put(length == BLOCK_SIZE ? block : Arrays.copyOf(block, length));
+                }
+                if (length < BLOCK_SIZE) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            pipeline.fail(e);
+        } finally {
+            blocks.put(END_OF_BLOCKS);
+        }
+    }
+
+    private static void parseEvents(BlockingQueue<byte[]> blocks, List<BlockingQueue<List<Event>>> eventQueues, Pipeline pipeline) throws InterruptedException {
+        BlockInputStream stream = new BlockInputStream(blocks, pipeline);
+        try {
+            EventsHandler handler = new EventsHandler(eventQueues, pipeline);
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(false);
+            factory.setValidating(false);
+            factory.newSAXParser().parse(stream, handler);
+            handler.flushAll();
+        } catch (IOException | SAXException | ParserConfigurationException | RuntimeException e) {
+            pipeline.fail(e);
+        } finally {
+            // make sure the reader is never blocked by a full queue
+            stream.drain();
+            for (BlockingQueue<List<Event>> queue : eventQueues) {
+                queue.put(END_OF_EVENTS);
+            }
+        }
+    }
+
+    private static void aggregateEvents(BlockingQueue<List<Event>> queue, EventsManager events, Pipeline pipeline) throws InterruptedException {
+        while (true) {
+            List<Event> batch = queue.take();
+            if (batch == END_OF_EVENTS) {
+                return;
+            }
+            if (!pipeline.isFailed()) {
+                try {
+                    for (Event event : batch) {
+                        events.processEvent(event);
+                    }
+                } catch (RuntimeException e) {
+                    // keep taking batches, so the parser is never blocked by a full queue
+                    pipeline.fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps track of failures in any of the pipeline's threads, so the other threads can stop early.
+     * Every thread always passes on the end marker to the next stage, so no thread waits forever.
+     */
+    private static final class Pipeline {
+        private volatile Throwable failure = null;
+        private volatile long eventCount = 0;
+
+        synchronized void fail(Throwable t) {
+            if (this.failure == null) {
+                this.failure = t;
+            }
+        }
+
+        boolean isFailed() {
+            return this.failure != null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Provides the blocks read by the reader thread as a continuous stream to the parser.
+     */
+    private static final class BlockInputStream extends InputStream {
+        private final BlockingQueue<byte[]> blocks;
+        private final Pipeline pipeline;
+        private byte[] block = null;
+        private int position = 0;
+        private boolean ended = false;
+
+        BlockInputStream(BlockingQueue<byte[]> blocks, Pipeline pipeline) {
+            this.blocks = blocks;
+            this.pipeline = pipeline;
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (this.ended) {
+                return false;
+            }
+            try {
+                this.block = this.blocks.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            this.position = 0;
+            if (this.block == END_OF_BLOCKS) {
+                this.ended = true;
+                this.block = null;
+                return false;
+            }
+            if (this.pipeline.isFailed()) {
+                throw new IOException("Stopped reading events, as another part of the pipeline failed.");
+            }
+            return true;
+        }
+
+        /**
+         * Discards all remaining blocks, until the reader signals the end.
+         */
+        void drain() throws InterruptedException {
+            while (!this.ended) {
+                if (this.blocks.take() == END_OF_BLOCKS) {
+                    this.ended = true;
+                }
+            }
+            this.block = null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (this.block == null || this.position == this.block.length) {
+                if (!nextBlock()) {
+                    return -1;
+                }
+            }
+            return this.block[this.position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (this.block == null || this.position == this.block.length) {
+                if (!nextBlock()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, this.block.length - this.position);
+            System.arraycopy(this.block, this.position, b, off, count);
+            this.position += count;
+            return count;
+        }
+    }
+
+    /**
+     * Creates only the events relevant for travel times and distributes them in batches to the partitions.
+     */
+    private static final class EventsHandler extends DefaultHandler {
+        private final List<BlockingQueue<List<Event>>> eventQueues;
+        private final Pipeline pipeline;
+        private final List<List<Event>> batches;
+        private long eventCount = 0;
+
+        EventsHandler(List<BlockingQueue<List<Event>>> eventQueues, Pipeline pipeline) {
+            this.eventQueues = eventQueues;
+            this.pipeline = pipeline;
+            this.batches = new ArrayList<>(eventQueues.size());
+            for (int i = 0; i < eventQueues.size(); i++) {
+                this.batches.add(new ArrayList<>(BATCH_SIZE));
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if (!"event".equals(qName)) {
+                return;
+            }
+            String type = atts.getValue("type");
+            if (LinkEnterEvent.EVENT_TYPE.equals(type)) {
+                Id<Link> linkId = Id.create(atts.getValue("link"), Link.class);
+                add(linkId, new LinkEnterEvent(getTime(atts), Id.create(atts.getValue("vehicle"), Vehicle.class), linkId));
+            } else if (LinkLeaveEvent.EVENT_TYPE.equals(type)) {
+                Id<Link> linkId = Id.create(atts.getValue("link"), Link.class);
+                add(linkId, new LinkLeaveEvent(getTime(atts), Id.create(atts.getValue("vehicle"), Vehicle.class), linkId));
+            } else if (VehicleEntersTrafficEvent.EVENT_TYPE.equals(type)) {
+                addToAll(new VehicleEntersTrafficEvent(getTime(atts), Id.create(atts.getValue("person"), Person.class),
+                        Id.create(atts.getValue("link"), Link.class), Id.create(atts.getValue("vehicle"), Vehicle.class),
+                        atts.getValue("networkMode"), getRelativePosition(atts)));
+            } else if (VehicleLeavesTrafficEvent.EVENT_TYPE.equals(type)) {
+                addToAll(new VehicleLeavesTrafficEvent(getTime(atts), Id.create(atts.getValue("person"), Person.class),
+                        Id.create(atts.getValue("link"), Link.class), Id.create(atts.getValue("vehicle"), Vehicle.class),
+                        atts.getValue("networkMode"), getRelativePosition(atts)));
+            } else if (VehicleAbortsEvent.EVENT_TYPE.equals(type)) {
+                addToAll(new VehicleAbortsEvent(getTime(atts), Id.create(atts.getValue("vehicle"), Vehicle.class), Id.create(atts.getValue("link"), Link.class)));
+            }
+        }
+
+        private static double getTime(Attributes atts) {
+            return Double.parseDouble(atts.getValue("time"));
+        }
+
+        private static double getRelativePosition(Attributes atts) {
+            String value = atts.getValue("relativePosition");
+            return value == null ? 1.0 : Double.parseDouble(value);
+        }
+
+        private void add(Id<Link> linkId, Event event) throws SAXException {
+            int partition = getPartition(linkId, this.batches.size());
+            List<Event> batch = this.batches.get(partition);
+            batch.add(event);
+            this.eventCount++;
+            if (batch.size() == BATCH_SIZE) {
+                flush(partition);
+            }
+        }
+
+        private void addToAll(Event event) throws SAXException {
+            for (int partition = 0; partition < this.batches.size(); partition++) {
+                List<Event> batch = this.batches.get(partition);
+                batch.add(event);
+                if (batch.size() == BATCH_SIZE) {
+                    flush(partition);
+                }
+            }
+            this.eventCount++;
+        }
+
+        private void flush(int partition) throws SAXException {
+            if (this.pipeline.isFailed()) {
+                throw new SAXException("Stopped parsing events, as another part of the pipeline failed.");
+            }
+            try {
+                this.eventQueues.get(partition).put(this.batches.get(partition));
+            } catch (InterruptedException e) {
+                throw new SAXException(e);
+            }
+            this.batches.set(partition, new ArrayList<>(BATCH_SIZE));
+        }
+
+        void flushAll() throws SAXException {
+            for (int partition = 0; partition < this.batches.size(); partition++) {
+                if (!this.batches.get(partition).isEmpty()) {
+                    flush(partition);
+                }
+            }
+            this.pipeline.eventCount = this.eventCount;
+        }
+    }
+
+    /**
+     * Looks up the travel time of a link in the travel time of its partition.
+     */
+    private static final class PartitionedTravelTime implements TravelTime {
+        private final TravelTime[] partitions;
+
+        PartitionedTravelTime(TravelTime[] partitions) {
+            this.partitions = partitions;
+        }
+
+        @Override
+        public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+            return this.partitions[getPartition(link.getId(), this.partitions.length)].getLinkTravelTime(link, time, person, vehicle);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Caches the RAPTOR trees calculated for a set of access stops, so they can be re-used for other
+ * sampling points resolving to exactly the same set of stops.
+ *
+ * The trees are calculated with an access time of 0 for all stops, so they only depend on the set
+ * of stops, but not on the actual coordinate. To make the trees independent of the order in which
+ * the stops were found (which might otherwise influence the result in case of ties), the trees are
+ * always calculated with the stops sorted by their id.
+ *
+ * The cache is shared by all worker threads. Its memory usage is limited by the total number of
+ * stops contained in the cached trees; if the limit is reached, the least recently used entries
+ * are removed. If two threads request the same stop set at the same time, the trees may be calculated
+ * twice, which is harmless as the results are identical.
+ *
+ * @author agent
+ */
+final class RaptorTreeCache {
+
+    private final static Comparator<TransitStopFacility> STOP_COMPARATOR = Comparator.comparing(TransitStopFacility::getId);
+
+    private final long maxEntries;
+    private final LinkedHashMap<StopSet, CachedTrees> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedEntries = 0;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param maxEntries the maximum number of tree entries (i.e. the sum of the sizes of all cached trees) to keep in the cache.
+     */
+    RaptorTreeCache(long maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached trees for the given stops, or calculates them with <code>calculator</code> if they are not cached yet.
+     *
+     * @param calculator calculates the trees for a list of stops, which will be sorted by id.
+     */
+    List<Map<Id<TransitStopFacility>, TravelInfo>> getTrees(Collection<TransitStopFacility> stops, Function<List<TransitStopFacility>, List<Map<Id<TransitStopFacility>, TravelInfo>>> calculator) {
+        List<TransitStopFacility> sortedStops = new ArrayList<>(stops);
+        sortedStops.sort(STOP_COMPARATOR);
+        StopSet key = new StopSet(sortedStops);
+
+        synchronized (this) {
+            CachedTrees cached = this.cache.get(key);
+            if (cached != null) {
+                this.hits.incrementAndGet();
+                return cached.trees;
+            }
+        }
+        this.misses.incrementAndGet();
+
+        List<Map<Id<TransitStopFacility>, TravelInfo>> trees = calculator.apply(sortedStops);
+        long entryCount = 0;
+        for (Map<Id<TransitStopFacility>, TravelInfo> tree : trees) {
+            entryCount += tree.size();
+        }
+        if (entryCount <= this.maxEntries) {
+            synchronized (this) {
+                // another thread might have been faster, in which case its (identical) entry gets replaced
+                CachedTrees previous = this.cache.put(key, new CachedTrees(trees, entryCount));
+                this.cachedEntries += entryCount - (previous == null ? 0 : previous.entryCount);
+                Iterator<CachedTrees> iter = this.cache.values().iterator();
+                while (this.cachedEntries > this.maxEntries && iter.hasNext()) {
+                    CachedTrees eldest = iter.next();
+                    iter.remove();
+                    this.cachedEntries -= eldest.entryCount;
+                }
+            }
+        }
+        return trees;
+    }
+
+    long getHits() {
+        return this.hits.get();
+    }
+
+    long getMisses() {
+        return this.misses.get();
+    }
+
+    private static final class CachedTrees {
+        final List<Map<Id<TransitStopFacility>, TravelInfo>> trees;
+        final long entryCount;
+
+        CachedTrees(List<Map<Id<TransitStopFacility>, TravelInfo>> trees, long entryCount) {
+            this.trees = trees;
+            this.entryCount = entryCount;
+        }
+    }
+
+    private static final class StopSet {
+        private final Object[] stopIds;
+        private final int hashCode;
+
+        StopSet(List<TransitStopFacility> sortedStops) {
+            this.stopIds = new Object[sortedStops.size()];
+            for (int i = 0; i < this.stopIds.length; i++) {
+                this.stopIds[i] = sortedStops.get(i).getId();
+            }
+            this.hashCode = Arrays.hashCode(this.stopIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StopSet && Arrays.equals(this.stopIds, ((StopSet) o).stopIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
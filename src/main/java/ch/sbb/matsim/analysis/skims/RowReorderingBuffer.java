@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects rows calculated by multiple threads in arbitrary order, and passes them on to
+ * a consumer in the order of their indices, starting at index 0.
+ *
+ * Rows that cannot be passed on yet are kept in the buffer. To limit the memory usage,
+ * a thread adding a row waits if its row is too far ahead of the next row to be passed on.
+ * The thread adding the next expected row never has to wait, so this cannot dead-lock as long
+ * as the rows are calculated in (roughly) increasing order, e.g. by taking them from a queue.
+ *
+ * The rows are passed on to the consumer outside of the buffer's lock, by one thread at a time:
+ * the first thread finding rows ready to be passed on drains them, while other threads only add
+ * their rows to the buffer and continue with their calculation, instead of waiting for the
+ * consumer's (typically slow) I/O.
+ *
+ * @param <R> the type of the rows
+ *
+ * @author agent
+ */
+final class RowReorderingBuffer<R> {
+
+    @FunctionalInterface
+    interface RowConsumer<R> {
+        void accept(int index, R row) throws IOException;
+    }
+
+    private final int capacity;
+    private final RowConsumer<R> consumer;
+    private final Map<Integer, R> pendingRows = new HashMap<>();
+    private int nextIndex = 0;
+    private boolean draining = false;
+    private Throwable failure = null;
+
+    RowReorderingBuffer(int capacity, RowConsumer<R> consumer) {
+        this.capacity = Math.max(1, capacity);
+        this.consumer = consumer;
+    }
+
+    void add(int index, R row) {
+        synchronized (this) {
+            while (this.failure == null && index - this.nextIndex >= this.capacity) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            if (this.failure != null) {
+                throw new RuntimeException("Aborting, writing rows failed.", this.failure);
+            }
+            this.pendingRows.put(index, row);
+            if (this.draining) {
+                // another thread is passing on the rows and will also take care of this one if it is the next
+                return;
+            }
+            this.draining = true;
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            int index;
+            R nextRow;
+            synchronized (this) {
+                index = this.nextIndex;
+                nextRow = this.pendingRows.remove(index);
+                if (nextRow == null || this.failure != null) {
+                    this.draining = false;
+                    return;
+                }
+            }
+            try {
+                this.consumer.accept(index, nextRow);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    this.draining = false;
+                }
+                fail(e);
+                throw new RuntimeException("Writing row " + index + " failed.", e);
+            }
+            synchronized (this) {
+                this.nextIndex++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Aborts the processing, e.g. because the calculation of a row failed. Threads waiting to add
+     * their rows are released with an exception.
+     */
+    synchronized void fail(Throwable t) {
+        if (this.failure == null) {
+            this.failure = t;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @throws IOException if not all rows up to <code>expectedRowCount</code> were passed on to the consumer.
+     */
+    synchronized void checkCompleted(int expectedRowCount) throws IOException {
+        if (this.failure != null) {
+            throw new IOException("Not all rows could be written.", this.failure);
+        }
+        if (this.nextIndex != expectedRowCount) {
+            throw new IOException("Only " + this.nextIndex + " of " + expectedRowCount + " rows were written.");
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stops that can be used to access or egress from each sampling point, together with the walk times.
+ *
+ * The stops are searched once per sampling point before the actual matrix calculation starts. The data is
+ * stored in a few flat arrays: the candidates of a sampling point are found at the positions
+ * <code>getFirstCandidate(point)</code> (inclusive) to <code>getFirstCandidate(point + 1)</code> (exclusive), each
+ * candidate consisting of a stop index and the walk time between the sampling point and the stop.
+ * Once created, the data is read-only and can be shared by all worker threads.
+ *
+ * @author agent
+ */
+final class SamplingPointStops {
+
+    private final int[] firstPointOfZone; // the global index of the first sampling point of each zone, -1 if the zone has no sampling points
+    private final int[] firstCandidateOfPoint;
+    private final int[] candidateStopIndices;
+    private final double[] candidateWalkTimes;
+    private final TransitStopFacility[] stops;
+    private final Id<TransitStopFacility>[] stopIds;
+
+    @SuppressWarnings("unchecked")
+    private SamplingPointStops(int[] firstPointOfZone, int[] firstCandidateOfPoint, int[] candidateStopIndices, double[] candidateWalkTimes, List<TransitStopFacility> stops) {
+        this.firstPointOfZone = firstPointOfZone;
+        this.firstCandidateOfPoint = firstCandidateOfPoint;
+        this.candidateStopIndices = candidateStopIndices;
+        this.candidateWalkTimes = candidateWalkTimes;
+        this.stops = stops.toArray(new TransitStopFacility[0]);
+        this.stopIds = new Id[this.stops.length];
+        for (int i = 0; i < this.stops.length; i++) {
+            this.stopIds[i] = this.stops[i].getId();
+        }
+    }
+
+    static SamplingPointStops create(SwissRailRaptorData raptorData, Coord[][] coordsPerZone, RaptorParameters parameters) {
+        double walkSpeed = parameters.getBeelineWalkSpeed();
+        int zoneCount = coordsPerZone.length;
+        int[] firstPointOfZone = new int[zoneCount];
+        int pointCount = 0;
+        for (int zoneIndex = 0; zoneIndex < zoneCount; zoneIndex++) {
+            Coord[] coords = coordsPerZone[zoneIndex];
+            firstPointOfZone[zoneIndex] = coords == null ? -1 : pointCount;
+            pointCount += coords == null ? 0 : coords.length;
+        }
+
+        int[] firstCandidateOfPoint = new int[pointCount + 1];
+        int[] candidateStopIndices = new int[Math.max(16, pointCount * 4)];
+        double[] candidateWalkTimes = new double[candidateStopIndices.length];
+        Map<Id<TransitStopFacility>, Integer> stopIndices = new HashMap<>();
+        List<TransitStopFacility> stops = new ArrayList<>();
+
+        int point = 0;
+        int candidateCount = 0;
+        for (Coord[] coords : coordsPerZone) {
+            if (coords == null) {
+                continue;
+            }
+            for (Coord coord : coords) {
+                firstCandidateOfPoint[point] = candidateCount;
+                Collection<TransitStopFacility> candidates = findStopCandidates(coord, raptorData, parameters);
+                if (candidateCount + candidates.size() > candidateStopIndices.length) {
+                    int newLength = Math.max(candidateStopIndices.length * 2, candidateCount + candidates.size());
+                    candidateStopIndices = Arrays.copyOf(candidateStopIndices, newLength);
+                    candidateWalkTimes = Arrays.copyOf(candidateWalkTimes, newLength);
+                }
+                for (TransitStopFacility stop : candidates) {
+                    Integer stopIndex = stopIndices.get(stop.getId());
+                    if (stopIndex == null) {
+                        stopIndex = stops.size();
+                        stopIndices.put(stop.getId(), stopIndex);
+                        stops.add(stop);
+                    }
+                    candidateStopIndices[candidateCount] = stopIndex;
+                    candidateWalkTimes[candidateCount] = CoordUtils.calcEuclideanDistance(coord, stop.getCoord()) / walkSpeed;
+                    candidateCount++;
+                }
+                point++;
+            }
+        }
+        firstCandidateOfPoint[pointCount] = candidateCount;
+
+        return new SamplingPointStops(firstPointOfZone, firstCandidateOfPoint,
+                Arrays.copyOf(candidateStopIndices, candidateCount), Arrays.copyOf(candidateWalkTimes, candidateCount), stops);
+    }
+
+    static Collection<TransitStopFacility> findStopCandidates(Coord coord, SwissRailRaptorData raptorData, RaptorParameters parameters) {
+        Collection<TransitStopFacility> stops = raptorData.findNearbyStops(coord.getX(), coord.getY(), parameters.getSearchRadius());
+        if (stops.isEmpty()) {
+            TransitStopFacility nearest = raptorData.findNearestStop(coord.getX(), coord.getY());
+            double nearestStopDistance = CoordUtils.calcEuclideanDistance(coord, nearest.getCoord());
+            stops = raptorData.findNearbyStops(coord.getX(), coord.getY(), nearestStopDistance + parameters.getExtensionRadius());
+        }
+        return stops;
+    }
+
+    /**
+     * @return the global index of the given sampling point of a zone.
+     */
+    int getPointIndex(int zoneIndex, int pointInZone) {
+        return this.firstPointOfZone[zoneIndex] + pointInZone;
+    }
+
+    int getFirstCandidate(int pointIndex) {
+        return this.firstCandidateOfPoint[pointIndex];
+    }
+
+    int getEndCandidate(int pointIndex) {
+        return this.firstCandidateOfPoint[pointIndex + 1];
+    }
+
+    int getStopIndex(int candidate) {
+        return this.candidateStopIndices[candidate];
+    }
+
+    double getWalkTime(int candidate) {
+        return this.candidateWalkTimes[candidate];
+    }
+
+    TransitStopFacility getStop(int stopIndex) {
+        return this.stops[stopIndex];
+    }
+
+    Id<TransitStopFacility> getStopId(int stopIndex) {
+        return this.stopIds[stopIndex];
+    }
+
+    List<TransitStopFacility> getStops(int pointIndex) {
+        int first = getFirstCandidate(pointIndex);
+        int end = getEndCandidate(pointIndex);
+        List<TransitStopFacility> stops = new ArrayList<>(end - first);
+        for (int candidate = first; candidate < end; candidate++) {
+            stops.add(this.stops[this.candidateStopIndices[candidate]]);
+        }
+        return stops;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.MinimalTransferTimes;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The differences between a baseline transit schedule and a modified version of it, as far as they are
+ * relevant for the PT skim matrices.
+ *
+ * A transit route is considered as changed if it was added, removed, or if its mode, its stops or its
+ * departures differ. The row of an origin zone can only differ from the baseline if a changed route can
+ * be reached from the zone's sampling points, or if a changed minimal transfer time can be used. To find
+ * these origin zones, the latest departure time from which one can still catch a departure of a changed
+ * route is calculated for each stop, using a backwards connection scan over all unchanged routes. An origin
+ * zone is affected if any of its access stops can be left at or after the start of the time window and
+ * still reach a changed route. The scan ignores walk and transfer times, and all costs, so it only over-estimates
+ * the affected zones.
+ *
+ * If the served stops themselves changed, the access and egress stops of the sampling points might change as
+ * well, which potentially affects every cell of the matrices. In this case, all origin zones are affected.
+ *
+ * @author agent
+ */
+final class ScheduleChanges {
+
+    private static final Logger log = Logger.getLogger(ScheduleChanges.class);
+
+    private final List<TransitRoute> changedRoutes = new ArrayList<>();
+    private final List<TransitRoute> unchangedRoutes = new ArrayList<>();
+    private final Set<Id<TransitStopFacility>> changedTransferStops = new HashSet<>();
+    private final Map<Id<TransitStopFacility>, List<Id<TransitStopFacility>>> transfersFrom = new HashMap<>();
+    private final List<TransitStopFacility> servedStops = new ArrayList<>();
+    private boolean stopsChanged = false;
+
+    private ScheduleChanges() {
+    }
+
+    static ScheduleChanges compare(TransitSchedule baseline, TransitSchedule schedule) {
+        ScheduleChanges changes = new ScheduleChanges();
+        Map<Id<TransitStopFacility>, TransitStopFacility> servedStops = getServedStops(schedule);
+        changes.servedStops.addAll(servedStops.values());
+        changes.stopsChanged = !getStopCoords(getServedStops(baseline)).equals(getStopCoords(servedStops));
+
+        for (TransitLine line : schedule.getTransitLines().values()) {
+            TransitLine baselineLine = baseline.getTransitLines().get(line.getId());
+            for (TransitRoute route : line.getRoutes().values()) {
+                TransitRoute baselineRoute = baselineLine == null ? null : baselineLine.getRoutes().get(route.getId());
+                if (baselineRoute != null && isSameRoute(baselineRoute, route)) {
+                    changes.unchangedRoutes.add(route);
+                } else {
+                    changes.changedRoutes.add(route);
+                    if (baselineRoute != null) {
+                        changes.changedRoutes.add(baselineRoute);
+                    }
+                }
+            }
+        }
+        for (TransitLine baselineLine : baseline.getTransitLines().values()) {
+            TransitLine line = schedule.getTransitLines().get(baselineLine.getId());
+            for (TransitRoute baselineRoute : baselineLine.getRoutes().values()) {
+                if (line == null || !line.getRoutes().containsKey(baselineRoute.getId())) {
+                    changes.changedRoutes.add(baselineRoute);
+                }
+            }
+        }
+
+        Map<List<Id<TransitStopFacility>>, Double> baselineTransferTimes = getMinimalTransferTimes(baseline.getMinimalTransferTimes());
+        Map<List<Id<TransitStopFacility>>, Double> transferTimes = getMinimalTransferTimes(schedule.getMinimalTransferTimes());
+        for (Map<List<Id<TransitStopFacility>>, Double> times : Arrays.asList(baselineTransferTimes, transferTimes)) {
+            for (Map.Entry<List<Id<TransitStopFacility>>, Double> e : times.entrySet()) {
+                Id<TransitStopFacility> fromStopId = e.getKey().get(0);
+                Id<TransitStopFacility> toStopId = e.getKey().get(1);
+                if (!Objects.equals(baselineTransferTimes.get(e.getKey()), transferTimes.get(e.getKey()))) {
+                    changes.changedTransferStops.add(fromStopId);
+                }
+                changes.transfersFrom.computeIfAbsent(toStopId, id -> new ArrayList<>(2)).add(fromStopId);
+            }
+        }
+        return changes;
+    }
+
+    private static Map<Id<TransitStopFacility>, TransitStopFacility> getServedStops(TransitSchedule schedule) {
+        Map<Id<TransitStopFacility>, TransitStopFacility> stops = new LinkedHashMap<>();
+        for (TransitLine line : schedule.getTransitLines().values()) {
+            for (TransitRoute route : line.getRoutes().values()) {
+                for (TransitRouteStop routeStop : route.getStops()) {
+                    TransitStopFacility stop = routeStop.getStopFacility();
+                    stops.put(stop.getId(), stop);
+                }
+            }
+        }
+        return stops;
+    }
+
+    private static Map<Id<TransitStopFacility>, Coord> getStopCoords(Map<Id<TransitStopFacility>, TransitStopFacility> stops) {
+        Map<Id<TransitStopFacility>, Coord> coords = new HashMap<>();
+        for (TransitStopFacility stop : stops.values()) {
+            coords.put(stop.getId(), stop.getCoord());
+        }
+        return coords;
+    }
+
+    private static Map<List<Id<TransitStopFacility>>, Double> getMinimalTransferTimes(MinimalTransferTimes mtt) {
+        Map<List<Id<TransitStopFacility>>, Double> times = new HashMap<>();
+        MinimalTransferTimes.MinimalTransferTimesIterator iter = mtt.iterator();
+        while (iter.hasNext()) {
+            iter.next();
+            times.put(Arrays.asList(iter.getFromStopId(), iter.getToStopId()), iter.getSeconds());
+        }
+        return times;
+    }
+
+    static boolean isSameRoute(TransitRoute route1, TransitRoute route2) {
+        if (!Objects.equals(route1.getTransportMode(), route2.getTransportMode())) {
+            return false;
+        }
+        List<TransitRouteStop> stops1 = route1.getStops();
+        List<TransitRouteStop> stops2 = route2.getStops();
+        if (stops1.size() != stops2.size()) {
+            return false;
+        }
+        for (int i = 0; i < stops1.size(); i++) {
+            TransitRouteStop stop1 = stops1.get(i);
+            TransitRouteStop stop2 = stops2.get(i);
+            if (!stop1.getStopFacility().getId().equals(stop2.getStopFacility().getId())
+                    || Double.compare(stop1.getArrivalOffset(), stop2.getArrivalOffset()) != 0
+                    || Double.compare(stop1.getDepartureOffset(), stop2.getDepartureOffset()) != 0
+                    || stop1.isAwaitDepartureTime() != stop2.isAwaitDepartureTime()) {
+                return false;
+            }
+        }
+        return Arrays.equals(getDepartureTimes(route1), getDepartureTimes(route2));
+    }
+
+    private static double[] getDepartureTimes(TransitRoute route) {
+        double[] times = new double[route.getDepartures().size()];
+        int i = 0;
+        for (Departure departure : route.getDepartures().values()) {
+            times[i++] = departure.getDepartureTime();
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    boolean hasStopChanges() {
+        return this.stopsChanged;
+    }
+
+    boolean hasChanges() {
+        return this.stopsChanged || !this.changedRoutes.isEmpty() || !this.changedTransferStops.isEmpty();
+    }
+
+    /**
+     * @return the indices of all origin zones whose rows might differ from the baseline.
+     */
+    BitSet findAffectedOrigins(SwissRailRaptorData raptorData, SamplingPointStops samplingPointStops, Coord[][] coordsPerZone, double minDepartureTime) {
+        BitSet affectedOrigins = new BitSet(coordsPerZone.length);
+        if (this.stopsChanged) {
+            affectedOrigins.set(0, coordsPerZone.length);
+            return affectedOrigins;
+        }
+        if (!hasChanges()) {
+            return affectedOrigins;
+        }
+
+        StopIndex stopIndex = new StopIndex(this.servedStops, raptorData, this.transfersFrom);
+        double[] latestDepartures = calcLatestDepartures(stopIndex);
+
+        for (int zoneIndex = 0; zoneIndex < coordsPerZone.length; zoneIndex++) {
+            Coord[] coords = coordsPerZone[zoneIndex];
+            if (coords == null) {
+                continue;
+            }
+            // the trees start at the access stops at each departure time of the time window
+            for (int point = 0; point < coords.length && !affectedOrigins.get(zoneIndex); point++) {
+                int pointIndex = samplingPointStops.getPointIndex(zoneIndex, point);
+                for (int candidate = samplingPointStops.getFirstCandidate(pointIndex); candidate < samplingPointStops.getEndCandidate(pointIndex); candidate++) {
+                    int stop = stopIndex.getIndex(samplingPointStops.getStopId(samplingPointStops.getStopIndex(candidate)));
+                    if (latestDepartures[stop] >= minDepartureTime) {
+                        affectedOrigins.set(zoneIndex);
+                        break;
+                    }
+                }
+            }
+        }
+        log.info("schedule changes: " + this.changedRoutes.size() + " changed transit routes, " + this.changedTransferStops.size()
+                + " stops with changed minimal transfer times, " + affectedOrigins.cardinality() + " of " + coordsPerZone.length + " origin zones are affected.");
+        return affectedOrigins;
+    }
+
+    /**
+     * Calculates for each stop the latest time one can be at the stop and still catch a departure of a changed route,
+     * or {@link Double#NEGATIVE_INFINITY} if no changed route can be reached from the stop.
+     */
+    private double[] calcLatestDepartures(StopIndex stopIndex) {
+        double[] latestDepartures = new double[stopIndex.size()];
+        Arrays.fill(latestDepartures, Double.NEGATIVE_INFINITY);
+
+        for (TransitRoute route : this.changedRoutes) {
+            List<TransitRouteStop> stops = route.getStops();
+            for (Departure departure : route.getDepartures().values()) {
+                for (int i = 0; i < stops.size() - 1; i++) {
+                    TransitRouteStop routeStop = stops.get(i);
+                    int stop = stopIndex.getIndex(routeStop.getStopFacility().getId());
+                    if (stop >= 0) {
+                        reach(stopIndex, latestDepartures, stop, departure.getDepartureTime() + getDepartureOffset(routeStop));
+                    }
+                }
+            }
+        }
+        for (Id<TransitStopFacility> stopId : this.changedTransferStops) {
+            int stop = stopIndex.getIndex(stopId);
+            if (stop >= 0) {
+                reach(stopIndex, latestDepartures, stop, Double.POSITIVE_INFINITY);
+            }
+        }
+
+        Connections connections = new Connections(this.unchangedRoutes, stopIndex);
+        boolean[] tripReachesChange = new boolean[connections.tripCount];
+        for (int c : connections.getSortedByDecreasingDepartureTime()) {
+            int trip = connections.trip[c];
+            if (tripReachesChange[trip] || connections.arrivalTime[c] <= latestDepartures[connections.toStop[c]]) {
+                tripReachesChange[trip] = true;
+                reach(stopIndex, latestDepartures, connections.fromStop[c], connections.departureTime[c]);
+            }
+        }
+        return latestDepartures;
+    }
+
+    private static void reach(StopIndex stopIndex, double[] latestDepartures, int stop, double time) {
+        if (time > latestDepartures[stop]) {
+            latestDepartures[stop] = time;
+            // transfers are assumed to take no time, which can only over-estimate the reachable stops
+            for (int fromStop : stopIndex.getTransferStops(stop)) {
+                if (time > latestDepartures[fromStop]) {
+                    latestDepartures[fromStop] = time;
+                }
+            }
+        }
+    }
+
+    private static double getDepartureOffset(TransitRouteStop routeStop) {
+        double offset = routeStop.getDepartureOffset();
+        return isUndefinedTime(offset) ? routeStop.getArrivalOffset() : offset;
+    }
+
+    private static double getArrivalOffset(TransitRouteStop routeStop) {
+        double offset = routeStop.getArrivalOffset();
+        return isUndefinedTime(offset) ? routeStop.getDepartureOffset() : offset;
+    }
+
+    private static boolean isUndefinedTime(double time) {
+        return Time.isUndefinedTime(time) || Double.isNaN(time);
+    }
+
+    /**
+     * Maps the served stops to consecutive indices and stores the stops from which one can transfer to each stop.
+     */
+    private static final class StopIndex {
+        private final Map<Id<TransitStopFacility>, Integer> indices = new HashMap<>();
+        private final int[][] transferStops;
+
+        StopIndex(List<TransitStopFacility> stops, SwissRailRaptorData raptorData, Map<Id<TransitStopFacility>, List<Id<TransitStopFacility>>> transfersFrom) {
+            for (TransitStopFacility stop : stops) {
+                this.indices.put(stop.getId(), this.indices.size());
+            }
+            double transferDistance = raptorData.getConfig().getBeelineWalkConnectionDistance();
+            this.transferStops = new int[stops.size()][];
+            for (int i = 0; i < stops.size(); i++) {
+                TransitStopFacility stop = stops.get(i);
+                Set<Integer> fromStops = new HashSet<>();
+                // the transfers based on distance are symmetric
+                for (TransitStopFacility nearbyStop : raptorData.findNearbyStops(stop.getCoord().getX(), stop.getCoord().getY(), transferDistance)) {
+                    Integer fromStop = this.indices.get(nearbyStop.getId());
+                    if (fromStop != null) {
+                        fromStops.add(fromStop);
+                    }
+                }
+                for (Id<TransitStopFacility> fromStopId : transfersFrom.getOrDefault(stop.getId(), Collections.emptyList())) {
+                    Integer fromStop = this.indices.get(fromStopId);
+                    if (fromStop != null) {
+                        fromStops.add(fromStop);
+                    }
+                }
+                this.transferStops[i] = fromStops.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        int size() {
+            return this.transferStops.length;
+        }
+
+        int getIndex(Id<TransitStopFacility> stopId) {
+            Integer index = this.indices.get(stopId);
+            return index == null ? -1 : index;
+        }
+
+        int[] getTransferStops(int stop) {
+            return this.transferStops[stop];
+        }
+    }
+
+    /**
+     * All connections, i.e. the rides of a single departure from one stop to the next, of a set of routes.
+     */
+    private static final class Connections {
+        final int[] fromStop;
+        final int[] toStop;
+        final int[] trip;
+        final double[] departureTime;
+        final double[] arrivalTime;
+        final int tripCount;
+
+        Connections(List<TransitRoute> routes, StopIndex stopIndex) {
+            int count = 0;
+            for (TransitRoute route : routes) {
+                count += route.getDepartures().size() * Math.max(0, route.getStops().size() - 1);
+            }
+            this.fromStop = new int[count];
+            this.toStop = new int[count];
+            this.trip = new int[count];
+            this.departureTime = new double[count];
+            this.arrivalTime = new double[count];
+
+            int c = 0;
+            int tripIndex = 0;
+            for (TransitRoute route : routes) {
+                List<TransitRouteStop> stops = route.getStops();
+                for (Departure departure : route.getDepartures().values()) {
+                    double time = departure.getDepartureTime();
+                    // the connections of a trip are added in their order along the route
+                    for (int i = 0; i < stops.size() - 1; i++) {
+                        TransitRouteStop from = stops.get(i);
+                        TransitRouteStop to = stops.get(i + 1);
+                        this.fromStop[c] = stopIndex.getIndex(from.getStopFacility().getId());
+                        this.toStop[c] = stopIndex.getIndex(to.getStopFacility().getId());
+                        this.trip[c] = tripIndex;
+                        this.departureTime[c] = time + getDepartureOffset(from);
+                        this.arrivalTime[c] = time + getArrivalOffset(to);
+                        c++;
+                    }
+                    tripIndex++;
+                }
+            }
+            this.tripCount = tripIndex;
+        }
+
+        /**
+         * @return the connection indices, sorted by decreasing departure time. Connections of the same trip with the same
+         * departure time (e.g. because of travel times of 0 seconds) are sorted in reverse order along the route.
+         */
+        int[] getSortedByDecreasingDepartureTime() {
+            Integer[] order = new Integer[this.fromStop.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (c1, c2) -> {
+                int cmp = Double.compare(this.departureTime[c2], this.departureTime[c1]);
+                return cmp != 0 ? cmp : Integer.compare(c2, c1);
+            });
+            return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs several phases of the skim calculation (e.g. car, pt and beeline) concurrently, sharing a common
+ * budget of worker threads.
+ *
+ * All phases are started at the same time. A phase can load its input (network, schedule, events, ...) without
+ * using any of the shared worker threads, and only requests its workers with {@link PhaseContext#acquireWorkers()}
+ * once it starts the actual computation. This way, loading the input of one phase overlaps with the computation
+ * of another phase, while the total number of computing threads never exceeds the size of the pool.
+ * Each phase has its own thread budget, so a phase with a small budget can run concurrently to another one.
+ *
+ * After all phases have finished, the wall-clock time, the time waiting for workers and the CPU time of each phase
+ * are logged. The CPU time is measured by periodically sampling all threads started by the phase, so threads
+ * living shorter than the sampling interval might only be partially accounted for.
+ *
+ * @author agent
+ */
+public final class SkimPhaseScheduler {
+
+    private static final Logger log = Logger.getLogger(SkimPhaseScheduler.class);
+    private static final long CPU_SAMPLING_INTERVAL_MILLIS = 100;
+
+    private final int poolSize;
+    private final Semaphore workers;
+    private final List<ScheduledPhase> phases = new ArrayList<>();
+
+    public SkimPhaseScheduler(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The pool requires at least one thread, but got " + poolSize);
+        }
+        this.poolSize = poolSize;
+        this.workers = new Semaphore(poolSize, true);
+    }
+
+    /**
+     * @param threadBudget the maximum number of worker threads the phase may use, at most the size of the pool.
+     */
+    public void addPhase(String name, int threadBudget, Phase phase) {
+        if (threadBudget < 1) {
+            throw new IllegalArgumentException("Phase " + name + " requires at least one thread, but got " + threadBudget);
+        }
+        this.phases.add(new ScheduledPhase(name, Math.min(threadBudget, this.poolSize), phase));
+    }
+
+    /**
+     * Runs all added phases concurrently and waits until all of them have finished.
+     * If one of the phases fails, the other phases still run to completion, and the first failure is then re-thrown.
+     */
+    public List<PhaseStatistics> run() throws IOException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        boolean measureCpu = threadBean.isThreadCpuTimeSupported();
+        if (measureCpu && !threadBean.isThreadCpuTimeEnabled()) {
+            threadBean.setThreadCpuTimeEnabled(true);
+        }
+
+        for (ScheduledPhase phase : this.phases) {
+            phase.thread.start();
+        }
+
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (ScheduledPhase phase : this.phases) {
+                if (measureCpu) {
+                    phase.sampleCpuTime(threadBean);
+                }
+                if (phase.thread.isAlive()) {
+                    running = true;
+                }
+            }
+            if (running) {
+                try {
+                    Thread.sleep(CPU_SAMPLING_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        List<PhaseStatistics> statistics = new ArrayList<>();
+        Throwable failure = null;
+        for (ScheduledPhase phase : this.phases) {
+            PhaseStatistics stats = new PhaseStatistics(phase.name, phase.endNanos - phase.startNanos, phase.waitNanos,
+                    measureCpu ? phase.getCpuTimeNanos() : -1);
+            statistics.add(stats);
+            log.info("phase " + stats.name + ": wall-clock time " + formatNanos(stats.wallTimeNanos)
+                    + ", waiting for workers " + formatNanos(stats.waitTimeNanos)
+                    + ", CPU time " + (stats.cpuTimeNanos < 0 ? "n/a" : formatNanos(stats.cpuTimeNanos))
+                    + (phase.failure == null ? "" : ", FAILED"));
+            if (failure == null) {
+                failure = phase.failure;
+            }
+        }
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) failure).getCause();
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new RuntimeException(failure);
+        }
+        return statistics;
+    }
+
+    private static String formatNanos(long nanos) {
+        return String.format("%.1f s", nanos / 1e9);
+    }
+
+    /**
+     * A phase of the calculation, running in its own thread.
+     */
+    @FunctionalInterface
+    public interface Phase {
+        void run(PhaseContext context) throws Exception;
+    }
+
+    /**
+     * Gives a phase access to the shared workers.
+     */
+    @FunctionalInterface
+    public interface PhaseContext {
+
+        /**
+         * Blocks until the thread budget of the phase is available in the shared pool. Calling it again
+         * without releasing the workers in between returns immediately.
+         *
+         * @return the number of threads the phase may use for its computation.
+         */
+        int acquireWorkers();
+
+        /**
+         * Returns the workers to the shared pool, e.g. before the phase writes its results.
+         * The workers are released automatically when the phase ends.
+         */
+        default void releaseWorkers() {
+        }
+
+        /**
+         * @return a context for running a phase on its own, with a fixed number of threads.
+         */
+        static PhaseContext fixed(int numberOfThreads) {
+            return () -> numberOfThreads;
+        }
+    }
+
+    public static final class PhaseStatistics {
+        public final String name;
+        public final long wallTimeNanos;
+        public final long waitTimeNanos;
+        /** -1 if the JVM does not support measuring the CPU time of threads. */
+        public final long cpuTimeNanos;
+
+        PhaseStatistics(String name, long wallTimeNanos, long waitTimeNanos, long cpuTimeNanos) {
+            this.name = name;
+            this.wallTimeNanos = wallTimeNanos;
+            this.waitTimeNanos = waitTimeNanos;
+            this.cpuTimeNanos = cpuTimeNanos;
+        }
+    }
+
+    private final class ScheduledPhase implements PhaseContext {
+        private final String name;
+        private final int threadBudget;
+        private final ThreadGroup threadGroup;
+        private final Thread thread;
+        private final Map<Long, Long> cpuTimePerThread = new HashMap<>();
+        private volatile boolean hasWorkers = false;
+        private volatile long startNanos;
+        private volatile long endNanos;
+        private volatile long waitNanos = 0;
+        private volatile Throwable failure = null;
+
+        ScheduledPhase(String name, int threadBudget, Phase phase) {
+            this.name = name;
+            this.threadBudget = threadBudget;
+            // all threads created by the phase belong to its thread group, which allows to measure their CPU time
+            this.threadGroup = new ThreadGroup("SkimPhase-" + name);
+            this.thread = new Thread(this.threadGroup, () -> {
+                this.startNanos = System.nanoTime();
+                try {
+                    log.info("start phase " + name + " with a budget of " + threadBudget + " threads");
+                    phase.run(this);
+                } catch (Throwable t) {
+                    log.error("phase " + name + " failed.", t);
+                    this.failure = t;
+                } finally {
+                    releaseWorkers();
+                    this.endNanos = System.nanoTime();
+                }
+            }, "SkimPhase-" + name);
+        }
+
+        @Override
+        public int acquireWorkers() {
+            if (!this.hasWorkers) {
+                long start = System.nanoTime();
+                SkimPhaseScheduler.this.workers.acquireUninterruptibly(this.threadBudget);
+                this.waitNanos += System.nanoTime() - start;
+                this.hasWorkers = true;
+            }
+            return this.threadBudget;
+        }
+
+        @Override
+        public void releaseWorkers() {
+            if (this.hasWorkers) {
+                this.hasWorkers = false;
+                SkimPhaseScheduler.this.workers.release(this.threadBudget);
+            }
+        }
+
+        void sampleCpuTime(ThreadMXBean threadBean) {
+            Thread[] threads = new Thread[this.threadGroup.activeCount() * 2 + 1];
+            int count = this.threadGroup.enumerate(threads, true);
+            for (int i = 0; i < count; i++) {
+                long cpuTime = threadBean.getThreadCpuTime(threads[i].getId());
+                if (cpuTime >= 0) {
+                    this.cpuTimePerThread.merge(threads[i].getId(), cpuTime, Math::max);
+                }
+            }
+        }
+
+        long getCpuTimeNanos() {
+            long sum = 0;
+            for (long cpuTime : this.cpuTimePerThread.values()) {
+                sum += cpuTime;
+            }
+            return sum;
+        }
+    }
+}
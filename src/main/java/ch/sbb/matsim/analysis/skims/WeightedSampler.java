@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Draws indices with a probability proportional to their weight, using the cumulative weights
+ * and a binary search. Each draw takes O(log n) instead of scanning all weights.
+ *
+ * For the same random numbers, the same indices are chosen as when scanning the weights linearly
+ * and taking the first index where the cumulative weight reaches the drawn value.
+ *
+ * @author agent
+ */
+final class WeightedSampler {
+
+    private final double[] cumulativeWeights;
+
+    WeightedSampler(double[] weights) {
+        if (weights.length == 0) {
+            throw new IllegalArgumentException("At least one weight is required.");
+        }
+        this.cumulativeWeights = new double[weights.length];
+        double sum = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            this.cumulativeWeights[i] = sum;
+        }
+    }
+
+    int sample(Random r) {
+        double weight = r.nextDouble() * this.cumulativeWeights[this.cumulativeWeights.length - 1];
+        // find the first index with a cumulative weight >= weight
+        int low = 0;
+        int high = this.cumulativeWeights.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.cumulativeWeights[mid] < weight) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Derives the seed of a zone from a base seed and the zone id, so the random numbers of a zone
+     * neither depend on the order in which the zones are processed nor on the other zones.
+     */
+    static long getZoneSeed(long baseSeed, String zoneId) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : zoneId.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        // mix the bits (finalizer of SplitMix64), so similar zone ids result in unrelated seeds
+        long z = baseSeed ^ hash;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
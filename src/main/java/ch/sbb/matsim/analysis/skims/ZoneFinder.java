@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Coord;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Finds the zone containing a location, using an STR-tree of prepared zone geometries.
+ *
+ * If a location lies within multiple zones (e.g. on the border between two zones), the zone
+ * appearing first in the list of zones is returned, so the result does not depend on the
+ * internal order of the spatial index. Once created, an instance can be used by multiple threads.
+ *
+ * Large numbers of locations can be assigned in parallel with {@link #findZones(List, int, File)}, optionally
+ * caching the result in a binary file (all numbers little-endian): a magic number, the format version, a fingerprint
+ * of the zones and locations, the number of locations and the zone index of each location (int32, -1 if it is not
+ * within any zone). The cached result is only used if the fingerprint matches.
+ *
+ * @author agent
+ */
+public final class ZoneFinder {
+
+    private static final Logger log = Logger.getLogger(ZoneFinder.class);
+
+    private final static GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+    private final static int MAGIC = 0x4e5a4b53; // "SKZN" when read as little-endian bytes
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private final static int CHUNK_SIZE = 10_000;
+
+    private final List<String> zoneIds;
+    private final PreparedGeometry[] geometries;
+    private final STRtree index;
+    private final long zonesFingerprint;
+
+    public ZoneFinder(Collection<SimpleFeature> zones, String zonesIdAttributeName) {
+        this.zoneIds = new ArrayList<>(zones.size());
+        this.geometries = new PreparedGeometry[zones.size()];
+        this.index = new STRtree();
+        long hash = 0xcbf29ce484222325L;
+        int zoneIndex = 0;
+        for (SimpleFeature zone : zones) {
+            String zoneId = zone.getAttribute(zonesIdAttributeName).toString();
+            Geometry geometry = (Geometry) zone.getDefaultGeometry();
+            this.zoneIds.add(zoneId);
+            this.geometries[zoneIndex] = PreparedGeometryFactory.prepare(geometry);
+            this.index.insert(geometry.getEnvelopeInternal(), zoneIndex);
+            hash = hashString(hash, zoneId);
+            for (Coordinate c : geometry.getCoordinates()) {
+                hash = (hash ^ Double.doubleToLongBits(c.x)) * 0x100000001b3L;
+                hash = (hash ^ Double.doubleToLongBits(c.y)) * 0x100000001b3L;
+            }
+            zoneIndex++;
+        }
+        // build the tree now, as building it lazily on the first query is not thread-safe
+        this.index.build();
+        this.zonesFingerprint = hash;
+    }
+
+    public int getZoneCount() {
+        return this.zoneIds.size();
+    }
+
+    public String getZoneId(int zoneIndex) {
+        return this.zoneIds.get(zoneIndex);
+    }
+
+    /**
+     * @return the id of the zone containing the coordinate, or <code>null</code> if it is not within any zone.
+     */
+    public String findZone(Coord coord) {
+        int zoneIndex = findZoneIndex(coord.getX(), coord.getY());
+        return zoneIndex < 0 ? null : this.zoneIds.get(zoneIndex);
+    }
+
+    /**
+     * @return the index of the zone containing the coordinate, or -1 if it is not within any zone.
+     */
+    public int findZoneIndex(double x, double y) {
+        Point pt = GEOMETRY_FACTORY.createPoint(new Coordinate(x, y));
+        List<?> candidates = this.index.query(pt.getEnvelopeInternal());
+        int bestIndex = -1;
+        for (Object o : candidates) {
+            int zoneIndex = (Integer) o;
+            if ((bestIndex < 0 || zoneIndex < bestIndex) && this.geometries[zoneIndex].intersects(pt)) {
+                bestIndex = zoneIndex;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Finds the zones of many coordinates in parallel, in chunks of coordinates.
+     *
+     * @param cacheFile if not <code>null</code>, the result is read from this file if it was created for the same
+     *                  zones and coordinates; otherwise the result is calculated and stored in this file.
+     * @return the index of the zone of each coordinate, or -1 if the coordinate is not within any zone.
+     */
+    public int[] findZones(List<Coord> coords, int numberOfThreads, File cacheFile) throws IOException {
+        long fingerprint = calcFingerprint(coords);
+        if (cacheFile != null && cacheFile.exists()) {
+            int[] zoneIndices = readCache(cacheFile, fingerprint, coords.size());
+            if (zoneIndices != null) {
+                log.info("loaded zone assignment of " + coords.size() + " locations from " + cacheFile);
+                return zoneIndices;
+            }
+            log.info("zone assignment in " + cacheFile + " does not match the zones or locations, re-calculating it.");
+        }
+
+        int[] zoneIndices = new int[coords.size()];
+        AtomicInteger nextChunk = new AtomicInteger(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int chunkCount = (coords.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    int chunk;
+                    while (failure.get() == null && (chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                        int end = Math.min(coords.size(), (chunk + 1) * CHUNK_SIZE);
+                        for (int c = chunk * CHUNK_SIZE; c < end; c++) {
+                            Coord coord = coords.get(c);
+                            zoneIndices[c] = findZoneIndex(coord.getX(), coord.getY());
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, "ZoneFinder-" + i);
+            threads[i].start();
+        }
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (failure.get() != null) {
+            // the zone indices are incomplete, they must not end up in the cache
+            throw new IOException("Finding the zones of the locations failed.", failure.get());
+        }
+
+        if (cacheFile != null) {
+            writeCache(cacheFile, fingerprint, zoneIndices);
+            log.info("stored zone assignment in " + cacheFile);
+        }
+        return zoneIndices;
+    }
+
+    /**
+     * Calculates a 64-bit FNV-1a hash over the zones and the coordinates.
+     */
+    private long calcFingerprint(List<Coord> coords) {
+        long hash = this.zonesFingerprint;
+        hash = (hash ^ coords.size()) * 0x100000001b3L;
+        for (Coord coord : coords) {
+            hash = (hash ^ Double.doubleToLongBits(coord.getX())) * 0x100000001b3L;
+            hash = (hash ^ Double.doubleToLongBits(coord.getY())) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long hashString(long hash, String s) {
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return (hash ^ 0xff) * 0x100000001b3L;
+    }
+
+    private static int[] readCache(File file, long fingerprint, int count) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != HEADER_SIZE + 4L * count) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of file.");
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != fingerprint || buffer.getInt() != count) {
+                return null;
+            }
+            int[] zoneIndices = new int[count];
+            buffer.asIntBuffer().get(zoneIndices);
+            return zoneIndices;
+        }
+    }
+
+    private static void writeCache(File file, long fingerprint, int[] zoneIndices) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * zoneIndices.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(fingerprint);
+        buffer.putInt(zoneIndices.length);
+        buffer.asIntBuffer().put(zoneIndices);
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -10,6 +10,7 @@ import org.matsim.core.utils.collections.CollectionUtils;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -204,6 +205,14 @@ public class SwissRailRaptorConfigGroup extends ReflectiveConfigGroup {
         return this.routeSelectorPerSubpop.get(subpopulation);
     }
 
+    /**
+     * @return a read-only view of the configured route selectors, with the subpopulations as keys.
+     * The route selector for persons without subpopulation is stored with the key <code>null</code>.
+     */
+    public Map<String, RouteSelectorParameterSet> getRouteSelectorsPerSubpopulation() {
+        return Collections.unmodifiableMap(this.routeSelectorPerSubpop);
+    }
+
     public RouteSelectorParameterSet removeRouteSelector(String subpopulation) {
         RouteSelectorParameterSet paramSet = this.routeSelectorPerSubpop.remove(subpopulation);
         super.removeParameterSet(paramSet);
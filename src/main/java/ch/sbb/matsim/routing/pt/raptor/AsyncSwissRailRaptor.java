@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.facilities.Facility;
+
+import javax.inject.Provider;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides asynchronous route calculations, e.g. for journey planning services
+ * serving many concurrent requests.
+ *
+ * The route calculations are executed on a bounded executor. On JDKs supporting virtual threads,
+ * each request runs on its own virtual thread, otherwise a fixed pool of platform threads is used.
+ * A limited number of {@link SwissRailRaptor} instances (each with its own {@link SwissRailRaptorCore},
+ * but all sharing the same {@link SwissRailRaptorData}) are used for the calculations, limiting the
+ * number of concurrently running calculations.
+ *
+ * Backpressure: if more than <code>maxPendingRequests</code> requests are queued or running, additional
+ * requests are rejected immediately, i.e. the returned future completes with a {@link RejectedExecutionException}.
+ *
+ * Timeouts: if a request is not finished within its timeout, the returned future completes with a
+ * {@link TimeoutException}, independent of whether the request is still waiting to be executed or
+ * already running. Requests still waiting are skipped once they are executed, running route calculations
+ * are aborted at the beginning of the next round of the RAPTOR algorithm.
+ *
+ * @author agent
+ */
+public class AsyncSwissRailRaptor implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(AsyncSwissRailRaptor.class);
+
+    private final BlockingQueue<SwissRailRaptor> routers;
+    private final Semaphore pendingRequests;
+    private final ExecutorService executor;
+    private final ScheduledThreadPoolExecutor timeoutScheduler;
+    private final long defaultTimeoutNanos;
+
+    /**
+     * @param raptorProvider provides new, independent router instances, typically a {@link SwissRailRaptorFactory}.
+     * @param maxConcurrentRequests the number of route calculations that can run at the same time
+     * @param maxPendingRequests the number of requests that can be queued or running at the same time. Must be at least <code>maxConcurrentRequests</code>.
+     * @param defaultTimeout the timeout used for requests not specifying their own timeout
+     * @param timeUnit the unit of <code>defaultTimeout</code>
+     */
+    public AsyncSwissRailRaptor(Provider<SwissRailRaptor> raptorProvider, int maxConcurrentRequests, int maxPendingRequests, long defaultTimeout, TimeUnit timeUnit) {
+        if (maxPendingRequests < maxConcurrentRequests) {
+            throw new IllegalArgumentException("maxPendingRequests must not be smaller than maxConcurrentRequests.");
+        }
+        this.routers = new ArrayBlockingQueue<>(maxConcurrentRequests);
+        for (int i = 0; i < maxConcurrentRequests; i++) {
+            this.routers.add(raptorProvider.get());
+        }
+        this.pendingRequests = new Semaphore(maxPendingRequests);
+        this.executor = createExecutor(maxConcurrentRequests);
+        this.timeoutScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "AsyncSwissRailRaptor-Timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // most requests finish before their timeout, do not keep their cancelled timeout tasks in the queue
+        this.timeoutScheduler.setRemoveOnCancelPolicy(true);
+        this.defaultTimeoutNanos = timeUnit.toNanos(defaultTimeout);
+    }
+
+    public CompletableFuture<List<Leg>> calcRouteAsync(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+        return calcRouteAsync(fromFacility, toFacility, departureTime, person, this.defaultTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public CompletableFuture<List<Leg>> calcRouteAsync(Facility fromFacility, Facility toFacility, double departureTime, Person person, long timeout, TimeUnit timeUnit) {
+        CompletableFuture<List<Leg>> future = new CompletableFuture<>();
+        if (!this.pendingRequests.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many pending route requests."));
+            return future;
+        }
+        long timeoutNanos = timeUnit.toNanos(timeout);
+        long deadlineNanos = System.nanoTime() + timeoutNanos;
+        try {
+            this.executor.execute(() -> {
+                try {
+                    if (future.isDone()) {
+                        // the request timed out while waiting to be executed
+                        return;
+                    }
+                    future.complete(calcRoute(fromFacility, toFacility, departureTime, person, deadlineNanos));
+                } catch (RaptorTimeoutException e) {
+                    TimeoutException te = new TimeoutException(e.getMessage());
+                    te.initCause(e);
+                    future.completeExceptionally(te);
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    this.pendingRequests.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the executor was shut down
+            this.pendingRequests.release();
+            future.completeExceptionally(e);
+            return future;
+        }
+        ScheduledFuture<?> timeoutTask = this.timeoutScheduler.schedule(
+                () -> future.completeExceptionally(new TimeoutException("Route request timed out.")), timeoutNanos, TimeUnit.NANOSECONDS);
+        future.whenComplete((legs, throwable) -> timeoutTask.cancel(false));
+        return future;
+    }
+
+    private List<Leg> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person, long deadlineNanos) throws InterruptedException {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        SwissRailRaptor raptor = remainingNanos > 0 ? this.routers.poll(remainingNanos, TimeUnit.NANOSECONDS) : null;
+        if (raptor == null) {
+            throw new RaptorTimeoutException("Route request timed out before the route calculation could be started.");
+        }
+        try {
+            raptor.setDeadline(deadlineNanos);
+            return raptor.calcRoute(fromFacility, toFacility, departureTime, person);
+        } finally {
+            raptor.clearDeadline();
+            this.routers.add(raptor);
+        }
+    }
+
+    /**
+     * Stops accepting new requests. Already submitted requests will still be processed or time out.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        // the timeouts of already submitted requests are still executed after the shutdown
+        this.timeoutScheduler.shutdown();
+    }
+
+    private static ExecutorService createExecutor(int numberOfThreads) {
+        try {
+            // available in Java 21 and later
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) method.invoke(null);
+            log.info("Using virtual threads for asynchronous route calculations.");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.info("Virtual threads are not available, using " + numberOfThreads + " threads for asynchronous route calculations.");
+            AtomicInteger threadCounter = new AtomicInteger(0);
+            return Executors.newFixedThreadPool(numberOfThreads, r -> {
+                Thread thread = new Thread(r, "AsyncSwissRailRaptor-" + threadCounter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.facilities.Facility;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.List;
+
+/**
+ * A compact, read-only representation of a route found by {@link SwissRailRaptor}.
+ *
+ * Instead of a list of {@link Leg}s with their {@link org.matsim.api.core.v01.population.Route}s,
+ * the route is stored in a few primitive arrays, using the stop and route indices of
+ * {@link SwissRailRaptorData}. This is useful for applications calculating millions of routes
+ * but only requiring some key figures (e.g. travel times or number of transfers) of most of them.
+ * The legs can still be created on demand using {@link #toLegs()}, resulting in the same legs
+ * as {@link SwissRailRaptor#calcRoute(Facility, Facility, double, org.matsim.api.core.v01.population.Person)}
+ * would return.
+ *
+ * @author agent
+ */
+public final class CompactRaptorRoute {
+
+    private static final byte TYPE_NON_PT = 0;
+    private static final byte TYPE_PT = 1;
+    private static final byte TYPE_PLAN_ELEMENTS = 2;
+
+    private final SwissRailRaptorData data;
+    private final Facility fromFacility;
+    private final Facility toFacility;
+    private final double totalCosts;
+    private final double departureTime;
+    private final double travelTime;
+    private final int numberOfTransfers;
+
+    private final byte[] types;
+    private final int[] fromStopIndices;
+    private final int[] toStopIndices;
+    private final int[] transitRouteIndices;
+    private final String[] modes;
+    private final double[] depTimes;
+    private final double[] boardingTimes;
+    private final double[] arrivalTimes;
+    private final double[] distances;
+    private final List<? extends PlanElement>[] planElements; // null if the route contains no intermodal parts
+
+    @SuppressWarnings("unchecked")
+    CompactRaptorRoute(RaptorRoute route, SwissRailRaptorData data) {
+        this.data = data;
+        this.fromFacility = route.fromFacility;
+        this.toFacility = route.toFacility;
+        this.totalCosts = route.getTotalCosts();
+        this.departureTime = route.getDepartureTime();
+        this.travelTime = route.getTravelTime();
+        this.numberOfTransfers = route.getNumberOfTransfers();
+
+        int count = route.parts.size();
+        this.types = new byte[count];
+        this.fromStopIndices = new int[count];
+        this.toStopIndices = new int[count];
+        this.transitRouteIndices = new int[count];
+        this.modes = new String[count];
+        this.depTimes = new double[count];
+        this.boardingTimes = new double[count];
+        this.arrivalTimes = new double[count];
+        this.distances = new double[count];
+        List<? extends PlanElement>[] planElements = null;
+
+        int i = 0;
+        for (RaptorRoute.RoutePart part : route.parts) {
+            if (part.planElements != null) {
+                this.types[i] = TYPE_PLAN_ELEMENTS;
+                if (planElements == null) {
+                    planElements = new List[count];
+                }
+                planElements[i] = part.planElements;
+            } else if (part.line != null) {
+                this.types[i] = TYPE_PT;
+            } else {
+                this.types[i] = TYPE_NON_PT;
+            }
+            this.fromStopIndices[i] = getStopIndex(part.fromStop);
+            this.toStopIndices[i] = getStopIndex(part.toStop);
+            this.transitRouteIndices[i] = part.transitRouteIndex;
+            this.modes[i] = part.mode;
+            this.depTimes[i] = part.depTime;
+            this.boardingTimes[i] = part.boardingTime;
+            this.arrivalTimes[i] = part.arrivalTime;
+            this.distances[i] = part.distance;
+            i++;
+        }
+        this.planElements = planElements;
+    }
+
+    private int getStopIndex(TransitStopFacility stop) {
+        if (stop == null) {
+            return -1;
+        }
+        Integer index = this.data.stopFacilityIndices.get(stop);
+        return index == null ? -1 : index;
+    }
+
+    public double getTotalCosts() {
+        return this.totalCosts;
+    }
+
+    public double getDepartureTime() {
+        return this.departureTime;
+    }
+
+    public double getTravelTime() {
+        return this.travelTime;
+    }
+
+    public double getArrivalTime() {
+        return this.departureTime + this.travelTime;
+    }
+
+    public int getNumberOfTransfers() {
+        return this.numberOfTransfers;
+    }
+
+    public int getNumberOfParts() {
+        return this.types.length;
+    }
+
+    public boolean isPt(int part) {
+        return this.types[part] == TYPE_PT;
+    }
+
+    /**
+     * @return <code>true</code> if the part was created by an intermodal access or egress and consists of arbitrary plan elements.
+     */
+    public boolean isIntermodal(int part) {
+        return this.types[part] == TYPE_PLAN_ELEMENTS;
+    }
+
+    public String getMode(int part) {
+        return this.modes[part];
+    }
+
+    /**
+     * @return the index of the stop facility where the part starts, or -1 if it does not start at a stop facility.
+     */
+    public int getFromStopIndex(int part) {
+        return this.fromStopIndices[part];
+    }
+
+    /**
+     * @return the index of the stop facility where the part ends, or -1 if it does not end at a stop facility.
+     */
+    public int getToStopIndex(int part) {
+        return this.toStopIndices[part];
+    }
+
+    /**
+     * @return the index of the transit route used in this part, or -1 if the part is not a pt part.
+     */
+    public int getTransitRouteIndex(int part) {
+        return this.transitRouteIndices[part];
+    }
+
+    public double getDepartureTime(int part) {
+        return this.depTimes[part];
+    }
+
+    /**
+     * @return the time the vehicle is boarded, or <code>NaN</code> if the part is not a pt part.
+     */
+    public double getBoardingTime(int part) {
+        return this.boardingTimes[part];
+    }
+
+    public double getArrivalTime(int part) {
+        return this.arrivalTimes[part];
+    }
+
+    public double getDistance(int part) {
+        return this.distances[part];
+    }
+
+    public TransitStopFacility getFromStop(int part) {
+        return getStop(this.fromStopIndices[part]);
+    }
+
+    public TransitStopFacility getToStop(int part) {
+        return getStop(this.toStopIndices[part]);
+    }
+
+    public TransitLine getLine(int part) {
+        int routeIndex = this.transitRouteIndices[part];
+        return routeIndex < 0 ? null : this.data.routeStops[this.data.routes[routeIndex].indexFirstRouteStop].line;
+    }
+
+    public TransitRoute getTransitRoute(int part) {
+        int routeIndex = this.transitRouteIndices[part];
+        return routeIndex < 0 ? null : this.data.routeStops[this.data.routes[routeIndex].indexFirstRouteStop].route;
+    }
+
+    private TransitStopFacility getStop(int stopIndex) {
+        return stopIndex < 0 ? null : this.data.stopFacilities[stopIndex];
+    }
+
+    /**
+     * Creates the legs describing this route. Each call creates new legs.
+     */
+    public List<Leg> toLegs() {
+        RaptorRoute route = new RaptorRoute(this.fromFacility, this.toFacility, this.totalCosts);
+        for (int i = 0; i < this.types.length; i++) {
+            double travelTime = this.arrivalTimes[i] - this.depTimes[i];
+            if (this.types[i] == TYPE_PLAN_ELEMENTS) {
+                route.addPlanElements(this.depTimes[i], travelTime, this.planElements[i]);
+            } else if (this.types[i] == TYPE_PT) {
+                route.addPt(getFromStop(i), getToStop(i), getLine(i), getTransitRoute(i), this.transitRouteIndices[i], this.modes[i], this.depTimes[i], this.boardingTimes[i], this.arrivalTimes[i], this.distances[i]);
+            } else {
+                route.addNonPt(getFromStop(i), getToStop(i), this.depTimes[i], travelTime, this.distances[i], this.modes[i]);
+            }
+        }
+        return RaptorUtils.convertRouteToLegs(route);
+    }
+}
@@ -4,10 +4,14 @@
 
 package ch.sbb.matsim.routing.pt.raptor;
 
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
 import org.matsim.core.gbl.MatsimRandom;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -23,28 +27,87 @@ import java.util.Random;
  *
  * If multiple plans have the same best score, a random plan of them is chosen.
  *
+ * Instances are not modified during the selection and can be shared by multiple
+ * threads. Each thread uses its own random number generator to choose amongst
+ * equally scored routes, so no synchronization is required during the selection.
+ * The betas should be passed to the constructor; the deprecated setters are only
+ * kept for compatibility and must not be used on selectors shared by multiple threads.
+ *
  * @author mrieser / SBB
  */
 public class ConfigurableRaptorRouteSelector implements RaptorRouteSelector {
 
-    private double betaDepartureTime = 1;
-    private double betaTravelTime = 1;
-    private double betaTransfer = 300; // 1 transfer corresponds to 5 minutes
+    private double betaDepartureTime;
+    private double betaTravelTime;
+    private double betaTransfer;
+
+    private final ThreadLocal<Random> random = ThreadLocal.withInitial(MatsimRandom::getLocalInstance);
+
+    public ConfigurableRaptorRouteSelector() {
+        this(1, 1, 300); // 1 transfer corresponds to 5 minutes
+    }
+
+    public ConfigurableRaptorRouteSelector(SwissRailRaptorConfigGroup.RouteSelectorParameterSet params) {
+        this(params.getBetaDepartureTime(), params.getBetaTravelTime(), params.getBetaTransfers());
+    }
 
-    private final Random random = MatsimRandom.getLocalInstance();
+    public ConfigurableRaptorRouteSelector(double betaDepartureTime, double betaTravelTime, double betaTransfer) {
+        this.betaDepartureTime = betaDepartureTime;
+        this.betaTravelTime = betaTravelTime;
+        this.betaTransfer = betaTransfer;
+    }
 
+    /**
+     * @deprecated selectors are shared between router instances and threads, changing the betas affects
+     * all of them. Create a new selector with the desired betas instead.
+     */
+    @Deprecated
     public void setBetaDepartureTime(double betaDepartureTime) {
         this.betaDepartureTime = betaDepartureTime;
     }
 
+    /**
+     * @deprecated see {@link #setBetaDepartureTime(double)}
+     */
+    @Deprecated
     public void setBetaTravelTime(double betaTravelTime) {
         this.betaTravelTime = betaTravelTime;
     }
 
+    /**
+     * @deprecated see {@link #setBetaDepartureTime(double)}
+     */
+    @Deprecated
     public void setBetaTransfer(double betaTransfer) {
         this.betaTransfer = betaTransfer;
     }
 
+    public double getBetaDepartureTime() {
+        return this.betaDepartureTime;
+    }
+
+    public double getBetaTravelTime() {
+        return this.betaTravelTime;
+    }
+
+    public double getBetaTransfer() {
+        return this.betaTransfer;
+    }
+
+    /**
+     * Creates one selector for each subpopulation that has a route selector configured.
+     * The selector for the default subpopulation (if configured) is stored with the key <code>null</code>.
+     * Subpopulations sharing the same parameter set also share the selector.
+     */
+    public static Map<String, RaptorRouteSelector> createPerSubpopulation(SwissRailRaptorConfigGroup srrConfig) {
+        Map<String, RaptorRouteSelector> selectors = new HashMap<>();
+        Map<SwissRailRaptorConfigGroup.RouteSelectorParameterSet, RaptorRouteSelector> selectorsPerParamSet = new IdentityHashMap<>();
+        for (Map.Entry<String, SwissRailRaptorConfigGroup.RouteSelectorParameterSet> e : srrConfig.getRouteSelectorsPerSubpopulation().entrySet()) {
+            selectors.put(e.getKey(), selectorsPerParamSet.computeIfAbsent(e.getValue(), ConfigurableRaptorRouteSelector::new));
+        }
+        return selectors;
+    }
+
     @Override
     public RaptorRoute selectOne(List<RaptorRoute> routes, double desiredDepartureTime) {
         if (routes == null || routes.isEmpty()) {
@@ -54,9 +117,9 @@ public class ConfigurableRaptorRouteSelector implements RaptorRouteSelector {
         List<RaptorRoute> bestRoutes = null;
         double bestScore = 0;
         for (RaptorRoute route : routes) {
-            double score = betaDepartureTime * Math.abs(desiredDepartureTime - route.getDepartureTime())
-                           + betaTravelTime * route.getTravelTime()
-                           + betaTransfer * route.getNumberOfTransfers();
+            double score = this.betaDepartureTime * Math.abs(desiredDepartureTime - route.getDepartureTime())
+                           + this.betaTravelTime * route.getTravelTime()
+                           + this.betaTransfer * route.getNumberOfTransfers();
             if (bestRoute == null || score < bestScore) {
                 bestRoute = route;
                 bestRoutes = null;
@@ -71,7 +134,7 @@ public class ConfigurableRaptorRouteSelector implements RaptorRouteSelector {
         }
         if (bestRoutes != null) {
             // chose a random one
-            int index = this.random.nextInt(bestRoutes.size());
+            int index = this.random.get().nextInt(bestRoutes.size());
             bestRoute = bestRoutes.get(index);
         }
         return bestRoute;
@@ -6,6 +6,7 @@ package ch.sbb.matsim.routing.pt.raptor;
 
 import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -90,6 +91,13 @@ public class RaptorParameters {
         this.marginalUtilityOfTravelTime_utl_s.put(mode, marginalUtilityOfTravelTime_utl_s);
     }
 
+    /**
+     * @return a read-only view of the marginal utilities of travel time, with the modes as keys.
+     */
+    public Map<String, Double> getMarginalUtilitiesOfTravelTime_utl_s() {
+        return Collections.unmodifiableMap(this.marginalUtilityOfTravelTime_utl_s);
+    }
+
     public double getMarginalUtilityOfWaitingPt_utl_s() {
         return this.marginalUtilityOfWaitingPt_utl_s;
     }
@@ -35,7 +35,7 @@ public class RaptorRoute {
     }
 
     void addNonPt(TransitStopFacility fromStop, TransitStopFacility toStop, double depTime, double travelTime, double distance, String mode) {
-        this.editableParts.add(new RoutePart(fromStop, toStop, mode, depTime, Double.NaN, depTime + travelTime, distance, null, null, null));
+        this.editableParts.add(new RoutePart(fromStop, toStop, mode, depTime, Double.NaN, depTime + travelTime, distance, null, null, -1, null));
         if (Double.isNaN(this.departureTime)) {
             this.departureTime = depTime;
         }
@@ -43,7 +43,7 @@ public class RaptorRoute {
     }
 
     void addPlanElements(double depTime, double travelTime, List<? extends PlanElement> planElements) {
-        this.editableParts.add(new RoutePart(null, null, null, depTime, Double.NaN, depTime + travelTime, Double.NaN, null, null, planElements));
+        this.editableParts.add(new RoutePart(null, null, null, depTime, Double.NaN, depTime + travelTime, Double.NaN, null, null, -1, planElements));
         if (Double.isNaN(this.departureTime)) {
             this.departureTime = depTime;
         }
@@ -51,7 +51,11 @@ public class RaptorRoute {
     }
 
     void addPt(TransitStopFacility fromStop, TransitStopFacility toStop, TransitLine line, TransitRoute route, String mode, double depTime, double boardingTime, double arrivalTime, double distance) {
-        this.editableParts.add(new RoutePart(fromStop, toStop, mode, depTime, boardingTime, arrivalTime, distance, line, route, null));
+        addPt(fromStop, toStop, line, route, -1, mode, depTime, boardingTime, arrivalTime, distance);
+    }
+
+    void addPt(TransitStopFacility fromStop, TransitStopFacility toStop, TransitLine line, TransitRoute route, int transitRouteIndex, String mode, double depTime, double boardingTime, double arrivalTime, double distance) {
+        this.editableParts.add(new RoutePart(fromStop, toStop, mode, depTime, boardingTime, arrivalTime, distance, line, route, transitRouteIndex, null));
         if (Double.isNaN(this.departureTime)) {
             this.departureTime = depTime;
         }
@@ -92,9 +96,11 @@ public class RaptorRoute {
         public final double distance;
         public final TransitLine line;
         public final TransitRoute route;
+        /** the index of the route in {@link SwissRailRaptorData#routes}, or -1 if not known or not a pt part. */
+        final int transitRouteIndex;
         final List<? extends PlanElement> planElements;
 
-        RoutePart(TransitStopFacility fromStop, TransitStopFacility toStop, String mode, double depTime, double boardingTime, double arrivalTime, double distance, TransitLine line, TransitRoute route, List<? extends PlanElement> planElements) {
+        RoutePart(TransitStopFacility fromStop, TransitStopFacility toStop, String mode, double depTime, double boardingTime, double arrivalTime, double distance, TransitLine line, TransitRoute route, int transitRouteIndex, List<? extends PlanElement> planElements) {
             this.fromStop = fromStop;
             this.toStop = toStop;
             this.mode = mode;
@@ -104,6 +110,7 @@ public class RaptorRoute {
             this.distance = distance;
             this.line = line;
             this.route = route;
+            this.transitRouteIndex = transitRouteIndex;
             this.planElements = planElements;
         }
     }
@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+/**
+ * Thrown when a route calculation in {@link SwissRailRaptorCore} was aborted because its deadline passed.
+ *
+ * @author agent
+ */
+public class RaptorTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RaptorTimeoutException(String message) {
+        super(message);
+    }
+}
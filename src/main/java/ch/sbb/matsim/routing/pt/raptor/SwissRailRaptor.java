@@ -39,6 +39,7 @@ public class SwissRailRaptor implements TransitRouter {
     private final RaptorStopFinder stopFinder;
     private final String subpopulationAttribute;
     private final ObjectAttributes personAttributes;
+    private Map<String, RaptorRouteSelector> routeSelectorsPerSubpopulation;
 
     private boolean treeWarningShown = false;
 
@@ -52,6 +53,20 @@ public class SwissRailRaptor implements TransitRouter {
                            RaptorRouteSelector routeSelector,
                            RaptorStopFinder stopFinder,
                            String subpopulationAttribute, ObjectAttributes personAttributes) {
+        this(data, parametersForPerson, routeSelector, stopFinder, subpopulationAttribute, personAttributes, null);
+    }
+
+    /**
+     * @param routeSelectorsPerSubpopulation pre-computed route selectors per subpopulation, used for range queries
+     *        when <code>routeSelector</code> is a {@link ConfigurableRaptorRouteSelector}. The selectors must be thread-safe
+     *        as the map is typically shared by all router instances. If <code>null</code>, the selectors are
+     *        created from the config on first use.
+     */
+    public SwissRailRaptor(final SwissRailRaptorData data, RaptorParametersForPerson parametersForPerson,
+                           RaptorRouteSelector routeSelector,
+                           RaptorStopFinder stopFinder,
+                           String subpopulationAttribute, ObjectAttributes personAttributes,
+                           Map<String, RaptorRouteSelector> routeSelectorsPerSubpopulation) {
         this.data = data;
         this.raptor = new SwissRailRaptorCore(data);
         this.parametersForPerson = parametersForPerson;
@@ -59,10 +74,27 @@ public class SwissRailRaptor implements TransitRouter {
         this.stopFinder = stopFinder;
         this.subpopulationAttribute = subpopulationAttribute;
         this.personAttributes = personAttributes;
+        this.routeSelectorsPerSubpopulation = routeSelectorsPerSubpopulation;
     }
 
     @Override
     public List<Leg> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+        RaptorRoute foundRoute = calcRaptorRoute(fromFacility, toFacility, departureTime, person);
+        List<Leg> legs = RaptorUtils.convertRouteToLegs(foundRoute);
+        return legs;
+    }
+
+    /**
+     * Calculates the same route as {@link #calcRoute(Facility, Facility, double, Person)}, but returns it
+     * in a compact form without creating any legs or routes. The legs can be created later on demand
+     * using {@link CompactRaptorRoute#toLegs()}.
+     */
+    public CompactRaptorRoute calcCompactRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+        RaptorRoute foundRoute = calcRaptorRoute(fromFacility, toFacility, departureTime, person);
+        return new CompactRaptorRoute(foundRoute, this.data);
+    }
+
+    private RaptorRoute calcRaptorRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
         RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
         if (parameters.getConfig().isUseRangeQuery()) {
             return this.performRangeQuery(fromFacility, toFacility, departureTime, person, parameters);
@@ -71,16 +103,15 @@ public class SwissRailRaptor implements TransitRouter {
         List<InitialStop> egressStops = findEgressStops(toFacility, person, departureTime, parameters);
 
         RaptorRoute foundRoute = this.raptor.calcLeastCostRoute(departureTime, fromFacility, toFacility, accessStops, egressStops, parameters);
-        RaptorRoute directWalk = createDirectWalk(fromFacility, toFacility, departureTime, person, parameters);
+        RaptorRoute directWalk = createDirectWalk(this.data, fromFacility, toFacility, departureTime, parameters);
 
         if (foundRoute == null || directWalk.getTotalCosts() < foundRoute.getTotalCosts()) {
             foundRoute = directWalk;
         }
-        List<Leg> legs = RaptorUtils.convertRouteToLegs(foundRoute);
-        return legs;
+        return foundRoute;
     }
 
-    private List<Leg> performRangeQuery(Facility fromFacility, Facility toFacility, double desiredDepartureTime, Person person, RaptorParameters parameters) {
+    private RaptorRoute performRangeQuery(Facility fromFacility, Facility toFacility, double desiredDepartureTime, Person person, RaptorParameters parameters) {
         SwissRailRaptorConfigGroup srrConfig = parameters.getConfig();
 
         Object attr = this.personAttributes.getAttribute(person.getId().toString(), this.subpopulationAttribute);
@@ -90,17 +121,25 @@ public class SwissRailRaptor implements TransitRouter {
         double earliestDepartureTime = desiredDepartureTime - rangeSettings.getMaxEarlierDeparture();
         double latestDepartureTime = desiredDepartureTime + rangeSettings.getMaxLaterDeparture();
 
+        RaptorRouteSelector selector = this.defaultRouteSelector;
         if (this.defaultRouteSelector instanceof ConfigurableRaptorRouteSelector) {
-            ConfigurableRaptorRouteSelector selector = (ConfigurableRaptorRouteSelector) this.defaultRouteSelector;
+            selector = getRouteSelector(srrConfig, subpopulation);
+        }
 
-            SwissRailRaptorConfigGroup.RouteSelectorParameterSet params = srrConfig.getRouteSelector(subpopulation);
+        return this.calcRaptorRoute(fromFacility, toFacility, earliestDepartureTime, desiredDepartureTime, latestDepartureTime, person, selector);
+    }
 
-            selector.setBetaTransfer(params.getBetaTransfers());
-            selector.setBetaTravelTime(params.getBetaTravelTime());
-            selector.setBetaDepartureTime(params.getBetaDepartureTime());
+    private RaptorRouteSelector getRouteSelector(SwissRailRaptorConfigGroup srrConfig, String subpopulation) {
+        if (this.routeSelectorsPerSubpopulation == null) {
+            // no pre-computed selectors were provided, create them once and re-use them for all further queries
+            this.routeSelectorsPerSubpopulation = ConfigurableRaptorRouteSelector.createPerSubpopulation(srrConfig);
         }
-
-        return this.calcRoute(fromFacility, toFacility, earliestDepartureTime, desiredDepartureTime, latestDepartureTime, person, this.defaultRouteSelector);
+        RaptorRouteSelector selector = this.routeSelectorsPerSubpopulation.get(subpopulation);
+        if (selector == null) {
+            // subpopulations without own settings use the settings for persons without subpopulation
+            selector = this.routeSelectorsPerSubpopulation.get(null);
+        }
+        return selector == null ? this.defaultRouteSelector : selector;
     }
 
     public List<Leg> calcRoute(Facility fromFacility, Facility toFacility, double earliestDepartureTime, double desiredDepartureTime, double latestDepartureTime, Person person) {
@@ -108,17 +147,7 @@ public class SwissRailRaptor implements TransitRouter {
     }
 
     public List<Leg> calcRoute(Facility fromFacility, Facility toFacility, double earliestDepartureTime, double desiredDepartureTime, double latestDepartureTime, Person person, RaptorRouteSelector selector) {
-        RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
-        List<InitialStop> accessStops = findAccessStops(fromFacility, person, desiredDepartureTime, parameters);
-        List<InitialStop> egressStops = findEgressStops(toFacility, person, desiredDepartureTime, parameters);
-
-        List<RaptorRoute> foundRoutes = this.raptor.calcRoutes(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters);
-        RaptorRoute foundRoute = selector.selectOne(foundRoutes, desiredDepartureTime);
-        RaptorRoute directWalk = createDirectWalk(fromFacility, toFacility, desiredDepartureTime, person, parameters);
-
-        if (foundRoute == null || directWalk.getTotalCosts() < foundRoute.getTotalCosts()) {
-            foundRoute = directWalk;
-        }
+        RaptorRoute foundRoute = calcRaptorRoute(fromFacility, toFacility, earliestDepartureTime, desiredDepartureTime, latestDepartureTime, person, selector);
         List<Leg> legs = RaptorUtils.convertRouteToLegs(foundRoute);
         // TODO adapt the activity end time of the activity right before this trip
         /* Sadly, it's not that easy to find the previous activity, as we only have from- and to-facility
@@ -135,13 +164,28 @@ public class SwissRailRaptor implements TransitRouter {
         return legs;
     }
 
+    private RaptorRoute calcRaptorRoute(Facility fromFacility, Facility toFacility, double earliestDepartureTime, double desiredDepartureTime, double latestDepartureTime, Person person, RaptorRouteSelector selector) {
+        RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
+        List<InitialStop> accessStops = findAccessStops(fromFacility, person, desiredDepartureTime, parameters);
+        List<InitialStop> egressStops = findEgressStops(toFacility, person, desiredDepartureTime, parameters);
+
+        List<RaptorRoute> foundRoutes = this.raptor.calcRoutes(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters);
+        RaptorRoute foundRoute = selector.selectOne(foundRoutes, desiredDepartureTime);
+        RaptorRoute directWalk = createDirectWalk(this.data, fromFacility, toFacility, desiredDepartureTime, parameters);
+
+        if (foundRoute == null || directWalk.getTotalCosts() < foundRoute.getTotalCosts()) {
+            foundRoute = directWalk;
+        }
+        return foundRoute;
+    }
+
     public List<RaptorRoute> calcRoutes(Facility fromFacility, Facility toFacility, double earliestDepartureTime, double desiredDepartureTime, double latestDepartureTime, Person person) {
         RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
         List<InitialStop> accessStops = findAccessStops(fromFacility, person, desiredDepartureTime, parameters);
         List<InitialStop> egressStops = findEgressStops(toFacility, person, desiredDepartureTime, parameters);
 
         List<RaptorRoute> foundRoutes = this.raptor.calcRoutes(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters);
-        RaptorRoute directWalk = createDirectWalk(fromFacility, toFacility, desiredDepartureTime, person, parameters);
+        RaptorRoute directWalk = createDirectWalk(this.data, fromFacility, toFacility, desiredDepartureTime, parameters);
 
         if (foundRoutes == null) {
             foundRoutes = new ArrayList<>(1);
@@ -178,6 +222,18 @@ public class SwissRailRaptor implements TransitRouter {
         return this.raptor.calcLeastCostTree(departureTime, accessStops, parameters);
     }
 
+    /**
+     * Aborts all following route calculations with a {@link RaptorTimeoutException} once the given
+     * point in time (as given by {@link System#nanoTime()}) has passed.
+     */
+    void setDeadline(long deadlineNanos) {
+        this.raptor.setDeadline(deadlineNanos);
+    }
+
+    void clearDeadline() {
+        this.raptor.clearDeadline();
+    }
+
     public SwissRailRaptorData getUnderlyingData() {
         return this.data;
     }
@@ -190,12 +246,12 @@ public class SwissRailRaptor implements TransitRouter {
         return this.stopFinder.findStops(facility, person, departureTime, parameters, this.data, RaptorStopFinder.Direction.EGRESS);
     }
 
-    private RaptorRoute createDirectWalk(Facility fromFacility, Facility toFacility, double departureTime, Person person, RaptorParameters parameters) {
+    static RaptorRoute createDirectWalk(SwissRailRaptorData data, Facility fromFacility, Facility toFacility, double departureTime, RaptorParameters parameters) {
         double beelineDistance = CoordUtils.calcEuclideanDistance(fromFacility.getCoord(), toFacility.getCoord());
         double walkTime = beelineDistance / parameters.getBeelineWalkSpeed();
         double walkCost_per_s = -parameters.getMarginalUtilityOfTravelTime_utl_s(TransportMode.transit_walk);
         double walkCost = walkTime * walkCost_per_s;
-        double beelineDistanceFactor = this.data.config.getBeelineWalkDistanceFactor();
+        double beelineDistanceFactor = data.config.getBeelineWalkDistanceFactor();
 
         RaptorRoute route = new RaptorRoute(fromFacility, toFacility, walkCost);
         route.addNonPt(null, null, departureTime, walkTime, beelineDistance * beelineDistanceFactor, TransportMode.transit_walk);
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.facilities.Facility;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.utils.objectattributes.ObjectAttributes;
+
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes large numbers of public transport trips in parallel.
+ *
+ * Instead of routing each trip completely on its own (as MATSim's <code>PlanRouter</code> does with one
+ * {@link SwissRailRaptor} per thread), the routing is split into three stages:
+ * <ol>
+ *     <li>{@link Stage#STOP_FINDING}: resolve the access and egress stops,</li>
+ *     <li>{@link Stage#RAPTOR}: run the actual RAPTOR query,</li>
+ *     <li>{@link Stage#MATERIALIZATION}: create the legs and the pt interaction activities.</li>
+ * </ol>
+ * Requests are grouped into batches by their origin, so the access stops for an origin only have to be
+ * searched once per batch. Each batch passes through the three stages as a chain of tasks on a
+ * work-stealing {@link ForkJoinPool}, so different batches can be in different stages at the same time.
+ * Each worker thread uses its own {@link SwissRailRaptorCore} and {@link RaptorStopFinder}.
+ *
+ * The time spent in each stage is collected and logged after every call to {@link #route(List)}, allowing
+ * to see where the routing time goes.
+ *
+ * The results are the same as when each trip would be routed with {@link SwissRailRaptorRoutingModule}, except
+ * that no fallback to a walk router is required as {@link SwissRailRaptor} always returns at least a direct walk.
+ *
+ * @author agent
+ */
+public class SwissRailRaptorBatchRouter {
+
+    private static final Logger log = Logger.getLogger(SwissRailRaptorBatchRouter.class);
+
+    public enum Stage { STOP_FINDING, RAPTOR, MATERIALIZATION }
+
+    private final SwissRailRaptorData data;
+    private final RaptorParametersForPerson parametersForPerson;
+    private final RaptorRouteSelector defaultRouteSelector;
+    private volatile Map<String, RaptorRouteSelector> routeSelectorsPerSubpopulation;
+    private final Provider<RaptorStopFinder> stopFinderProvider;
+    private final String subpopulationAttribute;
+    private final ObjectAttributes personAttributes;
+    private final TransitSchedule transitSchedule;
+    private final Network network;
+    private final int numberOfThreads;
+    private final int maxBatchSize;
+
+    private final StageStatistics statistics = new StageStatistics();
+
+    public SwissRailRaptorBatchRouter(SwissRailRaptorData data, RaptorParametersForPerson parametersForPerson,
+                                      RaptorRouteSelector routeSelector, Map<String, RaptorRouteSelector> routeSelectorsPerSubpopulation,
+                                      Provider<RaptorStopFinder> stopFinderProvider,
+                                      String subpopulationAttribute, ObjectAttributes personAttributes,
+                                      TransitSchedule transitSchedule, Network network,
+                                      int numberOfThreads, int maxBatchSize) {
+        this.data = data;
+        this.parametersForPerson = parametersForPerson;
+        this.defaultRouteSelector = routeSelector;
+        this.routeSelectorsPerSubpopulation = routeSelectorsPerSubpopulation;
+        this.stopFinderProvider = stopFinderProvider;
+        this.subpopulationAttribute = subpopulationAttribute;
+        this.personAttributes = personAttributes;
+        this.transitSchedule = transitSchedule;
+        this.network = network;
+        this.numberOfThreads = numberOfThreads;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Routes all requests and returns the resulting plan elements, in the same order as the requests.
+     */
+    public List<List<? extends PlanElement>> route(List<RoutingRequest> requests) {
+        this.statistics.reset();
+        long startNanos = System.nanoTime();
+
+        List<Batch> batches = createBatches(requests);
+
+        @SuppressWarnings("unchecked")
+        List<? extends PlanElement>[] results = new List[requests.size()];
+
+        ForkJoinPool pool = new ForkJoinPool(this.numberOfThreads);
+        ThreadLocal<SwissRailRaptorCore> cores = ThreadLocal.withInitial(() -> new SwissRailRaptorCore(this.data));
+        ThreadLocal<RaptorStopFinder> stopFinders = ThreadLocal.withInitial(this.stopFinderProvider::get);
+        try {
+            CompletableFuture<?>[] futures = new CompletableFuture[batches.size()];
+            for (int i = 0; i < batches.size(); i++) {
+                Batch batch = batches.get(i);
+                futures[i] = CompletableFuture
+                        .runAsync(() -> findStops(batch, stopFinders.get()), pool)
+                        .thenRunAsync(() -> calcRoutes(batch, cores.get()), pool)
+                        .thenRunAsync(() -> materialize(batch, results), pool);
+            }
+            CompletableFuture.allOf(futures).join();
+        } finally {
+            pool.shutdown();
+        }
+
+        this.statistics.wallTimeNanos = System.nanoTime() - startNanos;
+        this.statistics.log(requests.size(), batches.size());
+        return Arrays.asList(results);
+    }
+
+    public StageStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    private List<Batch> createBatches(List<RoutingRequest> requests) {
+        Map<Coord, List<Integer>> requestsPerOrigin = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            RoutingRequest request = requests.get(i);
+            requestsPerOrigin.computeIfAbsent(request.fromFacility.getCoord(), c -> new ArrayList<>()).add(i);
+        }
+        List<Batch> batches = new ArrayList<>();
+        for (List<Integer> indices : requestsPerOrigin.values()) {
+            for (int from = 0; from < indices.size(); from += this.maxBatchSize) {
+                int to = Math.min(indices.size(), from + this.maxBatchSize);
+                Batch batch = new Batch(to - from);
+                for (int i = from; i < to; i++) {
+                    int requestIndex = indices.get(i);
+                    batch.requestIndices[i - from] = requestIndex;
+                    batch.requests[i - from] = requests.get(requestIndex);
+                }
+                batches.add(batch);
+            }
+        }
+        return batches;
+    }
+
+    private void findStops(Batch batch, RaptorStopFinder stopFinder) {
+        long start = System.nanoTime();
+        List<InitialStop> lastAccessStops = null;
+        RaptorParameters lastAccessParameters = null;
+        Map<Coord, List<InitialStop>> egressStopsPerCoord = new HashMap<>();
+        RaptorParameters lastEgressParameters = null;
+        for (int i = 0; i < batch.requests.length; i++) {
+            RoutingRequest request = batch.requests[i];
+            RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(request.person);
+            batch.parameters[i] = parameters;
+            boolean isIntermodal = parameters.getConfig().isUseIntermodalAccessEgress();
+            double depTime = request.departureTime;
+
+            // all requests in a batch share the same origin. Without intermodal access, the access stops only depend on the parameters.
+            if (isIntermodal || lastAccessStops == null || parameters != lastAccessParameters) {
+                lastAccessStops = stopFinder.findStops(request.fromFacility, request.person, depTime, parameters, this.data, RaptorStopFinder.Direction.ACCESS);
+                lastAccessParameters = parameters;
+            }
+            batch.accessStops[i] = lastAccessStops;
+
+            if (isIntermodal) {
+                batch.egressStops[i] = stopFinder.findStops(request.toFacility, request.person, depTime, parameters, this.data, RaptorStopFinder.Direction.EGRESS);
+            } else {
+                if (parameters != lastEgressParameters) {
+                    egressStopsPerCoord.clear();
+                    lastEgressParameters = parameters;
+                }
+                batch.egressStops[i] = egressStopsPerCoord.computeIfAbsent(request.toFacility.getCoord(),
+                        c -> stopFinder.findStops(request.toFacility, request.person, depTime, parameters, this.data, RaptorStopFinder.Direction.EGRESS));
+            }
+        }
+        this.statistics.add(Stage.STOP_FINDING, batch.requests.length, System.nanoTime() - start);
+    }
+
+    private void calcRoutes(Batch batch, SwissRailRaptorCore raptor) {
+        long start = System.nanoTime();
+        for (int i = 0; i < batch.requests.length; i++) {
+            RoutingRequest request = batch.requests[i];
+            RaptorParameters parameters = batch.parameters[i];
+            SwissRailRaptorConfigGroup srrConfig = parameters.getConfig();
+            RaptorRoute foundRoute;
+            if (srrConfig.isUseRangeQuery()) {
+                String subpopulation = getSubpopulation(request.person);
+                SwissRailRaptorConfigGroup.RangeQuerySettingsParameterSet rangeSettings = srrConfig.getRangeQuerySettings(subpopulation);
+                double earliestDepartureTime = request.departureTime - rangeSettings.getMaxEarlierDeparture();
+                double latestDepartureTime = request.departureTime + rangeSettings.getMaxLaterDeparture();
+                List<RaptorRoute> foundRoutes = raptor.calcRoutes(earliestDepartureTime, request.departureTime, latestDepartureTime, request.fromFacility, request.toFacility, batch.accessStops[i], batch.egressStops[i], parameters);
+                foundRoute = getRouteSelector(srrConfig, subpopulation).selectOne(foundRoutes, request.departureTime);
+            } else {
+                foundRoute = raptor.calcLeastCostRoute(request.departureTime, request.fromFacility, request.toFacility, batch.accessStops[i], batch.egressStops[i], parameters);
+            }
+            RaptorRoute directWalk = SwissRailRaptor.createDirectWalk(this.data, request.fromFacility, request.toFacility, request.departureTime, parameters);
+            if (foundRoute == null || directWalk.getTotalCosts() < foundRoute.getTotalCosts()) {
+                foundRoute = directWalk;
+            }
+            batch.routes[i] = foundRoute;
+            // the stops are no longer needed, free the memory as early as possible
+            batch.accessStops[i] = null;
+            batch.egressStops[i] = null;
+        }
+        this.statistics.add(Stage.RAPTOR, batch.requests.length, System.nanoTime() - start);
+    }
+
+    private void materialize(Batch batch, List<? extends PlanElement>[] results) {
+        long start = System.nanoTime();
+        for (int i = 0; i < batch.requests.length; i++) {
+            List<Leg> legs = RaptorUtils.convertRouteToLegs(batch.routes[i]);
+            results[batch.requestIndices[i]] = SwissRailRaptorRoutingModule.fillWithActivities(legs, this.transitSchedule, this.network);
+            batch.routes[i] = null;
+        }
+        this.statistics.add(Stage.MATERIALIZATION, batch.requests.length, System.nanoTime() - start);
+    }
+
+    private String getSubpopulation(Person person) {
+        if (this.personAttributes == null || this.subpopulationAttribute == null) {
+            return null;
+        }
+        Object attr = this.personAttributes.getAttribute(person.getId().toString(), this.subpopulationAttribute);
+        return attr == null ? null : attr.toString();
+    }
+
+    /**
+     * Uses the same lookup as {@link SwissRailRaptor}, so range queries select the same routes.
+     */
+    private RaptorRouteSelector getRouteSelector(SwissRailRaptorConfigGroup srrConfig, String subpopulation) {
+        if (!(this.defaultRouteSelector instanceof ConfigurableRaptorRouteSelector)) {
+            return this.defaultRouteSelector;
+        }
+        Map<String, RaptorRouteSelector> selectors = this.routeSelectorsPerSubpopulation;
+        if (selectors == null) {
+            // no pre-computed selectors were provided, create them once and re-use them in all worker threads
+            synchronized (this) {
+                selectors = this.routeSelectorsPerSubpopulation;
+                if (selectors == null) {
+                    selectors = ConfigurableRaptorRouteSelector.createPerSubpopulation(srrConfig);
+                    this.routeSelectorsPerSubpopulation = selectors;
+                }
+            }
+        }
+        RaptorRouteSelector selector = selectors.get(subpopulation);
+        if (selector == null) {
+            // subpopulations without own settings use the settings for persons without subpopulation
+            selector = selectors.get(null);
+        }
+        return selector == null ? this.defaultRouteSelector : selector;
+    }
+
+    public static final class RoutingRequest {
+        public final Facility fromFacility;
+        public final Facility toFacility;
+        public final double departureTime;
+        public final Person person;
+
+        public RoutingRequest(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+            this.fromFacility = fromFacility;
+            this.toFacility = toFacility;
+            this.departureTime = departureTime;
+            this.person = person;
+        }
+    }
+
+    private static final class Batch {
+        final int[] requestIndices;
+        final RoutingRequest[] requests;
+        final RaptorParameters[] parameters;
+        final List<InitialStop>[] accessStops;
+        final List<InitialStop>[] egressStops;
+        final RaptorRoute[] routes;
+
+        @SuppressWarnings("unchecked")
+        Batch(int size) {
+            this.requestIndices = new int[size];
+            this.requests = new RoutingRequest[size];
+            this.parameters = new RaptorParameters[size];
+            this.accessStops = new List[size];
+            this.egressStops = new List[size];
+            this.routes = new RaptorRoute[size];
+        }
+    }
+
+    /**
+     * Collects the number of processed requests and the accumulated processing time per {@link Stage}.
+     * The processing times are summed up over all threads, so they correspond to CPU time rather than wall time.
+     */
+    public static final class StageStatistics {
+        private final LongAdder[] counts = new LongAdder[Stage.values().length];
+        private final LongAdder[] nanos = new LongAdder[Stage.values().length];
+        private long wallTimeNanos = 0;
+
+        StageStatistics() {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] = new LongAdder();
+                this.nanos[i] = new LongAdder();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i].reset();
+                this.nanos[i].reset();
+            }
+            this.wallTimeNanos = 0;
+        }
+
+        void add(Stage stage, int count, long nanos) {
+            this.counts[stage.ordinal()].add(count);
+            this.nanos[stage.ordinal()].add(nanos);
+        }
+
+        public long getCount(Stage stage) {
+            return this.counts[stage.ordinal()].sum();
+        }
+
+        public double getProcessingTimeSeconds(Stage stage) {
+            return this.nanos[stage.ordinal()].sum() / 1e9;
+        }
+
+        /** @return the number of requests processed per second of processing time in the given stage (per thread). */
+        public double getThroughput(Stage stage) {
+            double seconds = getProcessingTimeSeconds(stage);
+            return seconds > 0 ? getCount(stage) / seconds : Double.NaN;
+        }
+
+        public double getWallTimeSeconds() {
+            return this.wallTimeNanos / 1e9;
+        }
+
+        void log(int requestCount, int batchCount) {
+            double totalSeconds = 0;
+            for (Stage stage : Stage.values()) {
+                totalSeconds += getProcessingTimeSeconds(stage);
+            }
+            log.info("Routed " + requestCount + " requests in " + batchCount + " batches, wall time: " + String.format("%.2f", getWallTimeSeconds()) + " s.");
+            for (Stage stage : Stage.values()) {
+                double seconds = getProcessingTimeSeconds(stage);
+                log.info(String.format("  %-15s %10d requests, %10.2f s processing time (%5.1f%%), %12.1f requests/s per thread",
+                        stage, getCount(stage), seconds, totalSeconds > 0 ? 100.0 * seconds / totalSeconds : 0.0, getThroughput(stage)));
+            }
+        }
+    }
+}
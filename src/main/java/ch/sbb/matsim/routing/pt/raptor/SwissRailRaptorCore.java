@@ -47,6 +47,8 @@ public class SwissRailRaptorCore {
     private final PathElement[] arrivalPathPerStop;
     private final PathElement[] tmpArrivalPathPerStop; // only used to ensure parallel update
     private final BitSet tmpImprovedStops; // only used to ensure parallel update
+    private boolean hasDeadline = false;
+    private long deadlineNanos = 0;
 
     public SwissRailRaptorCore(SwissRailRaptorData data) {
         this.data = data;
@@ -63,6 +65,26 @@ public class SwissRailRaptorCore {
         this.tmpImprovedStops = new BitSet(this.data.countStops);
     }
 
+    /**
+     * Sets a point in time (as given by {@link System#nanoTime()}) after which route calculations are aborted.
+     * If a calculation is still running at that time, a {@link RaptorTimeoutException} is thrown at the beginning
+     * of the next round of the algorithm.
+     */
+    void setDeadline(long deadlineNanos) {
+        this.hasDeadline = true;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    void clearDeadline() {
+        this.hasDeadline = false;
+    }
+
+    private void checkDeadline() {
+        if (this.hasDeadline && System.nanoTime() - this.deadlineNanos > 0) {
+            throw new RaptorTimeoutException("Route calculation was aborted as the deadline has passed.");
+        }
+    }
+
     private void reset() {
         Arrays.fill(this.arrivalPathPerRouteStop, null);
         Arrays.fill(this.egressCostsPerRouteStop, Double.POSITIVE_INFINITY);
@@ -187,6 +209,7 @@ public class SwissRailRaptorCore {
         int allowedTransfersLeft = maxTransfersAfterFirstArrival;
         // the main loop
         for (int k = 0; k <= maxTransfers; k++) {
+            checkDeadline();
             // first stage (according to paper) is to set earliestArrivalTime_k(stop) = earliestArrivalTime_k-1(stop)
             // but because we re-use the earliestArrivalTime-array, we don't have to do anything.
 
@@ -321,6 +344,7 @@ public class SwissRailRaptorCore {
 
             // the main loop
             for (int k = 0; k <= maxTransfers; k++) {
+                checkDeadline();
                 // first stage (according to paper) is to set earliestArrivalTime_k(stop) = earliestArrivalTime_k-1(stop)
                 // but because we re-use the earliestArrivalTime-array, we don't have to do anything.
 
@@ -379,7 +403,7 @@ public class SwissRailRaptorCore {
         return Math.floor(depTime);
     }
 
-    private List<RaptorRoute> filterRoutes(List<RaptorRoute> allRoutes) {
+    static List<RaptorRoute> filterRoutes(List<RaptorRoute> allRoutes) {
         // first, eliminate duplicates
         allRoutes.sort((r1, r2) -> {
             int cmp = Integer.compare(r1.getNumberOfTransfers(), r2.getNumberOfTransfers());
@@ -395,6 +419,7 @@ public class SwissRailRaptorCore {
         int lastTransferCount = -1;
         double lastDepTime = Double.NaN;
         double lastTravelTime = Double.NaN;
+        int maxTransferCount = 0;
         for (RaptorRoute route : allRoutes) {
             if (route.getNumberOfTransfers() != lastTransferCount
                 || route.getDepartureTime() != lastDepTime
@@ -403,28 +428,57 @@ public class SwissRailRaptorCore {
                 lastTransferCount = route.getNumberOfTransfers();
                 lastDepTime = route.getDepartureTime();
                 lastTravelTime = route.getTravelTime();
+                maxTransferCount = Math.max(maxTransferCount, lastTransferCount);
             }
         }
 
         // now search for non-dominant routes
-        List<RaptorRoute> routesToKeep = new ArrayList<>();
-        for (RaptorRoute route1 : uniqueRoutes) {
-            boolean addRoute1 = true;
-            for (RaptorRoute route2 : uniqueRoutes) {
-                if (route1 != route2) {
-                    // check if route2 dominates route1
-                    double arrTime1 = route1.getDepartureTime() + route1.getTravelTime();
-                    double arrTime2 = route2.getDepartureTime() + route2.getTravelTime();
-                    if (route2.getNumberOfTransfers() <=route1.getNumberOfTransfers()
-                        && route2.getDepartureTime() >= route1.getDepartureTime()
-                        && arrTime2 <= arrTime1) {
-                        addRoute1 = false;
-                        break;
-                    }
-                }
+        /* route2 dominates route1 if it departs not earlier, arrives not later and has not more transfers.
+         * Instead of comparing all pairs of routes, the routes are processed by decreasing departure time
+         * (and increasing arrival time and number of transfers for equal departure times), so all routes
+         * that could dominate a route are processed before that route. For the already processed routes,
+         * the earliest arrival time per number of transfers is kept in a Fenwick tree supporting
+         * prefix-minimum queries, so checking whether a route is dominated takes only O(log t),
+         * resulting in O(n log n) overall.
+         */
+        int count = uniqueRoutes.size();
+        double[] arrTimes = new double[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            RaptorRoute route = uniqueRoutes.get(i);
+            arrTimes[i] = route.getDepartureTime() + route.getTravelTime();
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> {
+            int cmp = Double.compare(uniqueRoutes.get(i2).getDepartureTime(), uniqueRoutes.get(i1).getDepartureTime());
+            if (cmp == 0) {
+                cmp = Double.compare(arrTimes[i1], arrTimes[i2]);
+            }
+            if (cmp == 0) {
+                cmp = Integer.compare(uniqueRoutes.get(i1).getNumberOfTransfers(), uniqueRoutes.get(i2).getNumberOfTransfers());
             }
-            if (addRoute1) {
-                routesToKeep.add(route1);
+            return cmp;
+        });
+
+        double[] earliestArrivalTree = new double[maxTransferCount + 2]; // 1-based Fenwick tree over the number of transfers
+        Arrays.fill(earliestArrivalTree, Double.POSITIVE_INFINITY);
+        boolean[] keep = new boolean[count];
+        for (int index : order) {
+            int treeIndex = uniqueRoutes.get(index).getNumberOfTransfers() + 1;
+            double earliestArrival = Double.POSITIVE_INFINITY;
+            for (int i = treeIndex; i > 0; i -= (i & -i)) {
+                earliestArrival = Math.min(earliestArrival, earliestArrivalTree[i]);
+            }
+            keep[index] = earliestArrival > arrTimes[index];
+            for (int i = treeIndex; i < earliestArrivalTree.length; i += (i & -i)) {
+                earliestArrivalTree[i] = Math.min(earliestArrivalTree[i], arrTimes[index]);
+            }
+        }
+
+        List<RaptorRoute> routesToKeep = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                routesToKeep.add(uniqueRoutes.get(i));
             }
         }
         return routesToKeep;
@@ -455,6 +509,7 @@ public class SwissRailRaptorCore {
 
         // the main loop
         while (true) {
+            checkDeadline();
             // first stage (according to paper) is to set earliestArrivalTime_k(stop) = earliestArrivalTime_k-1(stop)
             // but because we re-use the earliestArrivalTime-array, we don't have to do anything.
 
@@ -807,7 +862,7 @@ public class SwissRailRaptorCore {
             } else {
                 TransitLine line = pe.toRouteStop.line;
                 TransitRoute route = pe.toRouteStop.route;
-                raptorRoute.addPt(fromStop, toStop, line, route, pe.toRouteStop.mode, time, pe.boardingTime, pe.arrivalTime, pe.distance);
+                raptorRoute.addPt(fromStop, toStop, line, route, pe.toRouteStop.transitRouteIndex, pe.toRouteStop.mode, time, pe.boardingTime, pe.arrivalTime, pe.distance);
             }
             time = pe.arrivalTime;
             fromStop = toStop;
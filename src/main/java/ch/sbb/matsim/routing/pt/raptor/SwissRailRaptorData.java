@@ -46,6 +46,7 @@ public class SwissRailRaptorData {
     final RRouteStop[] routeStops; // list of all route stops
     final RTransfer[] transfers;
     final Map<TransitStopFacility, Integer> stopFacilityIndices;
+    final TransitStopFacility[] stopFacilities; // the inverse of stopFacilityIndices
     final Map<TransitStopFacility, int[]> routeStopsPerStopFacility;
     final QuadTree<TransitStopFacility> stopsQT;
 
@@ -61,6 +62,10 @@ public class SwissRailRaptorData {
         this.routeStops = routeStops;
         this.transfers = transfers;
         this.stopFacilityIndices = stopFacilityIndices;
+        this.stopFacilities = new TransitStopFacility[stopFacilityIndices.size()];
+        for (Map.Entry<TransitStopFacility, Integer> e : stopFacilityIndices.entrySet()) {
+            this.stopFacilities[e.getValue()] = e.getKey();
+        }
         this.routeStopsPerStopFacility = routeStopsPerStopFacility;
         this.stopsQT = stopsQT;
     }
@@ -460,6 +465,10 @@ public class SwissRailRaptorData {
         return distance < maxBeelineWalkConnectionDistance;
     }
 
+    public RaptorStaticConfig getConfig() {
+        return this.config;
+    }
+
     public Collection<TransitStopFacility> findNearbyStops(double x, double y, double distance) {
         return this.stopsQT.getDisk(x, y, distance);
     }
@@ -4,10 +4,12 @@
 
 package ch.sbb.matsim.routing.pt.raptor;
 
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.PlansConfigGroup;
 import org.matsim.pt.router.TransitScheduleChangedEventHandler;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
@@ -15,6 +17,7 @@ import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
+import java.util.Map;
 
 /**
  * @author mrieser / SBB
@@ -27,6 +30,7 @@ public class SwissRailRaptorFactory implements Provider<SwissRailRaptor> {
     private final RaptorStaticConfig raptorConfig;
     private final RaptorParametersForPerson raptorParametersForPerson;
     private final RaptorRouteSelector routeSelector;
+    private final Map<String, RaptorRouteSelector> routeSelectorsPerSubpopulation;
     private final Provider<RaptorStopFinder> stopFinderProvider;
     private final Network network;
     private final PlansConfigGroup plansConfigGroup;
@@ -42,6 +46,8 @@ public class SwissRailRaptorFactory implements Provider<SwissRailRaptor> {
         this.network = network;
         this.raptorParametersForPerson = raptorParametersForPerson;
         this.routeSelector = routeSelector;
+        SwissRailRaptorConfigGroup srrConfig = ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class);
+        this.routeSelectorsPerSubpopulation = ConfigurableRaptorRouteSelector.createPerSubpopulation(srrConfig);
         this.stopFinderProvider = stopFinderProvider;
         this.plansConfigGroup = plansConfigGroup;
         this.population = population;
@@ -55,7 +61,18 @@ public class SwissRailRaptorFactory implements Provider<SwissRailRaptor> {
     public SwissRailRaptor get() {
         SwissRailRaptorData data = getData();
         return new SwissRailRaptor(data, this.raptorParametersForPerson, this.routeSelector, this.stopFinderProvider.get(),
-                this.plansConfigGroup.getSubpopulationAttributeName(), this.population.getPersonAttributes());
+                this.plansConfigGroup.getSubpopulationAttributeName(), this.population.getPersonAttributes(),
+                this.routeSelectorsPerSubpopulation);
+    }
+
+    /**
+     * Creates a router to route many trips in parallel, see {@link SwissRailRaptorBatchRouter}.
+     */
+    public SwissRailRaptorBatchRouter createBatchRouter(int numberOfThreads, int maxBatchSize) {
+        SwissRailRaptorData data = getData();
+        return new SwissRailRaptorBatchRouter(data, this.raptorParametersForPerson, this.routeSelector, this.routeSelectorsPerSubpopulation,
+                this.stopFinderProvider, this.plansConfigGroup.getSubpopulationAttributeName(), this.population.getPersonAttributes(),
+                this.schedule, this.network, numberOfThreads, maxBatchSize);
     }
 
     private SwissRailRaptorData getData() {
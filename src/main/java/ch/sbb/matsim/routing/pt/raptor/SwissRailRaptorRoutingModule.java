@@ -59,16 +59,16 @@ public class SwissRailRaptorRoutingModule implements RoutingModule {
     public List<? extends PlanElement> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
         List<Leg> legs = this.raptor.calcRoute(fromFacility, toFacility, departureTime, person);
         return legs != null ?
-                fillWithActivities(legs) :
+                fillWithActivities(legs, this.transitSchedule, this.network) :
                 walkRouter.calcRoute(fromFacility, toFacility, departureTime, person);
     }
 
-    private List<? extends PlanElement> fillWithActivities(List<Leg> legs) {
+    static List<? extends PlanElement> fillWithActivities(List<Leg> legs, TransitSchedule transitSchedule, Network network) {
         List<PlanElement> planElements = new ArrayList<>(legs.size() * 2);
         Leg prevLeg = null;
         for (Leg leg : legs) {
             if (prevLeg != null) {
-                Coord coord = findCoordinate(prevLeg, leg);
+                Coord coord = findCoordinate(prevLeg, leg, transitSchedule, network);
                 Id<Link> linkId = leg.getRoute().getStartLinkId();
                 Activity act = PopulationUtils.createActivityFromCoordAndLinkId(PtConstants.TRANSIT_ACTIVITY_TYPE, coord, linkId);
                 act.setMaximumDuration(0.0);
@@ -80,18 +80,18 @@ public class SwissRailRaptorRoutingModule implements RoutingModule {
         return planElements;
     }
 
-    private Coord findCoordinate(Leg prevLeg, Leg nextLeg) {
+    private static Coord findCoordinate(Leg prevLeg, Leg nextLeg, TransitSchedule transitSchedule, Network network) {
         if (prevLeg.getRoute() instanceof ExperimentalTransitRoute) {
             Id<TransitStopFacility> stopId = ((ExperimentalTransitRoute) prevLeg.getRoute()).getEgressStopId();
-            return this.transitSchedule.getFacilities().get(stopId).getCoord();
+            return transitSchedule.getFacilities().get(stopId).getCoord();
         }
         if (nextLeg.getRoute() instanceof ExperimentalTransitRoute) {
             Id<TransitStopFacility> stopId = ((ExperimentalTransitRoute) nextLeg.getRoute()).getAccessStopId();
-            return this.transitSchedule.getFacilities().get(stopId).getCoord();
+            return transitSchedule.getFacilities().get(stopId).getCoord();
         }
         // fallback: prevLeg and nextLeg are not pt routes, so we have to guess the coordinate based on the link id
         Id<Link> linkId = prevLeg.getRoute().getEndLinkId();
-        Link link = this.network.getLinks().get(linkId);
+        Link link = network.getLinks().get(linkId);
         return link.getToNode().getCoord();
     }
 
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author agent
+ */
+public class BeelineDistanceMatrixTest {
+
+    @Test
+    public void testSameResultsAsPerCoordCalculation() {
+        Map<String, SimpleFeature> zones = new LinkedHashMap<>();
+        Map<String, Coord[]> coordsPerZone = createRandomCoords(zones, 50, 5, 4711);
+        // a zone without coordinates, e.g. because it has no geometry
+        zones.put("none", null);
+
+        FloatMatrix<String> expected = calculatePerCoord(zones, coordsPerZone);
+        FloatMatrix<String> actual = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(zones, coordsPerZone, 3);
+
+        for (String fromZoneId : zones.keySet()) {
+            for (String toZoneId : zones.keySet()) {
+                float expectedValue = expected.get(fromZoneId, toZoneId);
+                float actualValue = actual.get(fromZoneId, toZoneId);
+                if (Float.isInfinite(expectedValue)) {
+                    Assert.assertEquals(fromZoneId + "->" + toZoneId, expectedValue, actualValue, 0.0f);
+                } else {
+                    Assert.assertEquals(fromZoneId + "->" + toZoneId, expectedValue, actualValue, expectedValue * 1e-5f);
+                }
+            }
+        }
+        Assert.assertEquals(Float.POSITIVE_INFINITY, actual.get("none", "0"), 0.0f);
+        Assert.assertEquals(Float.POSITIVE_INFINITY, actual.get("0", "none"), 0.0f);
+    }
+
+    @Test
+    public void testOriginFilter() {
+        Map<String, SimpleFeature> zones = new LinkedHashMap<>();
+        Map<String, Coord[]> coordsPerZone = createRandomCoords(zones, 10, 3, 1234);
+        FloatMatrix<String> full = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(zones, coordsPerZone, 2);
+        FloatMatrix<String> even = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(zones, coordsPerZone, 2, zoneIndex -> zoneIndex % 2 == 0);
+        for (int fromIndex = 0; fromIndex < full.getZoneCount(); fromIndex++) {
+            for (int toIndex = 0; toIndex < full.getZoneCount(); toIndex++) {
+                float expected = fromIndex % 2 == 0 ? full.getByIndex(fromIndex, toIndex) : 0.0f;
+                Assert.assertEquals(expected, even.getByIndex(fromIndex, toIndex), 0.0f);
+            }
+        }
+    }
+
+    static Map<String, Coord[]> createRandomCoords(Map<String, SimpleFeature> zones, int zoneCount, int pointsPerZone, long seed) {
+        Random random = new Random(seed);
+        Map<String, Coord[]> coordsPerZone = new LinkedHashMap<>();
+        for (int z = 0; z < zoneCount; z++) {
+            String zoneId = Integer.toString(z);
+            zones.put(zoneId, null);
+            double centerX = 2_600_000 + 200_000 * random.nextDouble();
+            double centerY = 1_100_000 + 150_000 * random.nextDouble();
+            Coord[] coords = new Coord[pointsPerZone];
+            for (int i = 0; i < pointsPerZone; i++) {
+                coords[i] = new Coord(centerX + 1000 * random.nextDouble(), centerY + 1000 * random.nextDouble());
+            }
+            coordsPerZone.put(zoneId, coords);
+        }
+        return coordsPerZone;
+    }
+
+    /**
+     * The previous implementation, calculating the distance of each pair of {@link Coord}s and adding it to the matrix.
+     */
+    static FloatMatrix<String> calculatePerCoord(Map<String, SimpleFeature> zones, Map<String, Coord[]> coordsPerZone) {
+        FloatMatrix<String> matrix = new FloatMatrix<>(zones.keySet(), 0.0f);
+        int numberOfPointsPerZone = coordsPerZone.values().iterator().next().length;
+        for (int fromZoneIndex = 0; fromZoneIndex < matrix.getZoneCount(); fromZoneIndex++) {
+            FloatMatrix.Row row = matrix.getRow(fromZoneIndex);
+            Coord[] fromCoords = coordsPerZone.get(matrix.getZoneId(fromZoneIndex));
+            if (fromCoords == null) {
+                row.fill(Float.POSITIVE_INFINITY);
+                continue;
+            }
+            for (Coord fromCoord : fromCoords) {
+                for (int toZoneIndex = 0; toZoneIndex < matrix.getZoneCount(); toZoneIndex++) {
+                    Coord[] toCoords = coordsPerZone.get(matrix.getZoneId(toZoneIndex));
+                    if (toCoords != null) {
+                        for (Coord toCoord : toCoords) {
+                            row.add(toZoneIndex, (float) CoordUtils.calcEuclideanDistance(fromCoord, toCoord));
+                        }
+                    } else {
+                        row.set(toZoneIndex, Float.POSITIVE_INFINITY);
+                    }
+                }
+            }
+        }
+        matrix.multiply((float) (1.0 / numberOfPointsPerZone / numberOfPointsPerZone));
+        return matrix;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.analysis.skims.NetworkSkimMatrices.NetworkIndicators;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * @author agent
+ */
+public class ContractionHierarchyTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testSameResultsAsDijkstra() {
+        Network network = createGridNetwork(15, 4711);
+        IndexedNetwork indexedNetwork = new IndexedNetwork(network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+
+        ContractionHierarchy hierarchy = ContractionHierarchy.create(indexedNetwork, tt, td, 8 * 3600);
+        assertSameResultsAsDijkstra(indexedNetwork, hierarchy, tt, td);
+    }
+
+    @Test
+    public void testUnreachableTargets() {
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory nf = network.getFactory();
+        Node a = nf.createNode(Id.create("a", Node.class), new Coord(0, 0));
+        Node b = nf.createNode(Id.create("b", Node.class), new Coord(1000, 0));
+        Node c = nf.createNode(Id.create("c", Node.class), new Coord(2000, 0));
+        network.addNode(a);
+        network.addNode(b);
+        network.addNode(c);
+        addLink(network, a, b, 1000, 10);
+        addLink(network, c, b, 1000, 10);
+
+        IndexedNetwork indexedNetwork = new IndexedNetwork(network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        ContractionHierarchy hierarchy = ContractionHierarchy.create(indexedNetwork, tt, new OnlyTimeDependentTravelDisutility(tt), 0);
+        int aIndex = indexedNetwork.getNodeIndex(a.getId());
+        int bIndex = indexedNetwork.getNodeIndex(b.getId());
+        int cIndex = indexedNetwork.getNodeIndex(c.getId());
+        ContractionHierarchyQuery query = new ContractionHierarchyQuery(hierarchy, new int[] { aIndex, bIndex, cIndex }, 2);
+        ContractionHierarchyQuery.Searcher searcher = query.createSearcher();
+
+        searcher.calculate(aIndex);
+        Assert.assertEquals(0, searcher.getTime(0), 1e-7);
+        Assert.assertEquals(100, searcher.getTime(1), 1e-7);
+        Assert.assertEquals(1000, searcher.getDistance(1), 1e-7);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, searcher.getTime(2), 0.0);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, searcher.getDistance(2), 0.0);
+
+        searcher.calculate(bIndex);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, searcher.getTime(0), 0.0);
+        Assert.assertEquals(0, searcher.getTime(1), 1e-7);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, searcher.getTime(2), 0.0);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Network network = createGridNetwork(8, 1234);
+        IndexedNetwork indexedNetwork = new IndexedNetwork(network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        File file = new File(this.utils.getOutputDirectory(), "car_ch.bin");
+
+        ContractionHierarchy created = ContractionHierarchy.loadOrCreate(file, indexedNetwork, tt, td, 0);
+        Assert.assertTrue(file.exists());
+
+        ContractionHierarchy read = ContractionHierarchy.read(file, created.fingerprint);
+        Assert.assertNotNull(read);
+        Assert.assertEquals(created.getNodeCount(), read.getNodeCount());
+        Assert.assertArrayEquals(created.upStart, read.upStart);
+        Assert.assertArrayEquals(created.upTo, read.upTo);
+        Assert.assertArrayEquals(created.upCost, read.upCost, 0.0);
+        Assert.assertArrayEquals(created.upDistance, read.upDistance, 0.0);
+        Assert.assertArrayEquals(created.downStart, read.downStart);
+        Assert.assertArrayEquals(created.downFrom, read.downFrom);
+        Assert.assertArrayEquals(created.downTime, read.downTime, 0.0);
+        assertSameResultsAsDijkstra(indexedNetwork, read, tt, td);
+
+        Assert.assertNull("a file for another network must not be used.", ContractionHierarchy.read(file, created.fingerprint + 1));
+
+        // changing the speed of a link must lead to a new hierarchy
+        network.getLinks().values().iterator().next().setFreespeed(1.0);
+        IndexedNetwork changedNetwork = new IndexedNetwork(network);
+        ContractionHierarchy recreated = ContractionHierarchy.loadOrCreate(file, changedNetwork, tt, td, 0);
+        Assert.assertNotEquals(created.fingerprint, recreated.fingerprint);
+        Assert.assertNotNull(ContractionHierarchy.read(file, recreated.fingerprint));
+        assertSameResultsAsDijkstra(changedNetwork, recreated, tt, td);
+    }
+
+    @Test
+    public void testSkimMatricesSameAsDijkstra() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+
+        NetworkIndicators<String> expected = NetworkSkimMatrices.calculateSkimMatrices(f.network, f.network, f.zones, f.coordsPerZone, 8 * 3600, tt, td, 2);
+        NetworkIndicators<String> actual = NetworkSkimMatrices.calculateSkimMatricesWithContractionHierarchy(f.network, f.network, f.zones, f.coordsPerZone, 8 * 3600, tt, td, 2, fromZoneIndex -> true, null);
+
+        for (String fromZoneId : f.zones.keySet()) {
+            for (String toZoneId : f.zones.keySet()) {
+                Assert.assertEquals(fromZoneId + "->" + toZoneId, expected.travelTimeMatrix.get(fromZoneId, toZoneId), actual.travelTimeMatrix.get(fromZoneId, toZoneId), 1e-3);
+                Assert.assertEquals(fromZoneId + "->" + toZoneId, expected.distanceMatrix.get(fromZoneId, toZoneId), actual.distanceMatrix.get(fromZoneId, toZoneId), 1e-3);
+            }
+        }
+    }
+
+    private static void assertSameResultsAsDijkstra(IndexedNetwork network, ContractionHierarchy hierarchy, TravelTime tt, TravelDisutility td) {
+        int nodeCount = network.getNodeCount();
+        int[] targets = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            targets[i] = i;
+        }
+        ContractionHierarchyQuery query = new ContractionHierarchyQuery(hierarchy, targets, 2);
+        ContractionHierarchyQuery.Searcher searcher = query.createSearcher();
+        IndexedLeastCostPathTree tree = new IndexedLeastCostPathTree(network, tt, td);
+
+        for (int origin = 0; origin < nodeCount; origin += 7) {
+            tree.calculate(origin, 0);
+            searcher.calculate(origin);
+            for (int target = 0; target < nodeCount; target++) {
+                Assert.assertEquals(tree.getCost(target), searcher.getCost(target), 1e-6);
+                Assert.assertEquals(tree.getTime(target), searcher.getTime(target), 1e-6);
+                Assert.assertEquals(tree.getDistance(target), searcher.getDistance(target), 1e-6);
+            }
+        }
+    }
+
+    /**
+     * Creates a grid of <code>size x size</code> nodes with randomized link lengths and speeds, where not all
+     * connections exist in both directions. The lengths are random enough that no two paths have the same cost.
+     */
+    private static Network createGridNetwork(int size, long seed) {
+        Random random = new Random(seed);
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory nf = network.getFactory();
+        Node[][] nodes = new Node[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                nodes[x][y] = nf.createNode(Id.create(x + "_" + y, Node.class), new Coord(x * 1000, y * 1000));
+                network.addNode(nodes[x][y]);
+            }
+        }
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                Node node = nodes[x][y];
+                for (Node neighbour : new Node[] { x + 1 < size ? nodes[x + 1][y] : null, y + 1 < size ? nodes[x][y + 1] : null }) {
+                    if (neighbour != null) {
+                        boolean oneWay = random.nextDouble() < 0.1;
+                        addLink(network, node, neighbour, 1000 + 1000 * random.nextDouble(), 10 + 20 * random.nextDouble());
+                        if (!oneWay) {
+                            addLink(network, neighbour, node, 1000 + 1000 * random.nextDouble(), 10 + 20 * random.nextDouble());
+                        }
+                    }
+                }
+            }
+        }
+        return network;
+    }
+
+    private static void addLink(Network network, Node from, Node to, double length, double freespeed) {
+        NetworkFactory nf = network.getFactory();
+        Link link = nf.createLink(Id.create(from.getId() + "-" + to.getId(), Link.class), from, to);
+        link.setLength(length);
+        link.setFreespeed(freespeed);
+        link.setCapacity(1000);
+        link.setNumberOfLanes(1);
+        network.addLink(link);
+    }
+}
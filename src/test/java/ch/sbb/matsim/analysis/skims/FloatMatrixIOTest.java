@@ -5,12 +5,17 @@
 package ch.sbb.matsim.analysis.skims;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.matsim.testcases.MatsimTestUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -18,6 +23,9 @@ import java.util.Set;
  */
 public class FloatMatrixIOTest {
 
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
     @Test
     public void testIO() throws IOException {
         Set<String> zoneIds = new HashSet<>();
@@ -56,4 +64,102 @@ public class FloatMatrixIOTest {
         Assert.assertEquals(27.0f, matrix2.get("tres", "dos"), epsilon);
         Assert.assertEquals(64.0f, matrix2.get("tres", "tres"), epsilon);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBinaryIO() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>();
+        zoneIds.add("un");
+        zoneIds.add("dos");
+        zoneIds.add("trés"); // non-ascii, to check the encoding of the zone ids
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 0.0f);
+
+        matrix.set("un", "un", 2.0f);
+        matrix.set("un", "dos", 3.0f);
+        matrix.set("un", "trés", 4.0f);
+        matrix.set("dos", "un", 4.0f);
+        matrix.set("dos", "dos", 9.0f);
+        matrix.set("dos", "trés", 16.0f);
+        matrix.set("trés", "un", 8.0f);
+        matrix.set("trés", "dos", 27.0f);
+        matrix.set("trés", "trés", Float.POSITIVE_INFINITY);
+
+        String filename = this.utils.getOutputDirectory() + "matrix.bin";
+        FloatMatrixIO.writeAsBinary(matrix, filename);
+
+        // read into a new matrix with the same zone order as in the file
+        FloatMatrix<String> matrix2 = FloatMatrixIO.readAsBinary(filename, id -> id);
+        // read into an existing matrix with a different zone order
+        Set<String> reversedZoneIds = new LinkedHashSet<>();
+        reversedZoneIds.add("trés");
+        reversedZoneIds.add("dos");
+        reversedZoneIds.add("un");
+        FloatMatrix<String> matrix3 = new FloatMatrix<>(reversedZoneIds, Float.NaN);
+        FloatMatrixIO.readAsBinary(matrix3, filename, id -> id);
+
+        for (FloatMatrix<String> m : new FloatMatrix[] { matrix2, matrix3 }) {
+            for (String fromZoneId : zoneIds) {
+                for (String toZoneId : zoneIds) {
+                    Assert.assertEquals(matrix.get(fromZoneId, toZoneId), m.get(fromZoneId, toZoneId), 0.0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRowReader() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>();
+        zoneIds.add("un");
+        zoneIds.add("dos");
+        zoneIds.add("trés");
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 0.0f);
+        float value = 1.0f;
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                matrix.set(fromZoneId, toZoneId, value);
+                value *= 2.5f;
+            }
+        }
+        matrix.set("dos", "un", Float.POSITIVE_INFINITY);
+
+        String csvFilename = this.utils.getOutputDirectory() + "matrix.csv.gz";
+        String binaryFilename = this.utils.getOutputDirectory() + "matrix.bin";
+        FloatMatrixIO.writeAsCSV(matrix, csvFilename);
+        FloatMatrixIO.writeAsBinary(matrix, binaryFilename);
+
+        for (String filename : new String[] { csvFilename, binaryFilename }) {
+            try (FloatMatrixIO.RowReader<String> reader = FloatMatrixIO.openRowReader(filename, id -> id)) {
+                Assert.assertEquals(Arrays.asList("un", "dos", "trés"), reader.getZoneIds());
+                float[] values = new float[3];
+                for (String fromZoneId : zoneIds) {
+                    Assert.assertEquals(filename, fromZoneId, reader.readRow(values));
+                    int toIndex = 0;
+                    for (String toZoneId : zoneIds) {
+                        Assert.assertEquals(filename, matrix.get(fromZoneId, toZoneId), values[toIndex], 0.0f);
+                        toIndex++;
+                    }
+                }
+                Assert.assertNull(reader.readRow(values));
+            }
+        }
+    }
+
+    @Test
+    public void testRowReader_partialCSV() throws IOException {
+        List<String> zoneIds = Arrays.asList("a", "b", "c");
+        String filename = this.utils.getOutputDirectory() + "partial.csv";
+        FloatMatrix<String> matrix = new FloatMatrix<>(new LinkedHashSet<>(zoneIds), 7.0f);
+        try (FloatMatrixIO.RowWriter writer = FloatMatrixIO.createCSVRowWriter(filename, zoneIds, new int[] { 1, 2 })) {
+            writer.writeRow(matrix.getRow(1));
+            writer.writeRow(matrix.getRow(2));
+        }
+
+        try (FloatMatrixIO.RowReader<String> reader = FloatMatrixIO.openRowReader(filename, id -> id)) {
+            Assert.assertEquals(zoneIds, reader.getZoneIds());
+            float[] values = new float[3];
+            Assert.assertEquals("b", reader.readRow(values));
+            Assert.assertArrayEquals(new float[] { 7.0f, 7.0f, 7.0f }, values, 0.0f);
+            Assert.assertEquals("c", reader.readRow(values));
+            Assert.assertNull(reader.readRow(values));
+        }
+    }
+}
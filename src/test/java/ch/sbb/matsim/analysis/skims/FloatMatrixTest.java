@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * @author agent
+ */
+public class FloatMatrixTest {
+
+    @Test
+    public void testIndexAccess() {
+        Set<String> zoneIds = createZoneIds(5);
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 1.0f);
+
+        Assert.assertEquals(5, matrix.getZoneCount());
+        Assert.assertEquals(25, matrix.getCellCount());
+        Assert.assertEquals(0, matrix.getZoneIndex("z0"));
+        Assert.assertEquals(3, matrix.getZoneIndex("z3"));
+        Assert.assertEquals("z4", matrix.getZoneId(4));
+
+        matrix.setByIndex(1, 2, 5.0f);
+        Assert.assertEquals(5.0f, matrix.get("z1", "z2"), 0.0f);
+        Assert.assertEquals(7.0f, matrix.addByIndex(1, 2, 2.0f), 0.0f);
+        Assert.assertEquals(14.0f, matrix.multiplyByIndex(1, 2, 2.0f), 0.0f);
+        Assert.assertEquals(14.0f, matrix.getByIndex(1, 2), 0.0f);
+        Assert.assertEquals(1.0f, matrix.getByIndex(2, 1), 0.0f);
+
+        FloatMatrix.Row row = matrix.getRow(3);
+        row.set(0, 3.0f);
+        row.add(4, 1.5f);
+        Assert.assertEquals(3.0f, matrix.get("z3", "z0"), 0.0f);
+        Assert.assertEquals(2.5f, matrix.get("z3", "z4"), 0.0f);
+        row.fill(Float.POSITIVE_INFINITY);
+        Assert.assertEquals(Float.POSITIVE_INFINITY, matrix.get("z3", "z1"), 0.0f);
+        Assert.assertEquals(1.0f, matrix.get("z2", "z1"), 0.0f);
+        Assert.assertEquals(1.0f, matrix.get("z4", "z1"), 0.0f);
+    }
+
+    @Test
+    public void testChunkedAndOffHeap() {
+        Set<String> zoneIds = createZoneIds(7);
+        FloatMatrix<String> reference = new FloatMatrix<>(zoneIds, 0.5f);
+        FloatMatrix<String> chunked = new FloatMatrix<>(zoneIds, 0.5f, false, 15); // 2 rows per chunk
+        FloatMatrix<String> offHeap = new FloatMatrix<>(zoneIds, 0.5f, true, 15);
+
+        for (FloatMatrix<String> matrix : new FloatMatrix[] { reference, chunked, offHeap }) {
+            for (int from = 0; from < 7; from++) {
+                for (int to = 0; to < 7; to++) {
+                    matrix.addByIndex(from, to, from * 10 + to);
+                }
+            }
+            matrix.set("z6", "z6", 42.0f);
+            matrix.getRow(5).multiply(1, 3.0f);
+            matrix.multiply(2.0f);
+        }
+
+        for (int from = 0; from < 7; from++) {
+            for (int to = 0; to < 7; to++) {
+                Assert.assertEquals(reference.getByIndex(from, to), chunked.getByIndex(from, to), 0.0f);
+                Assert.assertEquals(reference.getByIndex(from, to), offHeap.getByIndex(from, to), 0.0f);
+            }
+        }
+        Assert.assertEquals(84.0f, offHeap.get("z6", "z6"), 0.0f);
+        Assert.assertEquals((51 + 0.5f) * 3 * 2, chunked.get("z5", "z1"), 1e-5f);
+    }
+
+    private static Set<String> createZoneIds(int count) {
+        Set<String> zoneIds = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            zoneIds.add("z" + i);
+        }
+        return zoneIds;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Random;
+
+/**
+ * @author agent
+ */
+public class IndexedLeastCostPathTreeTest {
+
+    @Test
+    public void testSameResultsAsLeastCostPathTree() {
+        Network network = createGridNetwork(12, 4711);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        assertSameResults(network, tt, td);
+    }
+
+    @Test
+    public void testSameResultsAsLeastCostPathTree_ties() {
+        // with distance based costs on a regular grid, many nodes can be reached by several paths with the same cost
+        Network network = createGridNetwork(10, 1234);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new TravelDisutility() {
+            @Override
+            public double getLinkTravelDisutility(Link link, double time, Person person, Vehicle vehicle) {
+                return Math.round(link.getLength() / 500.0);
+            }
+
+            @Override
+            public double getLinkMinimumTravelDisutility(Link link) {
+                return Math.round(link.getLength() / 500.0);
+            }
+        };
+        assertSameResults(network, tt, td);
+    }
+
+    @Test
+    public void testUnreachableNodes() {
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory nf = network.getFactory();
+        Node a = nf.createNode(Id.create("a", Node.class), new Coord(0, 0));
+        Node b = nf.createNode(Id.create("b", Node.class), new Coord(1000, 0));
+        Node c = nf.createNode(Id.create("c", Node.class), new Coord(2000, 0));
+        network.addNode(a);
+        network.addNode(b);
+        network.addNode(c);
+        Link ab = nf.createLink(Id.create("ab", Link.class), a, b);
+        ab.setLength(1000);
+        ab.setFreespeed(10);
+        network.addLink(ab);
+        Link cb = nf.createLink(Id.create("cb", Link.class), c, b);
+        cb.setLength(1000);
+        cb.setFreespeed(10);
+        network.addLink(cb);
+
+        IndexedNetwork indexedNetwork = new IndexedNetwork(network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        IndexedLeastCostPathTree tree = new IndexedLeastCostPathTree(indexedNetwork, tt, new OnlyTimeDependentTravelDisutility(tt));
+        int aIndex = indexedNetwork.getNodeIndex(a.getId());
+        int bIndex = indexedNetwork.getNodeIndex(b.getId());
+        int cIndex = indexedNetwork.getNodeIndex(c.getId());
+        tree.calculate(aIndex, 3600);
+
+        Assert.assertEquals(3600, tree.getTime(aIndex), 1e-7);
+        Assert.assertEquals(0, tree.getDistance(aIndex), 1e-7);
+        Assert.assertEquals(-1, tree.getComingFromLink(aIndex));
+        Assert.assertEquals(3700, tree.getTime(bIndex), 1e-7);
+        Assert.assertEquals(1000, tree.getDistance(bIndex), 1e-7);
+        Assert.assertEquals(ab, indexedNetwork.getLink(tree.getComingFromLink(bIndex)));
+        Assert.assertEquals(Double.POSITIVE_INFINITY, tree.getTime(cIndex), 0.0);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, tree.getCost(cIndex), 0.0);
+        Assert.assertEquals(-1, tree.getComingFromLink(cIndex));
+
+        // re-using the tree must not leak state from the previous calculation
+        tree.calculate(cIndex, 0);
+        Assert.assertEquals(100, tree.getTime(bIndex), 1e-7);
+        Assert.assertEquals(cb, indexedNetwork.getLink(tree.getComingFromLink(bIndex)));
+        Assert.assertEquals(Double.POSITIVE_INFINITY, tree.getTime(aIndex), 0.0);
+    }
+
+    private static void assertSameResults(Network network, TravelTime tt, TravelDisutility td) {
+        IndexedNetwork indexedNetwork = new IndexedNetwork(network);
+        LeastCostPathTree expectedTree = new LeastCostPathTree(tt, td);
+        IndexedLeastCostPathTree tree = new IndexedLeastCostPathTree(indexedNetwork, tt, td);
+
+        for (Node origin : network.getNodes().values()) {
+            expectedTree.calculate(network, origin, 7 * 3600);
+            tree.calculate(indexedNetwork.getNodeIndex(origin.getId()), 7 * 3600);
+            for (Node node : network.getNodes().values()) {
+                LeastCostPathTree.NodeData expected = expectedTree.getTree().get(node.getId());
+                int nodeIndex = indexedNetwork.getNodeIndex(node.getId());
+                Assert.assertEquals(expected.getCost(), tree.getCost(nodeIndex), 0.0);
+                Assert.assertEquals(expected.getTime(), tree.getTime(nodeIndex), 0.0);
+                Assert.assertEquals(expected.getDistance(), tree.getDistance(nodeIndex), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Creates a grid of <code>size x size</code> nodes, connected in both directions, with randomized link lengths and speeds.
+     */
+    private static Network createGridNetwork(int size, long seed) {
+        Random random = new Random(seed);
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory nf = network.getFactory();
+        Node[][] nodes = new Node[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                nodes[x][y] = nf.createNode(Id.create(x + "_" + y, Node.class), new Coord(x * 1000, y * 1000));
+                network.addNode(nodes[x][y]);
+            }
+        }
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                if (x + 1 < size) {
+                    addLinks(network, nodes[x][y], nodes[x + 1][y], random);
+                }
+                if (y + 1 < size) {
+                    addLinks(network, nodes[x][y], nodes[x][y + 1], random);
+                }
+            }
+        }
+        return network;
+    }
+
+    private static void addLinks(Network network, Node a, Node b, Random random) {
+        NetworkFactory nf = network.getFactory();
+        for (Node[] fromTo : new Node[][] { { a, b }, { b, a } }) {
+            Link link = nf.createLink(Id.create(fromTo[0].getId() + "-" + fromTo[1].getId(), Link.class), fromTo[0], fromTo[1]);
+            link.setLength(1000 + 500 * random.nextInt(3));
+            link.setFreespeed(10 + 5 * random.nextInt(4));
+            link.setCapacity(1000);
+            link.setNumberOfLanes(1);
+            network.addLink(link);
+        }
+    }
+}
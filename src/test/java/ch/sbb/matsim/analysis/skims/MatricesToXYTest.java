@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author agent
+ */
+public class MatricesToXYTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testJoinCsvAndBinaryMatrices() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>();
+        zoneIds.add("A");
+        zoneIds.add("B");
+        zoneIds.add("C");
+        FloatMatrix<String> times = new FloatMatrix<>(zoneIds, 0.0f);
+        FloatMatrix<String> distances = new FloatMatrix<>(zoneIds, 0.0f);
+        int index = 0;
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                times.set(fromZoneId, toZoneId, 60.0f * index);
+                distances.set(fromZoneId, toZoneId, 1000.0f * index);
+                index++;
+            }
+        }
+        String timesFilename = this.utils.getOutputDirectory() + "times.csv.gz";
+        String distancesFilename = this.utils.getOutputDirectory() + "distances.bin";
+        FloatMatrixIO.writeAsCSV(times, timesFilename);
+        FloatMatrixIO.writeAsBinary(distances, distancesFilename);
+
+        // zone C has no coordinate, so all its relations must be skipped
+        GeometryFactory gf = new GeometryFactory();
+        Map<String, Point> coords = new HashMap<>();
+        coords.put("A", gf.createPoint(new Coordinate(100, 200)));
+        coords.put("B", gf.createPoint(new Coordinate(300, 400)));
+
+        String xyFilename = this.utils.getOutputDirectory() + "xy.csv";
+        MatricesToXY.writeXY(new String[] { timesFilename, distancesFilename }, new String[] { "TIME", "DISTANCE" }, coords, xyFilename);
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = IOUtils.getBufferedReader(xyFilename)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        Assert.assertEquals(5, lines.size());
+        Assert.assertEquals("FROM,FROM_X,FROM_Y,TO,TO_X,TO_Y,TIME,DISTANCE", lines.get(0));
+        Assert.assertEquals("A,100,200,A,100,200,0.0,0.0", lines.get(1));
+        Assert.assertEquals("A,100,200,B,300,400,60.0,1000.0", lines.get(2));
+        Assert.assertEquals("B,300,400,A,100,200,180.0,3000.0", lines.get(3));
+        Assert.assertEquals("B,300,400,B,300,400,240.0,4000.0", lines.get(4));
+    }
+
+    @Test
+    public void testDifferentRowOrder() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>();
+        zoneIds.add("A");
+        zoneIds.add("B");
+        Set<String> reversedZoneIds = new LinkedHashSet<>();
+        reversedZoneIds.add("B");
+        reversedZoneIds.add("A");
+        String filename1 = this.utils.getOutputDirectory() + "m1.csv";
+        String filename2 = this.utils.getOutputDirectory() + "m2.csv";
+        FloatMatrixIO.writeAsCSV(new FloatMatrix<>(zoneIds, 1.0f), filename1);
+        FloatMatrixIO.writeAsCSV(new FloatMatrix<>(reversedZoneIds, 2.0f), filename2);
+
+        try {
+            MatricesToXY.writeXY(new String[] { filename1, filename2 }, new String[] { "M1", "M2" }, new HashMap<>(), this.utils.getOutputDirectory() + "xy.csv");
+            Assert.fail("expected exception, got none.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
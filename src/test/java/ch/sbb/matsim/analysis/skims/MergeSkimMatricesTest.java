@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import ch.sbb.matsim.synthetic.SyntheticScenarioGenerator;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesUtils;
+import org.matsim.facilities.FacilitiesWriter;
+import org.matsim.testcases.MatsimTestUtils;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * @author agent
+ */
+public class MergeSkimMatricesTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testMergeBeelineParts() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+        FloatMatrix<String> expected = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(f.zones, f.coordsPerZone, 2);
+
+        int partCount = 4;
+        List<String> partFilenames = new ArrayList<>();
+        for (int part = 0; part < partCount; part++) {
+            int partIndex = part;
+            FloatMatrix<String> partMatrix = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(f.zones, f.coordsPerZone, 2,
+                    zoneIndex -> CalculateSkimMatrices.isInPartition(zoneIndex, partIndex, partCount));
+            partFilenames.add(writePart(partMatrix, zoneIds, CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME, partIndex, partCount));
+        }
+
+        FloatMatrix<String> merged = MergeSkimMatrices.mergePartialMatrices(partFilenames);
+        assertMatrixEquals(expected, merged);
+    }
+
+    @Test
+    public void testMergePtParts() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        SwissRailRaptorData raptorData = f.createRaptorData();
+        double minTime = Time.parseTime("06:00:00");
+        double maxTime = Time.parseTime("08:00:00");
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+
+        PTSkimMatrices.PtIndicators<String> expected = PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 2, (line, route) -> true);
+
+        int partCount = 2;
+        List<String> travelTimeParts = new ArrayList<>();
+        List<String> frequencyParts = new ArrayList<>();
+        for (int part = 0; part < partCount; part++) {
+            int partIndex = part;
+            PTSkimMatrices.PtIndicators<String> partIndicators = PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 2, (line, route) -> true,
+                    zoneIndex -> CalculateSkimMatrices.isInPartition(zoneIndex, partIndex, partCount), null);
+            travelTimeParts.add(writePart(partIndicators.travelTimeMatrix, zoneIds, CalculateSkimMatrices.PT_TRAVELTIMES_FILENAME, partIndex, partCount));
+            frequencyParts.add(writePart(partIndicators.frequencyMatrix, zoneIds, CalculateSkimMatrices.PT_FREQUENCIES_FILENAME, partIndex, partCount));
+        }
+
+        assertMatrixEquals(expected.travelTimeMatrix, MergeSkimMatrices.mergePartialMatrices(travelTimeParts));
+        assertMatrixEquals(expected.frequencyMatrix, MergeSkimMatrices.mergePartialMatrices(frequencyParts));
+    }
+
+    @Test
+    public void testMissingPart() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+        FloatMatrix<String> matrix = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(f.zones, f.coordsPerZone, 1);
+
+        List<String> partFilenames = new ArrayList<>();
+        partFilenames.add(writePart(matrix, zoneIds, CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME, 0, 2));
+        try {
+            MergeSkimMatrices.mergePartialMatrices(partFilenames);
+            Assert.fail("Expected an exception because of a missing part.");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Runs the parts of a partitioned calculation as separate processes writing into the same directory,
+     * as they would be started on different machines, and merges their output.
+     */
+    @Test
+    public void testMergeSeparateProcesses() throws IOException, InterruptedException {
+        SyntheticScenarioGenerator generator = new SyntheticScenarioGenerator(20190801);
+        generator.setExtent(5000);
+        Map<String, SimpleFeature> zones = generator.createZones(4);
+        String zonesFilename = new File(this.utils.getOutputDirectory(), "zones.shp").getAbsolutePath();
+        SyntheticScenarioGenerator.writeZones(zones, zonesFilename);
+
+        ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
+        int facilityIndex = 0;
+        for (Coord[] coords : generator.createCoordsPerZone(zones, 5).values()) {
+            for (Coord coord : coords) {
+                facilities.addActivityFacility(facilities.getFactory().createActivityFacility(Id.create(facilityIndex++, ActivityFacility.class), coord));
+            }
+        }
+        String facilitiesFilename = new File(this.utils.getOutputDirectory(), "facilities.xml.gz").getAbsolutePath();
+        new FacilitiesWriter(facilities).write(facilitiesFilename);
+
+        String fullDirectory = new File(this.utils.getOutputDirectory(), "full").getAbsolutePath();
+        String partsDirectory = new File(this.utils.getOutputDirectory(), "parts").getAbsolutePath();
+        int partCount = 2;
+
+        // only the beeline matrix is calculated, so no network, schedule or events are needed
+        List<Process> processes = new ArrayList<>();
+        for (int part = 0; part < partCount; part++) {
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    CalculateSkimMatrices.class.getName()));
+            command.addAll(createArguments(zonesFilename, facilitiesFilename, partsDirectory));
+            command.add(part + "/" + partCount);
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        for (Process process : processes) {
+            Assert.assertTrue("The part did not finish in time.", process.waitFor(5, TimeUnit.MINUTES));
+            Assert.assertEquals(0, process.exitValue());
+        }
+        MergeSkimMatrices.main(new String[] {partsDirectory, Integer.toString(partCount)});
+
+        CalculateSkimMatrices.main(createArguments(zonesFilename, facilitiesFilename, fullDirectory).toArray(new String[0]));
+
+        Assert.assertEquals(Files.readAllLines(new File(fullDirectory, CalculateSkimMatrices.ZONE_LOCATIONS_FILENAME).toPath()),
+                Files.readAllLines(new File(partsDirectory, CalculateSkimMatrices.ZONE_LOCATIONS_FILENAME).toPath()));
+        FloatMatrix<String> expected = new FloatMatrix<>(zones.keySet(), Float.NaN);
+        FloatMatrixIO.readAsCSV(expected, fullDirectory + "/" + CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME, id -> id);
+        FloatMatrix<String> merged = new FloatMatrix<>(zones.keySet(), Float.NaN);
+        FloatMatrixIO.readAsCSV(merged, partsDirectory + "/" + CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME, id -> id);
+        assertMatrixEquals(expected, merged);
+    }
+
+    private static List<String> createArguments(String zonesFilename, String facilitiesFilename, String outputDirectory) {
+        return new ArrayList<>(Arrays.asList(zonesFilename, "ID", facilitiesFilename, "-", "-", "-", outputDirectory,
+                "2", "2", "08:00:00", "07:00:00;08:00:00", "beeline"));
+    }
+
+    private String writePart(FloatMatrix<String> matrix, List<String> zoneIds, String filename, int partIndex, int partCount) throws IOException {
+        int[] fromZoneIndices = IntStream.range(0, zoneIds.size()).filter(zoneIndex -> CalculateSkimMatrices.isInPartition(zoneIndex, partIndex, partCount)).toArray();
+        String partFilename = this.utils.getOutputDirectory() + CalculateSkimMatrices.getPartialFilename(filename, partIndex, partCount);
+        try (FloatMatrixIO.RowWriter writer = FloatMatrixIO.createCSVRowWriter(partFilename, zoneIds, fromZoneIndices)) {
+            for (int fromZoneIndex : fromZoneIndices) {
+                writer.writeRow(matrix.getRow(fromZoneIndex));
+            }
+        }
+        return partFilename;
+    }
+
+    private static void assertMatrixEquals(FloatMatrix<String> expected, FloatMatrix<String> actual) {
+        Assert.assertEquals(expected.getZoneCount(), actual.getZoneCount());
+        for (int fromIndex = 0; fromIndex < expected.getZoneCount(); fromIndex++) {
+            Assert.assertEquals(expected.getZoneId(fromIndex), actual.getZoneId(fromIndex));
+            for (int toIndex = 0; toIndex < expected.getZoneCount(); toIndex++) {
+                Assert.assertEquals(expected.getByIndex(fromIndex, toIndex), actual.getByIndex(fromIndex, toIndex), 0.0f);
+            }
+        }
+    }
+}
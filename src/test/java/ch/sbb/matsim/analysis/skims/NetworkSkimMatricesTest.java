@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.analysis.skims.NetworkSkimMatrices.NetworkIndicators;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * @author agent
+ */
+public class NetworkSkimMatricesTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMultipleDepartureTimesInOnePass() {
+        PtSkimsFixture f = new PtSkimsFixture();
+        // links get slower during the day, so every departure time results in different travel times
+        TravelTime tt = (Link link, double time, Person person, Vehicle vehicle) -> link.getLength() / link.getFreespeed() * (1.0 + time / 36000.0);
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        double[] times = { 6 * 3600, 7 * 3600, 8 * 3600 };
+
+        NetworkIndicators<String> combined = NetworkSkimMatrices.calculateSkimMatrices(f.network, f.network, f.zones, f.coordsPerZone, times, tt, td, 2, fromZoneIndex -> true);
+
+        NetworkIndicators<String>[] single = new NetworkIndicators[times.length];
+        for (int i = 0; i < times.length; i++) {
+            single[i] = NetworkSkimMatrices.calculateSkimMatrices(f.network, f.network, f.zones, f.coordsPerZone, times[i], tt, td, 2);
+        }
+
+        for (String fromZoneId : f.zones.keySet()) {
+            for (String toZoneId : f.zones.keySet()) {
+                double expectedTime = 0;
+                double expectedDistance = 0;
+                for (NetworkIndicators<String> indicators : single) {
+                    expectedTime += indicators.travelTimeMatrix.get(fromZoneId, toZoneId) / times.length;
+                    expectedDistance += indicators.distanceMatrix.get(fromZoneId, toZoneId) / times.length;
+                }
+                String od = fromZoneId + "->" + toZoneId;
+                Assert.assertEquals(od, expectedTime, combined.travelTimeMatrix.get(fromZoneId, toZoneId), 1e-2);
+                Assert.assertEquals(od, expectedDistance, combined.distanceMatrix.get(fromZoneId, toZoneId), 1e-2);
+            }
+        }
+        // make sure the departure times really matter
+        Assert.assertNotEquals(single[0].travelTimeMatrix.get("A", "E"), single[2].travelTimeMatrix.get("A", "E"), 1.0);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author agent
+ */
+public class PTSkimCheckpointTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testResumeCalculation() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        SwissRailRaptorData raptorData = f.createRaptorData();
+        double minTime = Time.parseTime("06:00:00");
+        double maxTime = Time.parseTime("08:00:00");
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+        long parametersFingerprint = PTSkimCheckpoint.calcParametersFingerprint(f.schedule, raptorData.getConfig(), f.createRaptorParameters(), (line, route) -> true);
+        long scheduleFingerprint = PTSkimCheckpoint.calcScheduleFingerprint(f.schedule);
+
+        PTSkimMatrices.PtIndicators<String> expected = PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 2, (line, route) -> true);
+
+        // simulate an interrupted run: only some origin zones are stored, and the last record was only partially written
+        File file = new File(this.utils.getOutputDirectory(), "checkpoint.bin");
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint, scheduleFingerprint)) {
+            Assert.assertEquals(0, checkpoint.getCompletedCount());
+            checkpoint.writeRows(3, new PTSkimMatrices.IndicatorRows(expected, 3));
+            checkpoint.writeRows(1, new PTSkimMatrices.IndicatorRows(expected, 1));
+        }
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] { 4, 0, 0, 0, 1, 2, 3 });
+        }
+
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint, scheduleFingerprint)) {
+            Assert.assertEquals(2, checkpoint.getCompletedCount());
+            Assert.assertTrue(checkpoint.isCompleted(1));
+            Assert.assertTrue(checkpoint.isCompleted(3));
+            Assert.assertFalse(checkpoint.isCompleted(4));
+
+            PTSkimMatrices.PtIndicators<String> actual = PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 2, (line, route) -> true, checkpoint);
+            Assert.assertEquals(zoneIds.size(), checkpoint.getCompletedCount());
+            assertMatrixEquals(expected.adaptionTimeMatrix, actual.adaptionTimeMatrix);
+            assertMatrixEquals(expected.frequencyMatrix, actual.frequencyMatrix);
+            assertMatrixEquals(expected.travelTimeMatrix, actual.travelTimeMatrix);
+            assertMatrixEquals(expected.accessTimeMatrix, actual.accessTimeMatrix);
+            assertMatrixEquals(expected.egressTimeMatrix, actual.egressTimeMatrix);
+            assertMatrixEquals(expected.transferCountMatrix, actual.transferCountMatrix);
+            assertMatrixEquals(expected.trainTravelTimeShareMatrix, actual.trainTravelTimeShareMatrix);
+            assertMatrixEquals(expected.trainDistanceShareMatrix, actual.trainDistanceShareMatrix);
+        }
+
+        // a checkpoint for a different time window must not be used
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime + 3600, 120, parametersFingerprint, scheduleFingerprint)) {
+            Assert.assertEquals(0, checkpoint.getCompletedCount());
+        }
+    }
+
+    @Test
+    public void testResumeStreamedCalculation() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        SwissRailRaptorData raptorData = f.createRaptorData();
+        double minTime = Time.parseTime("06:00:00");
+        double maxTime = Time.parseTime("08:00:00");
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+        long parametersFingerprint = PTSkimCheckpoint.calcParametersFingerprint(f.schedule, raptorData.getConfig(), f.createRaptorParameters(), (line, route) -> true);
+        long scheduleFingerprint = PTSkimCheckpoint.calcScheduleFingerprint(f.schedule);
+
+        PTSkimMatrices.PtIndicators<String> expected = PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 2, (line, route) -> true);
+
+        File file = new File(this.utils.getOutputDirectory(), "checkpoint.bin");
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint, scheduleFingerprint)) {
+            checkpoint.writeRows(0, new PTSkimMatrices.IndicatorRows(expected, 0));
+            checkpoint.writeRows(4, new PTSkimMatrices.IndicatorRows(expected, 4));
+        }
+
+        List<Integer> rowIndices = new ArrayList<>();
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint, scheduleFingerprint)) {
+            PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 2, (line, route) -> true, fromZoneIndex -> true, (fromZoneIndex, rows) -> {
+                rowIndices.add(fromZoneIndex);
+                FloatMatrix.Row expectedRow = expected.travelTimeMatrix.getRow(fromZoneIndex);
+                for (int i = 0; i < expectedRow.size(); i++) {
+                    Assert.assertEquals(expectedRow.get(i), rows.travelTime.get(i), 0.0f);
+                    Assert.assertEquals(expected.frequencyMatrix.getRow(fromZoneIndex).get(i), rows.frequency.get(i), 0.0f);
+                }
+            }, checkpoint);
+        }
+        Assert.assertEquals(zoneIds.size(), rowIndices.size());
+        for (int i = 0; i < rowIndices.size(); i++) {
+            Assert.assertEquals(i, rowIndices.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testDifferentInput() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        SwissRailRaptorData raptorData = f.createRaptorData();
+        double minTime = Time.parseTime("06:00:00");
+        double maxTime = Time.parseTime("08:00:00");
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+        RaptorParameters parameters = f.createRaptorParameters();
+        long parametersFingerprint = PTSkimCheckpoint.calcParametersFingerprint(f.schedule, raptorData.getConfig(), parameters, (line, route) -> true);
+        Assert.assertEquals(parametersFingerprint, PTSkimCheckpoint.calcParametersFingerprint(f.schedule, raptorData.getConfig(), f.createRaptorParameters(), (line, route) -> true));
+        long scheduleFingerprint = PTSkimCheckpoint.calcScheduleFingerprint(f.schedule);
+
+        PTSkimMatrices.PtIndicators<String> expected = PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, parameters, 2, (line, route) -> true);
+        File file = new File(this.utils.getOutputDirectory(), "checkpoint.bin");
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint, scheduleFingerprint)) {
+            checkpoint.writeRows(0, new PTSkimMatrices.IndicatorRows(expected, 0));
+        }
+
+        long otherTrainDetector = PTSkimCheckpoint.calcParametersFingerprint(f.schedule, raptorData.getConfig(), parameters, (line, route) -> false);
+        Assert.assertNotEquals(parametersFingerprint, otherTrainDetector);
+
+        RaptorParameters otherParameters = f.createRaptorParameters();
+        otherParameters.setSearchRadius(parameters.getSearchRadius() + 100);
+        long otherParametersFingerprint = PTSkimCheckpoint.calcParametersFingerprint(f.schedule, raptorData.getConfig(), otherParameters, (line, route) -> true);
+        Assert.assertNotEquals(parametersFingerprint, otherParametersFingerprint);
+
+        // a checkpoint created with different routing parameters must not be used, neither for resuming nor read-only
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, otherParametersFingerprint, scheduleFingerprint)) {
+            Assert.assertEquals(0, checkpoint.getCompletedCount());
+        }
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint, scheduleFingerprint)) {
+            checkpoint.writeRows(0, new PTSkimMatrices.IndicatorRows(expected, 0));
+        }
+        try {
+            PTSkimCheckpoint.openForReading(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, otherTrainDetector).close();
+            Assert.fail("Expected an exception because of a different train detector.");
+        } catch (IOException e) {
+        }
+
+        TransitRoute route = f.schedule.getTransitLines().get(Id.create("line", TransitLine.class)).getRoutes().get(Id.create("forward", TransitRoute.class));
+        Departure departure = route.getDepartures().values().iterator().next();
+        route.removeDeparture(departure);
+        long otherSchedule = PTSkimCheckpoint.calcScheduleFingerprint(f.schedule);
+        Assert.assertNotEquals(scheduleFingerprint, otherSchedule);
+        Assert.assertEquals("the departures must not influence the parameters fingerprint",
+                parametersFingerprint, PTSkimCheckpoint.calcParametersFingerprint(f.schedule, raptorData.getConfig(), parameters, (line, r) -> true));
+
+        // the read-only mode does not check the schedule
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.openForReading(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint)) {
+            Assert.assertEquals(1, checkpoint.getCompletedCount());
+        }
+
+        // a checkpoint created with a different schedule must not be used to resume a calculation
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, f.coordsPerZone, minTime, maxTime, 120, parametersFingerprint, otherSchedule)) {
+            Assert.assertEquals(0, checkpoint.getCompletedCount());
+        }
+    }
+
+    private static void assertMatrixEquals(FloatMatrix<String> expected, FloatMatrix<String> actual) {
+        for (int fromIndex = 0; fromIndex < expected.getZoneCount(); fromIndex++) {
+            for (int toIndex = 0; toIndex < expected.getZoneCount(); toIndex++) {
+                Assert.assertEquals(expected.getByIndex(fromIndex, toIndex), actual.getByIndex(fromIndex, toIndex), 0.0f);
+            }
+        }
+    }
+}
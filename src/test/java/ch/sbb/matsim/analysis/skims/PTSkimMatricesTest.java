@@ -1,11 +1,14 @@
 package ch.sbb.matsim.analysis.skims;
 
-import ch.sbb.matsim.analysis.skims.PTSkimMatrices.ODConnection;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
 import org.junit.Assert;
 import org.junit.Test;
 import org.matsim.core.utils.misc.Time;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -33,7 +36,7 @@ public class PTSkimMatricesTest {
 
         connections.sort((c1, c2) -> Double.compare(c1.transferCount, c2.transferCount));
 
-        connections = PTSkimMatrices.RowWorker.sortAndFilterConnections(connections);
+        connections = sortAndFilterConnections(connections);
 
         // connection 5 (dep 10900) should be dominated by connection 2 (dep 11000)
         // connection 1 (dep 12700) should be dominated by connection 6 (dep 12600)
@@ -58,7 +61,7 @@ public class PTSkimMatricesTest {
         connections.add(new ODConnection(Time.parseTime("08:50:00"), 600, 60, 150, 0, null));
         connections.add(new ODConnection(Time.parseTime("09:05:00"), 600, 60, 150, 0, null));
 
-        double adaptionTime = PTSkimMatrices.RowWorker.calcAverageAdaptionTime(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
+        double adaptionTime = calcSampledAverageAdaptionTime(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
         // there is a departure every 900 seconds, max adaption time would be 450, average of that would be 225.0.
         // it's actually 224 due to sampling errors (we measure every minute, and so we e.g. miss the maximal adaption time of 7.5 minutes, but we measure only 7 minutes twice as maximum
         Assert.assertEquals(224, adaptionTime, 1e-7);
@@ -68,23 +71,173 @@ public class PTSkimMatricesTest {
         connections.add(new ODConnection(Time.parseTime("08:22:00"), 300, 60, 150, 0, null));
         connections.add(new ODConnection(Time.parseTime("08:48:00"), 300, 60, 150, 0, null));
 
-        connections = PTSkimMatrices.RowWorker.sortAndFilterConnections(connections);
+        connections = sortAndFilterConnections(connections);
         Assert.assertEquals(5, connections.size());
 
         // there should now be departures at 08:05, 08:22, 08:35, 08:48, 09:05
         // resulting in a slightly higher adaption time
 
-        adaptionTime = PTSkimMatrices.RowWorker.calcAverageAdaptionTime(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
+        adaptionTime = calcSampledAverageAdaptionTime(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
         Assert.assertEquals(228, adaptionTime, 1e-7);
         // the frequency would be 3600 / 228 / 4 = 3.94736
 
         connections.add(new ODConnection(Time.parseTime("08:15:00"), 300, 60, 150, 0, null));
 
-        connections = PTSkimMatrices.RowWorker.sortAndFilterConnections(connections);
+        connections = sortAndFilterConnections(connections);
         Assert.assertEquals(6, connections.size());
 
-        adaptionTime = PTSkimMatrices.RowWorker.calcAverageAdaptionTime(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
+        adaptionTime = calcSampledAverageAdaptionTime(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
         Assert.assertEquals(193, adaptionTime, 1e-7);
         // the frequency would be 3600 / 193 / 4 = 4.66321
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCalcExactAvgAdaptionTime() {
+        double minTime = Time.parseTime("08:00:00");
+        double maxTime = Time.parseTime("09:00:00");
+
+        // 15-min headway: the adaption time rises to 7.5 minutes between two departures, on average it's 3.75 minutes
+        double[] departures = { Time.parseTime("08:05:00"), Time.parseTime("08:20:00"), Time.parseTime("08:35:00"), Time.parseTime("08:50:00"), Time.parseTime("09:05:00") };
+        Assert.assertEquals(225.0, ODConnections.calcAverageAdaptionTime(departures, departures.length, minTime, maxTime), 1e-9);
+
+        // irregular headways, the same departures as in testCalcAvgAdaptionTime after adding the two fast courses
+        departures = new double[] { Time.parseTime("08:05:00"), Time.parseTime("08:22:00"), Time.parseTime("08:35:00"), Time.parseTime("08:48:00"), Time.parseTime("09:05:00") };
+        Assert.assertEquals(229.0, ODConnections.calcAverageAdaptionTime(departures, departures.length, minTime, maxTime), 1e-9);
+
+        // a single departure in the middle of the window
+        Assert.assertEquals(25.0, ODConnections.calcAverageAdaptionTime(new double[] { 50 }, 1, 0, 100), 1e-9);
+        // a single departure before the window
+        Assert.assertEquals(150.0, ODConnections.calcAverageAdaptionTime(new double[] { -100 }, 1, 0, 100), 1e-9);
+        // only the first departures are used
+        Assert.assertEquals(150.0, ODConnections.calcAverageAdaptionTime(new double[] { -100, 50 }, 1, 0, 100), 1e-9);
+    }
+
+    @Test
+    public void testExactAdaptionTimeMatchesFineSampling() {
+        double[] departures = { 1000, 1300, 2150, 2200, 3000, 3890 };
+        double sampled = 0;
+        int count = 0;
+        for (double time = 1200; time < 3600; time += 0.5) {
+            double adaptionTime = Double.POSITIVE_INFINITY;
+            for (double departure : departures) {
+                adaptionTime = Math.min(adaptionTime, Math.abs(departure - time));
+            }
+            sampled += adaptionTime;
+            count++;
+        }
+        double exact = ODConnections.calcAverageAdaptionTime(departures, departures.length, 1200, 3600);
+        Assert.assertEquals(sampled / count, exact, 0.5);
+    }
+
+    @Test
+    public void testStreamedRowsEqualMatrices() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        SwissRailRaptorData raptorData = f.createRaptorData();
+        double minTime = Time.parseTime("06:00:00");
+        double maxTime = Time.parseTime("08:00:00");
+
+        PTSkimMatrices.PtIndicators<String> expected = PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 2, (line, route) -> true);
+
+        List<Integer> rowIndices = new ArrayList<>();
+        PTSkimMatrices.calculateSkimMatrices(raptorData, f.zones, f.coordsPerZone, minTime, maxTime, 120, f.createRaptorParameters(), 3, (line, route) -> true, (fromZoneIndex, rows) -> {
+            rowIndices.add(fromZoneIndex);
+            assertRowEquals(expected.adaptionTimeMatrix.getRow(fromZoneIndex), rows.adaptionTime);
+            assertRowEquals(expected.frequencyMatrix.getRow(fromZoneIndex), rows.frequency);
+            assertRowEquals(expected.travelTimeMatrix.getRow(fromZoneIndex), rows.travelTime);
+            assertRowEquals(expected.accessTimeMatrix.getRow(fromZoneIndex), rows.accessTime);
+            assertRowEquals(expected.egressTimeMatrix.getRow(fromZoneIndex), rows.egressTime);
+            assertRowEquals(expected.transferCountMatrix.getRow(fromZoneIndex), rows.transferCount);
+            assertRowEquals(expected.trainTravelTimeShareMatrix.getRow(fromZoneIndex), rows.trainTravelTimeShare);
+            assertRowEquals(expected.trainDistanceShareMatrix.getRow(fromZoneIndex), rows.trainDistanceShare);
+        });
+
+        Assert.assertEquals(f.zones.size(), rowIndices.size());
+        for (int i = 0; i < rowIndices.size(); i++) {
+            Assert.assertEquals("rows must be passed in zone order", i, rowIndices.get(i).intValue());
+        }
+        // sanity check that the fixture produces something useful: A to C takes 2 hops à 4 minutes
+        Assert.assertTrue(expected.travelTimeMatrix.get("A", "C") > 480);
+    }
+
+    private static void assertRowEquals(FloatMatrix.Row expected, FloatMatrix.Row actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(Float.floatToIntBits(expected.get(i)), Float.floatToIntBits(actual.get(i)));
+        }
+    }
+
+    private static List<ODConnection> sortAndFilterConnections(List<ODConnection> connections) {
+        ODConnections odConnections = new ODConnections();
+        for (ODConnection c : connections) {
+            odConnections.add(c.departureTime, c.travelTime, c.accessTime, c.egressTime, c.transferCount, c.travelInfo);
+        }
+        odConnections.sortAndFilter();
+        List<ODConnection> filteredConnections = new ArrayList<>(odConnections.getFilteredSize());
+        for (int k = 0; k < odConnections.getFilteredSize(); k++) {
+            filteredConnections.add(connections.get(odConnections.getFiltered(k)));
+        }
+        // the filtered connections are in ascending departure time order
+        return filteredConnections;
+    }
+
+    /**
+     * Reference implementation sampling the adaption time once per minute, as the matrix calculation
+     * did before it used the exact value calculated by {@link ODConnections#calcAverageAdaptionTime(double[], int, double, double)}.
+     */
+    private static double calcSampledAverageAdaptionTime(List<ODConnection> connections, double minDepartureTime, double maxDepartureTime) {
+        double prevDepartureTime = Double.NaN;
+        double nextDepartureTime = Double.NaN;
+
+        Iterator<ODConnection> connectionIterator = connections.iterator();
+        if (connectionIterator.hasNext()) {
+            ODConnection connection = connectionIterator.next();
+            nextDepartureTime = connection.departureTime - connection.accessTime;
+        }
+
+        double sum = 0.0;
+        int count = 0;
+        for (double time = minDepartureTime; time < maxDepartureTime; time += 60.0) {
+            double adaptionTime;
+
+            if (time >= nextDepartureTime) {
+                prevDepartureTime = nextDepartureTime;
+                if (connectionIterator.hasNext()) {
+                    ODConnection connection = connectionIterator.next();
+                    nextDepartureTime = connection.departureTime - connection.accessTime;
+                } else {
+                    nextDepartureTime = Double.NaN;
+                }
+            }
+
+            if (Double.isNaN(prevDepartureTime)) {
+                adaptionTime = nextDepartureTime - time;
+            } else if (Double.isNaN(nextDepartureTime)) {
+                adaptionTime = time - prevDepartureTime;
+            } else {
+                adaptionTime = Math.min(time - prevDepartureTime, nextDepartureTime - time);
+            }
+
+            sum += adaptionTime;
+            count++;
+        }
+        return sum / count;
+    }
+
+    private static class ODConnection {
+        final double departureTime;
+        final double travelTime;
+        final double accessTime;
+        final double egressTime;
+        final double transferCount;
+        final TravelInfo travelInfo;
+
+        ODConnection(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, TravelInfo info) {
+            this.departureTime = departureTime;
+            this.travelTime = travelTime;
+            this.accessTime = accessTime;
+            this.egressTime = egressTime;
+            this.transferCount = transferCount;
+            this.travelInfo = info;
+        }
+    }
+}
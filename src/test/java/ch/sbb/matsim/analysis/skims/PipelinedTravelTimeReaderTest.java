@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author agent
+ */
+public class PipelinedTravelTimeReaderTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testSameTravelTimesAsTravelTimeCalculator() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        String eventsFilename = new File(this.utils.getOutputDirectory(), "events.xml.gz").getPath();
+        writeEvents(f, eventsFilename);
+
+        TravelTimeCalculatorConfigGroup ttcConfig = f.config.travelTimeCalculator();
+        TravelTimeCalculator ttc = TravelTimeCalculator.create(f.network, ttcConfig);
+        EventsManager events = EventsUtils.createEventsManager();
+        events.addHandler(ttc);
+        new MatsimEventsReader(events).readFile(eventsFilename);
+        TravelTime expected = ttc.getLinkTravelTimes();
+
+        for (int numberOfThreads : new int[] { 1, 3, 6 }) {
+            TravelTime actual = PipelinedTravelTimeReader.readTravelTimes(eventsFilename, f.network, ttcConfig, numberOfThreads);
+            for (Link link : f.network.getLinks().values()) {
+                for (double time = 5 * 3600; time < 12 * 3600; time += 600) {
+                    Assert.assertEquals("link " + link.getId() + " at " + time + " with " + numberOfThreads + " threads",
+                            expected.getLinkTravelTime(link, time, null, null), actual.getLinkTravelTime(link, time, null, null), 1e-7);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMissingFile() {
+        PtSkimsFixture f = new PtSkimsFixture();
+        String eventsFilename = new File(this.utils.getOutputDirectory(), "doesNotExist.xml.gz").getPath();
+        try {
+            PipelinedTravelTimeReader.readTravelTimes(eventsFilename, f.network, f.config.travelTimeCalculator(), 4);
+            Assert.fail("expected exception, got none.");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    /**
+     * Lets vehicles drive along the line in both directions, with random travel times per link.
+     */
+    private static void writeEvents(PtSkimsFixture f, String filename) {
+        Random random = new Random(20190601);
+        List<Id<Link>> forward = new ArrayList<>();
+        List<Id<Link>> backward = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            forward.add(Id.create(i + "f", Link.class));
+            backward.add(0, Id.create(i + "b", Link.class));
+        }
+        EventWriterXML writer = new EventWriterXML(filename);
+        int vehicleCount = 0;
+        for (double departure = 6 * 3600; departure < 10 * 3600; departure += 30) {
+            List<Id<Link>> route = (vehicleCount % 2 == 0) ? forward : backward;
+            Id<Vehicle> vehicleId = Id.create(vehicleCount, Vehicle.class);
+            Id<Person> personId = Id.create(vehicleCount, Person.class);
+            double time = departure;
+            writer.handleEvent(new VehicleEntersTrafficEvent(time, personId, route.get(0), vehicleId, "car", 1.0));
+            for (int i = 1; i < route.size(); i++) {
+                time += 1;
+                writer.handleEvent(new LinkLeaveEvent(time, vehicleId, route.get(i - 1)));
+                writer.handleEvent(new LinkEnterEvent(time, vehicleId, route.get(i)));
+                time += 200 + random.nextInt(400);
+            }
+            writer.handleEvent(new VehicleLeavesTrafficEvent(time, personId, route.get(route.size() - 1), vehicleId, "car", 1.0));
+            vehicleCount++;
+        }
+        writer.closeFile();
+    }
+}
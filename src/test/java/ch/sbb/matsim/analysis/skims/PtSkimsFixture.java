@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
+import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small scenario for testing the skim matrices calculation:
+ * a single, straight transit line with 5 stops, 4 km apart, served in both directions every 10 minutes.
+ * There is one zone around each stop, each with two sampling points, plus a zone "X" without sampling points.
+ *
+ * @author agent
+ */
+class PtSkimsFixture {
+
+    final Config config;
+    final Scenario scenario;
+    final Network network;
+    final TransitSchedule schedule;
+    final Map<String, SimpleFeature> zones = new LinkedHashMap<>();
+    final Map<String, Coord[]> coordsPerZone = new LinkedHashMap<>();
+
+    PtSkimsFixture() {
+        this.config = ConfigUtils.createConfig();
+        this.config.transit().setUseTransit(true);
+        this.scenario = ScenarioUtils.createScenario(this.config);
+        this.network = this.scenario.getNetwork();
+        this.schedule = this.scenario.getTransitSchedule();
+
+        int stopCount = 5;
+        NetworkFactory nf = this.network.getFactory();
+        TransitScheduleFactory sf = this.schedule.getFactory();
+        Node[] nodes = new Node[stopCount];
+        TransitStopFacility[] stops = new TransitStopFacility[stopCount];
+        List<Id<Link>> forwardLinkIds = new ArrayList<>();
+        List<Id<Link>> backwardLinkIds = new ArrayList<>();
+        for (int i = 0; i < stopCount; i++) {
+            Coord coord = new Coord(i * 4000, 0);
+            nodes[i] = nf.createNode(Id.create(i, Node.class), coord);
+            this.network.addNode(nodes[i]);
+        }
+        for (int i = 0; i < stopCount - 1; i++) {
+            Link forward = nf.createLink(Id.create(i + "f", Link.class), nodes[i], nodes[i + 1]);
+            Link backward = nf.createLink(Id.create(i + "b", Link.class), nodes[i + 1], nodes[i]);
+            for (Link link : new Link[] { forward, backward }) {
+                link.setLength(4000);
+                link.setFreespeed(20);
+                link.setCapacity(2000);
+                link.setNumberOfLanes(1);
+                this.network.addLink(link);
+            }
+            forwardLinkIds.add(forward.getId());
+            backwardLinkIds.add(0, backward.getId());
+        }
+        for (int i = 0; i < stopCount; i++) {
+            stops[i] = sf.createTransitStopFacility(Id.create(i, TransitStopFacility.class), nodes[i].getCoord(), false);
+            Id<Link> linkId = i == 0 ? forwardLinkIds.get(0) : forwardLinkIds.get(i - 1);
+            stops[i].setLinkId(linkId);
+            this.schedule.addStopFacility(stops[i]);
+        }
+        TransitLine line = sf.createTransitLine(Id.create("line", TransitLine.class));
+        for (boolean isForward : new boolean[] { true, false }) {
+            List<TransitRouteStop> routeStops = new ArrayList<>();
+            for (int i = 0; i < stopCount; i++) {
+                int stopIndex = isForward ? i : (stopCount - 1 - i);
+                routeStops.add(sf.createTransitRouteStop(stops[stopIndex], i * 240, i * 240 + 30));
+            }
+            List<Id<Link>> linkIds = isForward ? forwardLinkIds : backwardLinkIds;
+            NetworkRoute networkRoute = RouteUtils.createLinkNetworkRouteImpl(linkIds.get(0), linkIds.subList(1, linkIds.size() - 1), linkIds.get(linkIds.size() - 1));
+            TransitRoute route = sf.createTransitRoute(Id.create(isForward ? "forward" : "backward", TransitRoute.class), networkRoute, routeStops, "train");
+            for (int t = 5 * 3600; t < 10 * 3600; t += 600) {
+                Departure dep = sf.createDeparture(Id.create(t, Departure.class), t);
+                route.addDeparture(dep);
+            }
+            line.addRoute(route);
+        }
+        this.schedule.addTransitLine(line);
+
+        for (int i = 0; i < stopCount; i++) {
+            String zoneId = Character.toString((char) ('A' + i));
+            this.zones.put(zoneId, null);
+            this.coordsPerZone.put(zoneId, new Coord[] { new Coord(i * 4000 + 100, 200), new Coord(i * 4000 - 150, -300) });
+        }
+        this.zones.put("X", null);
+    }
+
+    SwissRailRaptorData createRaptorData() {
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(this.config);
+        raptorConfig.setOptimization(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
+        return SwissRailRaptorData.create(this.schedule, raptorConfig, this.network);
+    }
+
+    RaptorParameters createRaptorParameters() {
+        return RaptorUtils.createParameters(this.config);
+    }
+}
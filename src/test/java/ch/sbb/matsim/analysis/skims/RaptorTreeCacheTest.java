@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author agent
+ */
+public class RaptorTreeCacheTest {
+
+    @Test
+    public void testReuseTreesForSameStops() {
+        PtSkimsFixture f = new PtSkimsFixture();
+        List<TransitStopFacility> stops = new ArrayList<>(f.schedule.getFacilities().values());
+        RaptorTreeCache cache = new RaptorTreeCache(1000);
+
+        List<List<TransitStopFacility>> calculatedFor = new ArrayList<>();
+        List<Map<Id<TransitStopFacility>, TravelInfo>> trees1 = cache.getTrees(Arrays.asList(stops.get(2), stops.get(0)), sortedStops -> {
+            calculatedFor.add(sortedStops);
+            return createTrees(2, 3);
+        });
+        List<Map<Id<TransitStopFacility>, TravelInfo>> trees2 = cache.getTrees(Arrays.asList(stops.get(0), stops.get(2)), sortedStops -> {
+            calculatedFor.add(sortedStops);
+            return createTrees(2, 3);
+        });
+
+        Assert.assertSame(trees1, trees2);
+        Assert.assertEquals(1, calculatedFor.size());
+        Assert.assertEquals("stops must be passed in sorted order", Arrays.asList(stops.get(0), stops.get(2)), calculatedFor.get(0));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        cache.getTrees(Collections.singletonList(stops.get(0)), sortedStops -> createTrees(2, 3));
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testEviction() {
+        PtSkimsFixture f = new PtSkimsFixture();
+        List<TransitStopFacility> stops = new ArrayList<>(f.schedule.getFacilities().values());
+        RaptorTreeCache cache = new RaptorTreeCache(10); // each entry below has 6 tree entries, so only one fits
+
+        cache.getTrees(Collections.singletonList(stops.get(0)), sortedStops -> createTrees(2, 3));
+        cache.getTrees(Collections.singletonList(stops.get(1)), sortedStops -> createTrees(2, 3));
+        Assert.assertEquals(2, cache.getMisses());
+
+        cache.getTrees(Collections.singletonList(stops.get(1)), sortedStops -> createTrees(2, 3));
+        Assert.assertEquals(1, cache.getHits());
+
+        cache.getTrees(Collections.singletonList(stops.get(0)), sortedStops -> createTrees(2, 3));
+        Assert.assertEquals("the first entry should have been evicted", 3, cache.getMisses());
+    }
+
+    private static List<Map<Id<TransitStopFacility>, TravelInfo>> createTrees(int treeCount, int entriesPerTree) {
+        List<Map<Id<TransitStopFacility>, TravelInfo>> trees = new ArrayList<>();
+        for (int t = 0; t < treeCount; t++) {
+            Map<Id<TransitStopFacility>, TravelInfo> tree = new HashMap<>();
+            for (int i = 0; i < entriesPerTree; i++) {
+                tree.put(Id.create(i, TransitStopFacility.class), null);
+            }
+            trees.add(tree);
+        }
+        return trees;
+    }
+}
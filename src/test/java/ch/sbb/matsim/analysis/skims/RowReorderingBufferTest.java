@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author agent
+ */
+public class RowReorderingBufferTest {
+
+    @Test
+    public void testAddDoesNotWaitForConsumer() throws Exception {
+        CountDownLatch consumerStarted = new CountDownLatch(1);
+        CountDownLatch releaseConsumer = new CountDownLatch(1);
+        List<String> consumed = Collections.synchronizedList(new ArrayList<>());
+        RowReorderingBuffer<String> buffer = new RowReorderingBuffer<>(10, (index, row) -> {
+            if (index == 0) {
+                consumerStarted.countDown();
+                try {
+                    releaseConsumer.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            consumed.add(row);
+        });
+
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> buffer.add(0, "row0"));
+        Assert.assertTrue(consumerStarted.await(5, TimeUnit.SECONDS));
+
+        // while row 0 is being written, other threads can still add their rows
+        CompletableFuture.runAsync(() -> {
+            buffer.add(2, "row2");
+            buffer.add(1, "row1");
+        }).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(consumed.isEmpty());
+
+        releaseConsumer.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        // the thread writing row 0 also writes the rows added in the meantime
+        Assert.assertEquals(3, consumed.size());
+        Assert.assertEquals("row0", consumed.get(0));
+        Assert.assertEquals("row1", consumed.get(1));
+        Assert.assertEquals("row2", consumed.get(2));
+        buffer.checkCompleted(3);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @author agent
+ */
+public class SamplingPointStopsTest {
+
+    @Test
+    public void testCandidatesPerSamplingPoint() {
+        PtSkimsFixture f = new PtSkimsFixture();
+        SwissRailRaptorData raptorData = f.createRaptorData();
+        RaptorParameters parameters = f.createRaptorParameters();
+
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+        Coord[][] coordsPerZone = new Coord[zoneIds.size()][];
+        for (int i = 0; i < zoneIds.size(); i++) {
+            coordsPerZone[i] = f.coordsPerZone.get(zoneIds.get(i));
+        }
+
+        SamplingPointStops stops = SamplingPointStops.create(raptorData, coordsPerZone, parameters);
+
+        for (int zoneIndex = 0; zoneIndex < coordsPerZone.length; zoneIndex++) {
+            Coord[] coords = coordsPerZone[zoneIndex];
+            if (coords == null) {
+                continue;
+            }
+            for (int p = 0; p < coords.length; p++) {
+                int pointIndex = stops.getPointIndex(zoneIndex, p);
+                Collection<TransitStopFacility> expected = SamplingPointStops.findStopCandidates(coords[p], raptorData, parameters);
+                Assert.assertFalse(expected.isEmpty());
+                Assert.assertEquals(new ArrayList<>(expected), stops.getStops(pointIndex));
+
+                for (int candidate = stops.getFirstCandidate(pointIndex); candidate < stops.getEndCandidate(pointIndex); candidate++) {
+                    TransitStopFacility stop = stops.getStop(stops.getStopIndex(candidate));
+                    Assert.assertEquals(stop.getId(), stops.getStopId(stops.getStopIndex(candidate)));
+                    double expectedWalkTime = CoordUtils.calcEuclideanDistance(coords[p], stop.getCoord()) / parameters.getBeelineWalkSpeed();
+                    Assert.assertEquals(expectedWalkTime, stops.getWalkTime(candidate), 1e-9);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * @author agent
+ */
+public class ScheduleChangesTest {
+
+    private static final double MIN_TIME = Time.parseTime("06:00:00");
+    private static final double MAX_TIME = Time.parseTime("08:00:00");
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testChangesBeforeTimeWindow() throws IOException {
+        PtSkimsFixture baseline = new PtSkimsFixture();
+        PtSkimsFixture variant = new PtSkimsFixture();
+        TransitRoute route = variant.schedule.getTransitLines().get(Id.create("line", TransitLine.class)).getRoutes().get(Id.create("forward", TransitRoute.class));
+        for (Departure departure : new ArrayList<>(route.getDepartures().values())) {
+            if (departure.getDepartureTime() < Time.parseTime("05:30:00")) {
+                route.removeDeparture(departure);
+            }
+        }
+
+        ScheduleChanges changes = ScheduleChanges.compare(baseline.schedule, variant.schedule);
+        Assert.assertTrue(changes.hasChanges());
+        Assert.assertFalse(changes.hasStopChanges());
+        Assert.assertTrue("the changed departures cannot be reached within the time window.", findAffectedOrigins(changes, variant).isEmpty());
+
+        assertSameAsFullCalculation(baseline, variant);
+    }
+
+    @Test
+    public void testOnlyConnectedOriginsAffected() throws IOException {
+        PtSkimsFixture baseline = new PtSkimsFixture();
+        PtSkimsFixture variant = new PtSkimsFixture();
+        addRemoteLine(baseline, 600);
+        addRemoteLine(variant, 300);
+
+        ScheduleChanges changes = ScheduleChanges.compare(baseline.schedule, variant.schedule);
+        Assert.assertFalse(changes.hasStopChanges());
+        BitSet affected = findAffectedOrigins(changes, variant);
+        List<String> zoneIds = new ArrayList<>(variant.zones.keySet());
+        for (int zoneIndex = 0; zoneIndex < zoneIds.size(); zoneIndex++) {
+            boolean isRemote = zoneIds.get(zoneIndex).startsWith("R");
+            Assert.assertEquals(zoneIds.get(zoneIndex), isRemote, affected.get(zoneIndex));
+        }
+
+        assertSameAsFullCalculation(baseline, variant);
+    }
+
+    @Test
+    public void testChangedStops() {
+        PtSkimsFixture baseline = new PtSkimsFixture();
+        PtSkimsFixture variant = new PtSkimsFixture();
+        addRemoteLine(variant, 600);
+
+        ScheduleChanges changes = ScheduleChanges.compare(baseline.schedule, variant.schedule);
+        Assert.assertTrue(changes.hasStopChanges());
+        Assert.assertEquals(variant.zones.size(), findAffectedOrigins(changes, variant).cardinality());
+    }
+
+    @Test
+    public void testNoChanges() {
+        PtSkimsFixture baseline = new PtSkimsFixture();
+        PtSkimsFixture variant = new PtSkimsFixture();
+        ScheduleChanges changes = ScheduleChanges.compare(baseline.schedule, variant.schedule);
+        Assert.assertFalse(changes.hasChanges());
+        Assert.assertTrue(findAffectedOrigins(changes, variant).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingBaseline() throws IOException {
+        PtSkimsFixture f = new PtSkimsFixture();
+        File file = new File(this.utils.getOutputDirectory(), "missing.bin");
+        PTSkimCheckpoint.openForReading(file, new ArrayList<>(f.zones.keySet()), f.coordsPerZone, MIN_TIME, MAX_TIME, 120, calcParametersFingerprint(f, f.createRaptorParameters()));
+    }
+
+    @Test
+    public void testDifferentParameters() throws IOException {
+        PtSkimsFixture baseline = new PtSkimsFixture();
+        File file = createBaselineCheckpoint(baseline);
+        List<String> zoneIds = new ArrayList<>(baseline.zones.keySet());
+
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.openForReading(file, zoneIds, baseline.coordsPerZone, MIN_TIME, MAX_TIME, 120, calcParametersFingerprint(baseline, baseline.createRaptorParameters()))) {
+            Assert.assertEquals(zoneIds.size(), checkpoint.getCompletedCount());
+        }
+
+        RaptorParameters parameters = baseline.createRaptorParameters();
+        parameters.setTransferPenaltyFixCostPerTransfer(parameters.getTransferPenaltyFixCostPerTransfer() + 1.0);
+        try {
+            PTSkimCheckpoint.openForReading(file, zoneIds, baseline.coordsPerZone, MIN_TIME, MAX_TIME, 120, calcParametersFingerprint(baseline, parameters)).close();
+            Assert.fail("Expected an exception because the baseline was calculated with different routing parameters.");
+        } catch (IOException e) {
+        }
+    }
+
+    private static BitSet findAffectedOrigins(ScheduleChanges changes, PtSkimsFixture f) {
+        SwissRailRaptorData raptorData = f.createRaptorData();
+        List<String> zoneIds = new ArrayList<>(f.zones.keySet());
+        Coord[][] coordsPerZone = new Coord[zoneIds.size()][];
+        for (int zoneIndex = 0; zoneIndex < zoneIds.size(); zoneIndex++) {
+            coordsPerZone[zoneIndex] = f.coordsPerZone.get(zoneIds.get(zoneIndex));
+        }
+        SamplingPointStops samplingPointStops = SamplingPointStops.create(raptorData, coordsPerZone, f.createRaptorParameters());
+        return changes.findAffectedOrigins(raptorData, samplingPointStops, coordsPerZone, MIN_TIME);
+    }
+
+    private File createBaselineCheckpoint(PtSkimsFixture baseline) throws IOException {
+        List<String> zoneIds = new ArrayList<>(baseline.zones.keySet());
+        File file = new File(this.utils.getOutputDirectory(), "baseline.bin");
+        SwissRailRaptorData baselineRaptorData = baseline.createRaptorData();
+        long parametersFingerprint = calcParametersFingerprint(baseline, baseline.createRaptorParameters());
+        long scheduleFingerprint = PTSkimCheckpoint.calcScheduleFingerprint(baseline.schedule);
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.open(file, zoneIds, baseline.coordsPerZone, MIN_TIME, MAX_TIME, 120, parametersFingerprint, scheduleFingerprint)) {
+            PTSkimMatrices.calculateSkimMatrices(baselineRaptorData, baseline.zones, baseline.coordsPerZone, MIN_TIME, MAX_TIME, 120, baseline.createRaptorParameters(), 2, (line, route) -> true, checkpoint);
+        }
+        return file;
+    }
+
+    private static long calcParametersFingerprint(PtSkimsFixture f, RaptorParameters parameters) {
+        return PTSkimCheckpoint.calcParametersFingerprint(f.schedule, f.createRaptorData().getConfig(), parameters, (line, route) -> true);
+    }
+
+    private void assertSameAsFullCalculation(PtSkimsFixture baseline, PtSkimsFixture variant) throws IOException {
+        List<String> zoneIds = new ArrayList<>(baseline.zones.keySet());
+        File file = createBaselineCheckpoint(baseline);
+
+        SwissRailRaptorData raptorData = variant.createRaptorData();
+        PTSkimMatrices.PtIndicators<String> expected = PTSkimMatrices.calculateSkimMatrices(raptorData, variant.zones, variant.coordsPerZone, MIN_TIME, MAX_TIME, 120, variant.createRaptorParameters(), 2, (line, route) -> true);
+        PTSkimMatrices.PtIndicators<String> actual;
+        long parametersFingerprint = calcParametersFingerprint(baseline, variant.createRaptorParameters());
+        try (PTSkimCheckpoint checkpoint = PTSkimCheckpoint.openForReading(file, zoneIds, variant.coordsPerZone, MIN_TIME, MAX_TIME, 120, parametersFingerprint)) {
+            actual = PTSkimMatrices.calculateSkimMatricesIncrementally(raptorData, baseline.schedule, variant.schedule, checkpoint,
+                    variant.zones, variant.coordsPerZone, MIN_TIME, MAX_TIME, 120, variant.createRaptorParameters(), 2, (line, route) -> true, zoneIndex -> true);
+        }
+        assertMatrixEquals(expected.adaptionTimeMatrix, actual.adaptionTimeMatrix);
+        assertMatrixEquals(expected.frequencyMatrix, actual.frequencyMatrix);
+        assertMatrixEquals(expected.travelTimeMatrix, actual.travelTimeMatrix);
+        assertMatrixEquals(expected.accessTimeMatrix, actual.accessTimeMatrix);
+        assertMatrixEquals(expected.egressTimeMatrix, actual.egressTimeMatrix);
+        assertMatrixEquals(expected.transferCountMatrix, actual.transferCountMatrix);
+        assertMatrixEquals(expected.trainTravelTimeShareMatrix, actual.trainTravelTimeShareMatrix);
+        assertMatrixEquals(expected.trainDistanceShareMatrix, actual.trainDistanceShareMatrix);
+    }
+
+    /**
+     * Adds a line with two stops far away from the fixture's line, so the two lines are not connected,
+     * plus a zone around each of the new stops.
+     */
+    private static void addRemoteLine(PtSkimsFixture f, int headway) {
+        NetworkFactory nf = f.network.getFactory();
+        TransitScheduleFactory sf = f.schedule.getFactory();
+        Node node0 = nf.createNode(Id.create("r0", Node.class), new Coord(0, 100_000));
+        Node node1 = nf.createNode(Id.create("r1", Node.class), new Coord(4000, 100_000));
+        f.network.addNode(node0);
+        f.network.addNode(node1);
+        Link link = nf.createLink(Id.create("r", Link.class), node0, node1);
+        link.setLength(4000);
+        link.setFreespeed(20);
+        link.setCapacity(2000);
+        link.setNumberOfLanes(1);
+        f.network.addLink(link);
+
+        List<TransitRouteStop> routeStops = new ArrayList<>();
+        for (Node node : new Node[] { node0, node1 }) {
+            TransitStopFacility stop = sf.createTransitStopFacility(Id.create(node.getId().toString(), TransitStopFacility.class), node.getCoord(), false);
+            stop.setLinkId(link.getId());
+            f.schedule.addStopFacility(stop);
+            routeStops.add(sf.createTransitRouteStop(stop, routeStops.size() * 240, routeStops.size() * 240 + 30));
+        }
+        NetworkRoute networkRoute = RouteUtils.createLinkNetworkRouteImpl(link.getId(), new ArrayList<>(), link.getId());
+        TransitRoute route = sf.createTransitRoute(Id.create("remote", TransitRoute.class), networkRoute, routeStops, "bus");
+        for (int t = 5 * 3600; t < 10 * 3600; t += headway) {
+            route.addDeparture(sf.createDeparture(Id.create(t, Departure.class), t));
+        }
+        TransitLine line = sf.createTransitLine(Id.create("remote", TransitLine.class));
+        line.addRoute(route);
+        f.schedule.addTransitLine(line);
+
+        for (int i = 0; i < 2; i++) {
+            String zoneId = "R" + i;
+            f.zones.put(zoneId, null);
+            f.coordsPerZone.put(zoneId, new Coord[] { new Coord(i * 4000 + 100, 100_200), new Coord(i * 4000 - 150, 99_700) });
+        }
+    }
+
+    private static void assertMatrixEquals(FloatMatrix<String> expected, FloatMatrix<String> actual) {
+        for (int fromIndex = 0; fromIndex < expected.getZoneCount(); fromIndex++) {
+            for (int toIndex = 0; toIndex < expected.getZoneCount(); toIndex++) {
+                Assert.assertEquals(expected.getZoneId(fromIndex) + "->" + expected.getZoneId(toIndex), expected.getByIndex(fromIndex, toIndex), actual.getByIndex(fromIndex, toIndex), 0.0f);
+            }
+        }
+    }
+}
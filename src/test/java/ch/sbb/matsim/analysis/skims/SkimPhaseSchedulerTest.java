@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.analysis.skims.SkimPhaseScheduler.PhaseStatistics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author agent
+ */
+public class SkimPhaseSchedulerTest {
+
+    @Test
+    public void testThreadBudgets() throws IOException {
+        SkimPhaseScheduler scheduler = new SkimPhaseScheduler(3);
+        AtomicInteger usedWorkers = new AtomicInteger(0);
+        AtomicInteger maxUsedWorkers = new AtomicInteger(0);
+        for (int i = 0; i < 4; i++) {
+            scheduler.addPhase("phase" + i, 2, context -> {
+                int threads = context.acquireWorkers();
+                Assert.assertEquals(2, threads);
+                int used = usedWorkers.addAndGet(threads);
+                maxUsedWorkers.accumulateAndGet(used, Math::max);
+                Thread.sleep(50);
+                usedWorkers.addAndGet(-threads);
+                context.releaseWorkers();
+            });
+        }
+        List<PhaseStatistics> statistics = scheduler.run();
+        Assert.assertEquals(4, statistics.size());
+        Assert.assertTrue("the pool must never be exceeded.", maxUsedWorkers.get() <= 3);
+        for (PhaseStatistics stats : statistics) {
+            Assert.assertTrue(stats.wallTimeNanos >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+    }
+
+    @Test
+    public void testLoadingOverlapsComputation() throws IOException {
+        SkimPhaseScheduler scheduler = new SkimPhaseScheduler(2);
+        CountDownLatch loaded = new CountDownLatch(1);
+        scheduler.addPhase("compute", 2, context -> {
+            context.acquireWorkers();
+            // only finishes if the other phase could load its data while this phase holds all workers
+            Assert.assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        });
+        scheduler.addPhase("load", 2, context -> {
+            loaded.countDown();
+            context.acquireWorkers();
+        });
+        scheduler.run();
+    }
+
+    @Test
+    public void testCpuTimeOfSubThreads() throws IOException {
+        SkimPhaseScheduler scheduler = new SkimPhaseScheduler(2);
+        scheduler.addPhase("busy", 2, context -> {
+            int threads = context.acquireWorkers();
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(() -> {
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+                    double x = 0;
+                    while (System.nanoTime() < end) {
+                        x += Math.sqrt(x + 1);
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        });
+        PhaseStatistics stats = scheduler.run().get(0);
+        if (stats.cpuTimeNanos >= 0) {
+            Assert.assertTrue("CPU time: " + stats.cpuTimeNanos, stats.cpuTimeNanos >= TimeUnit.MILLISECONDS.toNanos(200));
+        }
+    }
+
+    @Test
+    public void testFailure() {
+        SkimPhaseScheduler scheduler = new SkimPhaseScheduler(2);
+        AtomicInteger completed = new AtomicInteger(0);
+        scheduler.addPhase("failing", 1, context -> {
+            context.acquireWorkers();
+            throw new IOException("expected");
+        });
+        scheduler.addPhase("ok", 2, context -> {
+            context.acquireWorkers();
+            completed.incrementAndGet();
+        });
+        try {
+            scheduler.run();
+            Assert.fail("expected exception, got none.");
+        } catch (IOException e) {
+            Assert.assertEquals("expected", e.getMessage());
+        }
+        Assert.assertEquals("the other phase must still complete.", 1, completed.get());
+    }
+}
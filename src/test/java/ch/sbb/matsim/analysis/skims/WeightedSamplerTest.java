@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * @author agent
+ */
+public class WeightedSamplerTest {
+
+    @Test
+    public void testSameResultsAsLinearScan() {
+        Random random = new Random(4711);
+        double[] weights = new double[1000];
+        for (int i = 0; i < weights.length; i++) {
+            // include some locations without weight, they must never be chosen
+            weights[i] = (i % 7 == 0) ? 0.0 : random.nextDouble() * 100;
+        }
+        WeightedSampler sampler = new WeightedSampler(weights);
+
+        Random r1 = new Random(20190601);
+        Random r2 = new Random(20190601);
+        for (int draw = 0; draw < 10_000; draw++) {
+            int expected = sampleLinearly(weights, r1);
+            int actual = sampler.sample(r2);
+            Assert.assertEquals(expected, actual);
+            Assert.assertTrue(weights[actual] > 0);
+        }
+    }
+
+    @Test
+    public void testDistribution() {
+        double[] weights = { 1.0, 0.0, 3.0, 6.0 };
+        WeightedSampler sampler = new WeightedSampler(weights);
+        Random r = new Random(1234);
+        int[] counts = new int[weights.length];
+        int draws = 100_000;
+        for (int i = 0; i < draws; i++) {
+            counts[sampler.sample(r)]++;
+        }
+        Assert.assertEquals(0.1, counts[0] / (double) draws, 0.01);
+        Assert.assertEquals(0, counts[1]);
+        Assert.assertEquals(0.3, counts[2] / (double) draws, 0.01);
+        Assert.assertEquals(0.6, counts[3] / (double) draws, 0.01);
+    }
+
+    @Test
+    public void testZoneSeeds() {
+        Assert.assertEquals(WeightedSampler.getZoneSeed(42, "A"), WeightedSampler.getZoneSeed(42, "A"));
+        Assert.assertNotEquals(WeightedSampler.getZoneSeed(42, "A"), WeightedSampler.getZoneSeed(42, "B"));
+        Assert.assertNotEquals(WeightedSampler.getZoneSeed(42, "A"), WeightedSampler.getZoneSeed(43, "A"));
+    }
+
+    private static int sampleLinearly(double[] weights, Random r) {
+        double sumWeight = 0.0;
+        for (double w : weights) {
+            sumWeight += w;
+        }
+        double weight = r.nextDouble() * sumWeight;
+        double sum = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            if (weight <= sum) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.gis.PolygonFeatureFactory;
+import org.matsim.testcases.MatsimTestUtils;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author agent
+ */
+public class ZoneFinderTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testSameResultsAsNaiveSearch() throws IOException {
+        List<SimpleFeature> zones = createZones();
+        ZoneFinder finder = new ZoneFinder(zones, "ID");
+        List<Coord> coords = createCoords(25_000, 4711);
+
+        int[] zoneIndices1 = finder.findZones(coords, 1, null);
+        int[] zoneIndices4 = finder.findZones(coords, 4, null);
+        Assert.assertArrayEquals("the result must not depend on the number of threads.", zoneIndices1, zoneIndices4);
+
+        GeometryFactory gf = new GeometryFactory();
+        int foundCount = 0;
+        for (int i = 0; i < coords.size(); i++) {
+            Coord coord = coords.get(i);
+            Point pt = gf.createPoint(new Coordinate(coord.getX(), coord.getY()));
+            String expectedZoneId = null;
+            for (SimpleFeature zone : zones) {
+                if (((Geometry) zone.getDefaultGeometry()).intersects(pt)) {
+                    expectedZoneId = zone.getAttribute("ID").toString();
+                    break;
+                }
+            }
+            String actualZoneId = zoneIndices4[i] < 0 ? null : finder.getZoneId(zoneIndices4[i]);
+            Assert.assertEquals(coord.toString(), expectedZoneId, actualZoneId);
+            Assert.assertEquals(coord.toString(), expectedZoneId, finder.findZone(coord));
+            if (expectedZoneId != null) {
+                foundCount++;
+            }
+        }
+        Assert.assertTrue(foundCount > 0);
+        Assert.assertTrue(foundCount < coords.size());
+    }
+
+    @Test
+    public void testBorderUsesFirstZone() {
+        List<SimpleFeature> zones = createZones();
+        ZoneFinder finder = new ZoneFinder(zones, "ID");
+        // the corner is shared by 4 grid zones and the overlapping zone "big"
+        String expected = null;
+        for (SimpleFeature zone : zones) {
+            String zoneId = zone.getAttribute("ID").toString();
+            if (zoneId.equals("2_2") || zoneId.equals("3_2") || zoneId.equals("2_3") || zoneId.equals("3_3") || zoneId.equals("big")) {
+                expected = zoneId;
+                break;
+            }
+        }
+        Assert.assertEquals(expected, finder.findZone(new Coord(3000, 3000)));
+        Assert.assertNull(finder.findZone(new Coord(-1, 500)));
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        ZoneFinder finder = new ZoneFinder(createZones(), "ID");
+        List<Coord> coords = createCoords(1000, 1234);
+        File cacheFile = new File(this.utils.getOutputDirectory(), "zones.bin");
+
+        int[] calculated = finder.findZones(coords, 2, cacheFile);
+        Assert.assertTrue(cacheFile.exists());
+        Assert.assertArrayEquals(calculated, finder.findZones(coords, 2, cacheFile));
+
+        // the cache must be used as long as the zones and coordinates are the same, so it must not be re-written
+        long lastModified = cacheFile.lastModified();
+        ZoneFinder otherFinder = new ZoneFinder(createZones(), "ID");
+        Assert.assertArrayEquals(calculated, otherFinder.findZones(coords, 2, cacheFile));
+        Assert.assertEquals(lastModified, cacheFile.lastModified());
+
+        // other coordinates must not use the cached result
+        List<Coord> otherCoords = new ArrayList<>(coords);
+        otherCoords.set(0, new Coord(-100, -100));
+        int[] other = finder.findZones(otherCoords, 2, cacheFile);
+        Assert.assertEquals(-1, other[0]);
+        for (int i = 1; i < coords.size(); i++) {
+            Assert.assertEquals(calculated[i], other[i]);
+        }
+    }
+
+    /**
+     * Creates a grid of 10 x 10 square zones with a side length of 1000, in random order, and
+     * an additional zone overlapping some of the grid zones.
+     */
+    private static List<SimpleFeature> createZones() {
+        PolygonFeatureFactory factory = new PolygonFeatureFactory.Builder().setName("zones").addAttribute("ID", String.class).create();
+        List<SimpleFeature> zones = new ArrayList<>();
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                zones.add(createSquare(factory, x + "_" + y, x * 1000, y * 1000, 1000));
+            }
+        }
+        Collections.shuffle(zones, new Random(20190601));
+        zones.add(createSquare(factory, "big", 2500, 2500, 2000));
+        return zones;
+    }
+
+    private static SimpleFeature createSquare(PolygonFeatureFactory factory, String id, double x, double y, double size) {
+        Coordinate[] ring = {
+                new Coordinate(x, y),
+                new Coordinate(x + size, y),
+                new Coordinate(x + size, y + size),
+                new Coordinate(x, y + size),
+                new Coordinate(x, y) };
+        return factory.createPolygon(ring, new Object[] { id }, id);
+    }
+
+    /**
+     * Creates random coordinates, partially outside of the zones, and some exactly on zone borders.
+     */
+    private static List<Coord> createCoords(int count, long seed) {
+        Random random = new Random(seed);
+        List<Coord> coords = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0) {
+                coords.add(new Coord(1000 * random.nextInt(11), 1000 * random.nextInt(11)));
+            } else {
+                coords.add(new Coord(-500 + 11_000 * random.nextDouble(), -500 + 11_000 * random.nextDouble()));
+            }
+        }
+        return coords;
+    }
+}
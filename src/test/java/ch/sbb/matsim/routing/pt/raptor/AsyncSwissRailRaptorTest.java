@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.facilities.Facility;
+
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author agent
+ */
+public class AsyncSwissRailRaptorTest {
+
+    @Test
+    public void testCalcRouteAsync() throws Exception {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        DefaultRaptorParametersForPerson parametersForPerson = new DefaultRaptorParametersForPerson(f.config);
+        SwissRailRaptor syncRaptor = new SwissRailRaptor(data, parametersForPerson, new LeastCostRaptorRouteSelector(),
+                new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null));
+
+        try (AsyncSwissRailRaptor raptor = new AsyncSwissRailRaptor(() -> new SwissRailRaptor(data, parametersForPerson, new LeastCostRaptorRouteSelector(),
+                new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null)), 2, 100, 10, TimeUnit.SECONDS)) {
+
+            FakeFacility fromFacility = new FakeFacility(new Coord(3800, 5100));
+            FakeFacility toFacility = new FakeFacility(new Coord(16100, 5050));
+            List<CompletableFuture<List<Leg>>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(raptor.calcRouteAsync(fromFacility, toFacility, 5.0 * 3600 + i * 300, null));
+            }
+            for (int i = 0; i < 20; i++) {
+                List<Leg> expected = syncRaptor.calcRoute(fromFacility, toFacility, 5.0 * 3600 + i * 300, null);
+                List<Leg> actual = futures.get(i).get();
+                Assert.assertEquals(expected.size(), actual.size());
+                for (int j = 0; j < expected.size(); j++) {
+                    Assert.assertEquals(expected.get(j).getMode(), actual.get(j).getMode());
+                    Assert.assertEquals(expected.get(j).getDepartureTime(), actual.get(j).getDepartureTime(), 1e-7);
+                    Assert.assertEquals(expected.get(j).getTravelTime(), actual.get(j).getTravelTime(), 1e-7);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        DefaultRaptorParametersForPerson parametersForPerson = new DefaultRaptorParametersForPerson(f.config);
+
+        try (AsyncSwissRailRaptor raptor = new AsyncSwissRailRaptor(() -> new SwissRailRaptor(data, parametersForPerson, new LeastCostRaptorRouteSelector(),
+                new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null)), 1, 10, 10, TimeUnit.SECONDS)) {
+            CompletableFuture<List<Leg>> future = raptor.calcRouteAsync(new FakeFacility(new Coord(3800, 5100)), new FakeFacility(new Coord(16100, 5050)), 5.0 * 3600, null, 0, TimeUnit.MILLISECONDS);
+            try {
+                future.get();
+                Assert.fail("Expected a timeout.");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        }
+    }
+
+    @Test
+    public void testTimeoutWhileQueued() throws Exception {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        DefaultRaptorParametersForPerson parametersForPerson = new DefaultRaptorParametersForPerson(f.config);
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        AtomicInteger calculationCount = new AtomicInteger(0);
+        FakeFacility fromFacility = new FakeFacility(new Coord(3800, 5100));
+        FakeFacility toFacility = new FakeFacility(new Coord(16100, 5050));
+
+        // the first calculation blocks the only router until the latch is released
+        Provider<SwissRailRaptor> provider = () -> new SwissRailRaptor(data, parametersForPerson, new LeastCostRaptorRouteSelector(),
+                new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null)) {
+            @Override
+            public List<Leg> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+                if (calculationCount.getAndIncrement() == 0) {
+                    try {
+                        blockingLatch.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.calcRoute(fromFacility, toFacility, departureTime, person);
+            }
+        };
+
+        try (AsyncSwissRailRaptor raptor = new AsyncSwissRailRaptor(provider, 1, 100, 10, TimeUnit.SECONDS)) {
+            CompletableFuture<List<Leg>> blockingFuture = raptor.calcRouteAsync(fromFacility, toFacility, 5.0 * 3600, null);
+            List<CompletableFuture<List<Leg>>> queuedFutures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                queuedFutures.add(raptor.calcRouteAsync(fromFacility, toFacility, 5.0 * 3600 + i * 300, null, 100, TimeUnit.MILLISECONDS));
+            }
+
+            // the queued requests must time out while the only router is still busy
+            for (CompletableFuture<List<Leg>> future : queuedFutures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    Assert.fail("Expected a timeout.");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof TimeoutException);
+                }
+            }
+            Assert.assertFalse(blockingFuture.isDone());
+
+            blockingLatch.countDown();
+            Assert.assertNotNull(blockingFuture.get(10, TimeUnit.SECONDS));
+            Assert.assertNotNull(raptor.calcRouteAsync(fromFacility, toFacility, 6.0 * 3600, null).get(10, TimeUnit.SECONDS));
+            Assert.assertEquals("timed out requests must not be calculated", 2, calculationCount.get());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.pt.routes.ExperimentalTransitRoute;
+
+import java.util.List;
+
+/**
+ * @author agent
+ */
+public class CompactRaptorRouteTest {
+
+    @Test
+    public void testSameLegsAsCalcRoute() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        SwissRailRaptor raptor = new SwissRailRaptor(data, new DefaultRaptorParametersForPerson(f.config), new LeastCostRaptorRouteSelector(),
+                new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null));
+
+        FakeFacility fromFacility = new FakeFacility(new Coord(3800, 5100));
+        FakeFacility toFacility = new FakeFacility(new Coord(16100, 5050));
+        double depTime = 5.0 * 3600;
+
+        List<Leg> expectedLegs = raptor.calcRoute(fromFacility, toFacility, depTime, null);
+        CompactRaptorRoute compactRoute = raptor.calcCompactRoute(fromFacility, toFacility, depTime, null);
+
+        Assert.assertEquals(expectedLegs.size(), compactRoute.getNumberOfParts());
+        Assert.assertEquals(expectedLegs.get(0).getDepartureTime(), compactRoute.getDepartureTime(), 1e-7);
+        Leg lastLeg = expectedLegs.get(expectedLegs.size() - 1);
+        Assert.assertEquals(lastLeg.getDepartureTime() + lastLeg.getTravelTime(), compactRoute.getArrivalTime(), 1e-7);
+
+        List<Leg> actualLegs = compactRoute.toLegs();
+        Assert.assertEquals(expectedLegs.size(), actualLegs.size());
+        for (int i = 0; i < expectedLegs.size(); i++) {
+            Leg expected = expectedLegs.get(i);
+            Leg actual = actualLegs.get(i);
+            Assert.assertEquals(expected.getMode(), actual.getMode());
+            Assert.assertEquals(expected.getDepartureTime(), actual.getDepartureTime(), 1e-7);
+            Assert.assertEquals(expected.getTravelTime(), actual.getTravelTime(), 1e-7);
+            Assert.assertEquals(expected.getRoute().getStartLinkId(), actual.getRoute().getStartLinkId());
+            Assert.assertEquals(expected.getRoute().getEndLinkId(), actual.getRoute().getEndLinkId());
+            if (expected.getRoute() instanceof ExperimentalTransitRoute) {
+                ExperimentalTransitRoute expectedRoute = (ExperimentalTransitRoute) expected.getRoute();
+                ExperimentalTransitRoute actualRoute = (ExperimentalTransitRoute) actual.getRoute();
+                Assert.assertTrue(compactRoute.isPt(i));
+                Assert.assertEquals(expectedRoute.getLineId(), actualRoute.getLineId());
+                Assert.assertEquals(expectedRoute.getRouteId(), actualRoute.getRouteId());
+                Assert.assertEquals(expectedRoute.getLineId(), compactRoute.getLine(i).getId());
+                Assert.assertEquals(expectedRoute.getAccessStopId(), compactRoute.getFromStop(i).getId());
+                Assert.assertEquals(expectedRoute.getEgressStopId(), compactRoute.getToStop(i).getId());
+            } else {
+                Assert.assertFalse(compactRoute.isPt(i));
+                Assert.assertEquals(-1, compactRoute.getTransitRouteIndex(i));
+            }
+        }
+    }
+}
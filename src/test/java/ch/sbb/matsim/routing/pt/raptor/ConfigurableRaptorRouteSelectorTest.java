@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RouteSelectorParameterSet;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.TransportMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author agent
+ */
+public class ConfigurableRaptorRouteSelectorTest {
+
+    @Test
+    public void testSelectOne() {
+        // leaves at the desired time, but takes long and requires one transfer
+        RaptorRoute slowRoute = new RaptorRoute(null, null, 100);
+        slowRoute.addPt(null, null, null, null, TransportMode.pt, 8*3600, 8*3600, 8*3600 + 1800, 10000);
+        slowRoute.addPt(null, null, null, null, TransportMode.pt, 8*3600 + 1800, 8*3600 + 1800, 8*3600 + 3600, 10000);
+
+        // leaves 10 minutes later, but is fast and direct
+        RaptorRoute fastRoute = new RaptorRoute(null, null, 100);
+        fastRoute.addPt(null, null, null, null, TransportMode.pt, 8*3600 + 600, 8*3600 + 600, 8*3600 + 1800, 20000);
+
+        List<RaptorRoute> routes = new ArrayList<>();
+        routes.add(slowRoute);
+        routes.add(fastRoute);
+
+        Assert.assertEquals(fastRoute, new ConfigurableRaptorRouteSelector(1, 1, 300).selectOne(routes, 8*3600));
+        Assert.assertEquals(slowRoute, new ConfigurableRaptorRouteSelector(10, 1, 0).selectOne(routes, 8*3600));
+        Assert.assertNull(new ConfigurableRaptorRouteSelector().selectOne(new ArrayList<>(), 8*3600));
+    }
+
+    @Test
+    public void testCreatePerSubpopulation() {
+        SwissRailRaptorConfigGroup srrConfig = new SwissRailRaptorConfigGroup();
+
+        RouteSelectorParameterSet defaultParams = new RouteSelectorParameterSet();
+        defaultParams.setBetaTransfers(600);
+        srrConfig.addRouteSelector(defaultParams);
+
+        RouteSelectorParameterSet inflexibleParams = new RouteSelectorParameterSet();
+        inflexibleParams.setSubpopulations("inflexible,commuters");
+        inflexibleParams.setBetaDepartureTime(5);
+        srrConfig.addRouteSelector(inflexibleParams);
+
+        Map<String, RaptorRouteSelector> selectors = ConfigurableRaptorRouteSelector.createPerSubpopulation(srrConfig);
+        Assert.assertEquals(3, selectors.size());
+
+        ConfigurableRaptorRouteSelector defaultSelector = (ConfigurableRaptorRouteSelector) selectors.get(null);
+        Assert.assertEquals(600, defaultSelector.getBetaTransfer(), 0.0);
+        Assert.assertEquals(1, defaultSelector.getBetaDepartureTime(), 0.0);
+
+        ConfigurableRaptorRouteSelector inflexibleSelector = (ConfigurableRaptorRouteSelector) selectors.get("inflexible");
+        Assert.assertEquals(300, inflexibleSelector.getBetaTransfer(), 0.0);
+        Assert.assertEquals(5, inflexibleSelector.getBetaDepartureTime(), 0.0);
+        Assert.assertSame("subpopulations sharing a parameter set should share the selector", inflexibleSelector, selectors.get("commuters"));
+    }
+
+    @Test
+    public void testCreatePerSubpopulation_removedSubpopulation() {
+        SwissRailRaptorConfigGroup srrConfig = new SwissRailRaptorConfigGroup();
+
+        RouteSelectorParameterSet inflexibleParams = new RouteSelectorParameterSet();
+        inflexibleParams.setSubpopulations("inflexible,commuters");
+        inflexibleParams.setBetaDepartureTime(5);
+        srrConfig.addRouteSelector(inflexibleParams);
+        srrConfig.removeRouteSelector("commuters");
+
+        Map<String, RaptorRouteSelector> selectors = ConfigurableRaptorRouteSelector.createPerSubpopulation(srrConfig);
+        Assert.assertEquals(1, selectors.size());
+        Assert.assertNotNull(selectors.get("inflexible"));
+        Assert.assertNull("the removed subpopulation must not be restored from the shared parameter set", selectors.get("commuters"));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RangeQuerySettingsParameterSet;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RouteSelectorParameterSet;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorBatchRouter.RoutingRequest;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorBatchRouter.Stage;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.pt.PtConstants;
+import org.matsim.utils.objectattributes.ObjectAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author agent
+ */
+public class SwissRailRaptorBatchRouterTest {
+
+    @Test
+    public void testSameResultsAsSingleRouter() {
+        Fixture f = new Fixture();
+        f.init();
+
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        DefaultRaptorParametersForPerson parametersForPerson = new DefaultRaptorParametersForPerson(f.config);
+        SwissRailRaptor raptor = new SwissRailRaptor(data, parametersForPerson, new LeastCostRaptorRouteSelector(),
+                new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null));
+        SwissRailRaptorBatchRouter batchRouter = new SwissRailRaptorBatchRouter(data, parametersForPerson, new LeastCostRaptorRouteSelector(), null,
+                () -> new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null),
+                null, null, f.schedule, f.network, 2, 3);
+
+        List<RoutingRequest> requests = createRequests(new Person[] { null });
+
+        List<List<? extends PlanElement>> results = batchRouter.route(requests);
+        Assert.assertEquals(requests.size(), results.size());
+
+        assertSameResults(raptor, requests, results);
+
+        for (Stage stage : Stage.values()) {
+            Assert.assertEquals(requests.size(), batchRouter.getStatistics().getCount(stage));
+        }
+    }
+
+    @Test
+    public void testSameResultsAsSingleRouter_rangeQueryWithSubpopulations() {
+        Fixture f = new Fixture();
+        f.init();
+
+        SwissRailRaptorConfigGroup srrConfig = ConfigUtils.addOrGetModule(f.config, SwissRailRaptorConfigGroup.class);
+        srrConfig.setUseRangeQuery(true);
+
+        RangeQuerySettingsParameterSet defaultRange = new RangeQuerySettingsParameterSet();
+        defaultRange.setMaxEarlierDeparture(600);
+        defaultRange.setMaxLaterDeparture(900);
+        srrConfig.addRangeQuerySettings(defaultRange);
+        RangeQuerySettingsParameterSet subpopulationRange = new RangeQuerySettingsParameterSet();
+        subpopulationRange.setSubpopulations("inflexible,tourists");
+        subpopulationRange.setMaxEarlierDeparture(900);
+        subpopulationRange.setMaxLaterDeparture(1800);
+        srrConfig.addRangeQuerySettings(subpopulationRange);
+
+        RouteSelectorParameterSet defaultSelector = new RouteSelectorParameterSet();
+        defaultSelector.setBetaTransfers(600);
+        defaultSelector.setBetaDepartureTime(0.1);
+        srrConfig.addRouteSelector(defaultSelector);
+        // "tourists" has no route selector and must fall back to the one for persons without subpopulation
+        RouteSelectorParameterSet inflexibleSelector = new RouteSelectorParameterSet();
+        inflexibleSelector.setSubpopulations("inflexible");
+        inflexibleSelector.setBetaDepartureTime(5);
+        srrConfig.addRouteSelector(inflexibleSelector);
+
+        ObjectAttributes personAttributes = new ObjectAttributes();
+        Person[] persons = new Person[3];
+        String[] subpopulations = { null, "inflexible", "tourists" };
+        for (int i = 0; i < persons.length; i++) {
+            persons[i] = PopulationUtils.getFactory().createPerson(Id.create("p" + i, Person.class));
+            if (subpopulations[i] != null) {
+                personAttributes.putAttribute(persons[i].getId().toString(), "subpopulation", subpopulations[i]);
+            }
+        }
+
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        DefaultRaptorParametersForPerson parametersForPerson = new DefaultRaptorParametersForPerson(f.config);
+        SwissRailRaptor raptor = new SwissRailRaptor(data, parametersForPerson, new ConfigurableRaptorRouteSelector(),
+                new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null), "subpopulation", personAttributes);
+        SwissRailRaptorBatchRouter batchRouter = new SwissRailRaptorBatchRouter(data, parametersForPerson, new ConfigurableRaptorRouteSelector(), null,
+                () -> new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null),
+                "subpopulation", personAttributes, f.schedule, f.network, 2, 3);
+
+        List<RoutingRequest> requests = createRequests(persons);
+        List<List<? extends PlanElement>> results = batchRouter.route(requests);
+        Assert.assertEquals(requests.size(), results.size());
+        assertSameResults(raptor, requests, results);
+    }
+
+    private static List<RoutingRequest> createRequests(Person[] persons) {
+        Coord[] origins = { new Coord(3800, 5100), new Coord(4000, 5050), new Coord(16100, 5050) };
+        Coord[] destinations = { new Coord(16100, 5050), new Coord(28100, 4950), new Coord(4000, 5050) };
+        List<RoutingRequest> requests = new ArrayList<>();
+        for (Coord origin : origins) {
+            for (Coord destination : destinations) {
+                for (double depTime = 5.0 * 3600; depTime < 7.0 * 3600; depTime += 1200) {
+                    for (Person person : persons) {
+                        requests.add(new RoutingRequest(new FakeFacility(origin), new FakeFacility(destination), depTime, person));
+                    }
+                }
+            }
+        }
+        return requests;
+    }
+
+    private static void assertSameResults(SwissRailRaptor raptor, List<RoutingRequest> requests, List<List<? extends PlanElement>> results) {
+        for (int i = 0; i < requests.size(); i++) {
+            RoutingRequest request = requests.get(i);
+            List<Leg> expectedLegs = raptor.calcRoute(request.fromFacility, request.toFacility, request.departureTime, request.person);
+            List<? extends PlanElement> planElements = results.get(i);
+            Assert.assertEquals(expectedLegs.size() * 2 - 1, planElements.size());
+            for (int j = 0; j < expectedLegs.size(); j++) {
+                Leg expected = expectedLegs.get(j);
+                Leg actual = (Leg) planElements.get(j * 2);
+                Assert.assertEquals(expected.getMode(), actual.getMode());
+                Assert.assertEquals(expected.getDepartureTime(), actual.getDepartureTime(), 1e-7);
+                Assert.assertEquals(expected.getTravelTime(), actual.getTravelTime(), 1e-7);
+                Assert.assertEquals(expected.getRoute().getStartLinkId(), actual.getRoute().getStartLinkId());
+                Assert.assertEquals(expected.getRoute().getEndLinkId(), actual.getRoute().getEndLinkId());
+                if (j > 0) {
+                    Assert.assertEquals(PtConstants.TRANSIT_ACTIVITY_TYPE, ((Activity) planElements.get(j * 2 - 1)).getType());
+                }
+            }
+        }
+    }
+}
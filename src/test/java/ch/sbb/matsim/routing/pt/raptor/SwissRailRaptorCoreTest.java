@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.TransportMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author agent
+ */
+public class SwissRailRaptorCoreTest {
+
+    @Test
+    public void testFilterRoutes() {
+        Random r = new Random(20190312);
+        for (int iteration = 0; iteration < 50; iteration++) {
+            List<RaptorRoute> routes = createRandomRoutes(r, 1 + r.nextInt(200));
+            List<RaptorRoute> expected = filterRoutesPairwise(new ArrayList<>(routes));
+            List<RaptorRoute> actual = SwissRailRaptorCore.filterRoutes(new ArrayList<>(routes));
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    static List<RaptorRoute> createRandomRoutes(Random r, int count) {
+        List<RaptorRoute> routes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            RaptorRoute route = new RaptorRoute(null, null, 0);
+            double time = 6 * 3600 + r.nextInt(120) * 60;
+            int legs = 1 + r.nextInt(4);
+            for (int leg = 0; leg < legs; leg++) {
+                double arrTime = time + 60 * (1 + r.nextInt(30));
+                route.addPt(null, null, null, null, TransportMode.pt, time, time, arrTime, 1000);
+                time = arrTime;
+            }
+            routes.add(route);
+        }
+        return routes;
+    }
+
+    /**
+     * The previous, straight-forward implementation comparing all routes with each other,
+     * used as reference.
+     */
+    static List<RaptorRoute> filterRoutesPairwise(List<RaptorRoute> allRoutes) {
+        allRoutes.sort((r1, r2) -> {
+            int cmp = Integer.compare(r1.getNumberOfTransfers(), r2.getNumberOfTransfers());
+            if (cmp == 0) {
+                cmp = Double.compare(r1.getDepartureTime(), r2.getDepartureTime());
+            }
+            if (cmp == 0) {
+                cmp = Double.compare(r1.getTravelTime(), r2.getTravelTime());
+            }
+            return cmp;
+        });
+        List<RaptorRoute> uniqueRoutes = new ArrayList<>();
+        int lastTransferCount = -1;
+        double lastDepTime = Double.NaN;
+        double lastTravelTime = Double.NaN;
+        for (RaptorRoute route : allRoutes) {
+            if (route.getNumberOfTransfers() != lastTransferCount
+                || route.getDepartureTime() != lastDepTime
+                || route.getTravelTime() != lastTravelTime) {
+                uniqueRoutes.add(route);
+                lastTransferCount = route.getNumberOfTransfers();
+                lastDepTime = route.getDepartureTime();
+                lastTravelTime = route.getTravelTime();
+            }
+        }
+
+        List<RaptorRoute> routesToKeep = new ArrayList<>();
+        for (RaptorRoute route1 : uniqueRoutes) {
+            boolean addRoute1 = true;
+            for (RaptorRoute route2 : uniqueRoutes) {
+                if (route1 != route2) {
+                    double arrTime1 = route1.getDepartureTime() + route1.getTravelTime();
+                    double arrTime2 = route2.getDepartureTime() + route2.getTravelTime();
+                    if (route2.getNumberOfTransfers() <= route1.getNumberOfTransfers()
+                        && route2.getDepartureTime() >= route1.getDepartureTime()
+                        && arrTime2 <= arrTime1) {
+                        addRoute1 = false;
+                        break;
+                    }
+                }
+            }
+            if (addRoute1) {
+                routesToKeep.add(route1);
+            }
+        }
+        return routesToKeep;
+    }
+}
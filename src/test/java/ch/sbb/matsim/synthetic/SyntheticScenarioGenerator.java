@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.synthetic;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.core.utils.gis.PolygonFeatureFactory;
+import org.matsim.core.utils.gis.ShapeFileWriter;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.MinimalTransferTimes;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleCapacity;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+import org.matsim.vehicles.VehiclesFactory;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic scenarios of arbitrary size for benchmarks and stress tests, without requiring
+ * any input files: a network and a transit schedule with straight lines laid out either as a grid or
+ * radially around a center, minimal transfer times between the stops located at the same coordinate,
+ * a transit vehicle for each departure, square zones covering the area, and pt agents commuting
+ * between random locations.
+ *
+ * All generated data only depends on the settings and the seed, so the same settings always result
+ * in exactly the same scenario. Each person only depends on its index, so large populations can be
+ * generated in parts or streamed to a file without keeping them in memory, see
+ * {@link #writePopulation(String, int)}.
+ *
+ * @author agent
+ */
+public final class SyntheticScenarioGenerator {
+
+    private static final Logger log = Logger.getLogger(SyntheticScenarioGenerator.class);
+
+    public enum Layout {
+        /** a square area with straight lines, half of them running west-east, the other half south-north. */
+        GRID,
+        /** straight lines crossing each other in the center of the area, plus optional ring lines around the center. */
+        RADIAL
+    }
+
+    private static final long ZONES_SALT = 0x5DEECE66DL;
+    private static final long PERSON_SALT = 0x9E3779B97F4A7C15L;
+
+    private final long seed;
+    private Layout layout = Layout.GRID;
+    private double extent = 20_000;
+    private int lineCount = 10;
+    private int ringCount = 0;
+    private double stopDistance = 500;
+    private double headway = 600;
+    private double firstDeparture = 5 * 3600;
+    private double lastDeparture = 24 * 3600;
+    private double dwellTime = 30;
+    private double minimalTransferTime = 60;
+    private String mode = "bus";
+
+    public SyntheticScenarioGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Sets the side length of the square area covered by the schedule, the zones and the population.
+     * The area ranges from (0, 0) to (extent, extent).
+     */
+    public void setExtent(double extent) {
+        this.extent = extent;
+    }
+
+    public double getExtent() {
+        return this.extent;
+    }
+
+    /**
+     * Sets the number of lines per direction for {@link Layout#GRID}, or the number of lines
+     * crossing the center for {@link Layout#RADIAL}. Each line is served in both directions.
+     */
+    public void setLineCount(int lineCount) {
+        if (lineCount < 1) {
+            throw new IllegalArgumentException("At least one line is required, but was " + lineCount);
+        }
+        this.lineCount = lineCount;
+    }
+
+    /**
+     * Sets the number of ring lines around the center, only used for {@link Layout#RADIAL}.
+     */
+    public void setRingCount(int ringCount) {
+        this.ringCount = ringCount;
+    }
+
+    public void setStopDistance(double stopDistance) {
+        if (stopDistance <= 0) {
+            throw new IllegalArgumentException("The stop distance must be positive, but was " + stopDistance);
+        }
+        this.stopDistance = stopDistance;
+    }
+
+    public void setHeadway(double headway) {
+        if (headway <= 0) {
+            throw new IllegalArgumentException("The headway must be positive, but was " + headway);
+        }
+        this.headway = headway;
+    }
+
+    /**
+     * Sets the time window of the service. The first departure of each line is chosen randomly
+     * within one headway after the start of the window.
+     */
+    public void setServiceTimes(double firstDeparture, double lastDeparture) {
+        this.firstDeparture = firstDeparture;
+        this.lastDeparture = lastDeparture;
+    }
+
+    public void setDwellTime(double dwellTime) {
+        this.dwellTime = dwellTime;
+    }
+
+    /**
+     * Sets the minimal transfer time between stops located at the same coordinate.
+     * A negative value results in no minimal transfer times being set.
+     */
+    public void setMinimalTransferTime(double minimalTransferTime) {
+        this.minimalTransferTime = minimalTransferTime;
+    }
+
+    public void setTransportMode(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return a new scenario with transit enabled, containing the generated network, transit schedule and transit vehicles.
+     */
+    public Scenario createScenario() {
+        Config config = ConfigUtils.createConfig(new SwissRailRaptorConfigGroup());
+        config.transit().setUseTransit(true);
+        Scenario scenario = ScenarioUtils.createScenario(config);
+        fillScenario(scenario);
+        return scenario;
+    }
+
+    /**
+     * Adds the generated network, transit schedule and transit vehicles to the given, typically empty, scenario.
+     */
+    public void fillScenario(Scenario scenario) {
+        Random random = new Random(this.seed);
+        VehicleType vehicleType = createVehicleType(scenario.getTransitVehicles());
+        if (this.layout == Layout.GRID) {
+            createGridLines(scenario, vehicleType, random);
+        } else {
+            createRadialLines(scenario, vehicleType, random);
+        }
+        createMinimalTransferTimes(scenario.getTransitSchedule());
+        log.info("generated " + scenario.getTransitSchedule().getTransitLines().size() + " transit lines with "
+                + scenario.getTransitSchedule().getFacilities().size() + " stops and "
+                + scenario.getTransitVehicles().getVehicles().size() + " vehicles.");
+    }
+
+    private VehicleType createVehicleType(Vehicles vehicles) {
+        VehiclesFactory vf = vehicles.getFactory();
+        VehicleType vehicleType = vf.createVehicleType(Id.create(this.mode, VehicleType.class));
+        VehicleCapacity capacity = vf.createVehicleCapacity();
+        capacity.setSeats(80);
+        capacity.setStandingRoom(70);
+        vehicleType.setCapacity(capacity);
+        vehicleType.setAccessTime(1);
+        vehicleType.setEgressTime(1);
+        vehicles.addVehicleType(vehicleType);
+        return vehicleType;
+    }
+
+    private void createGridLines(Scenario scenario, VehicleType vehicleType, Random random) {
+        int stopsPerLine = (int) (this.extent / this.stopDistance) + 1;
+        // the lines are placed on multiples of the stop distance, so crossing lines share a stop location
+        int stopsBetweenLines = Math.max(1, stopsPerLine / this.lineCount);
+        for (int i = 0; i < this.lineCount; i++) {
+            double offset = (stopsBetweenLines / 2 + i * stopsBetweenLines) * this.stopDistance;
+            Coord[] westEast = new Coord[stopsPerLine];
+            Coord[] southNorth = new Coord[stopsPerLine];
+            for (int s = 0; s < stopsPerLine; s++) {
+                westEast[s] = new Coord(s * this.stopDistance, offset);
+                southNorth[s] = new Coord(offset, s * this.stopDistance);
+            }
+            createLine(scenario, vehicleType, "WE" + i, westEast, random);
+            createLine(scenario, vehicleType, "SN" + i, southNorth, random);
+        }
+    }
+
+    private void createRadialLines(Scenario scenario, VehicleType vehicleType, Random random) {
+        double radius = this.extent / 2;
+        int stopsPerSide = (int) (radius / this.stopDistance);
+        for (int i = 0; i < this.lineCount; i++) {
+            double angle = Math.PI * i / this.lineCount;
+            Coord[] coords = new Coord[2 * stopsPerSide + 1];
+            for (int s = -stopsPerSide; s <= stopsPerSide; s++) {
+                coords[s + stopsPerSide] = getPolarCoord(s * this.stopDistance, angle);
+            }
+            createLine(scenario, vehicleType, "R" + i, coords, random);
+        }
+        for (int i = 0; i < this.ringCount; i++) {
+            // the rings are placed on multiples of the stop distance, so they share a stop location with each radial line they cross
+            double ringRadius = Math.max(1, Math.round((i + 1) * stopsPerSide / (double) (this.ringCount + 1))) * this.stopDistance;
+            int stopsPerSection = Math.max(1, (int) Math.round(Math.PI * ringRadius / this.lineCount / this.stopDistance));
+            int stopCount = 2 * this.lineCount * stopsPerSection;
+            // the last stop is at the location of the first one to close the ring
+            Coord[] coords = new Coord[stopCount + 1];
+            for (int s = 0; s <= stopCount; s++) {
+                coords[s] = getPolarCoord(ringRadius, 2 * Math.PI * s / stopCount);
+            }
+            createLine(scenario, vehicleType, "C" + i, coords, random);
+        }
+    }
+
+    /**
+     * Coordinates are rounded to full meters, so stops of different lines calculated with different angles
+     * end up at exactly the same location.
+     */
+    private Coord getPolarCoord(double distance, double angle) {
+        double center = this.extent / 2;
+        return new Coord(Math.round(center + distance * Math.cos(angle)), Math.round(center + distance * Math.sin(angle)));
+    }
+
+    private void createLine(Scenario scenario, VehicleType vehicleType, String lineId, Coord[] coords, Random random) {
+        Network network = scenario.getNetwork();
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        Vehicles vehicles = scenario.getTransitVehicles();
+        NetworkFactory nf = network.getFactory();
+        TransitScheduleFactory sf = schedule.getFactory();
+        double speed = 8 + 17 * random.nextDouble();
+        double firstDeparture = this.firstDeparture + Math.floor(random.nextDouble() * this.headway);
+        int stopCount = coords.length;
+
+        Node[] nodes = new Node[stopCount];
+        for (int i = 0; i < stopCount; i++) {
+            nodes[i] = nf.createNode(Id.create(lineId + "_" + i, Node.class), coords[i]);
+            network.addNode(nodes[i]);
+        }
+
+        TransitLine line = sf.createTransitLine(Id.create(lineId, TransitLine.class));
+        for (boolean isForward : new boolean[] { true, false }) {
+            String direction = isForward ? "f" : "b";
+            List<Id<Link>> linkIds = new ArrayList<>();
+            List<TransitRouteStop> routeStops = new ArrayList<>();
+            Node previousNode = null;
+            double arrivalOffset = 0;
+            for (int i = 0; i < stopCount; i++) {
+                Node node = nodes[isForward ? i : (stopCount - 1 - i)];
+                // the first stop is located on a loop link, all other stops at the end of the link leading to them
+                Link link = nf.createLink(Id.create(lineId + direction + "_" + i, Link.class), previousNode == null ? node : previousNode, node);
+                double length = previousNode == null ? 10 : CoordUtils.calcEuclideanDistance(previousNode.getCoord(), node.getCoord());
+                link.setLength(length);
+                link.setFreespeed(speed);
+                link.setCapacity(10000);
+                link.setNumberOfLanes(1);
+                network.addLink(link);
+                linkIds.add(link.getId());
+
+                TransitStopFacility stop = sf.createTransitStopFacility(Id.create(lineId + direction + "_" + i, TransitStopFacility.class), node.getCoord(), false);
+                stop.setLinkId(link.getId());
+                schedule.addStopFacility(stop);
+                if (previousNode != null) {
+                    arrivalOffset += this.dwellTime + Math.ceil(length / speed);
+                }
+                routeStops.add(sf.createTransitRouteStop(stop, arrivalOffset, arrivalOffset + this.dwellTime));
+                previousNode = node;
+            }
+            NetworkRoute networkRoute = RouteUtils.createLinkNetworkRouteImpl(linkIds.get(0), linkIds.subList(1, linkIds.size() - 1), linkIds.get(linkIds.size() - 1));
+            TransitRoute route = sf.createTransitRoute(Id.create(lineId + direction, TransitRoute.class), networkRoute, routeStops, this.mode);
+            int index = 0;
+            for (double time = firstDeparture; time < this.lastDeparture; time += this.headway) {
+                Departure departure = sf.createDeparture(Id.create(index, Departure.class), time);
+                Vehicle vehicle = vehicles.getFactory().createVehicle(Id.create(lineId + direction + "_" + index, Vehicle.class), vehicleType);
+                vehicles.addVehicle(vehicle);
+                departure.setVehicleId(vehicle.getId());
+                route.addDeparture(departure);
+                index++;
+            }
+            line.addRoute(route);
+        }
+        schedule.addTransitLine(line);
+    }
+
+    private void createMinimalTransferTimes(TransitSchedule schedule) {
+        if (this.minimalTransferTime < 0) {
+            return;
+        }
+        Map<Coord, List<TransitStopFacility>> stopsPerCoord = new HashMap<>();
+        for (TransitStopFacility stop : schedule.getFacilities().values()) {
+            stopsPerCoord.computeIfAbsent(stop.getCoord(), c -> new ArrayList<>()).add(stop);
+        }
+        MinimalTransferTimes mtt = schedule.getMinimalTransferTimes();
+        for (List<TransitStopFacility> stops : stopsPerCoord.values()) {
+            for (TransitStopFacility fromStop : stops) {
+                for (TransitStopFacility toStop : stops) {
+                    if (fromStop != toStop) {
+                        mtt.set(fromStop.getId(), toStop.getId(), this.minimalTransferTime);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates square zones covering the area, with the zone ids stored in the attribute <code>ID</code>.
+     * The zone ids are of the form <code>x_y</code>, with x and y being the column and row of the zone.
+     */
+    public Map<String, SimpleFeature> createZones(int zonesPerDirection) {
+        PolygonFeatureFactory factory = new PolygonFeatureFactory.Builder().setName("zones").addAttribute("ID", String.class).create();
+        Map<String, SimpleFeature> zones = new LinkedHashMap<>();
+        double size = this.extent / zonesPerDirection;
+        for (int x = 0; x < zonesPerDirection; x++) {
+            for (int y = 0; y < zonesPerDirection; y++) {
+                String id = x + "_" + y;
+                Coordinate[] ring = {
+                        new Coordinate(x * size, y * size),
+                        new Coordinate((x + 1) * size, y * size),
+                        new Coordinate((x + 1) * size, (y + 1) * size),
+                        new Coordinate(x * size, (y + 1) * size),
+                        new Coordinate(x * size, y * size) };
+                zones.put(id, factory.createPolygon(ring, new Object[] { id }, id));
+            }
+        }
+        return zones;
+    }
+
+    public static void writeZones(Map<String, SimpleFeature> zones, String filename) {
+        ShapeFileWriter.writeGeometries(zones.values(), filename);
+    }
+
+    /**
+     * Creates random sampling points within each of the given zones, e.g. for calculating skim matrices.
+     * The zones are expected to be rectangles, as generated by {@link #createZones(int)}.
+     */
+    public <T> Map<T, Coord[]> createCoordsPerZone(Map<T, SimpleFeature> zones, int coordsPerZone) {
+        Random random = new Random(this.seed ^ ZONES_SALT);
+        Map<T, Coord[]> coordsPerZoneMap = new LinkedHashMap<>();
+        for (Map.Entry<T, SimpleFeature> e : zones.entrySet()) {
+            Envelope envelope = ((Geometry) e.getValue().getDefaultGeometry()).getEnvelopeInternal();
+            Coord[] coords = new Coord[coordsPerZone];
+            for (int i = 0; i < coordsPerZone; i++) {
+                coords[i] = new Coord(envelope.getMinX() + random.nextDouble() * envelope.getWidth(), envelope.getMinY() + random.nextDouble() * envelope.getHeight());
+            }
+            coordsPerZoneMap.put(e.getKey(), coords);
+        }
+        return coordsPerZoneMap;
+    }
+
+    /**
+     * @return a random coordinate within the area served by the schedule.
+     */
+    public Coord getRandomCoord(Random random) {
+        if (this.layout == Layout.RADIAL) {
+            double radius = this.extent / 2 * Math.sqrt(random.nextDouble());
+            double angle = 2 * Math.PI * random.nextDouble();
+            return new Coord(this.extent / 2 + radius * Math.cos(angle), this.extent / 2 + radius * Math.sin(angle));
+        }
+        return new Coord(random.nextDouble() * this.extent, random.nextDouble() * this.extent);
+    }
+
+    /**
+     * Creates the person with the given index, commuting by pt from home to work and back. The home and
+     * work locations are chosen randomly within the served area, the departure from home between 06:00
+     * and 09:00, the working time between 7 and 9 hours. The activities only have coordinates, so links
+     * have to be assigned as usual when preparing the simulation.
+     *
+     * The person only depends on the seed and its index, but not on any other persons.
+     */
+    public Person createPerson(PopulationFactory pf, int index) {
+        Random random = new Random(this.seed ^ (PERSON_SALT * (index + 1)));
+        Person person = pf.createPerson(Id.create("pt_" + index, Person.class));
+        Plan plan = pf.createPlan();
+        Coord homeCoord = getRandomCoord(random);
+        Coord workCoord = getRandomCoord(random);
+        double homeEndTime = 6 * 3600 + random.nextInt(3 * 3600);
+        double workEndTime = homeEndTime + 7 * 3600 + random.nextInt(2 * 3600);
+
+        Activity home = pf.createActivityFromCoord("home", homeCoord);
+        home.setEndTime(homeEndTime);
+        plan.addActivity(home);
+        plan.addLeg(pf.createLeg(TransportMode.pt));
+        Activity work = pf.createActivityFromCoord("work", workCoord);
+        work.setEndTime(workEndTime);
+        plan.addActivity(work);
+        plan.addLeg(pf.createLeg(TransportMode.pt));
+        plan.addActivity(pf.createActivityFromCoord("home", homeCoord));
+        person.addPlan(plan);
+        return person;
+    }
+
+    /**
+     * Adds the persons with the index <code>0</code> to <code>count - 1</code> to the population.
+     */
+    public void createPopulation(Population population, int count) {
+        PopulationFactory pf = population.getFactory();
+        for (int i = 0; i < count; i++) {
+            population.addPerson(createPerson(pf, i));
+        }
+    }
+
+    /**
+     * Writes the persons with the index <code>0</code> to <code>count - 1</code> to the given file,
+     * without keeping them in memory, so even populations with millions of agents can be generated.
+     */
+    public void writePopulation(String filename, int count) {
+        PopulationFactory pf = PopulationUtils.getFactory();
+        StreamingPopulationWriter writer = new StreamingPopulationWriter();
+        writer.startStreaming(filename);
+        for (int i = 0; i < count; i++) {
+            writer.run(createPerson(pf, i));
+            if ((i + 1) % 1_000_000 == 0) {
+                log.info("written " + (i + 1) + " persons.");
+            }
+        }
+        writer.closeStreaming();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.synthetic;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.MinimalTransferTimes;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.testcases.MatsimTestUtils;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * @author agent
+ */
+public class SyntheticScenarioGeneratorTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testGrid() {
+        SyntheticScenarioGenerator generator = createGridGenerator(20190801);
+        Scenario scenario = generator.createScenario();
+
+        // 2 x 2 lines with 11 stops, each served in both directions
+        Assert.assertEquals(4, scenario.getTransitSchedule().getTransitLines().size());
+        Assert.assertEquals(88, scenario.getTransitSchedule().getFacilities().size());
+        Assert.assertEquals(44, scenario.getNetwork().getNodes().size());
+        Assert.assertEquals(88, scenario.getNetwork().getLinks().size());
+        // 8 routes with a departure every 10 minutes from 05:00 to 24:00
+        Assert.assertEquals(8 * 114, scenario.getTransitVehicles().getVehicles().size());
+
+        // the lines cross at (1000, 1000), (1000, 3500), (3500, 1000) and (3500, 3500)
+        MinimalTransferTimes mtt = scenario.getTransitSchedule().getMinimalTransferTimes();
+        Assert.assertEquals(60, mtt.get(stopId("WE0f_2"), stopId("SN0f_2")), 0.0);
+        Assert.assertEquals(60, mtt.get(stopId("SN0f_2"), stopId("WE0b_8")), 0.0);
+        Assert.assertEquals(60, mtt.get(stopId("WE1f_7"), stopId("SN1b_3")), 0.0);
+        Assert.assertTrue(Double.isNaN(mtt.get(stopId("WE0f_1"), stopId("SN0f_1"))));
+        int pairCount = 0;
+        MinimalTransferTimes.MinimalTransferTimesIterator iter = mtt.iterator();
+        while (iter.hasNext()) {
+            iter.next();
+            pairCount++;
+        }
+        // both directions of a line share their stop locations, the 4 crossings have 4 stops with 12 transfers each
+        Assert.assertEquals(36 * 2 + 4 * 12, pairCount);
+
+        SwissRailRaptorData raptorData = SwissRailRaptorData.create(scenario.getTransitSchedule(), RaptorUtils.createStaticConfig(scenario.getConfig()), scenario.getNetwork());
+        Assert.assertNotNull(raptorData);
+    }
+
+    @Test
+    public void testRadial() {
+        SyntheticScenarioGenerator generator = new SyntheticScenarioGenerator(20190801);
+        generator.setLayout(SyntheticScenarioGenerator.Layout.RADIAL);
+        generator.setExtent(10_000);
+        generator.setLineCount(3);
+        generator.setRingCount(1);
+        generator.setStopDistance(500);
+        Scenario scenario = generator.createScenario();
+
+        // 3 radial lines with 21 stops and a ring line with 30 stops plus the closing stop, each served in both directions
+        Assert.assertEquals(4, scenario.getTransitSchedule().getTransitLines().size());
+        Assert.assertEquals(3 * 2 * 21 + 2 * 31, scenario.getTransitSchedule().getFacilities().size());
+
+        TransitStopFacility center = scenario.getTransitSchedule().getFacilities().get(stopId("R0f_10"));
+        Assert.assertEquals(5000, center.getCoord().getX(), 0.0);
+        Assert.assertEquals(5000, center.getCoord().getY(), 0.0);
+
+        MinimalTransferTimes mtt = scenario.getTransitSchedule().getMinimalTransferTimes();
+        Assert.assertEquals(60, mtt.get(stopId("R0f_10"), stopId("R1f_10")), 0.0);
+        Assert.assertEquals(60, mtt.get(stopId("R2b_10"), stopId("R0f_10")), 0.0);
+        // the ring crosses the radial lines at a distance of 2500 from the center
+        Assert.assertEquals(60, mtt.get(stopId("C0f_0"), stopId("R0f_15")), 0.0);
+        Assert.assertEquals(60, mtt.get(stopId("C0f_5"), stopId("R1f_15")), 0.0);
+        Assert.assertEquals(60, mtt.get(stopId("C0f_15"), stopId("R0f_5")), 0.0);
+
+        SwissRailRaptorData raptorData = SwissRailRaptorData.create(scenario.getTransitSchedule(), RaptorUtils.createStaticConfig(scenario.getConfig()), scenario.getNetwork());
+        Assert.assertNotNull(raptorData);
+    }
+
+    @Test
+    public void testDeterministic() {
+        Scenario scenario1 = createGridGenerator(4711).createScenario();
+        Scenario scenario2 = createGridGenerator(4711).createScenario();
+        Scenario scenario3 = createGridGenerator(4712).createScenario();
+
+        boolean hasDifferences = false;
+        for (TransitLine line1 : scenario1.getTransitSchedule().getTransitLines().values()) {
+            TransitLine line2 = scenario2.getTransitSchedule().getTransitLines().get(line1.getId());
+            TransitLine line3 = scenario3.getTransitSchedule().getTransitLines().get(line1.getId());
+            for (TransitRoute route1 : line1.getRoutes().values()) {
+                TransitRoute route2 = line2.getRoutes().get(route1.getId());
+                TransitRoute route3 = line3.getRoutes().get(route1.getId());
+                double firstDeparture1 = route1.getDepartures().values().iterator().next().getDepartureTime();
+                Assert.assertEquals(firstDeparture1, route2.getDepartures().values().iterator().next().getDepartureTime(), 0.0);
+                for (int i = 0; i < route1.getStops().size(); i++) {
+                    Assert.assertEquals(route1.getStops().get(i).getArrivalOffset(), route2.getStops().get(i).getArrivalOffset(), 0.0);
+                }
+                hasDifferences |= firstDeparture1 != route3.getDepartures().values().iterator().next().getDepartureTime();
+            }
+        }
+        Assert.assertTrue("a different seed should result in a different schedule.", hasDifferences);
+    }
+
+    @Test
+    public void testZones() {
+        SyntheticScenarioGenerator generator = createGridGenerator(20190801);
+        Map<String, SimpleFeature> zones = generator.createZones(4);
+        Assert.assertEquals(16, zones.size());
+        Assert.assertEquals("2_3", zones.get("2_3").getAttribute("ID"));
+
+        Map<String, Coord[]> coordsPerZone = generator.createCoordsPerZone(zones, 5);
+        Assert.assertEquals(16, coordsPerZone.size());
+        for (Map.Entry<String, Coord[]> e : coordsPerZone.entrySet()) {
+            Envelope envelope = ((Geometry) zones.get(e.getKey()).getDefaultGeometry()).getEnvelopeInternal();
+            Assert.assertEquals(5, e.getValue().length);
+            for (Coord coord : e.getValue()) {
+                Assert.assertTrue(e.getKey(), envelope.contains(coord.getX(), coord.getY()));
+            }
+        }
+        Map<String, Coord[]> coordsPerZone2 = generator.createCoordsPerZone(zones, 5);
+        Assert.assertArrayEquals(coordsPerZone.get("1_1"), coordsPerZone2.get("1_1"));
+    }
+
+    @Test
+    public void testPopulation() {
+        SyntheticScenarioGenerator generator = createGridGenerator(20190801);
+        PopulationFactory pf = PopulationUtils.getFactory();
+
+        // persons only depend on their index, not on the order in which they are generated
+        Person person = generator.createPerson(pf, 42);
+        generator.createPerson(pf, 7);
+        Person samePerson = generator.createPerson(pf, 42);
+        Activity home = (Activity) person.getSelectedPlan().getPlanElements().get(0);
+        Activity sameHome = (Activity) samePerson.getSelectedPlan().getPlanElements().get(0);
+        Assert.assertEquals(home.getCoord(), sameHome.getCoord());
+        Assert.assertEquals(home.getEndTime(), sameHome.getEndTime(), 0.0);
+        Assert.assertEquals(5, person.getSelectedPlan().getPlanElements().size());
+
+        String filename = new File(this.utils.getOutputDirectory(), "population.xml.gz").getAbsolutePath();
+        generator.writePopulation(filename, 1000);
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        new PopulationReader(scenario).readFile(filename);
+        Assert.assertEquals(1000, scenario.getPopulation().getPersons().size());
+        Assert.assertNotNull(scenario.getPopulation().getPersons().get(Id.create("pt_999", Person.class)));
+    }
+
+    private static SyntheticScenarioGenerator createGridGenerator(long seed) {
+        SyntheticScenarioGenerator generator = new SyntheticScenarioGenerator(seed);
+        generator.setExtent(5000);
+        generator.setLineCount(2);
+        generator.setStopDistance(500);
+        generator.setHeadway(600);
+        return generator;
+    }
+
+    private static Id<TransitStopFacility> stopId(String id) {
+        return Id.create(id, TransitStopFacility.class);
+    }
+}